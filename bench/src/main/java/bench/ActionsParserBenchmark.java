@@ -0,0 +1,61 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import control.BinRepParser;
+import control.ReplayActionsExporter;
+import control.ReplayActionsParser;
+import model.Replay;
+import model.ReplayActions;
+
+/**
+ * Benchmarks of {@link ReplayActionsParser} on BWChart text exports of the replays
+ * (created with {@link ReplayActionsExporter}).
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ActionsParserBenchmark {
+
+	@Param( { "ProtosRush-1.rep", "djscanZ_flashinfinT_1x1lk.rep", "DewaltShuttle2.rep", "synthetic-x4", "synthetic-x16" } )
+	public String replay;
+
+	/** BWChart text export of the actions of the replay. */
+	private String exportString;
+
+	@Setup
+	public void setup() throws Exception {
+		final Replay parsedReplay = BinRepParser.parseReplay( BenchmarkReplays.load( replay ), true, false, false, false );
+		if ( parsedReplay == null )
+			throw new IllegalStateException( "Failed to parse " + replay );
+
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final ReplayActionsExporter exporter = new ReplayActionsExporter( output, ReplayActionsExporter.FORMAT_BWCHART );
+		exporter.exportReplay( null, parsedReplay );
+		exporter.close();
+		exportString = new String( output.toByteArray(), StandardCharsets.UTF_8 );
+	}
+
+	@Benchmark
+	public ReplayActions parseBWChartExportString() throws Exception {
+		return ReplayActionsParser.parseBWChartExportString( exportString );
+	}
+
+}
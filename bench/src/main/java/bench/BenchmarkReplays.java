@@ -0,0 +1,132 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import control.BinReplayPacker;
+import control.BinReplayUnpacker;
+import control.BinRepParser;
+import control.SyntheticReplayGenerator;
+
+/**
+ * Replay inputs of the benchmarks.<br>
+ * Replays are loaded from the <code>replays/BW</code> folder (can be overridden with the <code>bench.replays</code> system property).
+ * Synthetic inputs are named <code>synthetic-x&lt;N&gt;</code>: the commands section of {@link #SYNTHETIC_BASE} repeated N times
+ * (with shifted frames), written in the zlib compressed format.
+ * Generated inputs are named <code>generated-&lt;N&gt;</code>: the replay of index N of a {@link SyntheticReplayGenerator} with seed {@link #GENERATOR_SEED}
+ * (2 players, PKWARE imploded like pre 1.18 replays).
+ */
+public class BenchmarkReplays {
+
+	/** Name prefix of the synthetic inputs.          */
+	public static final String SYNTHETIC_PREFIX = "synthetic-x";
+	/** The replay the synthetic inputs are made of.  */
+	public static final String SYNTHETIC_BASE   = "djscanZ_flashinfinT_1x1lk.rep";
+	/** Name prefix of the generated inputs.          */
+	public static final String GENERATED_PREFIX = "generated-";
+	/** Seed of the generated inputs.                 */
+	public static final long   GENERATOR_SEED   = 1;
+
+	/**
+	 * No instances.
+	 */
+	private BenchmarkReplays() {
+	}
+
+	/**
+	 * Returns the folder of the benchmark replays.<br>
+	 * JMH may run the forked JVMs from the project folder or from the bench module folder, both are tried.
+	 * @return the folder of the benchmark replays
+	 * @throws IOException if the folder does not exist
+	 */
+	public static File getReplaysFolder() throws IOException {
+		final String path = System.getProperty( "bench.replays", "replays/BW" );
+		File folder = new File( path );
+		if ( !folder.isDirectory() )
+			folder = new File( "..", path );
+		if ( !folder.isDirectory() )
+			throw new IOException( "Benchmark replays folder not found: " + path );
+		return folder;
+	}
+
+	/**
+	 * Loads a benchmark input.
+	 * @param name name of a replay in the replays folder or name of a synthetic or generated input
+	 * @return the data of the replay
+	 * @throws Exception if the replay cannot be loaded or created
+	 */
+	public static byte[] load( final String name ) throws Exception {
+		if ( name.startsWith( SYNTHETIC_PREFIX ) )
+			return createScaledReplay( load( SYNTHETIC_BASE ), Integer.parseInt( name.substring( SYNTHETIC_PREFIX.length() ) ) );
+		if ( name.startsWith( GENERATED_PREFIX ) )
+			return new SyntheticReplayGenerator( GENERATOR_SEED ).generate( Integer.parseInt( name.substring( GENERATED_PREFIX.length() ) ) );
+
+		return Files.readAllBytes( new File( getReplaysFolder(), name ).toPath() );
+	}
+
+	/**
+	 * Creates a replay whose commands section is the commands section of a replay repeated several times.<br>
+	 * The frames of the repetitions are shifted to follow the previous repetition, the game length in the header is scaled accordingly.
+	 * @param replayData data of the base replay
+	 * @param factor     number of repetitions
+	 * @return the data of the scaled replay (in zlib compressed format)
+	 * @throws Exception if the base replay cannot be unpacked
+	 */
+	public static byte[] createScaledReplay( final byte[] replayData, final int factor ) throws Exception {
+		final BinReplayUnpacker unpacker = new BinReplayUnpacker( replayData );
+		final byte[] idData, headerData, commandsData, mapData;
+		try {
+			if ( BinRepParser.readReplayFormat( unpacker ) < 0 )
+				throw new IOException( "Not a replay!" );
+			idData       = new byte[] { 'r', 'e', 'R', 'S' };
+			headerData   = unpacker.unpackSection( BinRepParser.HEADER_SIZE );
+			commandsData = unpacker.unpackSection( readInt( unpacker.unpackSection( 4 ), 0 ) );
+			mapData      = unpacker.unpackSection( readInt( unpacker.unpackSection( 4 ), 0 ) );
+		}
+		finally {
+			unpacker.close();
+		}
+
+		// Frame of the last frame block
+		int lastFrame = 0;
+		for ( int pos = 0; pos + 5 <= commandsData.length; pos += 5 + ( commandsData[ pos + 4 ] & 0xff ) )
+			lastFrame = readInt( commandsData, pos );
+
+		final byte[] scaledCommandsData = new byte[ commandsData.length * factor ];
+		for ( int i = 0; i < factor; i++ ) {
+			final int offset = i * commandsData.length;
+			System.arraycopy( commandsData, 0, scaledCommandsData, offset, commandsData.length );
+			for ( int pos = 0; pos + 5 <= commandsData.length; pos += 5 + ( commandsData[ pos + 4 ] & 0xff ) )
+				writeInt( scaledCommandsData, offset + pos, readInt( commandsData, pos ) + i * ( lastFrame + 1 ) );
+		}
+		writeInt( headerData, 0x01, ( lastFrame + 1 ) * factor );
+
+		final ByteArrayOutputStream output = new ByteArrayOutputStream( scaledCommandsData.length / 2 + mapData.length / 4 );
+		final BinReplayPacker packer = new BinReplayPacker( output, BinReplayPacker.COMPRESSION_ZLIB );
+		try {
+			packer.packSection( idData );
+			packer.packSection( headerData );
+			packer.packIntSection( scaledCommandsData.length );
+			packer.packSection( scaledCommandsData );
+			packer.packIntSection( mapData.length );
+			packer.packSection( mapData );
+		}
+		finally {
+			packer.close();
+		}
+		return output.toByteArray();
+	}
+
+	private static int readInt( final byte[] data, final int pos ) {
+		return ByteBuffer.wrap( data, pos, 4 ).order( ByteOrder.LITTLE_ENDIAN ).getInt();
+	}
+
+	private static void writeInt( final byte[] data, final int pos, final int value ) {
+		ByteBuffer.wrap( data, pos, 4 ).order( ByteOrder.LITTLE_ENDIAN ).putInt( value );
+	}
+
+}
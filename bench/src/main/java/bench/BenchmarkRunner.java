@@ -0,0 +1,23 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported along with the times.<br>
+ * Accepts the usual JMH command line options, e.g.: <code>sbt "bench/Jmh/runMain bench.BenchmarkRunner ParseBenchmark -p flags=header"</code>
+ */
+public class BenchmarkRunner {
+
+	public static void main( final String[] arguments ) throws Exception {
+		final Options options = new OptionsBuilder()
+			.parent( new CommandLineOptions( arguments ) )
+			.addProfiler( GCProfiler.class )
+			.build();
+		new Runner( options ).run();
+	}
+
+}
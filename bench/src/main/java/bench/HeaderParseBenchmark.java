@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import control.BinRepParser;
+import control.BinReplayUnpacker;
+import model.ReplayHeader;
+
+/**
+ * Benchmark of {@link BinRepParser#parseHeader(byte[])} on unpacked header sections (the decompression is not included,
+ * see the <code>header</code> flags of {@link ParseBenchmark} for that).
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HeaderParseBenchmark {
+
+	@Param( { "ProtosRush-1.rep", "djscanZ_flashinfinT_1x1lk.rep", "DewaltShuttle2.rep" } )
+	public String replay;
+
+	/** Unpacked data of the header section. */
+	private byte[] headerData;
+
+	@Setup
+	public void setup() throws Exception {
+		final BinReplayUnpacker unpacker = new BinReplayUnpacker( BenchmarkReplays.load( replay ) );
+		try {
+			BinRepParser.readReplayFormat( unpacker );
+			headerData = unpacker.unpackSection( BinRepParser.HEADER_SIZE );
+		}
+		finally {
+			unpacker.close();
+		}
+	}
+
+	@Benchmark
+	public ReplayHeader parseHeader() {
+		return BinRepParser.parseHeader( headerData );
+	}
+
+}
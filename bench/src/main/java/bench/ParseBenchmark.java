@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import control.BinRepParser;
+import model.Replay;
+
+/**
+ * Benchmarks of {@link BinRepParser#parseReplay(byte[], boolean, boolean, boolean, boolean)} at each flag combination.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ParseBenchmark {
+
+	@Param( { "ProtosRush-1.rep", "djscanZ_flashinfinT_1x1lk.rep", "DewaltShuttle2.rep", "synthetic-x4", "synthetic-x16", "generated-0" } )
+	public String replay;
+
+	/**
+	 * Parse flags: the parsed parts separated by '+'.
+	 * "header" parses the header only; "commands", "chat", "map" and "tiles" turn on the corresponding flags.
+	 */
+	@Param( { "header", "commands", "commands+chat", "commands+map", "commands+map+tiles", "commands+chat+map+tiles" } )
+	public String flags;
+
+	/** Data of the replay. */
+	private byte[]  replayData;
+
+	private boolean parseCommandsSection;
+	private boolean parseGameChat;
+	private boolean parseMapDataSection;
+	private boolean parseMapTileData;
+
+	@Setup
+	public void setup() throws Exception {
+		replayData = BenchmarkReplays.load( replay );
+
+		final String flagsPattern = '+' + flags + '+';
+		parseCommandsSection = flagsPattern.contains( "+commands+" );
+		parseGameChat        = flagsPattern.contains( "+chat+"     );
+		parseMapDataSection  = flagsPattern.contains( "+map+"      );
+		parseMapTileData     = flagsPattern.contains( "+tiles+"    );
+
+		if ( parseReplay() == null )
+			throw new IllegalStateException( "Failed to parse " + replay );
+	}
+
+	@Benchmark
+	public Replay parseReplay() {
+		return BinRepParser.parseReplay( replayData, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+	}
+
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import control.BinRepParser;
+import control.ReplayScanner;
+import model.HackDescription;
+import model.Replay;
+
+/**
+ * Benchmarks of {@link ReplayScanner#scanReplayForHacks(Replay, boolean)} on parsed replays.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ScanBenchmark {
+
+	@Param( { "ProtosRush-1.rep", "djscanZ_flashinfinT_1x1lk.rep", "DewaltShuttle2.rep", "synthetic-x4", "synthetic-x16", "generated-0" } )
+	public String replay;
+
+	/** The parsed replay. */
+	private Replay parsedReplay;
+
+	@Setup
+	public void setup() throws Exception {
+		parsedReplay = BinRepParser.parseReplay( BenchmarkReplays.load( replay ), true, false, false, false );
+		if ( parsedReplay == null )
+			throw new IllegalStateException( "Failed to parse " + replay );
+	}
+
+	@Benchmark
+	public List< HackDescription > scanReplayForHacks() {
+		return ReplayScanner.scanReplayForHacks( parsedReplay, false );
+	}
+
+}
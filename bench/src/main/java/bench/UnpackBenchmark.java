@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import control.BinRepParser;
+import control.BinReplayUnpacker;
+
+/**
+ * Benchmarks of unpacking the sections of replays with {@link BinReplayUnpacker#unpackSection(int)}.<br>
+ * Replays are read from memory so the results do not include file I/O.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class UnpackBenchmark {
+
+	@Param( { "ProtosRush-1.rep", "djscanZ_flashinfinT_1x1lk.rep", "DewaltShuttle2.rep", "synthetic-x4", "synthetic-x16", "generated-0" } )
+	public String replay;
+
+	/** Data of the replay. */
+	private byte[] replayData;
+
+	@Setup
+	public void setup() throws Exception {
+		replayData = BenchmarkReplays.load( replay );
+	}
+
+	/**
+	 * Unpacks the ID, header and commands sections.
+	 */
+	@Benchmark
+	public int unpackCommandsSection() throws Exception {
+		final BinReplayUnpacker unpacker = new BinReplayUnpacker( replayData );
+		try {
+			BinRepParser.readReplayFormat( unpacker );
+			unpacker.unpackSection( BinRepParser.HEADER_SIZE );
+			return unpacker.unpackSection( readLength( unpacker ) ).length;
+		}
+		finally {
+			unpacker.close();
+		}
+	}
+
+	/**
+	 * Unpacks all sections including the map data.
+	 */
+	@Benchmark
+	public int unpackAllSections() throws Exception {
+		final BinReplayUnpacker unpacker = new BinReplayUnpacker( replayData );
+		try {
+			BinRepParser.readReplayFormat( unpacker );
+			unpacker.unpackSection( BinRepParser.HEADER_SIZE );
+			final int commandsLength = unpacker.unpackSection( readLength( unpacker ) ).length;
+			return commandsLength + unpacker.unpackSection( readLength( unpacker ) ).length;
+		}
+		finally {
+			unpacker.close();
+		}
+	}
+
+	/**
+	 * Reads a length section.
+	 * @param unpacker unpacker to read with
+	 * @return the length
+	 */
+	private static int readLength( final BinReplayUnpacker unpacker ) throws Exception {
+		final byte[] data = unpacker.unpackSection( 4 );
+		return ( data[ 0 ] & 0xff ) | ( data[ 1 ] & 0xff ) << 8 | ( data[ 2 ] & 0xff ) << 16 | ( data[ 3 ] & 0xff ) << 24;
+	}
+
+}
@@ -0,0 +1,180 @@
+package control;
+
+import model.Action;
+import model.PlayerActions;
+import model.Replay;
+
+/**
+ * Counts the n-grams of consecutive actions of players, e.g. <code>Select &gt; Train &gt; Select</code> or hotkey sequences.<br>
+ * An action is identified by its action name index and subaction name index (16 bits), an n-gram is packed into a long:
+ * the length in the highest byte and the actions in the lowest <code>16 * n</code> bits, the last action lowest
+ * (see {@link #getNgram(int, long)}). So the key of an n-gram is never 0 and n-grams of different lengths never collide.
+ *
+ * <p>The n-grams of each player are counted separately (actions of different players are not interleaved).
+ * To get the n-grams of a single player, count the actions of the player in a new counter.</p>
+ *
+ * <p>Not thread-safe: use one counter per thread and merge them.</p>
+ */
+public class ActionNgramCounter {
+
+	/** Maximum supported length of the n-grams. */
+	public static final int MAX_N = 3;
+
+	/** Separator of the actions in the n-gram names. */
+	private static final String NAME_SEPARATOR = " > ";
+
+	/** Maximum length of the counted n-grams. */
+	public final int maxN;
+
+	/** Count maps of the n-grams by length - 1. */
+	private final LongLongHashMap[] ngramCountMaps;
+
+	/**
+	 * Creates a new ActionNgramCounter counting n-grams up to {@link #MAX_N}.
+	 */
+	public ActionNgramCounter() {
+		this( MAX_N );
+	}
+
+	/**
+	 * Creates a new ActionNgramCounter.
+	 * @param maxN maximum length of the counted n-grams, between 1 and {@link #MAX_N}
+	 */
+	public ActionNgramCounter( final int maxN ) {
+		if ( maxN < 1 || maxN > MAX_N )
+			throw new IllegalArgumentException( "Invalid n-gram length: " + maxN );
+		this.maxN = maxN;
+		ngramCountMaps = new LongLongHashMap[ maxN ];
+		for ( int i = 0; i < maxN; i++ )
+			ngramCountMaps[ i ] = new LongLongHashMap( 256 << 4 * i );
+	}
+
+	/**
+	 * Counts the n-grams of the players of a replay.
+	 * @param replay replay parsed with the commands section
+	 */
+	public void add( final Replay replay ) {
+		if ( replay.replayActions != null )
+			for ( final PlayerActions playerActions : replay.replayActions.players )
+				add( playerActions );
+	}
+
+	/**
+	 * Counts the n-grams of the actions of a player.
+	 * @param playerActions actions of the player
+	 */
+	public void add( final PlayerActions playerActions ) {
+		long window = 0;
+		for ( int i = 0; i < playerActions.actions.length; i++ ) {
+			final Action action = playerActions.actions[ i ];
+			window = window << 16 | ( action.actionNameIndex & 0xff ) << 8 | action.subactionNameIndex & 0xff;
+			for ( int n = Math.min( maxN, i + 1 ); n > 0; n-- )
+				ngramCountMaps[ n - 1 ].addTo( getNgram( n, window ), 1 );
+		}
+	}
+
+	/**
+	 * Adds the counts of another counter to the counts of this.
+	 * @param counter counter to be merged; its n-grams longer than {@link #maxN} are ignored
+	 */
+	public void merge( final ActionNgramCounter counter ) {
+		for ( int i = Math.min( maxN, counter.maxN ) - 1; i >= 0; i-- )
+			ngramCountMaps[ i ].merge( counter.ngramCountMaps[ i ] );
+	}
+
+	/**
+	 * Returns the count of an n-gram.
+	 * @param ngram n-gram whose count to be returned
+	 * @return the count of the n-gram
+	 */
+	public long getCount( final long ngram ) {
+		final int n = getLength( ngram );
+		return n < 1 || n > maxN ? 0 : ngramCountMaps[ n - 1 ].get( ngram );
+	}
+
+	/**
+	 * Returns the number of distinct n-grams of a length.
+	 * @param n length of the n-grams
+	 * @return the number of distinct n-grams of the length
+	 */
+	public int getDistinctCount( final int n ) {
+		return ngramCountMaps[ n - 1 ].size();
+	}
+
+	/**
+	 * Returns the most frequent n-grams of a length.
+	 * @param n length of the n-grams
+	 * @param k maximum number of n-grams to be returned
+	 * @return the most frequent n-grams in descending order of their counts
+	 */
+	public long[] getTopNgrams( final int n, final int k ) {
+		return ngramCountMaps[ n - 1 ].getTopKeys( k );
+	}
+
+	/**
+	 * Returns the n-gram of the last actions of a window.
+	 * @param n      length of the n-gram
+	 * @param window actions packed by 16 bits, the last action lowest
+	 * @return the n-gram of the last <code>n</code> actions of the window
+	 */
+	public static long getNgram( final int n, final long window ) {
+		return (long) n << 56 | window & ( ( 1l << 16 * n ) - 1 );
+	}
+
+	/**
+	 * Returns the length of an n-gram.
+	 * @param ngram n-gram whose length to be returned
+	 * @return the length of the n-gram
+	 */
+	public static int getLength( final long ngram ) {
+		return (int) ( ngram >>> 56 );
+	}
+
+	/**
+	 * Returns the action name index of an action of an n-gram.
+	 * @param ngram n-gram
+	 * @param i     index of the action in the n-gram, 0 being the first
+	 * @return the action name index of the action
+	 */
+	public static byte getActionNameIndex( final long ngram, final int i ) {
+		return (byte) ( ngram >>> 16 * ( getLength( ngram ) - 1 - i ) + 8 );
+	}
+
+	/**
+	 * Returns the subaction name index of an action of an n-gram.
+	 * @param ngram n-gram
+	 * @param i     index of the action in the n-gram, 0 being the first
+	 * @return the subaction name index of the action
+	 */
+	public static byte getSubactionNameIndex( final long ngram, final int i ) {
+		return (byte) ( ngram >>> 16 * ( getLength( ngram ) - 1 - i ) );
+	}
+
+	/**
+	 * Returns the name of an n-gram: the names of its actions like in {@link Action#toString()}, e.g. <code>Select &gt; Train &gt; Select</code>.
+	 * @param ngram n-gram whose name to be returned
+	 * @return the name of the n-gram
+	 */
+	public static String getName( final long ngram ) {
+		final StringBuilder nameBuilder = new StringBuilder();
+		final int n = getLength( ngram );
+		for ( int i = 0; i < n; i++ ) {
+			if ( i > 0 )
+				nameBuilder.append( NAME_SEPARATOR );
+
+			final byte actionNameIndex    = getActionNameIndex   ( ngram, i );
+			final byte subactionNameIndex = getSubactionNameIndex( ngram, i );
+			String actionName = null;
+			if ( subactionNameIndex != Action.SUBACTION_NAME_INDEX_UNKNOWN )
+				actionName = Action.SUBACTION_ID_NAME_MAP.get( subactionNameIndex );
+			if ( actionName == null && actionNameIndex != Action.ACTION_NAME_INDEX_UNKNOWN ) {
+				actionName = Action.ACTION_ID_NAME_MAP.get( actionNameIndex );
+				if ( actionName == null )
+					actionName = "0x" + Integer.toHexString( actionNameIndex & 0xff );
+			}
+			nameBuilder.append( actionName == null ? "<not parsed>" : actionName );
+		}
+		return nameBuilder.toString();
+	}
+
+}
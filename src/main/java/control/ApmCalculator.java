@@ -0,0 +1,170 @@
+package control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import model.ApmTimeSeries;
+import model.Replay;
+import model.ReplayHeader;
+import model.ReplayTimeline;
+
+/**
+ * Calculates sliding window APM and EAPM time series from replay timelines.<br>
+ * Actions are counted into per-bucket primitive arrays in one pass over the frame ordered timeline,
+ * then the sliding window sums are calculated over the buckets.
+ *
+ * <p>Counting arrays are reused between calculations, so a calculator is cheap to use for batches of replays,
+ * but it is not thread-safe: use one instance per thread.</p>
+ */
+public class ApmCalculator {
+
+	/** Default bucket size: 1 second. */
+	public static final int DEFAULT_BUCKET_FRAMES  = ReplayHeader.convertSecondsToFrames( 1 );
+	/** Default window size: 60 buckets, 1 minute with the default bucket size. */
+	public static final int DEFAULT_WINDOW_BUCKETS = 60;
+
+	/** Maximum number of frames counted after the last action: 1 hour (headers of broken replays might claim longer games). */
+	public static final int MAX_TRAILING_FRAMES    = ReplayHeader.convertSecondsToFrames( 60 * 60 );
+	/** Maximum number of frames counted: 24 hours, actions after it are only counted in the totals. */
+	public static final int MAX_FRAMES             = ReplayHeader.convertSecondsToFrames( 24 * 60 * 60 );
+
+	/** Number of frames in a bucket.            */
+	public final int        bucketFrames;
+	/** Number of buckets in the sliding window. */
+	public final int        windowBuckets;
+	/** Filter to decide effective actions.      */
+	public final EapmFilter eapmFilter;
+
+	/** Per-bucket action counts, reused between calculations.           */
+	private int[] bucketActionsCounts          = new int[ 0 ];
+	/** Per-bucket effective action counts, reused between calculations. */
+	private int[] bucketEffectiveActionsCounts = new int[ 0 ];
+
+	/**
+	 * Creates a new ApmCalculator with the default bucket and window sizes and the default EAPM filter.
+	 */
+	public ApmCalculator() {
+		this( DEFAULT_BUCKET_FRAMES, DEFAULT_WINDOW_BUCKETS, new DefaultEapmFilter() );
+	}
+
+	/**
+	 * Creates a new ApmCalculator.
+	 * @param bucketFrames  number of frames in a bucket
+	 * @param windowBuckets number of buckets in the sliding window
+	 * @param eapmFilter    filter to decide effective actions
+	 */
+	public ApmCalculator( final int bucketFrames, final int windowBuckets, final EapmFilter eapmFilter ) {
+		if ( bucketFrames <= 0 || windowBuckets <= 0 )
+			throw new IllegalArgumentException( "Bucket and window sizes must be positive!" );
+
+		this.bucketFrames  = bucketFrames;
+		this.windowBuckets = windowBuckets;
+		this.eapmFilter    = eapmFilter;
+	}
+
+	/**
+	 * Calculates the APM and EAPM series of a replay over the whole game.
+	 * @param replay replay parsed with the commands section
+	 * @return the APM and EAPM series of the players of the replay
+	 */
+	public ApmTimeSeries calculate( final Replay replay ) {
+		return calculate( replay.replayActions.getTimeline(), replay.replayHeader.gameFrames );
+	}
+
+	/**
+	 * Calculates the APM and EAPM series of a batch of replays, reusing the counting arrays.
+	 * @param replays replays parsed with the commands section
+	 * @return the APM and EAPM series of the replays in the order of the input
+	 */
+	public List< ApmTimeSeries > calculateBatch( final List< Replay > replays ) {
+		final List< ApmTimeSeries > seriesList = new ArrayList< ApmTimeSeries >( replays.size() );
+		for ( final Replay replay : replays )
+			seriesList.add( calculate( replay ) );
+		return seriesList;
+	}
+
+	/**
+	 * Calculates the APM and EAPM series of a timeline.
+	 * @param timeline   timeline of the actions
+	 * @param gameFrames length of the game in frames; if shorter than the timeline, the frame of the last action is used;
+	 *                   at most {@link #MAX_TRAILING_FRAMES} after the last action and {@link #MAX_FRAMES} in total are used
+	 * @return the APM and EAPM series of the players of the timeline
+	 */
+	public ApmTimeSeries calculate( final ReplayTimeline timeline, final int gameFrames ) {
+		final int  playersCount    = timeline.players.length;
+		final long lastActionFrame = timeline.size == 0 ? 0 : Math.max( 0, timeline.frames[ timeline.size - 1 ] ) + 1l;
+		final long lastFrame       = Math.min( Math.min( Math.max( gameFrames, lastActionFrame ), lastActionFrame + MAX_TRAILING_FRAMES ), MAX_FRAMES );
+		final int  bucketsCount    = (int) ( ( lastFrame + bucketFrames - 1 ) / bucketFrames );
+
+		// Bucket counts of all players in one array: [player index * buckets count + bucket]
+		final long countsLongLength = (long) playersCount * bucketsCount;
+		if ( countsLongLength > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many buckets: " + countsLongLength );
+		final int countsLength = (int) countsLongLength;
+		if ( bucketActionsCounts.length < countsLength ) {
+			bucketActionsCounts          = new int[ countsLength ];
+			bucketEffectiveActionsCounts = new int[ countsLength ];
+		}
+		else {
+			Arrays.fill( bucketActionsCounts         , 0, countsLength, 0 );
+			Arrays.fill( bucketEffectiveActionsCounts, 0, countsLength, 0 );
+		}
+
+		final int[] actionsCounts          = new int[ playersCount ];
+		final int[] effectiveActionsCounts = new int[ playersCount ];
+		final int[] previousIndices        = new int[ playersCount ];
+		Arrays.fill( previousIndices, -1 );
+
+		final int[]  frames        = timeline.frames;
+		final byte[] playerIndices = timeline.playerIndices;
+		for ( int i = 0; i < timeline.size; i++ ) {
+			final int playerIndex = playerIndices[ i ];
+			final int bucket      = frames[ i ] < 0 ? 0 : frames[ i ] / bucketFrames; // Broken replays might contain negative frames
+			final int countIndex  = bucket < bucketsCount ? playerIndex * bucketsCount + bucket : -1;
+
+			if ( countIndex >= 0 )
+				bucketActionsCounts[ countIndex ]++;
+			actionsCounts[ playerIndex ]++;
+			if ( eapmFilter.isEffective( timeline, i, previousIndices[ playerIndex ] ) ) {
+				if ( countIndex >= 0 )
+					bucketEffectiveActionsCounts[ countIndex ]++;
+				effectiveActionsCounts[ playerIndex ]++;
+			}
+			previousIndices[ playerIndex ] = i;
+		}
+
+		final String[] playerNames = new String[ playersCount ];
+		final int[][]  apm         = new int[ playersCount ][ bucketsCount ];
+		final int[][]  eapm        = new int[ playersCount ][ bucketsCount ];
+		for ( int playerIndex = 0; playerIndex < playersCount; playerIndex++ ) {
+			playerNames[ playerIndex ] = timeline.players[ playerIndex ].playerName;
+			final int offset = playerIndex * bucketsCount;
+			slideWindow( bucketActionsCounts         , offset, bucketsCount, apm [ playerIndex ] );
+			slideWindow( bucketEffectiveActionsCounts, offset, bucketsCount, eapm[ playerIndex ] );
+		}
+
+		return new ApmTimeSeries( bucketFrames, windowBuckets, playerNames, apm, eapm, actionsCounts, effectiveActionsCounts );
+	}
+
+	/**
+	 * Calculates the per-minute rates of the sliding window sums of bucket counts.<br>
+	 * At the beginning of the game the window only covers the elapsed buckets.
+	 * @param counts       bucket counts
+	 * @param offset       offset of the first bucket in <code>counts</code>
+	 * @param bucketsCount number of buckets
+	 * @param rates        array to store the rates in
+	 */
+	private void slideWindow( final int[] counts, final int offset, final int bucketsCount, final int[] rates ) {
+		long windowSum = 0;
+		for ( int bucket = 0; bucket < bucketsCount; bucket++ ) {
+			windowSum += counts[ offset + bucket ];
+			if ( bucket >= windowBuckets )
+				windowSum -= counts[ offset + bucket - windowBuckets ];
+
+			final long windowFrames = (long) Math.min( bucket + 1, windowBuckets ) * bucketFrames;
+			rates[ bucket ] = (int) ( windowSum * 1000 * 60 / ( windowFrames * 42 ) );
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package control;
+
+import model.ApmSketches;
+import model.Replay;
+import model.ReplayHeader;
+import model.ReplayTimeline;
+
+/**
+ * Builds {@link ApmSketches} from replays: adds the APM and EAPM of the human players by race, matchup and period.<br>
+ * The EAPM is calculated like the APM of the header (actions after the first 2 minutes over the active duration),
+ * counting only the actions the EAPM filter considers effective.
+ *
+ * <p>Not thread-safe: use one builder per thread and merge their sketches.</p>
+ */
+public class ApmSketchBuilder {
+
+	/** Filter to decide effective actions. */
+	public final EapmFilter  eapmFilter;
+	/** The sketches values are added to.  */
+	public final ApmSketches sketches = new ApmSketches();
+
+	/** Effective action counts after 2 minutes by timeline player index, reused between replays. */
+	private int[] effectiveActionsCounts = new int[ 12 ];
+
+	/**
+	 * Creates a new ApmSketchBuilder with the default EAPM filter.
+	 */
+	public ApmSketchBuilder() {
+		this( new DefaultEapmFilter() );
+	}
+
+	/**
+	 * Creates a new ApmSketchBuilder.
+	 * @param eapmFilter filter to decide effective actions
+	 */
+	public ApmSketchBuilder( final EapmFilter eapmFilter ) {
+		this.eapmFilter = eapmFilter;
+	}
+
+	/**
+	 * Adds the APM and EAPM of the human players of a replay.
+	 * @param replay replay parsed with the commands section
+	 */
+	public void add( final Replay replay ) {
+		final ReplayHeader replayHeader = replay.replayHeader;
+		final int          matchup      = ApmSketches.getMatchup( replayHeader );
+		final int          period       = ApmSketches.getPeriod( replayHeader.saveTime );
+
+		ReplayTimeline timeline = null;
+		if ( replay.replayActions != null ) {
+			timeline = replay.replayActions.getTimeline();
+			if ( effectiveActionsCounts.length < timeline.players.length )
+				effectiveActionsCounts = new int[ timeline.players.length ];
+			for ( int i = 0; i < timeline.players.length; i++ )
+				effectiveActionsCounts[ i ] = 0;
+
+			final int[] previousIndices = new int[ timeline.players.length ];
+			for ( int i = 0; i < previousIndices.length; i++ )
+				previousIndices[ i ] = -1;
+			for ( int i = 0; i < timeline.size; i++ ) {
+				final int playerIndex = timeline.playerIndices[ i ];
+				if ( eapmFilter.isEffective( timeline, i, previousIndices[ playerIndex ] ) && timeline.frames[ i ] >= ReplayHeader.FRAMES_IN_TWO_MINUTES )
+					effectiveActionsCounts[ playerIndex ]++;
+				previousIndices[ playerIndex ] = i;
+			}
+		}
+
+		for ( int i = 0; i < replayHeader.playerNames.length; i++ ) {
+			final byte race = replayHeader.playerRaces[ i ];
+			if ( replayHeader.playerNames[ i ] == null || replayHeader.playerIds[ i ] == 0xff || race < 0 || race >= 3 )
+				continue;
+
+			final int apm = replayHeader.getPlayerApm( i );
+			if ( apm <= 0 )
+				continue;
+			sketches.add( ApmSketches.METRIC_APM, race, matchup, period, apm );
+
+			if ( timeline != null )
+				for ( int playerIndex = 0; playerIndex < timeline.players.length; playerIndex++ )
+					if ( replayHeader.playerNames[ i ].equals( timeline.players[ playerIndex ].playerName ) ) {
+						sketches.add( ApmSketches.METRIC_EAPM, race, matchup, period, replayHeader.getPlayerApmForActionsCount( i, effectiveActionsCounts[ playerIndex ] ) );
+						break;
+					}
+		}
+	}
+
+}
@@ -0,0 +1,492 @@
+package control;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import model.Replay;
+
+/**
+ * Parses the replays of ZIP and TAR archives without extracting them to disk.<br>
+ * The data of each <code>.rep</code> entry is read into memory and unpacked from there.
+ *
+ * <p>ZIP archives allow random access to the entries, so their entries are read and parsed in parallel:
+ * on a thread pool created for each archive, or on a shared executor given to the reader.
+ * TAR archives (optionally gzipped: <code>.tar.gz</code>, <code>.tgz</code>) can only be read sequentially,
+ * their entries are parsed in the calling thread.</p>
+ */
+public class ArchiveReplayReader {
+
+	/**
+	 * Handler of the replays of an archive.<br>
+	 * Methods might be called from multiple threads concurrently.
+	 */
+	public interface Handler {
+		/**
+		 * Called when a replay entry is parsed.
+		 * @param entryName name of the entry
+		 * @param replay    the parsed replay
+		 */
+		void replayParsed( String entryName, Replay replay );
+
+		/**
+		 * Called when a replay entry cannot be parsed.
+		 * @param entryName name of the entry
+		 * @param cause     cause of the failure
+		 */
+		void replayFailed( String entryName, Exception cause );
+	}
+
+	/** Size of the blocks of TAR archives. */
+	private static final int TAR_BLOCK_SIZE = 512;
+
+	/** Number of threads to parse ZIP entries with.                   */
+	public final int             threadsCount;
+	/** Shared executor to parse ZIP entries on; <code>null</code> to create a thread pool for each archive. */
+	public final ExecutorService executor;
+	/** Tells if player actions have to be parsed from the commands section. */
+	public final boolean         parseCommandsSection;
+	/** Tells if game chat has to be parsed.                           */
+	public final boolean         parseGameChat;
+	/** Tells if map data section has to be parsed.                    */
+	public final boolean         parseMapDataSection;
+	/** Tells if map tile data section has to be parsed.               */
+	public final boolean         parseMapTileData;
+
+	/**
+	 * Creates a new ArchiveReplayReader.
+	 * @param threadsCount         number of threads to parse ZIP entries with
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 */
+	public ArchiveReplayReader( final int threadsCount, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) {
+		this( threadsCount, null, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+	}
+
+	/**
+	 * Creates a new ArchiveReplayReader parsing the ZIP entries on a shared executor.<br>
+	 * {@link #read(File, Handler)} waits for the entries, so it must not be called from a thread of the executor
+	 * (it could wait for tasks queued behind itself).
+	 * @param executor             shared executor to parse ZIP entries on
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 */
+	public ArchiveReplayReader( final ExecutorService executor, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) {
+		this( 0, executor, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+	}
+
+	private ArchiveReplayReader( final int threadsCount, final ExecutorService executor, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) {
+		this.threadsCount         = threadsCount;
+		this.executor             = executor;
+		this.parseCommandsSection = parseCommandsSection;
+		this.parseGameChat        = parseGameChat;
+		this.parseMapDataSection  = parseMapDataSection;
+		this.parseMapTileData     = parseMapTileData;
+	}
+
+	/**
+	 * Tells if a file is a supported archive (based on its name).
+	 * @param file file to be tested
+	 * @return true if the file is a supported archive
+	 */
+	public static boolean isArchive( final File file ) {
+		final String name = file.getName().toLowerCase();
+		return name.endsWith( ".zip" ) || name.endsWith( ".tar" ) || isGzippedTar( name );
+	}
+
+	/**
+	 * Tells if a lower-case file name is the name of a gzipped TAR archive.
+	 */
+	private static boolean isGzippedTar( final String name ) {
+		return name.endsWith( ".tar.gz" ) || name.endsWith( ".tgz" );
+	}
+
+	/**
+	 * Tells if an archive entry is a replay (based on its name).
+	 * @param entryName name of the entry
+	 * @return true if the entry is a replay
+	 */
+	public static boolean isReplayEntry( final String entryName ) {
+		return entryName.toLowerCase().endsWith( ".rep" );
+	}
+
+	/**
+	 * Parses the replays of an archive.
+	 * @param archiveFile archive file
+	 * @param handler     handler of the replays
+	 * @return the number of replay entries in the archive
+	 * @throws IOException if the archive cannot be read or it is not a supported archive (see {@link #isArchive(File)})
+	 */
+	public int read( final File archiveFile, final Handler handler ) throws IOException {
+		final String name = archiveFile.getName().toLowerCase();
+		if ( name.endsWith( ".zip" ) )
+			return readZip( archiveFile, handler );
+		if ( !name.endsWith( ".tar" ) && !isGzippedTar( name ) )
+			throw new IOException( "Not a supported archive: " + archiveFile );
+
+		InputStream input = new BufferedInputStream( new FileInputStream( archiveFile ), 1 << 16 );
+		try {
+			if ( isGzippedTar( name ) )
+				input = new GZIPInputStream( input, 1 << 16 );
+			return readTar( input, handler );
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Parses the replays of a ZIP archive in parallel.<br>
+	 * If the handler throws an exception, the entries not started yet are skipped; the method returns (and closes
+	 * the archive) only after the started entries are finished, so the handler is not called after it returns.
+	 * @param zipFile ZIP archive file
+	 * @param handler handler of the replays
+	 * @return the number of replay entries in the archive
+	 * @throws IOException if the archive cannot be read or the handler throws an exception
+	 */
+	public int readZip( final File zipFile, final Handler handler ) throws IOException {
+		final ZipFile zip = new ZipFile( zipFile );
+		try {
+			final List< ZipEntry > entryList = new ArrayList< ZipEntry >();
+			for ( final Enumeration< ? extends ZipEntry > entries = zip.entries(); entries.hasMoreElements(); ) {
+				final ZipEntry entry = entries.nextElement();
+				if ( !entry.isDirectory() && isReplayEntry( entry.getName() ) )
+					entryList.add( entry );
+			}
+
+			final ExecutorService executor = this.executor != null ? this.executor : Executors.newFixedThreadPool( Math.max( 1, Math.min( threadsCount, entryList.size() ) ) );
+			// Set when the processing is aborted: the entries not started yet are skipped
+			final AtomicBoolean   aborted  = new AtomicBoolean();
+			// Released by each submitted entry when it is finished or skipped
+			final Semaphore       finished = new Semaphore( 0 );
+			int submittedCount = 0;
+			try {
+				final List< Future< ? > > futureList = new ArrayList< Future< ? > >( entryList.size() );
+				for ( final ZipEntry entry : entryList ) {
+					futureList.add( executor.submit( new Runnable() {
+						public void run() {
+							try {
+								if ( !aborted.get() )
+									readZipEntry( zip, entry, handler );
+							}
+							finally {
+								finished.release();
+							}
+						}
+					} ) );
+					submittedCount++;
+				}
+
+				for ( final Future< ? > future : futureList )
+					try {
+						future.get();
+					}
+					catch ( final Exception e ) {
+						throw new IOException( "Failed to process archive: " + zipFile, e );
+					}
+			}
+			finally {
+				aborted.set( true );
+				if ( executor != this.executor ) {
+					executor.shutdownNow();
+					awaitTermination( executor );
+				}
+				else
+					finished.acquireUninterruptibly( submittedCount );
+			}
+
+			return entryList.size();
+		}
+		finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Reads and parses an entry of a ZIP archive.
+	 * @param zip     ZIP archive
+	 * @param entry   entry to be parsed
+	 * @param handler handler of the replays
+	 */
+	private void readZipEntry( final ZipFile zip, final ZipEntry entry, final Handler handler ) {
+		final byte[] data;
+		try {
+			final InputStream input = zip.getInputStream( entry );
+			try {
+				data = readFully( input, entry.getSize() );
+			}
+			finally {
+				input.close();
+			}
+		}
+		catch ( final IOException ie ) {
+			handler.replayFailed( entry.getName(), ie );
+			return;
+		}
+		parseEntry( entry.getName(), data, data.length, handler );
+	}
+
+	/**
+	 * Waits for the termination of a shut down executor, without being interrupted.
+	 * @param executor executor to wait for
+	 */
+	private static void awaitTermination( final ExecutorService executor ) {
+		boolean interrupted = false;
+		while ( true )
+			try {
+				executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+				break;
+			}
+			catch ( final InterruptedException ie ) {
+				interrupted = true;
+			}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Parses the replays of a TAR archive sequentially.
+	 * @param input   input stream of the TAR archive
+	 * @param handler handler of the replays
+	 * @return the number of replay entries in the archive
+	 * @throws IOException if the archive cannot be read
+	 */
+	public int readTar( final InputStream input, final Handler handler ) throws IOException {
+		final byte[] header = new byte[ TAR_BLOCK_SIZE ];
+		byte[]       data   = new byte[ 1 << 16 ];
+
+		int    count    = 0;
+		String longName = null; // Name from a GNU long name or a pax extended header entry
+		while ( readBlock( input, header ) && !isZeroBlock( header ) ) {
+			final long size       = parseTarNumber( header, 124, 12 );
+			final byte type       = header[ 156 ];
+			final long paddedSize = ( size + TAR_BLOCK_SIZE - 1 ) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+
+			String name = longName;
+			longName = null;
+			if ( name == null ) {
+				name = parseTarString( header, 0, 100 );
+				if ( header[ 257 ] == 'u' && header[ 258 ] == 's' && header[ 259 ] == 't' && header[ 260 ] == 'a' && header[ 261 ] == 'r' ) {
+					final String prefix = parseTarString( header, 345, 155 );
+					if ( prefix.length() > 0 )
+						name = prefix + '/' + name;
+				}
+			}
+
+			final boolean regularFile = type == '0' || type == 0;
+			if ( type == 'L' || type == 'x' || regularFile && isReplayEntry( name ) ) {
+				if ( size > Integer.MAX_VALUE - TAR_BLOCK_SIZE )
+					throw new IOException( "Too big entry: " + name );
+				if ( data.length < paddedSize )
+					data = new byte[ (int) paddedSize ];
+				if ( !readFully( input, data, (int) paddedSize ) )
+					throw new IOException( "Truncated entry: " + name );
+
+				if ( type == 'L' )
+					longName = parseTarString( data, 0, (int) size );
+				else if ( type == 'x' )
+					longName = parsePaxPath( data, (int) size );
+				else {
+					count++;
+					parseEntry( name, data, (int) size, handler );
+				}
+			}
+			else
+				skipFully( input, paddedSize, name );
+		}
+
+		return count;
+	}
+
+	/**
+	 * Parses a replay entry held in memory and passes the result to the handler.
+	 * @param entryName name of the entry
+	 * @param data      data of the entry
+	 * @param length    length of the entry
+	 * @param handler   handler of the replays
+	 */
+	private void parseEntry( final String entryName, final byte[] data, final int length, final Handler handler ) {
+		final Replay replay;
+		BinReplayUnpacker unpacker = null;
+		try {
+			unpacker = new BinReplayUnpacker( data, 0, length );
+			replay = BinRepParser.parseReplay( unpacker, entryName, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+		}
+		catch ( final Exception e ) {
+			handler.replayFailed( entryName, e );
+			return;
+		}
+		finally {
+			if ( unpacker != null )
+				unpacker.close();
+		}
+
+		if ( replay == null )
+			handler.replayFailed( entryName, new Exception( "Not a replay file!" ) );
+		else
+			handler.replayParsed( entryName, replay );
+	}
+
+	/**
+	 * Reads all data of a stream.
+	 * @param input        input stream to read from
+	 * @param expectedSize expected size of the data; -1 if unknown
+	 * @return the data read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] readFully( final InputStream input, final long expectedSize ) throws IOException {
+		byte[] data = new byte[ expectedSize >= 0 && expectedSize < Integer.MAX_VALUE ? (int) expectedSize : 1 << 16 ];
+		int    size = 0;
+		while ( true ) {
+			if ( size == data.length ) {
+				final int next = input.read();
+				if ( next < 0 )
+					return data;
+				data = Arrays.copyOf( data, Math.max( data.length << 1, 1 << 16 ) );
+				data[ size++ ] = (byte) next;
+			}
+			final int count = input.read( data, size, data.length - size );
+			if ( count < 0 )
+				return size == data.length ? data : Arrays.copyOf( data, size );
+			size += count;
+		}
+	}
+
+	/**
+	 * Reads the specified amount of bytes.
+	 * @param input  input stream to read from
+	 * @param data   array to read into
+	 * @param length number of bytes to read
+	 * @return true if all bytes were read; false if the end of the stream was reached
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean readFully( final InputStream input, final byte[] data, final int length ) throws IOException {
+		for ( int offset = 0; offset < length; ) {
+			final int count = input.read( data, offset, length - offset );
+			if ( count < 0 )
+				return false;
+			offset += count;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a TAR block.
+	 * @param input input stream to read from
+	 * @param block array to read the block into
+	 * @return true if a block was read; false if the end of the stream was reached
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean readBlock( final InputStream input, final byte[] block ) throws IOException {
+		return readFully( input, block, TAR_BLOCK_SIZE );
+	}
+
+	/**
+	 * Skips the specified amount of bytes.
+	 * @param input     input stream to skip in
+	 * @param length    number of bytes to skip
+	 * @param entryName name of the entry being skipped
+	 * @throws IOException if an I/O error occurs or the end of the stream was reached
+	 */
+	private static void skipFully( final InputStream input, long length, final String entryName ) throws IOException {
+		while ( length > 0 ) {
+			final long count = input.skip( length );
+			if ( count <= 0 ) {
+				if ( input.read() < 0 )
+					throw new IOException( "Truncated entry: " + entryName );
+				length--;
+			}
+			else
+				length -= count;
+		}
+	}
+
+	/**
+	 * Tells if a block contains only zeros (end of archive marker).
+	 * @param block block to be tested
+	 * @return true if the block contains only zeros
+	 */
+	private static boolean isZeroBlock( final byte[] block ) {
+		for ( final byte b : block )
+			if ( b != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Parses a zero terminated string field of a TAR header.
+	 * @param data   data to parse from
+	 * @param offset offset of the field
+	 * @param length max length of the field
+	 * @return the parsed string
+	 */
+	private static String parseTarString( final byte[] data, final int offset, final int length ) {
+		int end = offset;
+		while ( end < offset + length && data[ end ] != 0 )
+			end++;
+		return new String( data, offset, end - offset, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Parses a numeric field of a TAR header: octal digits, or big endian base-256 if the highest bit of the first byte is set.
+	 * @param data   data to parse from
+	 * @param offset offset of the field
+	 * @param length length of the field
+	 * @return the parsed number
+	 */
+	private static long parseTarNumber( final byte[] data, final int offset, final int length ) {
+		long value = 0;
+		if ( ( data[ offset ] & 0x80 ) != 0 ) {
+			for ( int i = offset + 1; i < offset + length; i++ )
+				value = value << 8 | data[ i ] & 0xff;
+			return value;
+		}
+
+		for ( int i = offset; i < offset + length; i++ ) {
+			final byte b = data[ i ];
+			if ( b >= '0' && b <= '7' )
+				value = value << 3 | b - '0';
+			else if ( b != ' ' || value > 0 )
+				break;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses the path from the records of a pax extended header.
+	 * Records have the format <code>"length key=value\n"</code>.
+	 * @param data   data of the extended header
+	 * @param length length of the extended header
+	 * @return the path; or <code>null</code> if the extended header has no path record
+	 */
+	private static String parsePaxPath( final byte[] data, final int length ) {
+		final String records = parseTarString( data, 0, length );
+		for ( final String record : records.split( "\n" ) ) {
+			final int keyStart = record.indexOf( ' ' ) + 1;
+			if ( record.startsWith( "path=", keyStart ) )
+				return record.substring( keyStart + 5 );
+		}
+		return null;
+	}
+
+}
@@ -17,10 +17,12 @@ import java.util.Map;
 
 import model.Action;
 import model.MapData;
+import model.ParseMetrics;
 import model.PlayerActions;
 import model.Replay;
 import model.ReplayActions;
 import model.ReplayHeader;
+import model.ReplayTimeline;
 
 /**
  * Replay parser to produce a {@link Replay} java object from a binary replay file.
@@ -43,8 +45,6 @@ public class BinRepParser {
 		public final StringBuilder          gameChatBuilder;
 		/** Map from the player IDs to their name.         */
 		public final Map< Integer, String > playerIndexNameMap;
-		/** Message buffer to be used to extract messages. */
-		public final byte[]                 messageBuffer = new byte[ 80 ];
 		
 		/**
 		 * Creates a new GameChatWrapper.
@@ -59,6 +59,70 @@ public class BinRepParser {
 		}
 	}
 	
+	/**
+	 * Command handler which builds the action lists of the players and the game chat.
+	 */
+	private static class ActionListsBuilder implements CommandDecoder.Handler {
+		
+		/** Replay header to update the action counts in.        */
+		private final ReplayHeader      replayHeader;
+		/** Game chat wrapper if game chat is desired.           */
+		private final GameChatWrapper   gameChatWrapper;
+		/** Metrics to count the commands in if instrumentation is enabled. */
+		private final ParseMetrics      metrics;
+		/** Action lists of the players, indexed by player ID.   */
+		public final List< Action >[]   playerActionLists;
+		/** Player IDs of the actions in the order they were given (to create the timeline without re-sorting the actions). */
+		public byte[]                   actionPlayerIds = new byte[ 1024 ];
+		/** Number of actions.                                   */
+		public int                      actionsCount;
+		
+		/**
+		 * Creates a new ActionListsBuilder.
+		 * @param replayHeader    replay header to update the action counts in
+		 * @param gameChatWrapper game chat wrapper if game chat is desired; can be <code>null</code>
+		 * @param metrics         metrics to count the commands in; can be <code>null</code>
+		 */
+		@SuppressWarnings( "unchecked" )
+		public ActionListsBuilder( final ReplayHeader replayHeader, final GameChatWrapper gameChatWrapper, final ParseMetrics metrics ) {
+			this.replayHeader    = replayHeader;
+			this.gameChatWrapper = gameChatWrapper;
+			this.metrics         = metrics;
+			
+			playerActionLists = new ArrayList[ replayHeader.playerNames.length ]; // This will be indexed by playerId!
+			for ( int i = 0; i < playerActionLists.length; i++ )
+				playerActionLists[ i ] = new ArrayList< Action >();
+		}
+		
+		public boolean command( final CommandDecoder.Command command ) {
+			if ( metrics != null )
+				( command.known ? metrics.commandCounts : metrics.unknownCommandCounts )[ command.encodedBlockId & 0xff ]++;
+			
+			if ( command.blockId == (byte) 0x5c && command.known ) { // Game chat is not a "real" action
+				if ( gameChatWrapper != null ) {
+					if ( gameChatWrapper.gameChatBuilder.length() > 0 )
+						gameChatWrapper.gameChatBuilder.append( "\r\n" );
+					ReplayHeader.formatFrames( command.frame, gameChatWrapper.gameChatBuilder, false );
+					gameChatWrapper.gameChatBuilder.append( " - " ).append( gameChatWrapper.playerIndexNameMap.get( command.data[ 0 ] & 0xff ) );
+					gameChatWrapper.gameChatBuilder.append( ": " ).append( getZeroPaddedString( command.data, 1, 80 ) );
+				}
+				return true;
+			}
+			
+			final int playerId = command.playerId;
+			replayHeader.playerIdActionsCounts  [ playerId ]++; // If playerId is outside the index range, throw the implicit exception and fail to parse replay, else it may contain incorrect actions which may lead to false hack reports!
+			if ( command.frame < ReplayHeader.FRAMES_IN_TWO_MINUTES )
+				replayHeader.playerIdActionsCountBefore2Mins[ playerId ]++;
+			
+			playerActionLists[ playerId ].add( createAction( command ) );
+			if ( actionsCount == actionPlayerIds.length )
+				actionPlayerIds = Arrays.copyOf( actionPlayerIds, actionsCount << 1 );
+			actionPlayerIds[ actionsCount++ ] = (byte) playerId;
+			
+			return true;
+		}
+	}
+	
 	/**
 	 * Parses a binary replay file.
 	 * 
@@ -69,208 +133,446 @@ public class BinRepParser {
 	 * @param parseMapTileData     tells if map tile data section has to be parsed
 	 * @return a {@link Replay} object describing the replay; or <code>null</code> if replay cannot be parsed 
 	 */
-	@SuppressWarnings("unchecked")
 	public static Replay parseReplay( final File replayFile, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) {
 		BinReplayUnpacker unpacker = null;
 		try {
 			unpacker = new BinReplayUnpacker( replayFile );
-			
-			// Replay ID section
-			if ( Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() ) != 0x53526572 )
-				return null;  // Not a replay file
-			
-			// Replay header section
-			final byte[] headerData = unpacker.unpackSection( HEADER_SIZE );
-			final ByteBuffer headerBuffer = ByteBuffer.wrap( headerData );
-			headerBuffer.order( ByteOrder.LITTLE_ENDIAN );
-			
-			final ReplayHeader replayHeader = new ReplayHeader();
-			replayHeader.gameEngine  = headerData[ 0x00 ];
-			
-			replayHeader.gameFrames  = headerBuffer.getInt( 0x01 );
-			replayHeader.saveTime    = new Date( headerBuffer.getInt( 0x08 ) * 1000l );
-			
-			replayHeader.gameName    = getZeroPaddedString( headerData, 0x18, 28 );
-			
-			replayHeader.mapWidth    = headerBuffer.getShort( 0x34 );
-			replayHeader.mapHeight   = headerBuffer.getShort( 0x36 );
-			
-			replayHeader.gameSpeed   = headerBuffer.getShort( 0x3a );
-			replayHeader.gameType    = headerBuffer.getShort( 0x3c );
-			replayHeader.gameSubType = headerBuffer.getShort( 0x3e );
-			
-			replayHeader.creatorName = getZeroPaddedString( headerData, 0x48, 24 );
-			
-			replayHeader.mapName     = getZeroPaddedString( headerData, 0x61, 26 );
-			
-			replayHeader.playerRecords = Arrays.copyOfRange( headerData, 0xa1, 0xa1 + 432 );
-			for ( int i = 0; i < replayHeader.playerColors.length; i++ )
-				replayHeader.playerColors[ i ] = headerBuffer.getInt( 0x251 + i * 4 );
-			replayHeader.playerSpotIndices = Arrays.copyOfRange( headerData, 0x271, 0x271 + 8 );
-			
-			// Derived data from player records:
-			for ( int i = 0; i < 12; i++ ) {
-				final String playerName = getZeroPaddedString( replayHeader.playerRecords, i * 36 + 11, 25 );
-				if ( playerName.length() > 0 )
-					replayHeader.playerNames[ i ] = playerName;
-				replayHeader.playerRaces[ i ] = replayHeader.playerRecords[ i * 36 + 9 ];
-				replayHeader.playerIds  [ i ] = replayHeader.playerRecords[ i * 36 + 4 ] & 0xff;
-			}
-			
-			if ( !parseCommandsSection )
-				return new Replay( replayHeader, null, null, null );
-			
-			// Player commands length section
-			final int playerCommandsLength = Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() );
-			
-			// Player commands section
-			final ByteBuffer commandsBuffer = ByteBuffer.wrap( unpacker.unpackSection( playerCommandsLength ) );
-			commandsBuffer.order( ByteOrder.LITTLE_ENDIAN );
-			
-			List< Action >[] playerActionLists = null;
-			GameChatWrapper  gameChatWrapper   = null;
-			if ( parseGameChat )
-				gameChatWrapper   = new GameChatWrapper( replayHeader.playerNames, replayHeader.playerIds );
-			if ( parseCommandsSection ){
-				playerActionLists = new ArrayList[ replayHeader.playerNames.length ]; // This will be indexed by playerId!
-				for ( int i = 0; i < playerActionLists.length; i++ )
-					playerActionLists[ i ] = new ArrayList< Action >();
-			}
-			
-			while ( commandsBuffer.position() < playerCommandsLength ) {
-				final int frame               = commandsBuffer.getInt();
-				int       commandBlocksLength = commandsBuffer.get() & 0xff;
-				final int commandBlocksEndPos = commandsBuffer.position() + commandBlocksLength;
-				
-				while ( commandsBuffer.position() < commandBlocksEndPos ) {
-					final int playerId = commandsBuffer.get() & 0xff;
-					final Action action = readNextAction( frame, commandsBuffer, commandBlocksEndPos, gameChatWrapper );
-					if ( action != null ) {
-						replayHeader.playerIdActionsCounts  [ playerId ]++; // If playerId is outside the index range, throw the implicit exception and fail to parse replay, else it may contain incorrect actions which may lead to false hack reports!
-						if ( frame < ReplayHeader.FRAMES_IN_TWO_MINUTES )
-							replayHeader.playerIdActionsCountBefore2Mins[ playerId ]++;
-						if ( playerActionLists != null )
-							playerActionLists[ playerId ].add( action );
-					}
-				}
+			return parseReplay( unpacker, replayFile.getPath(), parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+		}
+		catch ( final Exception e ) {
+			if ( unpacker == null )
+				reportOpenFailure( replayFile.getPath(), e );
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			if ( unpacker != null )
+				unpacker.close();
+		}
+	}
+	
+	/**
+	 * Parses a binary replay held in memory.
+	 * 
+	 * @param replayData           data of the replay file
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section 
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 * @return a {@link Replay} object describing the replay; or <code>null</code> if replay cannot be parsed 
+	 */
+	public static Replay parseReplay( final byte[] replayData, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) {
+		BinReplayUnpacker unpacker = null;
+		try {
+			unpacker = new BinReplayUnpacker( replayData );
+			return parseReplay( unpacker, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+		}
+		catch ( final Exception e ) {
+			if ( unpacker == null )
+				reportOpenFailure( null, e );
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			if ( unpacker != null )
+				unpacker.close();
+		}
+	}
+	
+	/**
+	 * Parses a binary replay from an unpacker.<br>
+	 * Unlike the other <code>parseReplay()</code> methods, this reports the errors by throwing exceptions, and does not close the unpacker.
+	 * 
+	 * @param unpacker             unpacker of the replay
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section 
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 * @return a {@link Replay} object describing the replay; or <code>null</code> if it is not a replay 
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	public static Replay parseReplay( final BinReplayUnpacker unpacker, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) throws Exception {
+		return parseReplay( unpacker, null, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+	}
+	
+	/**
+	 * Parses a binary replay from an unpacker.<br>
+	 * Unlike the other <code>parseReplay()</code> methods, this reports the errors by throwing exceptions, and does not close the unpacker.
+	 * If {@link ParseInstrumentation} is enabled, the metrics of the parsing are reported to its listeners (also if parsing fails).
+	 * 
+	 * @param unpacker             unpacker of the replay
+	 * @param replayName           name of the replay to be reported in the metrics; can be <code>null</code>
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section 
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 * @return a {@link Replay} object describing the replay; or <code>null</code> if it is not a replay 
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	public static Replay parseReplay( final BinReplayUnpacker unpacker, final String replayName, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) throws Exception {
+		return parseReplay( unpacker, replayName, null, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData );
+	}
+	
+	/**
+	 * Parses the rest of a binary replay whose header was parsed from the unpacker without the commands section,
+	 * e.g. to decide from the header whether the rest is needed. The header is not unpacked and parsed again.<br>
+	 * Errors are reported like in {@link #parseReplay(BinReplayUnpacker, String, boolean, boolean, boolean, boolean)}.
+	 * 
+	 * @param unpacker            unpacker of the replay, not used since the header was parsed from it
+	 * @param replayName          name of the replay to be reported in the metrics; can be <code>null</code>
+	 * @param replayHeader        the parsed header of the replay
+	 * @param parseGameChat       tells if game chat has to be parsed
+	 * @param parseMapDataSection tells if map data section has to be parsed
+	 * @param parseMapTileData    tells if map tile data section has to be parsed
+	 * @return a {@link Replay} object describing the replay, with the given header
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	public static Replay parseCommands( final BinReplayUnpacker unpacker, final String replayName, final ReplayHeader replayHeader, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) throws Exception {
+		return parseReplay( unpacker, replayName, replayHeader, true, parseGameChat, parseMapDataSection, parseMapTileData );
+	}
+	
+	/**
+	 * Parses a binary replay from an unpacker, and reports the metrics if {@link ParseInstrumentation} is enabled.
+	 * 
+	 * @param unpacker             unpacker of the replay
+	 * @param replayName           name of the replay to be reported in the metrics; can be <code>null</code>
+	 * @param replayHeader         header of the replay if it was already parsed from the unpacker; <code>null</code> to parse it
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section 
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 * @return a {@link Replay} object describing the replay; or <code>null</code> if it is not a replay 
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	private static Replay parseReplay( final BinReplayUnpacker unpacker, final String replayName, final ReplayHeader replayHeader, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData ) throws Exception {
+		if ( !ParseInstrumentation.isEnabled() )
+			return replayHeader == null ? parseReplay( unpacker, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData, null )
+					: parseCommands( unpacker, replayHeader, parseGameChat, parseMapDataSection, parseMapTileData, null );
+		
+		final ParseMetrics metrics         = new ParseMetrics( replayName );
+		final long         inputBytesCount = unpacker.getInputBytesCount();
+		try {
+			final Replay replay = replayHeader == null ? parseReplay( unpacker, parseCommandsSection, parseGameChat, parseMapDataSection, parseMapTileData, metrics )
+					: parseCommands( unpacker, replayHeader, parseGameChat, parseMapDataSection, parseMapTileData, metrics );
+			if ( replay == null )
+				metrics.fail( null );
+			return replay;
+		}
+		catch ( final Exception e ) {
+			metrics.fail( e );
+			throw e;
+		}
+		finally {
+			metrics.inputBytesCount = unpacker.getInputBytesCount() - inputBytesCount;
+			ParseInstrumentation.fireMetrics( metrics );
+		}
+	}
+	
+	/**
+	 * Parses a binary replay from an unpacker.
+	 * 
+	 * @param unpacker             unpacker of the replay
+	 * @param parseCommandsSection tells if player actions have to be parsed from the commands section 
+	 * @param parseGameChat        tells if game chat has to be parsed
+	 * @param parseMapDataSection  tells if map data section has to be parsed
+	 * @param parseMapTileData     tells if map tile data section has to be parsed
+	 * @param metrics              metrics to record the phases in; <code>null</code> if instrumentation is disabled
+	 * @return a {@link Replay} object describing the replay; or <code>null</code> if it is not a replay 
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	private static Replay parseReplay( final BinReplayUnpacker unpacker, final boolean parseCommandsSection, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData, final ParseMetrics metrics ) throws Exception {
+		// Replay ID section
+		if ( metrics != null )
+			metrics.beginPhase( ParseMetrics.PHASE_ID );
+		final int replayFormat = readReplayFormat( unpacker );
+		if ( metrics != null ) {
+			metrics.endPhase();
+			metrics.unpackedBytesCount += 4;
+		}
+		if ( replayFormat < 0 )
+			return null;  // Not a replay file
+		
+		// Replay header section
+		if ( metrics != null )
+			metrics.beginPhase( ParseMetrics.PHASE_HEADER );
+		final ReplayHeader replayHeader = parseHeader( unpacker.unpackSection( HEADER_SIZE ) );
+		replayHeader.replayFormat = replayFormat == ReplayHeader.REPLAY_FORMAT_LEGACY && unpacker.getZlibChunksCount() > 0 ? ReplayHeader.REPLAY_FORMAT_MODERN : (byte) replayFormat;
+		if ( metrics != null ) {
+			metrics.endPhase();
+			metrics.unpackedBytesCount += HEADER_SIZE;
+		}
+		
+		if ( !parseCommandsSection )
+			return new Replay( replayHeader, null, null, null );
+		
+		return parseCommands( unpacker, replayHeader, parseGameChat, parseMapDataSection, parseMapTileData, metrics );
+	}
+	
+	/**
+	 * Parses the sections of a binary replay following the header: the commands section and optionally the map data section.
+	 * 
+	 * @param unpacker            unpacker of the replay, positioned after the header
+	 * @param replayHeader        the parsed header of the replay
+	 * @param parseGameChat       tells if game chat has to be parsed
+	 * @param parseMapDataSection tells if map data section has to be parsed
+	 * @param parseMapTileData    tells if map tile data section has to be parsed
+	 * @param metrics             metrics to record the phases in; <code>null</code> if instrumentation is disabled
+	 * @return a {@link Replay} object describing the replay
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	private static Replay parseCommands( final BinReplayUnpacker unpacker, final ReplayHeader replayHeader, final boolean parseGameChat, final boolean parseMapDataSection, final boolean parseMapTileData, final ParseMetrics metrics ) throws Exception {
+		if ( metrics != null )
+			metrics.beginPhase( ParseMetrics.PHASE_COMMANDS_UNPACK );
+		// Player commands length section
+		final int playerCommandsLength = Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() );
+		
+		// Player commands section
+		final byte[] commandsData = unpacker.unpackSection( playerCommandsLength );
+		if ( metrics != null ) {
+			metrics.endPhase();
+			metrics.unpackedBytesCount += 4 + playerCommandsLength;
+			metrics.beginPhase( ParseMetrics.PHASE_COMMANDS_DECODE );
+		}
+		
+		GameChatWrapper gameChatWrapper = null;
+		if ( parseGameChat )
+			gameChatWrapper = new GameChatWrapper( replayHeader.playerNames, replayHeader.playerIds );
+		
+		final ActionListsBuilder actionListsBuilder = new ActionListsBuilder( replayHeader, gameChatWrapper, metrics );
+		final CommandDecoder     commandDecoder     = new CommandDecoder();
+		commandDecoder.decode( commandsData, playerCommandsLength, true, Integer.MAX_VALUE, actionListsBuilder );
+		if ( metrics != null ) {
+			metrics.unknownCommandsCount = commandDecoder.getUnknownCommandsCount();
+			metrics.skippedBytesCount    = commandDecoder.getSkippedBytesCount();
+		}
+		
+		final List< Action >[] playerActionLists = actionListsBuilder.playerActionLists;
+		
+		// Fill the last action frames array
+		if ( playerActionLists != null )
+			for ( int i = 0; i < playerActionLists.length; i++ ) {
+				final List< Action > playerActionList = playerActionLists[ i ];
+				if ( !playerActionList.isEmpty() )
+					replayHeader.playerIdLastActionFrame[ i ] = playerActionList.get( playerActionList.size() - 1 ).iteration;
 			}
+		
+		// Now create the ReplayActions object
+		final Map< String, List< Action > > playerNameActionListMap = new HashMap< String, List< Action > >();
+		for ( int i = 0; i < replayHeader.playerNames.length; i++ )
+			if ( replayHeader.playerNames[ i ] != null )
+				if ( replayHeader.playerIds[ i ] != 0xff )  // Computers are listed with playerId values of 0xff, but no actions are recorded from them.
+					playerNameActionListMap.put( replayHeader.playerNames[ i ], playerActionLists[ replayHeader.playerIds[ i ] ] );
+		final ReplayActions replayActions = new ReplayActions( playerNameActionListMap );
+		replayActions.setTimeline( createTimeline( replayActions, playerActionLists, actionListsBuilder.actionPlayerIds, actionListsBuilder.actionsCount ) );
+		if ( metrics != null )
+			metrics.endPhase();
+		
+		MapData mapData = parseMapTileData ? new MapData() : null;
+		if ( parseMapDataSection ) {
+			if ( metrics != null )
+				metrics.beginPhase( ParseMetrics.PHASE_MAP_DATA_UNPACK );
+			// Map data length section
+			final int mapDataLength = Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() );
 			
-			// Fill the last action frames array
-			if ( playerActionLists != null )
-				for ( int i = 0; i < playerActionLists.length; i++ ) {
-					final List< Action > playerActionList = playerActionLists[ i ];
-					if ( !playerActionList.isEmpty() )
-						replayHeader.playerIdLastActionFrame[ i ] = playerActionList.get( playerActionList.size() - 1 ).iteration;
-				}
-			
-			ReplayActions replayActions = null;
-			if ( parseCommandsSection ) {
-				// Now create the ReplayActions object
-				final Map< String, List< Action > > playerNameActionListMap = new HashMap< String, List< Action > >();
-				for ( int i = 0; i < replayHeader.playerNames.length; i++ )
-					if ( replayHeader.playerNames[ i ] != null )
-						if ( replayHeader.playerIds[ i ] != 0xff )  // Computers are listed with playerId values of 0xff, but no actions are recorded from them.
-							playerNameActionListMap.put( replayHeader.playerNames[ i ], playerActionLists[ replayHeader.playerIds[ i ] ] );
-				replayActions = new ReplayActions( playerNameActionListMap );
+			// Map data section
+			final ByteBuffer mapDataBuffer = ByteBuffer.wrap( unpacker.unpackSection( mapDataLength ) );
+			mapDataBuffer.order( ByteOrder.LITTLE_ENDIAN );
+			if ( metrics != null ) {
+				metrics.endPhase();
+				metrics.unpackedBytesCount += 4 + mapDataLength;
+				metrics.beginPhase( ParseMetrics.PHASE_MAP_DATA_PARSE );
 			}
 			
-			MapData mapData = parseMapTileData ? new MapData() : null;
-			if ( parseMapDataSection ) {
-				// Map data length section
-				final int mapDataLength = Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() );
-				
-				// Map data section
-				final ByteBuffer mapDataBuffer = ByteBuffer.wrap( unpacker.unpackSection( mapDataLength ) );
-				mapDataBuffer.order( ByteOrder.LITTLE_ENDIAN );
+			final byte[] sectionNameBuffer = new byte[ 4 ];
+			final String SECTION_NAME_DIMENSION = "DIM "; // Name of the dimension section in the map data replay section.
+			final String SECTION_NAME_MTXM      = "MTXM"; // Name of the tile section in the map data replay section.
+			final String SECTION_NAME_ERA       = "ERA "; // Name of the tile set section in the map data replay section.
+			final String SECTION_NAME_UNIT      = "UNIT"; // Name of the unit section in the map data replay section.
+			while ( mapDataBuffer.position() < mapDataLength ) {
+				mapDataBuffer.get( sectionNameBuffer );
+				final String sectionName   = new String( sectionNameBuffer, "US-ASCII" );
+				final int    sectionLength = mapDataBuffer.getInt();
+				final int    sectionEndPos = mapDataBuffer.position() + sectionLength;
 				
-				final byte[] sectionNameBuffer = new byte[ 4 ];
-				final String SECTION_NAME_DIMENSION = "DIM "; // Name of the dimension section in the map data replay section.
-				final String SECTION_NAME_MTXM      = "MTXM"; // Name of the tile section in the map data replay section.
-				final String SECTION_NAME_ERA       = "ERA "; // Name of the tile set section in the map data replay section.
-				final String SECTION_NAME_UNIT      = "UNIT"; // Name of the unit section in the map data replay section.
-				while ( mapDataBuffer.position() < mapDataLength ) {
-					mapDataBuffer.get( sectionNameBuffer );
-					final String sectionName   = new String( sectionNameBuffer, "US-ASCII" );
-					final int    sectionLength = mapDataBuffer.getInt();
-					final int    sectionEndPos = mapDataBuffer.position() + sectionLength;
-					
-					if ( sectionName.equals( SECTION_NAME_UNIT ) ) {
-						if ( parseMapTileData ) {
-							while ( mapDataBuffer.position() < sectionEndPos ) {
-								final int unitEndPos = mapDataBuffer.position() + 36; // 36 bytes each unit
-								mapDataBuffer.getInt(); // unknown
-								final short x    = mapDataBuffer.getShort();
-								final short y    = mapDataBuffer.getShort();
-								final short type = mapDataBuffer.getShort();
-								mapDataBuffer.getShort(); // unknown
-								mapDataBuffer.getShort(); // special properties flag
-								mapDataBuffer.getShort(); // valid elements flag
-								final byte owner = mapDataBuffer.get();
-								
-								if ( type == Action.UNIT_NAME_MINERAL_FIELD_1 || type == Action.UNIT_NAME_MINERAL_FIELD_2 || type == Action.UNIT_NAME_MINERAL_FIELD_3 ) {
-									mapData.mineralFieldList.add( new short[] { x, y } );
-								}
-								else if ( type == Action.UNIT_NAME_VESPENE_GEYSER ) {
-									mapData.geyserList.add( new short[] { x, y } );
-								}
-								else if ( type == Action.UNIT_NAME_START_LOCATION ) {
-									mapData.startLocationList.add( new int[] { x, y, owner } );
-								}
-								
-								if ( mapDataBuffer.position() < unitEndPos ) // We might not processed all unit data
-									mapDataBuffer.position( unitEndPos < mapDataLength ? unitEndPos : mapDataLength );
+				if ( sectionName.equals( SECTION_NAME_UNIT ) ) {
+					if ( parseMapTileData ) {
+						while ( mapDataBuffer.position() < sectionEndPos ) {
+							final int unitEndPos = mapDataBuffer.position() + 36; // 36 bytes each unit
+							mapDataBuffer.getInt(); // unknown
+							final short x    = mapDataBuffer.getShort();
+							final short y    = mapDataBuffer.getShort();
+							final short type = mapDataBuffer.getShort();
+							mapDataBuffer.getShort(); // unknown
+							mapDataBuffer.getShort(); // special properties flag
+							mapDataBuffer.getShort(); // valid elements flag
+							final byte owner = mapDataBuffer.get();
+							
+							if ( type == Action.UNIT_NAME_MINERAL_FIELD_1 || type == Action.UNIT_NAME_MINERAL_FIELD_2 || type == Action.UNIT_NAME_MINERAL_FIELD_3 ) {
+								mapData.mineralFieldList.add( new short[] { x, y } );
 							}
+							else if ( type == Action.UNIT_NAME_VESPENE_GEYSER ) {
+								mapData.geyserList.add( new short[] { x, y } );
+							}
+							else if ( type == Action.UNIT_NAME_START_LOCATION ) {
+								mapData.startLocationList.add( new int[] { x, y, owner } );
+							}
+							
+							if ( mapDataBuffer.position() < unitEndPos ) // We might not processed all unit data
+								mapDataBuffer.position( unitEndPos < mapDataLength ? unitEndPos : mapDataLength );
 						}
 					}
-					else if ( sectionName.equals( SECTION_NAME_DIMENSION ) ) {
-						// If map has a non-standard size, the replay header contains invalid map size, this is the correct one
-						final short newWidth  = mapDataBuffer.getShort();
-						final short newHeight = mapDataBuffer.getShort();
-						// Sometimes newWidth and newHeight is 0, we don't want to overwrite the size with wrong values!
-						// And sometimes it contains some insane values, we just ignore them
-						if ( newWidth <= 256 && newHeight <= 256 ) {
-							if ( newWidth > replayHeader.mapWidth )
-								replayHeader.mapWidth = newWidth;
-							if ( newHeight > replayHeader.mapHeight )
-								replayHeader.mapHeight= newHeight;
-						}
-						if ( !parseMapTileData )
-							break; // We only needed the dimension section
-					}
-					else if ( sectionName.equals( SECTION_NAME_MTXM ) ) {
-						if ( parseMapTileData ) {
-							final int maxI = sectionLength/2; // This is map_width*map_height
-							// Sometimes map is broken into multiple sections. The first one is the biggest (whole map size), but the beginning of map is empty
-							// The subsequent MTXM sections will fill the whole at the beginning. 
-							if ( mapData.tiles == null )
-								mapData.tiles = new short[ maxI ];
-							for ( int i = 0; i < maxI; i++ )
-								mapData.tiles[ i ] = mapDataBuffer.getShort();
-						}
+				}
+				else if ( sectionName.equals( SECTION_NAME_DIMENSION ) ) {
+					// If map has a non-standard size, the replay header contains invalid map size, this is the correct one
+					final short newWidth  = mapDataBuffer.getShort();
+					final short newHeight = mapDataBuffer.getShort();
+					// Sometimes newWidth and newHeight is 0, we don't want to overwrite the size with wrong values!
+					// And sometimes it contains some insane values, we just ignore them
+					if ( newWidth <= 256 && newHeight <= 256 ) {
+						if ( newWidth > replayHeader.mapWidth )
+							replayHeader.mapWidth = newWidth;
+						if ( newHeight > replayHeader.mapHeight )
+							replayHeader.mapHeight= newHeight;
 					}
-					else if ( sectionName.equals( SECTION_NAME_ERA ) ) {
-						if ( parseMapTileData )
-							mapData.tileSet = mapDataBuffer.getShort();
+					if ( !parseMapTileData )
+						break; // We only needed the dimension section
+				}
+				else if ( sectionName.equals( SECTION_NAME_MTXM ) ) {
+					if ( parseMapTileData ) {
+						final int maxI = sectionLength/2; // This is map_width*map_height
+						// Sometimes map is broken into multiple sections. The first one is the biggest (whole map size), but the beginning of map is empty
+						// The subsequent MTXM sections will fill the whole at the beginning. 
+						if ( mapData.tiles == null )
+							mapData.tiles = new short[ maxI ];
+						for ( int i = 0; i < maxI; i++ )
+							mapData.tiles[ i ] = mapDataBuffer.getShort();
 					}
-					
-					if ( mapDataBuffer.position() < sectionEndPos ) // Part or all the section might be unprocessed, skip the unprocessed bytes
-						mapDataBuffer.position( sectionEndPos < mapDataLength ? sectionEndPos : mapDataLength );
+				}
+				else if ( sectionName.equals( SECTION_NAME_ERA ) ) {
+					if ( parseMapTileData )
+						mapData.tileSet = mapDataBuffer.getShort();
 				}
 				
-				if ( mapDataBuffer.position() < mapDataLength ) // We might have skipped some parts of map data, so we position to the end
-					mapDataBuffer.position( mapDataLength );
+				if ( mapDataBuffer.position() < sectionEndPos ) // Part or all the section might be unprocessed, skip the unprocessed bytes
+					mapDataBuffer.position( sectionEndPos < mapDataLength ? sectionEndPos : mapDataLength );
 			}
 			
-			return new Replay( replayHeader, replayActions, gameChatWrapper == null ? null : gameChatWrapper.gameChatBuilder.toString(), mapData );
+			if ( mapDataBuffer.position() < mapDataLength ) // We might have skipped some parts of map data, so we position to the end
+				mapDataBuffer.position( mapDataLength );
+			if ( metrics != null )
+				metrics.endPhase();
 		}
-		catch ( final Exception e ) {
-			e.printStackTrace();
-			return null;
+		
+		return new Replay( replayHeader, replayActions, gameChatWrapper == null ? null : gameChatWrapper.gameChatBuilder.toString(), mapData );
+	}
+	
+	/**
+	 * Reports a replay which could not even be opened to the instrumentation (as a failure of the ID phase).
+	 * @param replayName name of the replay; can be <code>null</code>
+	 * @param failure    cause of the failure
+	 */
+	private static void reportOpenFailure( final String replayName, final Exception failure ) {
+		if ( ParseInstrumentation.isEnabled() ) {
+			final ParseMetrics metrics = new ParseMetrics( replayName );
+			metrics.fail( failure );
+			ParseInstrumentation.fireMetrics( metrics );
 		}
-		finally {
-			if ( unpacker != null )
-				unpacker.close();
+	}
+	
+	/**
+	 * Reads the replay ID section and determines the format of the replay.<br>
+	 * Replays of version 1.21 and newer have a different ID, followed by 4 bytes outside of any section which are skipped.
+	 * Replays of version 1.18-1.20 have the legacy ID, they can only be told apart by their zlib compressed sections.
+	 * 
+	 * @param unpacker unpacker of the replay
+	 * @return {@link ReplayHeader#REPLAY_FORMAT_LEGACY} or {@link ReplayHeader#REPLAY_FORMAT_MODERN_121}; or -1 if it is not a replay
+	 * @throws Exception if the replay ID section cannot be read
+	 */
+	public static int readReplayFormat( final BinReplayUnpacker unpacker ) throws Exception {
+		switch ( Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() ) ) {
+			case 0x53526572 : // "reRS"
+				return ReplayHeader.REPLAY_FORMAT_LEGACY;
+			case 0x53526573 : // "seRS"
+				unpacker.skipRawBytes( 4 );
+				return ReplayHeader.REPLAY_FORMAT_MODERN_121;
+			default :
+				return -1;
+		}
+	}
+	
+	/**
+	 * Parses the header section of a replay.
+	 * @param headerData unpacked data of the header section
+	 * @return the parsed replay header
+	 */
+	public static ReplayHeader parseHeader( final byte[] headerData ) {
+		final ByteBuffer headerBuffer = ByteBuffer.wrap( headerData );
+		headerBuffer.order( ByteOrder.LITTLE_ENDIAN );
+		
+		final ReplayHeader replayHeader = new ReplayHeader();
+		replayHeader.gameEngine  = headerData[ 0x00 ];
+		
+		replayHeader.gameFrames  = headerBuffer.getInt( 0x01 );
+		replayHeader.saveTime    = new Date( headerBuffer.getInt( 0x08 ) * 1000l );
+		
+		replayHeader.gameName    = getZeroPaddedString( headerData, 0x18, 28 );
+		
+		replayHeader.mapWidth    = headerBuffer.getShort( 0x34 );
+		replayHeader.mapHeight   = headerBuffer.getShort( 0x36 );
+		
+		replayHeader.gameSpeed   = headerBuffer.getShort( 0x3a );
+		replayHeader.gameType    = headerBuffer.getShort( 0x3c );
+		replayHeader.gameSubType = headerBuffer.getShort( 0x3e );
+		
+		replayHeader.creatorName = getZeroPaddedString( headerData, 0x48, 24 );
+		
+		replayHeader.mapName     = getZeroPaddedString( headerData, 0x61, 26 );
+		
+		replayHeader.playerRecords = Arrays.copyOfRange( headerData, 0xa1, 0xa1 + 432 );
+		for ( int i = 0; i < replayHeader.playerColors.length; i++ )
+			replayHeader.playerColors[ i ] = headerBuffer.getInt( 0x251 + i * 4 );
+		replayHeader.playerSpotIndices = Arrays.copyOfRange( headerData, 0x271, 0x271 + 8 );
+		
+		// Derived data from player records:
+		for ( int i = 0; i < 12; i++ ) {
+			final String playerName = getZeroPaddedString( replayHeader.playerRecords, i * 36 + 11, 25 );
+			if ( playerName.length() > 0 )
+				replayHeader.playerNames[ i ] = playerName;
+			replayHeader.playerRaces[ i ] = replayHeader.playerRecords[ i * 36 + 9 ];
+			replayHeader.playerIds  [ i ] = replayHeader.playerRecords[ i * 36 + 4 ] & 0xff;
+		}
+		
+		return replayHeader;
+	}
+	
+	/**
+	 * Creates the timeline of the replay actions from the order the actions were parsed.
+	 * @param replayActions     the replay actions
+	 * @param playerActionLists action lists of the players indexed by player ID
+	 * @param actionPlayerIds   player IDs of the actions in the order they were parsed
+	 * @param actionsCount      number of parsed actions
+	 * @return the timeline of the replay actions
+	 */
+	private static ReplayTimeline createTimeline( final ReplayActions replayActions, final List< Action >[] playerActionLists, final byte[] actionPlayerIds, final int actionsCount ) {
+		// Map player IDs to player indices. Actions of player IDs not present in the replay actions (e.g. observers) are left out.
+		final byte[] playerIdIndices = new byte[ playerActionLists.length ];
+		Arrays.fill( playerIdIndices, (byte) -1 );
+		for ( int playerIndex = 0; playerIndex < replayActions.players.length; playerIndex++ ) {
+			final List< Action > playerActionList = replayActions.playerNameActionListMap.get( replayActions.players[ playerIndex ].playerName );
+			for ( int playerId = 0; playerId < playerActionLists.length; playerId++ )
+				if ( playerActionLists[ playerId ] == playerActionList )
+					playerIdIndices[ playerId ] = (byte) playerIndex;
+		}
+		
+		final byte[] actionPlayerIndices = new byte[ actionsCount ];
+		int size = 0;
+		for ( int i = 0; i < actionsCount; i++ ) {
+			final byte playerIndex = playerIdIndices[ actionPlayerIds[ i ] ];
+			if ( playerIndex >= 0 )
+				actionPlayerIndices[ size++ ] = playerIndex;
 		}
+		
+		return new ReplayTimeline( replayActions.players, actionPlayerIndices, size );
 	}
 	
 	/**
@@ -292,85 +594,48 @@ public class BinRepParser {
 	}
 	
 	/**
-	 * Reads the next action in the commands buffer.<br>
+	 * Creates the action object of a decoded command.<br>
 	 * Only parses actions which are important in hack detection.
-	 * @param frame               frame of the action
-	 * @param commandsBuffer      commands buffer to be read from
-	 * @param commandBlocksEndPos end position of the current command blocks
-	 * @param gameChatWrapper     game chat wrapper to be used if game chat is desired
-	 * @return the next action object
+	 * @param command the decoded command
+	 * @return the action object
 	 */
-	private static Action readNextAction( final int frame, final ByteBuffer commandsBuffer, final int commandBlocksEndPos, final GameChatWrapper gameChatWrapper ) {
-		final byte blockId  = commandsBuffer.get();
+	private static Action createAction( final CommandDecoder.Command command ) {
+		final int  frame   = command.frame;
+		final byte blockId = command.blockId;
 		
-		Action action    = null;
-		int    skipBytes = 0;
+		if ( !command.known ) // We don't know how to handle actions, the rest of the time frame was skipped which means we might lose some actions!
+			return new Action( frame, "", Action.ACTION_NAME_INDEX_UNKNOWN );
 		
 		switch ( blockId ) {
 			case (byte) 0x09 :   // Select units
 			case (byte) 0x0a :   // Shift select units
 			case (byte) 0x0b : { // Shift deselect units
-				int unitsCount = commandsBuffer.get() & 0xff;
 				final StringBuilder parametersBuilder = new StringBuilder();
-				for ( ; unitsCount > 0; unitsCount-- ) {
-					parametersBuilder.append( commandsBuffer.getShort() );
-					if ( unitsCount > 1 )
+				for ( int i = 0; i < command.unitsCount; i++ ) {
+					if ( i > 0 )
 						parametersBuilder.append( ',' );
+					parametersBuilder.append( command.unitTags[ i ] );
 				}
 				// TODO: determine unit name indices
-				action = new Action( frame, parametersBuilder.toString(), blockId );
-				break;
-			}
-			case (byte) 0x0c : { // Build
-				/*final byte  type   = */commandsBuffer.get();
-				final short posX   = commandsBuffer.getShort();
-				final short posY   = commandsBuffer.getShort();
-				final short unitId = commandsBuffer.getShort();
-				
-				action = new Action( frame, "(" + posX + "," + posY + ")," + Action.UNIT_ID_NAME_MAP.get( unitId ), blockId, Action.UNIT_NAME_INDEX_UNKNOWN, unitId, posX, posY);
-				break;
-			}
-			case (byte) 0x0d : { // Vision
-				final byte data1 = commandsBuffer.get();
-				final byte data2 = commandsBuffer.get();
-				action = new Action( frame, convertToHexString( data1, data2 ), blockId );
-				break;
-			}
-			case (byte) 0x0e : { // Ally
-				final byte data1 = commandsBuffer.get();
-				final byte data2 = commandsBuffer.get();
-				final byte data3 = commandsBuffer.get();
-				final byte data4 = commandsBuffer.get();
-				action = new Action( frame, convertToHexString( data1, data2, data3, data4 ), blockId );
-				break;
-			}
-			case (byte) 0x0f : { // Change game speed
-				final byte speed = commandsBuffer.get();
-				action = new Action( frame, Action.GAME_SPEED_MAP.get( speed ), blockId );
-				break;
-			}
-			case (byte) 0x13 : { // Hotkey
-				final byte type = commandsBuffer.get();
-				action = new Action( frame, ( type == (byte) 0x00 ? Action.HOTKEY_ACTION_PARAM_NAME_ASSIGN : Action.HOTKEY_ACTION_PARAM_NAME_SELECT ) + "," + commandsBuffer.get(), blockId );
-				break;
-			}
-			case (byte) 0x14 : { // Move
-				final short posX   = commandsBuffer.getShort();
-				final short posY   = commandsBuffer.getShort();
-				/*final short unitId = */commandsBuffer.getShort(); // Move to (posX;posY) if this is 0xffff, or move to this unit if it's a valid unit id (if it's not 0xffff)
-				skipBytes = 3;
-				action = new Action( frame, posX + "," + posY, Action.ACTION_NAME_INDEX_MOVE );
-				break;
+				return new Action( frame, parametersBuilder.toString(), blockId );
 			}
+			case (byte) 0x0c :   // Build
+				return new Action( frame, "(" + command.posX + "," + command.posY + ")," + Action.UNIT_ID_NAME_MAP.get( command.unitId ), blockId, Action.UNIT_NAME_INDEX_UNKNOWN, command.unitId, command.posX, command.posY );
+			case (byte) 0x0d :   // Vision
+				return new Action( frame, convertToHexString( command.data[ 0 ], command.data[ 1 ] ), blockId );
+			case (byte) 0x0e :   // Ally
+			case (byte) 0x12 :   // Use Cheat
+			case (byte) 0x2f :   // Lift
+				return new Action( frame, convertToHexString( command.data[ 0 ], command.data[ 1 ], command.data[ 2 ], command.data[ 3 ] ), blockId );
+			case (byte) 0x0f :   // Change game speed
+				return new Action( frame, Action.GAME_SPEED_MAP.get( command.type ), blockId );
+			case (byte) 0x13 :   // Hotkey
+				return new Action( frame, ( command.type == (byte) 0x00 ? Action.HOTKEY_ACTION_PARAM_NAME_ASSIGN : Action.HOTKEY_ACTION_PARAM_NAME_SELECT ) + "," + command.type2, blockId );
+			case (byte) 0x14 :   // Move
+				return new Action( frame, command.posX + "," + command.posY, Action.ACTION_NAME_INDEX_MOVE, Action.UNIT_NAME_INDEX_UNKNOWN, Action.BUILDING_NAME_INDEX_NON_BUILDING, command.posX, command.posY );
 			case (byte) 0x15 : { // Attack/Right Click/Cast Magic/Use ability
-				final short posX   = commandsBuffer.getShort();
-				final short posY   = commandsBuffer.getShort();
-				/*final short unitId = */commandsBuffer.getShort(); // (posX;posY) if this is 0xffff, or target this unit if it's a valid unit id (if it's not 0xffff)
-				commandsBuffer.getShort(); // Unknown
-				final byte type    = commandsBuffer.get();
-				
 				byte actionNameIndex;
-				switch ( type ) {
+				switch ( command.type ) {
 				case (byte) 0x00 : case (byte) 0x06 :  // Move with right click or Move by click move icon
 					actionNameIndex = Action.ACTION_NAME_INDEX_MOVE       ; break;
 				case (byte) 0x09 : case (byte) 0x4f : case (byte) 0x50 :
@@ -382,122 +647,29 @@ public class BinRepParser {
 				default :
 					actionNameIndex = Action.ACTION_NAME_INDEX_UNKNOWN    ; break;
 				}
-				
-				/*final byte type2 = */commandsBuffer.get(); // Type2: 0x00 for normal attack, 0x01 for shift attack
-				action = new Action( frame, posX + "," + posY, actionNameIndex, type, Action.UNIT_NAME_INDEX_UNKNOWN, Action.BUILDING_NAME_INDEX_NON_BUILDING );
-				break;
-			}
-			case (byte) 0x1f : { // Train
-				final short unitId = commandsBuffer.getShort();
-				action = new Action( frame, Action.UNIT_ID_NAME_MAP.get( unitId ), blockId, unitId, Action.BUILDING_NAME_INDEX_NON_BUILDING );
-				break;
-			}
-			case (byte) 0x20 : { // Cancel train
-				skipBytes = 2;
-				action = new Action( frame, "", blockId );
-				break;
-			}
-			case (byte) 0x23 : { // Hatch
-				final short unitId = commandsBuffer.getShort();
-				action = new Action( frame, Action.UNIT_ID_NAME_MAP.get( unitId ), blockId, unitId, Action.BUILDING_NAME_INDEX_NON_BUILDING );
-				break;
-			}
-			case (byte) 0x30 : { // Research
-				final byte researchId = commandsBuffer.get();
-				action = new Action( frame, Action.RESEARCH_ID_NAME_MAP.get( researchId ), blockId );
-				break;
-			}
-			case (byte) 0x32 : { // Upgrade
-				final byte upgradeId = commandsBuffer.get();
-				action = new Action( frame, Action.UPGRADE_ID_NAME_MAP.get( upgradeId ), blockId );
-				break;
+				return new Action( frame, command.posX + "," + command.posY, actionNameIndex, command.type, Action.UNIT_NAME_INDEX_UNKNOWN, Action.BUILDING_NAME_INDEX_NON_BUILDING, command.posX, command.posY );
 			}
+			case (byte) 0x1f :   // Train
+			case (byte) 0x23 :   // Hatch
+				return new Action( frame, Action.UNIT_ID_NAME_MAP.get( command.unitId ), blockId, command.unitId, Action.BUILDING_NAME_INDEX_NON_BUILDING );
+			case (byte) 0x35 :   // Morph
+				return new Action( frame, Action.UNIT_ID_NAME_MAP.get( command.unitId ), blockId, command.unitId, command.unitId );
+			case (byte) 0x30 :   // Research
+				return new Action( frame, Action.RESEARCH_ID_NAME_MAP.get( command.type ), blockId );
+			case (byte) 0x32 :   // Upgrade
+				return new Action( frame, Action.UPGRADE_ID_NAME_MAP.get( command.type ), blockId );
+			case (byte) 0x1a :   // Stop
 			case (byte) 0x1e :   // Return chargo
-			case (byte) 0x21 :   // Cloack
-			case (byte) 0x22 :   // Decloack
-			case (byte) 0x25 :   // Unsiege
-			case (byte) 0x26 :   // Siege
 			case (byte) 0x28 :   // Unload all
 			case (byte) 0x2b :   // Hold position
-			case (byte) 0x2c :   // Burrow
-			case (byte) 0x2d :   // Unburrow
-			case (byte) 0x1a : { // Stop
-				final byte data = commandsBuffer.get();
-				final String params = blockId == 0x1a || blockId == (byte) 0x1e || blockId == (byte) 0x28  || blockId == (byte) 0x2b ? ( data == 0x00 ? "Instant" : "Queued" ) : "";
-				action = new Action( frame, params, blockId );
-				break;
-			}
-			case (byte) 0x35 : {  // Morph
-				final short unitId = commandsBuffer.getShort();
-				action = new Action( frame, Action.UNIT_ID_NAME_MAP.get( unitId ), blockId, unitId, unitId );
-				break;
-			}
-			case (byte) 0x57 : {  // Leave game
-				final byte reason = commandsBuffer.get();
-				action = new Action( frame, reason == (byte) 0x01 ? "Quit" : ( reason == (byte) 0x06 ? "Dropped" : "" ), blockId );
-				break;
-			}
-			case (byte) 0x29 : { // Unload
-				skipBytes = 2;
-				action = new Action( frame, "", blockId );
-				break;
-			}
-			case (byte) 0x58 : { // Minimap ping
-				final short posX = commandsBuffer.getShort();
-				final short posY = commandsBuffer.getShort();
-				action = new Action( frame, "(" + posX + "," + posY + ")", blockId );
-				break;
-			}
-			case (byte) 0x12 :   // Use Cheat
-			case (byte) 0x2f : { // Lift
-				final byte data1 = commandsBuffer.get();
-				final byte data2 = commandsBuffer.get();
-				final byte data3 = commandsBuffer.get();
-				final byte data4 = commandsBuffer.get();
-				action = new Action( frame, convertToHexString( data1, data2, data3, data4 ), blockId );
-				break;
-			}
-			case (byte) 0x18 :   // Cancel
-			case (byte) 0x19 :   // Cancel hatch
-			case (byte) 0x27 :   // Build interceptor/scarab
-			case (byte) 0x2a :   // Merge archon
-			case (byte) 0x2e :   // Cancel nuke
-			case (byte) 0x31 :   // Cancel research
-			case (byte) 0x36 :   // Stim
-			case (byte) 0x5a : { // Merge dark archon
-				// No additional data
-				action = new Action( frame, "", blockId );
-				break;
-			}
-			case (byte) 0x5c : { // Game Chat (as of 1.16)
-				if ( gameChatWrapper == null )
-					skipBytes = 81;  // 1 byte for player index, and 80 bytes of message characters
-				else {
-					if ( gameChatWrapper.gameChatBuilder.length() > 0 )
-						gameChatWrapper.gameChatBuilder.append( "\r\n" );
-					ReplayHeader.formatFrames( frame, gameChatWrapper.gameChatBuilder, false );
-					gameChatWrapper.gameChatBuilder.append( " - " ).append( gameChatWrapper.playerIndexNameMap.get( commandsBuffer.get() & 0xff ) );
-					commandsBuffer.get( gameChatWrapper.messageBuffer );
-					gameChatWrapper.gameChatBuilder.append( ": " ).append( getZeroPaddedString( gameChatWrapper.messageBuffer, 0, gameChatWrapper.messageBuffer.length ) );
-				}
-				break;
-			}
-			default: { // We don't know how to handle actions, we have to skip the whole time frame which means we might lose some actions!
-				skipBytes = commandBlocksEndPos - commandsBuffer.position();
-				break;
-			}
+				return new Action( frame, command.type == 0x00 ? "Instant" : "Queued", blockId );
+			case (byte) 0x57 :   // Leave game
+				return new Action( frame, command.type == (byte) 0x01 ? "Quit" : ( command.type == (byte) 0x06 ? "Dropped" : "" ), blockId );
+			case (byte) 0x58 :   // Minimap ping
+				return new Action( frame, "(" + command.posX + "," + command.posY + ")", blockId, Action.UNIT_NAME_INDEX_UNKNOWN, Action.BUILDING_NAME_INDEX_NON_BUILDING, command.posX, command.posY );
+			default :            // Cloak, siege, burrow, cancels, unload, merge etc.: no parameters
+				return new Action( frame, "", blockId );
 		}
-		
-		if ( skipBytes > 0 )
-			commandsBuffer.position( commandsBuffer.position() + skipBytes );
-		
-		if ( blockId == (byte) 0x5c ) // Game chat is not a "real" action
-			return null;
-		
-		if ( action == null )
-			action = new Action( frame, "", Action.ACTION_NAME_INDEX_UNKNOWN );
-		
-		return action;
 	}
 	
 	/**
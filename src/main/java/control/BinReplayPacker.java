@@ -0,0 +1,320 @@
+package control;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Packs sections into the binary replay format read by {@link BinReplayUnpacker}.<br>
+ * Sections are split to chunks of 0x2000 bytes, each chunk is compressed with PKWARE implode (binary literals, 4 KB dictionary)
+ * like pre 1.18 replays, or with zlib like 1.18 and newer replays. Chunks which would not get smaller are stored uncompressed.
+ *
+ * <p>The checksum field of the sections is written as the CRC-32 of the section data (the unpacker does not verify it).
+ * Not thread-safe.</p>
+ */
+public class BinReplayPacker {
+
+	/** PKWARE implode compression of pre 1.18 replays. */
+	public static final int COMPRESSION_IMPLODE = 0;
+	/** zlib compression of 1.18 and newer replays.     */
+	public static final int COMPRESSION_ZLIB    = 1;
+
+	/** Size of the chunks.                                     */
+	private static final int CHUNK_SIZE     = 0x2000;
+	/** Number of bits of the distances besides the distance codes (size of the dictionary is 64 << DICT_BITS). */
+	private static final int DICT_BITS      = 6;
+	/** Size of the dictionary (the maximum distance).          */
+	private static final int DICT_SIZE      = 64 << DICT_BITS;
+	/** Minimum length of the matches to encode.                */
+	private static final int MIN_MATCH      = 3;
+	/** Maximum length of the matches (the next length marks the end of the stream). */
+	private static final int MAX_MATCH      = 518;
+	/** Maximum number of match candidates to test.            */
+	private static final int MAX_CHAIN      = 48;
+	/** Number of bits of the hash of the match candidates.    */
+	private static final int HASH_BITS      = 12;
+
+	/** Huffman codes of the length codes (the low bits of the stream, LSB first). */
+	private static final int[] LENGTH_CODES      = { 0x05, 0x03, 0x01, 0x06, 0x0A, 0x02, 0x0C, 0x14, 0x04, 0x18, 0x08, 0x30, 0x10, 0x20, 0x40, 0x00 };
+	/** Bit lengths of the length codes.                 */
+	private static final int[] LENGTH_CODE_BITS  = { 3, 2, 3, 3, 4, 4, 4, 5, 5, 5, 5, 6, 6, 6, 7, 7 };
+	/** Number of extra bits of the length codes.        */
+	private static final int[] LENGTH_EXTRA_BITS = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4, 5, 6, 7, 8 };
+	/** Base values (length - 2) of the length codes.     */
+	private static final int[] LENGTH_BASES      = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 10, 14, 22, 38, 70, 134, 262 };
+
+	/** Huffman codes of the distance codes.             */
+	private static final int[] DISTANCE_CODES = {
+		0x03, 0x0D, 0x05, 0x19, 0x09, 0x11, 0x01, 0x3E, 0x1E, 0x2E, 0x0E, 0x36, 0x16, 0x26, 0x06, 0x3A,
+		0x1A, 0x2A, 0x0A, 0x32, 0x12, 0x22, 0x42, 0x02, 0x7C, 0x3C, 0x5C, 0x1C, 0x6C, 0x2C, 0x4C, 0x0C,
+		0x74, 0x34, 0x54, 0x14, 0x64, 0x24, 0x44, 0x04, 0x78, 0x38, 0x58, 0x18, 0x68, 0x28, 0x48, 0x08,
+		0xF0, 0x70, 0xB0, 0x30, 0xD0, 0x50, 0x90, 0x10, 0xE0, 0x60, 0xA0, 0x20, 0xC0, 0x40, 0x80, 0x00
+	};
+	/** Bit lengths of the distance codes.               */
+	private static final int[] DISTANCE_CODE_BITS = {
+		2, 4, 4, 5, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8
+	};
+
+	/** Output stream of the replay.      */
+	private final OutputStream output;
+	/** Compression of the chunks.        */
+	private final int          compression;
+
+	/** Buffer of the compressed chunks.  */
+	private final byte[]       chunkBuffer = new byte[ CHUNK_SIZE * 2 ];
+	/** Buffer to write ints with.        */
+	private final byte[]       intBuffer   = new byte[ 4 ];
+	/** CRC of the sections.              */
+	private final CRC32        crc         = new CRC32();
+	/** Deflater of the zlib compression; created when first needed. */
+	private Deflater           deflater;
+
+	/** Heads of the hash chains of the implode match finder (positions + 1, 0 marks empty). */
+	private final int[]        hashHeads   = new int[ 1 << HASH_BITS ];
+	/** Previous positions with the same hash (positions + 1, 0 marks the end of the chain). */
+	private final int[]        hashChains  = new int[ CHUNK_SIZE ];
+
+	/** Bit buffer of the implode output. */
+	private int                bitBuffer;
+	/** Number of bits in the bit buffer. */
+	private int                bitsCount;
+	/** Position in the chunk buffer.     */
+	private int                outputPos;
+
+	/**
+	 * Creates a new BinReplayPacker.
+	 * @param output      output stream to write the replay to
+	 * @param compression compression of the chunks, one of {@link #COMPRESSION_IMPLODE} and {@link #COMPRESSION_ZLIB}
+	 */
+	public BinReplayPacker( final OutputStream output, final int compression ) {
+		if ( compression != COMPRESSION_IMPLODE && compression != COMPRESSION_ZLIB )
+			throw new IllegalArgumentException( "Invalid compression: " + compression );
+		this.output      = output;
+		this.compression = compression;
+	}
+
+	/**
+	 * Packs a section.
+	 * @param data data of the section
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void packSection( final byte[] data ) throws IOException {
+		packSection( data, 0, data.length );
+	}
+
+	/**
+	 * Packs a section.<br>
+	 * Empty sections are not written (the unpacker does not read anything for them either).
+	 * @param data   array holding the data of the section
+	 * @param offset offset of the section data
+	 * @param length length of the section data
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void packSection( final byte[] data, final int offset, final int length ) throws IOException {
+		if ( length == 0 )
+			return;
+
+		crc.reset();
+		crc.update( data, offset, length );
+		writeInt( (int) crc.getValue() );
+		writeInt( ( length + CHUNK_SIZE - 1 ) / CHUNK_SIZE );
+
+		for ( int chunkOffset = 0; chunkOffset < length; chunkOffset += CHUNK_SIZE ) {
+			final int chunkLength      = Math.min( CHUNK_SIZE, length - chunkOffset );
+			final int compressedLength = compression == COMPRESSION_ZLIB ? deflate( data, offset + chunkOffset, chunkLength ) : implode( data, offset + chunkOffset, chunkLength );
+			if ( compressedLength > 0 && compressedLength < chunkLength ) {
+				writeInt( compressedLength );
+				output.write( chunkBuffer, 0, compressedLength );
+			}
+			else {
+				// The unpacker tells uncompressed chunks by their length
+				writeInt( chunkLength );
+				output.write( data, offset + chunkOffset, chunkLength );
+			}
+		}
+	}
+
+	/**
+	 * Packs a section holding an int (like the length of the next section).
+	 * @param value value of the section
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void packIntSection( final int value ) throws IOException {
+		final byte[] data = { (byte) value, (byte) ( value >> 8 ), (byte) ( value >> 16 ), (byte) ( value >> 24 ) };
+		packSection( data );
+	}
+
+	/**
+	 * Releases the deflater if it was used. Does not close the output stream.
+	 */
+	public void close() {
+		if ( deflater != null ) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Compresses a chunk with zlib into the chunk buffer.
+	 * @param data   array holding the chunk
+	 * @param offset offset of the chunk
+	 * @param length length of the chunk
+	 * @return the compressed length; or -1 if the compressed data does not fit into the chunk buffer
+	 */
+	private int deflate( final byte[] data, final int offset, final int length ) {
+		if ( deflater == null )
+			deflater = new Deflater();
+		else
+			deflater.reset();
+
+		deflater.setInput( data, offset, length );
+		deflater.finish();
+		final int compressedLength = deflater.deflate( chunkBuffer );
+		return deflater.finished() ? compressedLength : -1;
+	}
+
+	/**
+	 * Compresses a chunk with PKWARE implode into the chunk buffer.<br>
+	 * Uses greedy matching with hash chains of 3 byte prefixes.
+	 * @param data   array holding the chunk
+	 * @param offset offset of the chunk
+	 * @param length length of the chunk
+	 * @return the compressed length; or -1 if the compressed data does not fit into the chunk buffer
+	 */
+	private int implode( final byte[] data, final int offset, final int length ) {
+		chunkBuffer[ 0 ] = 0;         // Binary literals
+		chunkBuffer[ 1 ] = DICT_BITS;
+		outputPos = 2;
+		bitBuffer = 0;
+		bitsCount = 0;
+		Arrays.fill( hashHeads, 0 );
+
+		final int end = offset + length;
+		int pos = offset;
+		while ( pos < end ) {
+			if ( outputPos > chunkBuffer.length - 8 )
+				return -1;
+
+			int bestLength   = 0;
+			int bestDistance = 0;
+			if ( pos + MIN_MATCH <= end ) {
+				final int maxLength = Math.min( MAX_MATCH, end - pos );
+				int candidate = hashHeads[ hash( data, pos ) ] - 1 + offset;
+				for ( int chain = 0; candidate >= offset && pos - candidate <= DICT_SIZE && chain < MAX_CHAIN; chain++ ) {
+					if ( data[ candidate + bestLength ] == data[ pos + bestLength ] ) {
+						int matchLength = 0;
+						while ( matchLength < maxLength && data[ candidate + matchLength ] == data[ pos + matchLength ] )
+							matchLength++;
+						if ( matchLength > bestLength ) {
+							bestLength   = matchLength;
+							bestDistance = pos - candidate;
+							if ( matchLength == maxLength )
+								break;
+						}
+					}
+					candidate = hashChains[ candidate - offset ] - 1 + offset;
+				}
+			}
+
+			if ( bestLength >= MIN_MATCH ) {
+				writeMatch( bestLength, bestDistance );
+				for ( final int matchEnd = pos + bestLength; pos < matchEnd; pos++ )
+					insertHash( data, pos, offset, end );
+			}
+			else {
+				writeBits( 0, 1 );
+				writeBits( data[ pos ] & 0xff, 8 );
+				insertHash( data, pos, offset, end );
+				pos++;
+			}
+		}
+
+		// End of stream: length code 15 with all extra bits set
+		writeBits( 1, 1 );
+		writeBits( LENGTH_CODES[ 15 ], LENGTH_CODE_BITS[ 15 ] );
+		writeBits( 0xff, 8 );
+		if ( bitsCount > 0 )
+			chunkBuffer[ outputPos++ ] = (byte) bitBuffer;
+
+		return outputPos;
+	}
+
+	/**
+	 * Writes a match.
+	 * @param length   length of the match
+	 * @param distance distance of the match
+	 */
+	private void writeMatch( final int length, final int distance ) {
+		final int value = length - 2;
+		int lengthCode = LENGTH_BASES.length - 1;
+		while ( LENGTH_BASES[ lengthCode ] > value )
+			lengthCode--;
+
+		writeBits( 1, 1 );
+		writeBits( LENGTH_CODES[ lengthCode ], LENGTH_CODE_BITS[ lengthCode ] );
+		writeBits( value - LENGTH_BASES[ lengthCode ], LENGTH_EXTRA_BITS[ lengthCode ] );
+
+		final int distanceBits = length == 2 ? 2 : DICT_BITS;
+		final int distanceCode = ( distance - 1 ) >> distanceBits;
+		writeBits( DISTANCE_CODES[ distanceCode ], DISTANCE_CODE_BITS[ distanceCode ] );
+		writeBits( ( distance - 1 ) & ( ( 1 << distanceBits ) - 1 ), distanceBits );
+	}
+
+	/**
+	 * Writes bits to the chunk buffer, LSB first.
+	 * @param value value whose low bits to write
+	 * @param count number of bits to write
+	 */
+	private void writeBits( final int value, final int count ) {
+		bitBuffer |= value << bitsCount;
+		bitsCount += count;
+		while ( bitsCount >= 8 ) {
+			chunkBuffer[ outputPos++ ] = (byte) bitBuffer;
+			bitBuffer >>>= 8;
+			bitsCount -= 8;
+		}
+	}
+
+	/**
+	 * Inserts a position into the hash chains.
+	 * @param data   data of the chunk
+	 * @param pos    position to insert
+	 * @param offset offset of the chunk
+	 * @param end    end of the chunk
+	 */
+	private void insertHash( final byte[] data, final int pos, final int offset, final int end ) {
+		if ( pos + MIN_MATCH > end )
+			return;
+		final int hash = hash( data, pos );
+		hashChains[ pos - offset ] = hashHeads[ hash ];
+		hashHeads[ hash ] = pos - offset + 1;
+	}
+
+	/**
+	 * Hashes the 3 byte prefix at a position.
+	 * @param data data of the chunk
+	 * @param pos  position of the prefix
+	 * @return the hash of the prefix
+	 */
+	private static int hash( final byte[] data, final int pos ) {
+		final int prefix = ( data[ pos ] & 0xff ) | ( data[ pos + 1 ] & 0xff ) << 8 | ( data[ pos + 2 ] & 0xff ) << 16;
+		return ( prefix * 0x9e3779b1 ) >>> ( 32 - HASH_BITS );
+	}
+
+	/**
+	 * Writes an int to the output in little endian byte order.
+	 * @param value value to be written
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void writeInt( final int value ) throws IOException {
+		intBuffer[ 0 ] = (byte) value;
+		intBuffer[ 1 ] = (byte) ( value >> 8 );
+		intBuffer[ 2 ] = (byte) ( value >> 16 );
+		intBuffer[ 3 ] = (byte) ( value >> 24 );
+		output.write( intBuffer );
+	}
+
+}
@@ -1,10 +1,15 @@
 package control;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Inflater;
 
 /**
  * A class to unpack a binary compressed replay file.<br>
@@ -18,6 +23,12 @@ public class BinReplayUnpacker {
 	/** Size of int. */
 	private static final int INT_SIZE = 4;
 	
+	/** First byte of zlib compressed chunks (deflate with 32K window). */
+	private static final byte ZLIB_HEADER = (byte) 0x78;
+	
+	/** Pool of inflaters to avoid creating (and ending) an inflater with its native resources for each replay. */
+	private static final BlockingQueue< Inflater > INFLATER_POOL = new ArrayBlockingQueue< Inflater >( 64 );
+	
 	private static final byte[] OFF_507120 = { // length = 0x40
 			(byte) 0x02, (byte) 0x04, (byte) 0x04, (byte) 0x05, (byte) 0x05, (byte) 0x05, (byte) 0x05, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06,
 			(byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x06, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07, (byte) 0x07,
@@ -50,8 +61,8 @@ public class BinReplayUnpacker {
 	};
 	
 	
-	/** Input stream of the replay file. */
-	private final FileInputStream input;
+	/** Input stream of the replay. */
+	private InputStream  input;
 	
 	/** Buffer to be used to read int numbers.          */
 	private final byte[] intBuffer;
@@ -59,6 +70,26 @@ public class BinReplayUnpacker {
 	private final byte[] buffer;
 	/** Esi struct used in several section unpacking.   */
 	private final Esi    esi = new Esi();
+	/** Encoded chunk descriptor used in several section unpacking. */
+	private final ReplayEnc rep = new ReplayEnc();
+	/** Buffer holding the compressed data of a chunk.  */
+	private byte[]       chunkBuffer = new byte[ 0x2000 ];
+	
+	/** Unpacked data of the current section.           */
+	private byte[]       sectionData;
+	/** Number of unpacked bytes of the current section. */
+	private int          sectionUnpackedSize;
+	/** Inflater of zlib compressed chunks, taken from the pool when first needed. */
+	private Inflater     inflater;
+	/** Number of zlib compressed chunks unpacked.      */
+	private int          zlibChunksCount;
+	/** Number of bytes read or skipped from the input. */
+	private long         inputBytesCount;
+	
+	/** Number of chunks of the current section.        */
+	private int          sectionChunksCount;
+	/** Index of the next chunk of the current section. */
+	private int          sectionChunkIndex;
 	
 	/**
 	 * Creates a new BinReplayUnpacker.
@@ -75,6 +106,72 @@ public class BinReplayUnpacker {
 		buffer    = new byte[ 0x2000 ];
 	}
 	
+	/**
+	 * Creates a new BinReplayUnpacker to unpack a replay held in memory.
+	 * @param replayData data of the replay file
+	 * @throws Exception if it is not a replay file (based on its size)
+	 */
+	public BinReplayUnpacker( final byte[] replayData ) throws Exception {
+		this( replayData, 0, replayData.length );
+	}
+	
+	/**
+	 * Creates a new BinReplayUnpacker to unpack a replay held in memory.
+	 * @param replayData data containing the replay file
+	 * @param offset     offset of the replay file in the data
+	 * @param length     length of the replay file
+	 * @throws Exception if it is not a replay file (based on its size)
+	 */
+	public BinReplayUnpacker( final byte[] replayData, final int offset, final int length ) throws Exception {
+		if ( length < BinRepParser.HEADER_SIZE + 8 ) // Not enough data for id, header and commands length
+			throw new Exception( "Not a replay file!" );
+		
+		input = new ByteArrayInputStream( replayData, offset, length );
+		
+		intBuffer = new byte[ INT_SIZE ];
+		buffer    = new byte[ 0x2000 ];
+	}
+	
+	/**
+	 * Creates a new BinReplayUnpacker to unpack a replay read from a stream.<br>
+	 * The stream is closed by {@link #close()}. Unbuffered streams are wrapped into a buffered stream.
+	 * @param input input stream of the replay
+	 */
+	public BinReplayUnpacker( final InputStream input ) {
+		this.input = input instanceof BufferedInputStream || input instanceof ByteArrayInputStream ? input : new BufferedInputStream( input, 0x4000 );
+		
+		intBuffer = new byte[ INT_SIZE ];
+		buffer    = new byte[ 0x2000 ];
+	}
+	
+	/**
+	 * Resets the unpacker to unpack another replay held in memory.<br>
+	 * The buffers of the unpacker are kept, so unpacking many replays in a row with one unpacker does not allocate them for each replay.
+	 * The input stream of the previous replay is closed.
+	 * @param replayData data containing the replay file
+	 * @param offset     offset of the replay file in the data
+	 * @param length     length of the replay file
+	 * @throws Exception if it is not a replay file (based on its size)
+	 */
+	public synchronized void reset( final byte[] replayData, final int offset, final int length ) throws Exception {
+		if ( length < BinRepParser.HEADER_SIZE + 8 ) // Not enough data for id, header and commands length
+			throw new Exception( "Not a replay file!" );
+		
+		if ( input != null )
+			try {
+				input.close();
+			} catch ( final IOException ie ) {
+			}
+		input = new ByteArrayInputStream( replayData, offset, length );
+		
+		sectionData         = null;
+		sectionUnpackedSize = 0;
+		sectionChunksCount  = 0;
+		sectionChunkIndex   = 0;
+		zlibChunksCount     = 0;
+		inputBytesCount     = 0;
+	}
+	
 	private static class ReplayEnc {
 		byte[] src;
 		int    m04;
@@ -115,50 +212,188 @@ public class BinReplayUnpacker {
 	 * @throws Exception thrown if size is zero, if I/O error occurs or there's not enough data
 	 */
 	public synchronized byte[] unpackSection( final int size ) throws Exception {
-		if ( size == 0 ) // There might be a 0 length player commands  section (no actions)
-			return new byte[ 0 ];
-		
-		/*final int check = */readIntFromStream();
-		final int count = readIntFromStream();
+		final byte[] result = beginSection( size );
+		while ( unpackNextChunk() )
+			;
+		return result;
+	}
+	
+	/**
+	 * Begins unpacking a section chunk by chunk.<br>
+	 * The returned array is filled by subsequent {@link #unpackNextChunk()} calls,
+	 * {@link #getSectionUnpackedSize()} tells how many bytes are available.
+	 * This allows to process the beginning of a section before (or instead of) unpacking the rest of it.
+	 * @param size size of the section
+	 * @return the array which will hold the unpacked data of the section
+	 * @throws Exception if I/O error occurs or there's not enough data
+	 */
+	public synchronized byte[] beginSection( final int size ) throws Exception {
+		sectionData         = new byte[ size ];
+		sectionUnpackedSize = 0;
+		sectionChunkIndex   = 0;
+		esi.init();
 		
-		final ReplayEnc rep = new ReplayEnc();
+		if ( size == 0 ) // There might be a 0 length player commands  section (no actions)
+			sectionChunksCount = 0;
+		else {
+			/*final int check = */readIntFromStream();
+			sectionChunksCount = readIntFromStream();
+		}
 		
-		int length, n, len = 0, m1C, m20 = 0;
-		final byte[] result = new byte[ size ];
-		int resultOffset = 0;
+		return sectionData;
+	}
+	
+	/**
+	 * Unpacks the next chunk of the section begun by {@link #beginSection(int)}.
+	 * @return true if a chunk was unpacked; false if there are no more chunks in the section
+	 * @throws Exception if I/O error occurs or there's not enough data
+	 */
+	public synchronized boolean unpackNextChunk() throws Exception {
+		if ( sectionChunkIndex >= sectionChunksCount )
+			return false;
 		
-		esi.init();
+		final int size   = sectionData.length;
+		final int length = readIntFromStream();
+		if ( length < 0 || length > buffer.length << 1 ) // Chunks hold max 0x2000 bytes of unpacked data, compressed data can't be much bigger
+			throw new Exception();
 		
-		for ( n = 0, m1C = 0; n < count; n++, m1C += buffer.length, m20 += len ) {
-			length = readIntFromStream();
-			if ( length > size - m20 )
-				throw new Exception();
-			if ( input.read( result, resultOffset, length ) != length )
-				throw new Exception();
+		if ( length == Math.min( size - sectionChunkIndex * buffer.length, buffer.length ) ) {
+			// Chunk is stored without compression
+			readFully( sectionData, sectionUnpackedSize, length );
+			sectionUnpackedSize += length;
+		}
+		else {
+			if ( chunkBuffer.length < length )
+				chunkBuffer = new byte[ length ];
+			readFully( chunkBuffer, 0, length );
 			
-			if ( length == Math.min( size - m1C, buffer.length ) )
-				continue;
+			if ( length > 1 && chunkBuffer[ 0 ] == ZLIB_HEADER ) {
+				// Chunk is compressed with zlib (1.18 and newer); PKWARE chunks start with the compression type which is 0 or 1
+				sectionUnpackedSize += inflateChunk( length, size );
+				sectionChunkIndex++;
+				return true;
+			}
 			
-			rep.src = Arrays.copyOfRange( result, resultOffset, resultOffset + length );
+			rep.src = chunkBuffer;
 			rep.m04 = 0;
 			rep.m08 = buffer;
 			rep.m0C = 0;
 			rep.m10 = length;
 			rep.m14 = buffer.length;
 			
+			final int len;
 			if ( unpackRepSection( esi, rep ) == 0 && rep.m0C <= buffer.length )
 				len = rep.m0C;
 			else
 				len = 0;
 			
-			if ( len == 0 || len > size )
+			if ( len == 0 || len > size - sectionUnpackedSize )
 				throw new Exception();
 			
-			System.arraycopy( buffer, 0, result, resultOffset, len );
-			resultOffset += len;
+			System.arraycopy( buffer, 0, sectionData, sectionUnpackedSize, len );
+			sectionUnpackedSize += len;
 		}
 		
-		return result;
+		sectionChunkIndex++;
+		return true;
+	}
+	
+	/**
+	 * Inflates a zlib compressed chunk into the section data.
+	 * @param length length of the compressed chunk in {@link #chunkBuffer}
+	 * @param size   size of the section
+	 * @return the number of unpacked bytes
+	 * @throws Exception if the chunk is corrupt or it does not fit into the section
+	 */
+	private int inflateChunk( final int length, final int size ) throws Exception {
+		if ( inflater == null ) {
+			inflater = INFLATER_POOL.poll();
+			if ( inflater == null )
+				inflater = new Inflater();
+		}
+		else
+			inflater.reset();
+		
+		inflater.setInput( chunkBuffer, 0, length );
+		final int len = inflater.inflate( sectionData, sectionUnpackedSize, size - sectionUnpackedSize );
+		if ( len == 0 || !inflater.finished() )
+			throw new Exception( "Corrupt zlib chunk!" );
+		
+		zlibChunksCount++;
+		return len;
+	}
+	
+	/**
+	 * Returns the number of zlib compressed chunks unpacked so far.<br>
+	 * Replays of version 1.18 and newer use zlib compression, older replays use PKWARE implode.
+	 * @return the number of zlib compressed chunks unpacked so far
+	 */
+	public synchronized int getZlibChunksCount() {
+		return zlibChunksCount;
+	}
+	
+	/**
+	 * Returns the number of bytes read or skipped from the input so far (the compressed size of the processed sections).
+	 * @return the number of bytes read or skipped from the input so far
+	 */
+	public synchronized long getInputBytesCount() {
+		return inputBytesCount;
+	}
+	
+	/**
+	 * Skips bytes which are not part of a section.
+	 * @param count number of bytes to skip
+	 * @throws Exception if I/O error occurs or there's not enough data
+	 */
+	public synchronized void skipRawBytes( final int count ) throws Exception {
+		skipFully( count );
+	}
+	
+	/**
+	 * Skips the remaining chunks of the section begun by {@link #beginSection(int)} without unpacking them.
+	 * @throws Exception if I/O error occurs or there's not enough data
+	 */
+	public synchronized void skipRemainingChunks() throws Exception {
+		for ( ; sectionChunkIndex < sectionChunksCount; sectionChunkIndex++ ) {
+			final int length = readIntFromStream();
+			if ( length < 0 )
+				throw new Exception();
+			skipFully( length );
+		}
+	}
+	
+	/**
+	 * Skips a whole section without unpacking it.
+	 * @param size size of the section
+	 * @throws Exception if I/O error occurs or there's not enough data
+	 */
+	public synchronized void skipSection( final int size ) throws Exception {
+		if ( size == 0 )
+			return;
+		/*final int check = */readIntFromStream();
+		final int count = readIntFromStream();
+		for ( int n = 0; n < count; n++ ) {
+			final int length = readIntFromStream();
+			if ( length < 0 )
+				throw new Exception();
+			skipFully( length );
+		}
+	}
+	
+	/**
+	 * Returns the number of unpacked bytes of the section begun by {@link #beginSection(int)}.
+	 * @return the number of unpacked bytes of the section
+	 */
+	public synchronized int getSectionUnpackedSize() {
+		return sectionUnpackedSize;
+	}
+	
+	/**
+	 * Tells if the section begun by {@link #beginSection(int)} has more chunks to unpack.
+	 * @return true if the section has more chunks to unpack
+	 */
+	public synchronized boolean hasMoreChunks() {
+		return sectionChunkIndex < sectionChunksCount;
 	}
 	
 	private int unpackRepSection( final Esi esi, final ReplayEnc rep ) {
@@ -349,20 +584,66 @@ public class BinReplayUnpacker {
 	}
 	
 	/**
-	 * Reads an int from the file.
-	 * @return the int read from the file
+	 * Reads an int from the input.
+	 * @return the int read from the input
 	 * @throws Exception if I/O error occurs or there's not enough data
 	 */
 	private int readIntFromStream() throws Exception {
-		if ( input.read( intBuffer ) != INT_SIZE )
-			throw new Exception();
-		return Integer.reverseBytes( ByteBuffer.wrap( intBuffer ).getInt() );
+		readFully( intBuffer, 0, INT_SIZE );
+		return ( intBuffer[ 0 ] & 0xff ) | ( intBuffer[ 1 ] & 0xff ) << 8 | ( intBuffer[ 2 ] & 0xff ) << 16 | ( intBuffer[ 3 ] & 0xff ) << 24;
 	}
 	
 	/**
-	 * Closes the replay file input stream if it's not null.
+	 * Reads the specified amount of bytes from the input.
+	 * @param data   array to read into
+	 * @param offset offset in the array
+	 * @param length number of bytes to read
+	 * @throws Exception if I/O error occurs or there's not enough data
 	 */
-	public void close() {
+	private void readFully( final byte[] data, int offset, int length ) throws Exception {
+		while ( length > 0 ) {
+			final int count = input.read( data, offset, length );
+			if ( count < 0 )
+				throw new Exception();
+			offset += count;
+			length -= count;
+			inputBytesCount += count;
+		}
+	}
+	
+	/**
+	 * Skips the specified amount of bytes of the input.
+	 * @param length number of bytes to skip
+	 * @throws Exception if I/O error occurs or there's not enough data
+	 */
+	private void skipFully( long length ) throws Exception {
+		while ( length > 0 ) {
+			final long count = input.skip( length );
+			if ( count <= 0 ) {
+				// skip() may refuse to skip at the end of the stream, read to tell end of stream from a lazy skip
+				if ( input.read() < 0 )
+					throw new Exception();
+				length--;
+				inputBytesCount++;
+			}
+			else {
+				length -= count;
+				inputBytesCount += count;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the replay input stream if it's not null, and returns the inflater to the pool.
+	 */
+	public synchronized void close() {
+		if ( inflater != null ) {
+			inflater.reset();
+			if ( !INFLATER_POOL.offer( inflater ) )
+				inflater.end();
+			inflater = null;
+		}
+		
 		if ( input != null )
 			try {
 				input.close();
@@ -0,0 +1,322 @@
+package control;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import model.BuildOrder;
+import model.ReplayHeader;
+
+/**
+ * Extracts the build orders of the players from replays.<br>
+ * Walks the build (0x0c), train (0x1f), hatch (0x23), morph (0x35), research (0x30) and upgrade (0x32) commands,
+ * and nets out the cancelled items: cancel (0x18) removes the last build or morph, cancel hatch (0x19) the last hatch,
+ * cancel train (0x20) the last train, cancel research (0x31) the last research and cancel upgrade (0x33) the last upgrade.
+ *
+ * <p>Extraction can be cut off at a frame and/or at an estimated supply count. The commands section is unpacked and decoded
+ * chunk by chunk, and unpacking stops when the cut-offs are reached, so only the opening of the game is processed.<br>
+ * The supply estimate starts at 4 workers and adds the supply cost of trained, hatched and morphed units;
+ * drones morphing into buildings are subtracted. Deaths are not known from the commands, so the estimate is only reliable for openings.</p>
+ *
+ * <p>Buffers are reused between extractions: an extractor is cheap to use for batches of replays,
+ * but it is not thread-safe, use one instance per thread.</p>
+ */
+public class BuildOrderExtractor {
+
+	/** Value of the cut-offs to disable them. */
+	public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+	/** Supply count of the players at the beginning of the game (4 workers). */
+	public static final int INITIAL_SUPPLY = 4;
+
+	/** Build command type (order) of drones morphing into buildings. */
+	private static final byte BUILD_TYPE_DRONE_BUILD = (byte) 0x19;
+	/** Build command type (order) of landing terran buildings.      */
+	private static final byte BUILD_TYPE_LAND        = (byte) 0x47;
+
+	/** Supply costs of the units (whole supply; a hatched pair of zerglings or scourges counts 1), indexed by unit ID. */
+	private static final byte[] UNIT_SUPPLIES = new byte[ 256 ];
+	static {
+		// Terran
+		UNIT_SUPPLIES[ 0x00 ] = 1; // Marine
+		UNIT_SUPPLIES[ 0x01 ] = 1; // Ghost
+		UNIT_SUPPLIES[ 0x02 ] = 2; // Vulture
+		UNIT_SUPPLIES[ 0x03 ] = 2; // Goliath
+		UNIT_SUPPLIES[ 0x05 ] = 2; // Siege Tank
+		UNIT_SUPPLIES[ 0x07 ] = 1; // SCV
+		UNIT_SUPPLIES[ 0x08 ] = 2; // Wraith
+		UNIT_SUPPLIES[ 0x09 ] = 2; // Science Vessel
+		UNIT_SUPPLIES[ 0x0b ] = 2; // Dropship
+		UNIT_SUPPLIES[ 0x0c ] = 6; // Battlecruiser
+		UNIT_SUPPLIES[ 0x20 ] = 1; // Firebat
+		UNIT_SUPPLIES[ 0x22 ] = 1; // Medic
+		UNIT_SUPPLIES[ 0x3a ] = 3; // Valkyrie
+		// Zerg
+		UNIT_SUPPLIES[ 0x25 ] = 1; // Zergling (pair)
+		UNIT_SUPPLIES[ 0x26 ] = 1; // Hydralisk
+		UNIT_SUPPLIES[ 0x27 ] = 4; // Ultralisk
+		UNIT_SUPPLIES[ 0x29 ] = 1; // Drone
+		UNIT_SUPPLIES[ 0x2b ] = 2; // Mutalisk
+		UNIT_SUPPLIES[ 0x2d ] = 2; // Queen
+		UNIT_SUPPLIES[ 0x2e ] = 2; // Defiler
+		UNIT_SUPPLIES[ 0x2f ] = 1; // Scourge (pair)
+		// Protoss
+		UNIT_SUPPLIES[ 0x3c ] = 2; // Corsair
+		UNIT_SUPPLIES[ 0x3d ] = 2; // Dark Templar
+		UNIT_SUPPLIES[ 0x40 ] = 1; // Probe
+		UNIT_SUPPLIES[ 0x41 ] = 2; // Zealot
+		UNIT_SUPPLIES[ 0x42 ] = 2; // Dragoon
+		UNIT_SUPPLIES[ 0x43 ] = 2; // High Templar
+		UNIT_SUPPLIES[ 0x45 ] = 2; // Shuttle
+		UNIT_SUPPLIES[ 0x46 ] = 3; // Scout
+		UNIT_SUPPLIES[ 0x47 ] = 4; // Arbiter
+		UNIT_SUPPLIES[ 0x48 ] = 6; // Carrier
+		UNIT_SUPPLIES[ 0x53 ] = 4; // Reaver
+		UNIT_SUPPLIES[ 0x54 ] = 1; // Observer
+	}
+
+	/** Unit ID of the Lurker, morphed from a Hydralisk by the hatch (unit morph) command: +1 supply over the Hydralisk. */
+	private static final short UNIT_ID_LURKER = 0x67;
+
+	/**
+	 * Build order of a player being extracted.
+	 */
+	private static class PlayerBuildOrderBuilder {
+		/** Index of the player in the header.            */
+		int     playerIndex;
+		/** Estimated supply count.                       */
+		int     supply;
+		/** Tells if the supply cut-off has been reached. */
+		boolean done;
+		/** Number of items.                              */
+		int     size;
+		/** Frames of the items.                          */
+		int[]   frames       = new int  [ 64 ];
+		/** Kinds of the items.                           */
+		byte[]  kinds        = new byte [ 64 ];
+		/** IDs of the items.                             */
+		short[] ids          = new short[ 64 ];
+		/** Supply counts when the items were ordered.    */
+		short[] supplies     = new short[ 64 ];
+		/** Supply changes caused by the items.           */
+		byte[]  supplyDeltas = new byte [ 64 ];
+
+		/**
+		 * Adds an item.
+		 * @param frame       frame of the item
+		 * @param kind        kind of the item
+		 * @param id          ID of the item
+		 * @param supplyDelta supply change caused by the item
+		 */
+		void add( final int frame, final byte kind, final short id, final int supplyDelta ) {
+			if ( size == frames.length ) {
+				final int newLength = size << 1;
+				frames       = Arrays.copyOf( frames      , newLength );
+				kinds        = Arrays.copyOf( kinds       , newLength );
+				ids          = Arrays.copyOf( ids         , newLength );
+				supplies     = Arrays.copyOf( supplies    , newLength );
+				supplyDeltas = Arrays.copyOf( supplyDeltas, newLength );
+			}
+			frames      [ size ] = frame;
+			kinds       [ size ] = kind;
+			ids         [ size ] = id;
+			supplies    [ size ] = (short) supply;
+			supplyDeltas[ size ] = (byte) supplyDelta;
+			size++;
+			supply += supplyDelta;
+		}
+
+		/**
+		 * Removes the last item of one of the specified kinds.
+		 * @param kind1 kind of the item to remove
+		 * @param kind2 other kind of the item to remove (can be equal to <code>kind1</code>)
+		 */
+		void cancel( final byte kind1, final byte kind2 ) {
+			for ( int i = size - 1; i >= 0; i-- )
+				if ( kinds[ i ] == kind1 || kinds[ i ] == kind2 ) {
+					supply -= supplyDeltas[ i ];
+					size--;
+					System.arraycopy( frames      , i + 1, frames      , i, size - i );
+					System.arraycopy( kinds       , i + 1, kinds       , i, size - i );
+					System.arraycopy( ids         , i + 1, ids         , i, size - i );
+					System.arraycopy( supplies    , i + 1, supplies    , i, size - i );
+					System.arraycopy( supplyDeltas, i + 1, supplyDeltas, i, size - i );
+					return;
+				}
+		}
+	}
+
+	/** Frame cut-off: commands after this frame are not processed.                  */
+	public final int maxFrame;
+	/** Supply cut-off: items ordered at an estimated supply above this are not included. */
+	public final int maxSupply;
+
+	/** Decoder of the commands section.                              */
+	private final CommandDecoder            commandDecoder   = new CommandDecoder();
+	/** Builders of the players, indexed by player index.             */
+	private final PlayerBuildOrderBuilder[] builders         = new PlayerBuildOrderBuilder[ 12 ];
+	/** Builders of the players, indexed by player ID (null if not a player). */
+	private final PlayerBuildOrderBuilder[] playerIdBuilders = new PlayerBuildOrderBuilder[ 12 ];
+	/** Number of players whose build order is being extracted.       */
+	private int                             playersCount;
+	/** Number of players who have not reached the supply cut-off.    */
+	private int                             activePlayersCount;
+
+	/** Command handler building the build orders. */
+	private final CommandDecoder.Handler handler = new CommandDecoder.Handler() {
+		public boolean command( final CommandDecoder.Command command ) {
+			final PlayerBuildOrderBuilder builder = command.playerId < playerIdBuilders.length ? playerIdBuilders[ command.playerId ] : null;
+			if ( builder == null || builder.done )
+				return true;
+
+			switch ( command.blockId ) {
+				case (byte) 0x0c : // Build
+					if ( command.type != BUILD_TYPE_LAND )
+						builder.add( command.frame, BuildOrder.KIND_BUILD, command.unitId, command.type == BUILD_TYPE_DRONE_BUILD ? -1 : 0 );
+					break;
+				case (byte) 0x1f : // Train
+					builder.add( command.frame, BuildOrder.KIND_TRAIN, command.unitId, UNIT_SUPPLIES[ command.unitId & 0xff ] );
+					break;
+				case (byte) 0x23 : // Hatch (unit morph)
+					builder.add( command.frame, BuildOrder.KIND_HATCH, command.unitId, command.unitId == UNIT_ID_LURKER ? 1 : UNIT_SUPPLIES[ command.unitId & 0xff ] );
+					break;
+				case (byte) 0x35 : // Morph (building morph, no supply change)
+					builder.add( command.frame, BuildOrder.KIND_MORPH, command.unitId, 0 );
+					break;
+				case (byte) 0x30 : // Research
+					builder.add( command.frame, BuildOrder.KIND_RESEARCH, (short) ( command.type & 0xff ), 0 );
+					break;
+				case (byte) 0x32 : // Upgrade
+					builder.add( command.frame, BuildOrder.KIND_UPGRADE, (short) ( command.type & 0xff ), 0 );
+					break;
+				case (byte) 0x18 : // Cancel
+					builder.cancel( BuildOrder.KIND_BUILD, BuildOrder.KIND_MORPH );
+					break;
+				case (byte) 0x19 : // Cancel hatch
+					builder.cancel( BuildOrder.KIND_HATCH, BuildOrder.KIND_HATCH );
+					break;
+				case (byte) 0x20 : // Cancel train
+					builder.cancel( BuildOrder.KIND_TRAIN, BuildOrder.KIND_TRAIN );
+					break;
+				case (byte) 0x31 : // Cancel research
+					builder.cancel( BuildOrder.KIND_RESEARCH, BuildOrder.KIND_RESEARCH );
+					break;
+				case (byte) 0x33 : // Cancel upgrade
+					builder.cancel( BuildOrder.KIND_UPGRADE, BuildOrder.KIND_UPGRADE );
+					break;
+				default :
+					return true;
+			}
+
+			if ( builder.supply > maxSupply ) {
+				builder.done = true;
+				if ( --activePlayersCount == 0 )
+					return false;
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Creates a new BuildOrderExtractor.
+	 * @param maxFrame  frame cut-off: commands after this frame are not processed; {@link #NO_LIMIT} to disable
+	 * @param maxSupply supply cut-off: items ordered at an estimated supply above this are not included; {@link #NO_LIMIT} to disable
+	 */
+	public BuildOrderExtractor( final int maxFrame, final int maxSupply ) {
+		this.maxFrame  = maxFrame;
+		this.maxSupply = maxSupply;
+
+		for ( int i = 0; i < builders.length; i++ )
+			builders[ i ] = new PlayerBuildOrderBuilder();
+	}
+
+	/**
+	 * Extracts the build orders from a replay file.<br>
+	 * Only the header and the beginning of the commands section are unpacked.
+	 * @param replayFile replay file to extract from
+	 * @return the build orders of the players in the order of the header; or <code>null</code> if the replay cannot be parsed
+	 */
+	public BuildOrder[] extract( final File replayFile ) {
+		BinReplayUnpacker unpacker = null;
+		try {
+			unpacker = new BinReplayUnpacker( replayFile );
+
+			// Replay ID section
+			if ( BinRepParser.readReplayFormat( unpacker ) < 0 )
+				return null;  // Not a replay file
+
+			final ReplayHeader replayHeader = BinRepParser.parseHeader( unpacker.unpackSection( BinRepParser.HEADER_SIZE ) );
+
+			final int    playerCommandsLength = Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() );
+			final byte[] commandsData         = unpacker.beginSection( playerCommandsLength );
+
+			begin( replayHeader );
+			boolean hasMoreChunks = true;
+			while ( hasMoreChunks && !commandDecoder.isFinished() ) {
+				unpacker.unpackNextChunk();
+				hasMoreChunks = unpacker.hasMoreChunks();
+				commandDecoder.decode( commandsData, unpacker.getSectionUnpackedSize(), !hasMoreChunks, maxFrame, handler );
+			}
+
+			return createBuildOrders( replayHeader );
+		}
+		catch ( final Exception e ) {
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			if ( unpacker != null )
+				unpacker.close();
+		}
+	}
+
+	/**
+	 * Extracts the build orders from an unpacked commands section.
+	 * @param replayHeader header of the replay
+	 * @param commandsData unpacked data of the commands section
+	 * @return the build orders of the players in the order of the header
+	 */
+	public BuildOrder[] extract( final ReplayHeader replayHeader, final byte[] commandsData ) {
+		begin( replayHeader );
+		commandDecoder.decode( commandsData, commandsData.length, true, maxFrame, handler );
+		return createBuildOrders( replayHeader );
+	}
+
+	/**
+	 * Resets the decoder and the builders for the players of a replay.
+	 * @param replayHeader header of the replay
+	 */
+	private void begin( final ReplayHeader replayHeader ) {
+		commandDecoder.reset();
+		Arrays.fill( playerIdBuilders, null );
+
+		playersCount = 0;
+		for ( int i = 0; i < replayHeader.playerNames.length; i++ )
+			if ( replayHeader.playerNames[ i ] != null && replayHeader.playerIds[ i ] < playerIdBuilders.length ) { // Computers are listed with playerId values of 0xff
+				final PlayerBuildOrderBuilder builder = builders[ playersCount++ ];
+				builder.playerIndex = i;
+				builder.supply      = INITIAL_SUPPLY;
+				builder.done        = false;
+				builder.size        = 0;
+				playerIdBuilders[ replayHeader.playerIds[ i ] ] = builder;
+			}
+		activePlayersCount = playersCount;
+	}
+
+	/**
+	 * Creates the build order objects from the builders.
+	 * @param replayHeader header of the replay
+	 * @return the build orders of the players in the order of the header
+	 */
+	private BuildOrder[] createBuildOrders( final ReplayHeader replayHeader ) {
+		final BuildOrder[] buildOrders = new BuildOrder[ playersCount ];
+		for ( int i = 0; i < playersCount; i++ ) {
+			final PlayerBuildOrderBuilder builder = builders[ i ];
+			buildOrders[ i ] = new BuildOrder( replayHeader.playerNames[ builder.playerIndex ], replayHeader.playerRaces[ builder.playerIndex ], builder.size,
+					Arrays.copyOf( builder.frames, builder.size ), Arrays.copyOf( builder.kinds, builder.size ),
+					Arrays.copyOf( builder.ids, builder.size ), Arrays.copyOf( builder.supplies, builder.size ) );
+		}
+		return buildOrders;
+	}
+
+}
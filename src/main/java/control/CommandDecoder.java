@@ -0,0 +1,407 @@
+package control;
+
+/**
+ * Low level decoder of the player commands section of binary replays.<br>
+ * Commands are decoded into one reusable {@link Command} object which is passed to a {@link Handler},
+ * no objects are created per command.
+ *
+ * <p>The decoder can work on a partially available commands section: only frame blocks which are completely available
+ * are decoded, and decoding can be continued when more data is available (see {@link BinReplayUnpacker#unpackNextChunk()}).
+ * Decoding can be limited to a frame, which allows to decode only the beginning of a game.</p>
+ *
+ * <p>Corrupt data is tolerated like the original parser did: a command crossing the end of its frame block ends the decoding
+ * of the block (the rest of the block is skipped), and a truncated last frame block is decoded as far as it is available.</p>
+ *
+ * <p>The commands introduced in 1.21 (0x60 - 0x65) are decoded too, and reported with the block ID of their legacy equivalent.</p>
+ *
+ * <p>A decoder instance is not thread-safe, but it can be reused after {@link #reset()}.</p>
+ */
+public class CommandDecoder {
+
+	/**
+	 * Handler of decoded commands.
+	 */
+	public interface Handler {
+		/**
+		 * Called for each decoded command.<br>
+		 * The command object is reused, it must not be stored.
+		 * @param command the decoded command
+		 * @return true to continue decoding; false to stop
+		 */
+		boolean command( Command command );
+	}
+
+	/**
+	 * A decoded command. Which fields are valid depends on the {@link #blockId}.
+	 */
+	public static class Command {
+		/** Frame of the command.                                           */
+		public int     frame;
+		/** ID of the player who gave the command.                          */
+		public int     playerId;
+		/** Block ID (command type); the 1.21 commands are reported with the block ID of their legacy equivalent. */
+		public byte    blockId;
+		/** Block ID as it appears in the replay.                           */
+		public byte    encodedBlockId;
+		/** Tells if the command type is known; the rest of the frame block is skipped after an unknown command. */
+		public boolean known;
+		/**
+		 * Type byte of the command: build type (0x0c), game speed (0x0f), hotkey type (0x13), order type (0x15),
+		 * queued flag (0x1a, 0x1e, 0x21, 0x22, 0x25, 0x26, 0x28, 0x2b, 0x2c, 0x2d), research ID (0x30), upgrade ID (0x32), leave reason (0x57).
+		 */
+		public byte    type;
+		/** Second type byte of the command: hotkey group (0x13), queued flag (0x15). */
+		public byte    type2;
+		/** Unit ID (unit type) of the command: 0x0c, 0x1f, 0x23, 0x35.     */
+		public short   unitId;
+		/** X coordinate of the target: 0x0c, 0x14, 0x15, 0x58.             */
+		public short   posX;
+		/** Y coordinate of the target: 0x0c, 0x14, 0x15, 0x58.             */
+		public short   posY;
+		/** Target unit tag (0xffff if targeting a point): 0x14, 0x15.      */
+		public short   targetTag;
+		/** Number of units in a selection command (0x09, 0x0a, 0x0b).      */
+		public int     unitsCount;
+		/** Unit tags of a selection command.                               */
+		public final short[] unitTags = new short[ 256 ];
+		/** Raw data of the command: 0x0d (2 bytes), 0x0e, 0x12, 0x2f (4 bytes), 0x20, 0x29 (2 bytes), 0x5c (player index and 80 bytes of message). */
+		public final byte[]  data     = new byte[ 81 ];
+		/** Number of valid bytes in {@link #data}.                         */
+		public int     dataLength;
+	}
+
+	/** Length of the header of a frame block: frame (int) and length of the commands (byte). */
+	private static final int FRAME_BLOCK_HEADER_LENGTH = 5;
+
+	/** The reused command object. */
+	private final Command command = new Command();
+
+	/** Position of the next frame block to decode. */
+	private int     position;
+	/** Tells if decoding is finished.              */
+	private boolean finished;
+	/** Number of unknown commands.                 */
+	private int     unknownCommandsCount;
+	/** Number of bytes skipped after unknown commands. */
+	private int     skippedBytesCount;
+
+	/**
+	 * Resets the decoder so it can be used to decode another commands section.
+	 */
+	public void reset() {
+		position             = 0;
+		finished             = false;
+		unknownCommandsCount = 0;
+		skippedBytesCount    = 0;
+	}
+
+	/**
+	 * Tells if decoding is finished: the end of the data, the frame limit was reached or the handler stopped decoding.
+	 * @return true if decoding is finished
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns the position of the next frame block to decode.
+	 * @return the position of the next frame block to decode
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the number of unknown commands decoded since the last reset.
+	 * @return the number of unknown commands
+	 */
+	public int getUnknownCommandsCount() {
+		return unknownCommandsCount;
+	}
+
+	/**
+	 * Returns the number of bytes skipped after unknown commands since the last reset.
+	 * @return the number of bytes skipped after unknown commands
+	 */
+	public int getSkippedBytesCount() {
+		return skippedBytesCount;
+	}
+
+	/**
+	 * Decodes the available complete frame blocks.
+	 * @param data     data of the commands section
+	 * @param limit    number of available bytes in <code>data</code>
+	 * @param complete tells if <code>limit</code> is the end of the commands section (no more data will be available)
+	 * @param maxFrame frame limit: decoding finishes at the first frame block after this frame
+	 * @param handler  handler of the decoded commands
+	 */
+	public void decode( final byte[] data, final int limit, final boolean complete, final int maxFrame, final Handler handler ) {
+		final Command command = this.command;
+
+		while ( !finished ) {
+			if ( position + FRAME_BLOCK_HEADER_LENGTH > limit ) {
+				if ( complete ) {
+					// The bytes of a truncated frame block header are ignored
+					skippedBytesCount += limit - position;
+					position = limit;
+					finished = true;
+				}
+				return;
+			}
+
+			final int frame    = readInt( data, position );
+			int       blockEnd = position + FRAME_BLOCK_HEADER_LENGTH + ( data[ position + 4 ] & 0xff );
+			if ( blockEnd > limit ) {
+				if ( !complete )
+					return;
+				blockEnd = limit; // Truncated last frame block: decode what is available
+			}
+			if ( frame > maxFrame ) {
+				finished = true;
+				return;
+			}
+
+			int pos = position + FRAME_BLOCK_HEADER_LENGTH;
+			while ( pos < blockEnd ) {
+				resetCommand( command );
+				command.frame    = frame;
+				command.playerId = data[ pos ] & 0xff;
+				final int commandEnd = pos + 1 < blockEnd ? decodeCommand( data, pos + 1, blockEnd, command ) : blockEnd + 1;
+				if ( commandEnd > blockEnd ) {
+					// The command crosses the frame block end: skip the rest of the block
+					skippedBytesCount += blockEnd - pos;
+					break;
+				}
+				pos = commandEnd;
+				if ( !handler.command( command ) ) {
+					position = blockEnd;
+					finished = true;
+					return;
+				}
+			}
+			position = blockEnd;
+		}
+	}
+
+	/**
+	 * Resets the fields of the reused command, so no values of the previous command are left in it.
+	 * @param command command to be reset
+	 */
+	private static void resetCommand( final Command command ) {
+		command.type       = 0;
+		command.type2      = 0;
+		command.unitId     = 0;
+		command.posX       = 0;
+		command.posY       = 0;
+		command.targetTag  = 0;
+		command.unitsCount = 0;
+		command.dataLength = 0;
+	}
+
+	/**
+	 * Decodes a command (without the player ID).
+	 * @param data     data of the commands section
+	 * @param pos      position of the block ID of the command
+	 * @param blockEnd end position of the frame block
+	 * @param command  command to decode into
+	 * @return the position after the command; greater than <code>blockEnd</code> if the command crosses the frame block end
+	 */
+	private int decodeCommand( final byte[] data, int pos, final int blockEnd, final Command command ) {
+		final byte blockId     = data[ pos++ ];
+		command.blockId        = blockId;
+		command.encodedBlockId = blockId;
+		command.known          = true;
+		command.dataLength     = 0;
+
+		switch ( blockId ) {
+			case (byte) 0x09 :   // Select units
+			case (byte) 0x0a :   // Shift select units
+			case (byte) 0x0b : { // Shift deselect units
+				if ( pos >= blockEnd )
+					return blockEnd + 1;
+				final int unitsCount = data[ pos++ ] & 0xff;
+				if ( pos + unitsCount * 2 > blockEnd )
+					return blockEnd + 1;
+				for ( int i = 0; i < unitsCount; i++, pos += 2 )
+					command.unitTags[ i ] = readShort( data, pos );
+				command.unitsCount = unitsCount;
+				return pos;
+			}
+			case (byte) 0x63 :   // Select units (1.21)
+			case (byte) 0x64 :   // Shift select units (1.21)
+			case (byte) 0x65 : { // Shift deselect units (1.21)
+				command.blockId = (byte) ( blockId - 0x63 + 0x09 );
+				if ( pos >= blockEnd )
+					return blockEnd + 1;
+				final int unitsCount = data[ pos++ ] & 0xff;
+				if ( pos + unitsCount * 4 > blockEnd )
+					return blockEnd + 1;
+				for ( int i = 0; i < unitsCount; i++, pos += 4 )
+					command.unitTags[ i ] = readShort( data, pos ); // 2 bytes unknown after the unit tag
+				command.unitsCount = unitsCount;
+				return pos;
+			}
+			case (byte) 0x0c : { // Build
+				if ( pos + 7 > blockEnd )
+					return blockEnd + 1;
+				command.type   = data[ pos ];
+				command.posX   = readShort( data, pos + 1 );
+				command.posY   = readShort( data, pos + 3 );
+				command.unitId = readShort( data, pos + 5 );
+				return pos + 7;
+			}
+			case (byte) 0x14 : { // Move
+				if ( pos + 9 > blockEnd )
+					return blockEnd + 1;
+				command.posX      = readShort( data, pos );
+				command.posY      = readShort( data, pos + 2 );
+				command.targetTag = readShort( data, pos + 4 ); // Move to (posX;posY) if this is 0xffff, or move to this unit if it's a valid unit id (if it's not 0xffff)
+				return pos + 9;  // 2 bytes unit type and 1 byte queued flag are not used
+			}
+			case (byte) 0x15 : { // Attack/Right Click/Cast Magic/Use ability
+				if ( pos + 10 > blockEnd )
+					return blockEnd + 1;
+				command.posX      = readShort( data, pos );
+				command.posY      = readShort( data, pos + 2 );
+				command.targetTag = readShort( data, pos + 4 ); // (posX;posY) if this is 0xffff, or target this unit if it's a valid unit id (if it's not 0xffff)
+				// 2 bytes unknown
+				command.type      = data[ pos + 8 ];
+				command.type2     = data[ pos + 9 ]; // 0x00 for normal attack, 0x01 for shift attack
+				return pos + 10;
+			}
+			case (byte) 0x60 : { // Right click (1.21), same as Move with 2 unknown bytes after the unit tag
+				if ( pos + 11 > blockEnd )
+					return blockEnd + 1;
+				command.blockId   = (byte) 0x14;
+				command.posX      = readShort( data, pos );
+				command.posY      = readShort( data, pos + 2 );
+				command.targetTag = readShort( data, pos + 4 );
+				return pos + 11; // 2 bytes unknown, 2 bytes unit type and 1 byte queued flag are not used
+			}
+			case (byte) 0x61 : { // Targeted order (1.21), same as 0x15 with 2 unknown bytes after the unit tag
+				if ( pos + 12 > blockEnd )
+					return blockEnd + 1;
+				command.blockId   = (byte) 0x15;
+				command.posX      = readShort( data, pos );
+				command.posY      = readShort( data, pos + 2 );
+				command.targetTag = readShort( data, pos + 4 );
+				// 2 bytes unknown, 2 bytes unit type
+				command.type      = data[ pos + 10 ];
+				command.type2     = data[ pos + 11 ];
+				return pos + 12;
+			}
+			case (byte) 0x1f :   // Train
+			case (byte) 0x23 :   // Hatch
+			case (byte) 0x35 : { // Morph
+				if ( pos + 2 > blockEnd )
+					return blockEnd + 1;
+				command.unitId = readShort( data, pos );
+				return pos + 2;
+			}
+			case (byte) 0x13 : { // Hotkey
+				if ( pos + 2 > blockEnd )
+					return blockEnd + 1;
+				command.type  = data[ pos ];
+				command.type2 = data[ pos + 1 ];
+				return pos + 2;
+			}
+			case (byte) 0x0f :   // Change game speed
+			case (byte) 0x30 :   // Research
+			case (byte) 0x32 :   // Upgrade
+			case (byte) 0x57 :   // Leave game
+			case (byte) 0x1e :   // Return chargo
+			case (byte) 0x21 :   // Cloack
+			case (byte) 0x22 :   // Decloack
+			case (byte) 0x25 :   // Unsiege
+			case (byte) 0x26 :   // Siege
+			case (byte) 0x28 :   // Unload all
+			case (byte) 0x2b :   // Hold position
+			case (byte) 0x2c :   // Burrow
+			case (byte) 0x2d :   // Unburrow
+			case (byte) 0x1a : { // Stop
+				if ( pos + 1 > blockEnd )
+					return blockEnd + 1;
+				command.type = data[ pos ];
+				return pos + 1;
+			}
+			case (byte) 0x58 : { // Minimap ping
+				if ( pos + 4 > blockEnd )
+					return blockEnd + 1;
+				command.posX = readShort( data, pos );
+				command.posY = readShort( data, pos + 2 );
+				return pos + 4;
+			}
+			case (byte) 0x0d :   // Vision
+			case (byte) 0x20 :   // Cancel train
+			case (byte) 0x29 :   // Unload
+				return copyData( data, pos, 2, blockEnd, command );
+			case (byte) 0x62 :   // Unload (1.21): unit tag and 2 unknown bytes
+				if ( pos + 4 > blockEnd )
+					return blockEnd + 1;
+				command.blockId = (byte) 0x29;
+				copyData( data, pos, 2, blockEnd, command );
+				return pos + 4;
+			case (byte) 0x0e :   // Ally
+			case (byte) 0x12 :   // Use Cheat
+			case (byte) 0x2f :   // Lift
+				return copyData( data, pos, 4, blockEnd, command );
+			case (byte) 0x5c :   // Game Chat (as of 1.16): 1 byte for player index, and 80 bytes of message characters
+				return copyData( data, pos, 81, blockEnd, command );
+			case (byte) 0x18 :   // Cancel
+			case (byte) 0x19 :   // Cancel hatch
+			case (byte) 0x27 :   // Build interceptor/scarab
+			case (byte) 0x2a :   // Merge archon
+			case (byte) 0x2e :   // Cancel nuke
+			case (byte) 0x31 :   // Cancel research
+			case (byte) 0x33 :   // Cancel upgrade
+			case (byte) 0x36 :   // Stim
+			case (byte) 0x5a :   // Merge dark archon
+				// No additional data
+				return pos;
+			default : { // We don't know how to handle the command, we have to skip the whole frame block which means we might lose some commands!
+				command.known = false;
+				unknownCommandsCount++;
+				skippedBytesCount += blockEnd - pos;
+				return blockEnd;
+			}
+		}
+	}
+
+	/**
+	 * Copies the raw data of a command.
+	 * @param data     data of the commands section
+	 * @param pos      position of the data of the command
+	 * @param length   length of the data of the command
+	 * @param blockEnd end position of the frame block
+	 * @param command  command to copy the data into
+	 * @return the position after the command
+	 */
+	private static int copyData( final byte[] data, final int pos, final int length, final int blockEnd, final Command command ) {
+		if ( pos + length > blockEnd )
+			return blockEnd + 1;
+		System.arraycopy( data, pos, command.data, 0, length );
+		command.dataLength = length;
+		return pos + length;
+	}
+
+	/**
+	 * Reads a little endian short.
+	 * @param data data to read from
+	 * @param pos  position to read from
+	 * @return the short read
+	 */
+	private static short readShort( final byte[] data, final int pos ) {
+		return (short) ( ( data[ pos ] & 0xff ) | data[ pos + 1 ] << 8 );
+	}
+
+	/**
+	 * Reads a little endian int.
+	 * @param data data to read from
+	 * @param pos  position to read from
+	 * @return the int read
+	 */
+	private static int readInt( final byte[] data, final int pos ) {
+		return ( data[ pos ] & 0xff ) | ( data[ pos + 1 ] & 0xff ) << 8 | ( data[ pos + 2 ] & 0xff ) << 16 | data[ pos + 3 ] << 24;
+	}
+
+}
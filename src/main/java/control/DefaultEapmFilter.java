@@ -0,0 +1,126 @@
+package control;
+
+import model.Action;
+import model.ReplayTimeline;
+
+/**
+ * Default EAPM spam filter with the commonly used rules:
+ * <ul>
+ *     <li>too fast repetition: the same command (action and subaction) repeated within {@link #repetitionFrames} frames,
+ *         e.g. selection, hotkey, stop or move spam;</li>
+ *     <li>too fast cancel: cancelling within {@link #cancelFrames} frames after a train, build, morph, research or upgrade command;</li>
+ *     <li>unparsed and unknown commands.</li>
+ * </ul>
+ */
+public class DefaultEapmFilter implements EapmFilter {
+
+	/** Default repetition threshold: 10 frames, about 0.42 seconds. */
+	public static final int DEFAULT_REPETITION_FRAMES = 10;
+	/** Default cancel threshold: 20 frames, about 0.84 seconds.     */
+	public static final int DEFAULT_CANCEL_FRAMES     = 20;
+
+	/** Repeating the same command within this many frames is spam. */
+	public final int repetitionFrames;
+	/** Cancelling within this many frames is spam.                 */
+	public final int cancelFrames;
+
+	/**
+	 * Creates a new DefaultEapmFilter with the default thresholds.
+	 */
+	public DefaultEapmFilter() {
+		this( DEFAULT_REPETITION_FRAMES, DEFAULT_CANCEL_FRAMES );
+	}
+
+	/**
+	 * Creates a new DefaultEapmFilter.
+	 * @param repetitionFrames repeating the same command within this many frames is spam
+	 * @param cancelFrames     cancelling within this many frames is spam
+	 */
+	public DefaultEapmFilter( final int repetitionFrames, final int cancelFrames ) {
+		this.repetitionFrames = repetitionFrames;
+		this.cancelFrames     = cancelFrames;
+	}
+
+	public boolean isEffective( final ReplayTimeline timeline, final int index, final int previousIndex ) {
+		final byte actionNameIndex = timeline.actionNameIndices[ index ];
+		if ( actionNameIndex == Action.ACTION_NAME_INDEX_UNKNOWN )
+			return false;
+
+		if ( previousIndex < 0 )
+			return true;
+
+		final int  elapsedFrames           = timeline.frames[ index ] - timeline.frames[ previousIndex ];
+		final byte previousActionNameIndex = timeline.actionNameIndices[ previousIndex ];
+
+		if ( elapsedFrames < repetitionFrames && actionNameIndex == previousActionNameIndex
+				&& timeline.subactionNameIndices[ index ] == timeline.subactionNameIndices[ previousIndex ] && isRepetitionSensitive( actionNameIndex ) )
+			return false;
+
+		if ( elapsedFrames < cancelFrames && isCancel( actionNameIndex ) && isCancelable( previousActionNameIndex ) )
+			return false;
+
+		return true;
+	}
+
+	/**
+	 * Tells if fast repetition of an action is spam.
+	 * @param actionNameIndex action name index
+	 * @return true if fast repetition of the action is spam
+	 */
+	protected boolean isRepetitionSensitive( final byte actionNameIndex ) {
+		switch ( actionNameIndex ) {
+			case Action.ACTION_NAME_INDEX_SELECT :
+			case Action.ACTION_NAME_INDEX_SHIFT_SELECT :
+			case Action.ACTION_NAME_INDEX_SHIFT_DESELECT :
+			case Action.ACTION_NAME_INDEX_HOTKEY :
+			case Action.ACTION_NAME_INDEX_MOVE :
+			case Action.ACTION_NAME_INDEX_ATTACK_MOVE :
+			case Action.ACTION_NAME_INDEX_GATHER :
+			case Action.ACTION_NAME_INDEX_SET_RALLY :
+			case Action.ACTION_NAME_INDEX_STOP :
+			case Action.ACTION_NAME_INDEX_HOLD :
+			case Action.ACTION_NAME_INDEX_UNLOAD_ALL :
+				return true;
+			default :
+				return false;
+		}
+	}
+
+	/**
+	 * Tells if an action is a cancel command.
+	 * @param actionNameIndex action name index
+	 * @return true if the action is a cancel command
+	 */
+	protected boolean isCancel( final byte actionNameIndex ) {
+		switch ( actionNameIndex ) {
+			case Action.ACTION_NAME_INDEX_CANCEL :
+			case Action.ACTION_NAME_INDEX_CANCEL_HATCH :
+			case Action.ACTION_NAME_INDEX_CANCEL_TRAIN :
+			case Action.ACTION_NAME_INDEX_CANCEL_RESEARCH :
+			case Action.ACTION_NAME_INDEX_CANCEL_UPGRADE :
+				return true;
+			default :
+				return false;
+		}
+	}
+
+	/**
+	 * Tells if an action can be cancelled.
+	 * @param actionNameIndex action name index
+	 * @return true if the action can be cancelled
+	 */
+	protected boolean isCancelable( final byte actionNameIndex ) {
+		switch ( actionNameIndex ) {
+			case Action.ACTION_NAME_INDEX_TRAIN :
+			case Action.ACTION_NAME_INDEX_HATCH :
+			case Action.ACTION_NAME_INDEX_BUILD :
+			case Action.ACTION_NAME_INDEX_MORPH :
+			case Action.ACTION_NAME_INDEX_RESEARCH :
+			case Action.ACTION_NAME_INDEX_UPGRADE :
+				return true;
+			default :
+				return false;
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Detects duplicate replays (the same game saved by different participants or uploaded under different names).<br>
+ * Replays are identified by a 64-bit fingerprint computed from the identity fields of the unpacked header
+ * (save time, game name, map name and player records), and optionally from the commands section.
+ * Only the header section is unpacked unless the commands section is included in the fingerprint.
+ *
+ * <p>The fingerprints of the seen replays are kept in a set which can be persisted, so the detector can be used as a filter
+ * of a bulk ingest running over several sessions. The detector is thread-safe: fingerprints are computed in the calling threads,
+ * only the seen-set is synchronized.</p>
+ */
+public class DuplicateDetector {
+
+	/** Magic number of the seen-set files: "RSEN". */
+	private static final int FILE_MAGIC   = 0x4e455352;
+	/** Version of the seen-set file format.        */
+	private static final int FILE_VERSION = 1;
+
+	/** Fingerprint value of replays which cannot be read. */
+	public static final long NO_FINGERPRINT = 0;
+
+	/** Tells if the commands section is included in the fingerprint. */
+	public final boolean includeCommandsSection;
+	/** File to persist the seen-set in; can be <code>null</code>.    */
+	public final File    seenSetFile;
+
+	/** Fingerprints of the seen replays. */
+	private final LongHashSet seenSet;
+
+	/**
+	 * Creates a new DuplicateDetector.<br>
+	 * If the seen-set file exists, the seen fingerprints are loaded from it.
+	 * @param seenSetFile            file to persist the seen-set in; can be <code>null</code> if persistence is not needed
+	 * @param includeCommandsSection tells if the commands section is included in the fingerprint
+	 * @throws IOException if the seen-set file exists but cannot be loaded, or it was created with a different fingerprint setting
+	 */
+	public DuplicateDetector( final File seenSetFile, final boolean includeCommandsSection ) throws IOException {
+		this.seenSetFile            = seenSetFile;
+		this.includeCommandsSection = includeCommandsSection;
+
+		if ( seenSetFile != null && seenSetFile.exists() ) {
+			final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( seenSetFile ), 1 << 16 ) );
+			try {
+				if ( input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION )
+					throw new IOException( "Not a seen-set file: " + seenSetFile );
+				if ( input.readBoolean() != includeCommandsSection )
+					throw new IOException( "Seen-set file was created with a different fingerprint setting: " + seenSetFile );
+				final int size = input.readInt();
+				seenSet = new LongHashSet( size );
+				for ( int i = 0; i < size; i++ )
+					seenSet.add( input.readLong() );
+			}
+			finally {
+				input.close();
+			}
+		}
+		else
+			seenSet = new LongHashSet( 1024 );
+	}
+
+	/**
+	 * Computes the fingerprint of a replay.
+	 * @param replayFile             replay file
+	 * @param includeCommandsSection tells if the commands section is included in the fingerprint
+	 * @return the fingerprint of the replay; or {@link #NO_FINGERPRINT} if the replay cannot be read
+	 */
+	public static long fingerprint( final File replayFile, final boolean includeCommandsSection ) {
+		BinReplayUnpacker unpacker = null;
+		try {
+			unpacker = new BinReplayUnpacker( replayFile );
+
+			// Replay ID section
+			if ( BinRepParser.readReplayFormat( unpacker ) < 0 )
+				return NO_FINGERPRINT;  // Not a replay file
+
+			long fingerprint = fingerprintHeader( unpacker.unpackSection( BinRepParser.HEADER_SIZE ) );
+
+			if ( includeCommandsSection ) {
+				final int    playerCommandsLength = Integer.reverseBytes( ByteBuffer.wrap( unpacker.unpackSection( 4 ) ).getInt() );
+				final byte[] commandsData         = unpacker.unpackSection( playerCommandsLength );
+				fingerprint = hash( commandsData, 0, commandsData.length, fingerprint );
+			}
+
+			return fingerprint == NO_FINGERPRINT ? 1 : fingerprint;
+		}
+		catch ( final Exception e ) {
+			return NO_FINGERPRINT;
+		}
+		finally {
+			if ( unpacker != null )
+				unpacker.close();
+		}
+	}
+
+	/**
+	 * Computes the fingerprint of the identity fields of an unpacked header section:
+	 * save time (0x08), game name (0x18), map name (0x61) and player records (0xa1).
+	 * @param headerData unpacked data of the header section
+	 * @return the fingerprint of the header
+	 */
+	public static long fingerprintHeader( final byte[] headerData ) {
+		long h = hash( headerData, 0x08, 4, 0 );
+		h = hash( headerData, 0x18, 28, h );
+		h = hash( headerData, 0x61, 26, h );
+		return hash( headerData, 0xa1, 432, h );
+	}
+
+	/**
+	 * Tells if a replay has not been seen yet, and marks it as seen.<br>
+	 * Replays which cannot be read are reported as new, so the parser can report their problems.
+	 * @param replayFile replay file
+	 * @return true if the replay has not been seen yet; false if it's a duplicate
+	 */
+	public boolean accept( final File replayFile ) {
+		final long fingerprint = fingerprint( replayFile, includeCommandsSection );
+		if ( fingerprint == NO_FINGERPRINT )
+			return true;
+
+		synchronized ( seenSet ) {
+			return seenSet.add( fingerprint );
+		}
+	}
+
+	/**
+	 * Filters the duplicates out of replay files.
+	 * @param replayFiles replay files to be filtered
+	 * @return the replay files which have not been seen yet, in the order of the input
+	 */
+	public List< File > filter( final Collection< File > replayFiles ) {
+		final List< File > newReplayFileList = new ArrayList< File >( replayFiles.size() );
+		for ( final File replayFile : replayFiles )
+			if ( accept( replayFile ) )
+				newReplayFileList.add( replayFile );
+		return newReplayFileList;
+	}
+
+	/**
+	 * Returns the number of seen replays.
+	 * @return the number of seen replays
+	 */
+	public int getSeenCount() {
+		synchronized ( seenSet ) {
+			return seenSet.size();
+		}
+	}
+
+	/**
+	 * Saves the seen-set to the seen-set file.<br>
+	 * The set is written to a temporary file first which then replaces the seen-set file.
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if no seen-set file was specified
+	 */
+	public void save() throws IOException {
+		if ( seenSetFile == null )
+			throw new IllegalStateException( "No seen-set file specified!" );
+
+		final long[] fingerprints;
+		synchronized ( seenSet ) {
+			fingerprints = seenSet.toArray();
+		}
+
+		final File tempFile = new File( seenSetFile.getPath() + ".tmp" );
+		final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ), 1 << 16 ) );
+		try {
+			output.writeInt( FILE_MAGIC   );
+			output.writeInt( FILE_VERSION );
+			output.writeBoolean( includeCommandsSection );
+			output.writeInt( fingerprints.length );
+			for ( final long fingerprint : fingerprints )
+				output.writeLong( fingerprint );
+		}
+		finally {
+			output.close();
+		}
+
+		Files.move( tempFile.toPath(), seenSetFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Hashes a range of bytes (64-bit Murmur style mixing).
+	 * @param data   data to be hashed
+	 * @param offset offset of the range
+	 * @param length length of the range
+	 * @param seed   seed of the hash (to chain ranges)
+	 * @return the hash of the range
+	 */
+	private static long hash( final byte[] data, final int offset, final int length, final long seed ) {
+		long h = seed ^ length * 0xc6a4a7935bd1e995l;
+
+		final int end = offset + length;
+		int pos = offset;
+		for ( ; pos + 8 <= end; pos += 8 ) {
+			long k = ( data[ pos ] & 0xffl ) | ( data[ pos + 1 ] & 0xffl ) << 8 | ( data[ pos + 2 ] & 0xffl ) << 16 | ( data[ pos + 3 ] & 0xffl ) << 24
+				| ( data[ pos + 4 ] & 0xffl ) << 32 | ( data[ pos + 5 ] & 0xffl ) << 40 | ( data[ pos + 6 ] & 0xffl ) << 48 | ( data[ pos + 7 ] & 0xffl ) << 56;
+			k *= 0x87c37b91114253d5l;
+			k  = Long.rotateLeft( k, 31 );
+			k *= 0x4cf5ad432745937fl;
+			h ^= k;
+			h  = Long.rotateLeft( h, 27 ) * 5 + 0x52dce729;
+		}
+		long k = 0;
+		for ( int shift = 0; pos < end; pos++, shift += 8 )
+			k |= ( data[ pos ] & 0xffl ) << shift;
+		k *= 0x87c37b91114253d5l;
+		k  = Long.rotateLeft( k, 31 );
+		k *= 0x4cf5ad432745937fl;
+		h ^= k;
+
+		// Final avalanche
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,27 @@
+package control;
+
+import model.ReplayTimeline;
+
+/**
+ * Spam filter deciding which actions count as effective in EAPM (effective actions per minute) calculation.<br>
+ * Implementations work on the columns of the {@link ReplayTimeline} and should not create objects per action.
+ */
+public interface EapmFilter {
+
+	/** Filter which considers all actions effective (EAPM will equal APM). */
+	EapmFilter ALL_EFFECTIVE = new EapmFilter() {
+		public boolean isEffective( final ReplayTimeline timeline, final int index, final int previousIndex ) {
+			return true;
+		}
+	};
+
+	/**
+	 * Tells if an action is effective.
+	 * @param timeline      timeline containing the action
+	 * @param index         position of the action in the timeline
+	 * @param previousIndex position of the previous action of the same player in the timeline; -1 if this is the first action of the player
+	 * @return true if the action is effective; false if it is considered spam
+	 */
+	boolean isEffective( ReplayTimeline timeline, int index, int previousIndex );
+
+}
@@ -0,0 +1,321 @@
+package control;
+
+import java.util.Date;
+import java.util.function.IntPredicate;
+
+import model.HeaderIndex;
+import model.ReplayHeader;
+
+/**
+ * Multi-criteria filter over a {@link HeaderIndex}.<br>
+ * The query holds a bitmap of the matching replays which initially contains all replays of the index;
+ * each criterion scans one column and clears the bits of the replays not matching it, so criteria are combined with AND.
+ * Only words of the bitmap which still have bits set are scanned.
+ *
+ * <p>Example: 1v1 PvZ on Lost Temple longer than 10 minutes, played after 2008, all players with APM above 200:
+ * <pre>
+ * new HeaderIndexQuery( index ).gameType( ReplayHeader.GAME_TYPE_ONE_ON_ONE ).matchup( "PvZ" ).mapName( "Lost Temple" )
+ *     .minGameFrames( ReplayHeader.convertSecondsToFrames( 600 ) ).savedAfter( date ).minPlayerApm( 201, true ).getReplayIds();
+ * </pre></p>
+ */
+public class HeaderIndexQuery {
+
+	/** The index being queried.         */
+	public final HeaderIndex index;
+
+	/** Bitmap of the matching replays.  */
+	private final long[]     bitmap;
+
+	/**
+	 * Creates a new HeaderIndexQuery matching all replays of the index.
+	 * @param index the index to be queried
+	 */
+	public HeaderIndexQuery( final HeaderIndex index ) {
+		this.index = index;
+
+		bitmap = new long[ ( index.size + 63 ) >> 6 ];
+		for ( int i = 0; i < bitmap.length; i++ )
+			bitmap[ i ] = -1l;
+		if ( ( index.size & 63 ) != 0 )
+			bitmap[ bitmap.length - 1 ] = ( 1l << ( index.size & 63 ) ) - 1;
+	}
+
+	/**
+	 * Keeps replays of a game engine.
+	 * @param gameEngine game engine
+	 * @return this query
+	 */
+	public HeaderIndexQuery gameEngine( final byte gameEngine ) {
+		final byte[] gameEngines = index.gameEngines;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return gameEngines[ i ] == gameEngine;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays of a game type.
+	 * @param gameType game type
+	 * @return this query
+	 */
+	public HeaderIndexQuery gameType( final short gameType ) {
+		final short[] gameTypes = index.gameTypes;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return gameTypes[ i ] == gameType;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays whose length is in a range.
+	 * @param minGameFrames min length in frames (inclusive)
+	 * @param maxGameFrames max length in frames (inclusive)
+	 * @return this query
+	 */
+	public HeaderIndexQuery gameFrames( final int minGameFrames, final int maxGameFrames ) {
+		final int[] gameFrames = index.gameFrames;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return gameFrames[ i ] >= minGameFrames && gameFrames[ i ] <= maxGameFrames;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays which are at least as long as specified.
+	 * @param minGameFrames min length in frames
+	 * @return this query
+	 */
+	public HeaderIndexQuery minGameFrames( final int minGameFrames ) {
+		return gameFrames( minGameFrames, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Keeps replays saved in a time range.
+	 * @param from start of the time range (inclusive); can be <code>null</code>
+	 * @param to   end of the time range (exclusive); can be <code>null</code>
+	 * @return this query
+	 */
+	public HeaderIndexQuery saveTime( final Date from, final Date to ) {
+		final long fromSeconds = from == null ? Long.MIN_VALUE : from.getTime() / 1000;
+		final long toSeconds   = to   == null ? Long.MAX_VALUE : to  .getTime() / 1000;
+
+		final int[] saveTimes = index.saveTimes;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return saveTimes[ i ] >= fromSeconds && saveTimes[ i ] < toSeconds;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays saved after a time.
+	 * @param from start of the time range (inclusive)
+	 * @return this query
+	 */
+	public HeaderIndexQuery savedAfter( final Date from ) {
+		return saveTime( from, null );
+	}
+
+	/**
+	 * Keeps replays played on a map.
+	 * @param mapName exact name of the map
+	 * @return this query
+	 */
+	public HeaderIndexQuery mapName( final String mapName ) {
+		final int mapNameId = index.mapNames.getId( mapName );
+
+		final int[] mapNameIds = index.mapNameIds;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return mapNameIds[ i ] == mapNameId;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays played on maps whose name contains a text, ignoring case.<br>
+	 * The text is only matched against the map name dictionary, not against every replay.
+	 * @param text text to be contained in the map name
+	 * @return this query
+	 */
+	public HeaderIndexQuery mapNameContains( final String text ) {
+		final String    lowerText       = text.toLowerCase();
+		final boolean[] matchingNameIds = new boolean[ index.mapNames.size() ];
+		for ( int id = 0; id < matchingNameIds.length; id++ )
+			matchingNameIds[ id ] = index.mapNames.get( id ).toLowerCase().contains( lowerText );
+
+		final int[] mapNameIds = index.mapNameIds;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return matchingNameIds[ mapNameIds[ i ] ];
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays played on a map size.
+	 * @param mapWidth  width of the map
+	 * @param mapHeight height of the map
+	 * @return this query
+	 */
+	public HeaderIndexQuery mapSize( final short mapWidth, final short mapHeight ) {
+		final short[] mapWidths  = index.mapWidths;
+		final short[] mapHeights = index.mapHeights;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return mapWidths[ i ] == mapWidth && mapHeights[ i ] == mapHeight;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays with a number of players.
+	 * @param playerCount number of players
+	 * @return this query
+	 */
+	public HeaderIndexQuery playerCount( final int playerCount ) {
+		final byte[] playerCounts = index.playerCounts;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return playerCounts[ i ] == playerCount;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays of a matchup.<br>
+	 * The matchup is given by race characters (see {@link ReplayHeader#RACE_CHARACTERS}) of the teams separated by 'v',
+	 * for example "PvZ" or "TTvPZ". Teams are not stored in the header, so only the races of all players are matched
+	 * ("TTvPZ" matches "TPvTZ" too).
+	 * @param matchup the matchup
+	 * @return this query
+	 * @throws IllegalArgumentException if the matchup contains an invalid race character
+	 */
+	public HeaderIndexQuery matchup( final String matchup ) {
+		final int[] counts = new int[ ReplayHeader.RACE_CHARACTERS.length ];
+		for ( final char ch : matchup.toUpperCase().toCharArray() ) {
+			if ( ch == 'V' )
+				continue;
+			int race = ReplayHeader.RACE_CHARACTERS.length - 1;
+			while ( race >= 0 && ReplayHeader.RACE_CHARACTERS[ race ] != ch )
+				race--;
+			if ( race < 0 )
+				throw new IllegalArgumentException( "Invalid race character in matchup: " + ch );
+			counts[ race ]++;
+		}
+		final short raceCounts = HeaderIndex.getRaceCounts( counts[ ReplayHeader.RACE_ZERG ], counts[ ReplayHeader.RACE_TERRAN ], counts[ ReplayHeader.RACE_PROTOSS ] );
+
+		final short[] replayRaceCounts = index.raceCounts;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				return replayRaceCounts[ i ] == raceCounts;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays containing a player.
+	 * @param playerName exact name of the player
+	 * @return this query
+	 */
+	public HeaderIndexQuery player( final String playerName ) {
+		final int playerNameId = index.playerNames.getId( playerName );
+
+		final int[] playerNameIds = index.playerNameIds;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				for ( int slot = i * HeaderIndex.PLAYER_SLOTS, end = slot + HeaderIndex.PLAYER_SLOTS; slot < end; slot++ )
+					if ( playerNameIds[ slot ] == playerNameId )
+						return true;
+				return false;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps replays based on the APM of the human players (computers are not considered).
+	 * @param minApm     min APM (inclusive)
+	 * @param allPlayers if true all players must have at least <code>minApm</code>; else at least one player
+	 * @return this query
+	 */
+	public HeaderIndexQuery minPlayerApm( final int minApm, final boolean allPlayers ) {
+		final int[]   playerNameIds = index.playerNameIds;
+		final byte[]  playerIds     = index.playerIds;
+		final short[] playerApms    = index.playerApms;
+		return retain( new IntPredicate() {
+			@Override
+			public boolean test( final int i ) {
+				int playersCount  = 0;
+				int matchingCount = 0;
+				for ( int slot = i * HeaderIndex.PLAYER_SLOTS, end = slot + HeaderIndex.PLAYER_SLOTS; slot < end; slot++ )
+					if ( playerNameIds[ slot ] >= 0 && playerIds[ slot ] != (byte) 0xff ) {
+						playersCount++;
+						if ( playerApms[ slot ] >= minApm )
+							matchingCount++;
+					}
+				return allPlayers ? playersCount > 0 && matchingCount == playersCount : matchingCount > 0;
+			}
+		} );
+	}
+
+	/**
+	 * Keeps the replays matching a criterion (clears the bits of the others). Only words of the bitmap which still have bits set are scanned.
+	 * @param criterion criterion tested with the replay IDs
+	 * @return this query
+	 */
+	private HeaderIndexQuery retain( final IntPredicate criterion ) {
+		for ( int w = 0; w < bitmap.length; w++ )
+			for ( long word = bitmap[ w ]; word != 0; word &= word - 1 ) {
+				final int i = w << 6 | Long.numberOfTrailingZeros( word );
+				if ( !criterion.test( i ) )
+					bitmap[ w ] &= ~( 1l << i );
+			}
+		return this;
+	}
+
+	/**
+	 * Returns the bitmap of the matching replays: bit <code>i % 64</code> of word <code>i / 64</code> is set if replay <code>i</code> matches.
+	 * @return the bitmap of the matching replays
+	 */
+	public long[] getBitmap() {
+		return bitmap;
+	}
+
+	/**
+	 * Returns the number of matching replays.
+	 * @return the number of matching replays
+	 */
+	public int count() {
+		int count = 0;
+		for ( final long word : bitmap )
+			count += Long.bitCount( word );
+		return count;
+	}
+
+	/**
+	 * Returns the IDs of the matching replays in increasing order.
+	 * @return the IDs of the matching replays
+	 */
+	public int[] getReplayIds() {
+		final int[] replayIds = new int[ count() ];
+		int n = 0;
+		for ( int w = 0; w < bitmap.length; w++ )
+			for ( long word = bitmap[ w ]; word != 0; word &= word - 1 )
+				replayIds[ n++ ] = w << 6 | Long.numberOfTrailingZeros( word );
+		return replayIds;
+	}
+
+}
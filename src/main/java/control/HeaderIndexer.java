@@ -0,0 +1,200 @@
+package control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import model.HeaderIndex;
+import model.Replay;
+import model.StringDictionary;
+
+/**
+ * Builds, saves and loads {@link HeaderIndex}es.<br>
+ * Indexing is incremental: a saved index can be loaded and replays not yet in the index can be added to it.
+ */
+public class HeaderIndexer {
+
+	/** Magic number of the index files: "RHIX".  */
+	private static final int FILE_MAGIC   = 0x58494852;
+	/** Version of the index file format.         */
+	private static final int FILE_VERSION = 1;
+
+	/** The index replays are added to.                                           */
+	public final HeaderIndex index;
+	/** Tells if the commands section is parsed to get the action counts and APMs. */
+	public final boolean     parseCommandsSection;
+
+	/**
+	 * Creates a new HeaderIndexer.
+	 * @param index                the index replays are added to
+	 * @param parseCommandsSection tells if the commands section is parsed to get the action counts and APMs;
+	 *                             if false, only the header section is unpacked and the action counts will be 0
+	 */
+	public HeaderIndexer( final HeaderIndex index, final boolean parseCommandsSection ) {
+		this.index                = index;
+		this.parseCommandsSection = parseCommandsSection;
+	}
+
+	/**
+	 * Adds a replay to the index if it's not already in it.
+	 * @param replayFile replay file to be added
+	 * @return the ID of the replay; or -1 if the replay is already in the index or it cannot be parsed
+	 */
+	public int indexReplay( final File replayFile ) {
+		final String replayPath = replayFile.getAbsolutePath();
+		if ( index.replayPaths.getId( replayPath ) >= 0 )
+			return -1;
+
+		final Replay replay = BinRepParser.parseReplay( replayFile, parseCommandsSection, false, false, false );
+		if ( replay == null )
+			return -1;
+
+		return index.add( replayPath, replay.replayHeader );
+	}
+
+	/**
+	 * Adds the replays of a folder and its subfolders to the index which are not already in it.
+	 * @param folder folder to be indexed
+	 * @return the number of replays added to the index
+	 */
+	public int indexFolder( final File folder ) {
+		final File[] files = folder.listFiles();
+		if ( files == null )
+			return 0;
+
+		int count = 0;
+		for ( final File file : files )
+			if ( file.isDirectory() )
+				count += indexFolder( file );
+			else if ( file.getName().toLowerCase().endsWith( ".rep" ) && indexReplay( file ) >= 0 )
+				count++;
+
+		return count;
+	}
+
+	/**
+	 * Saves an index to a file.<br>
+	 * The index is written to a temporary file first which then replaces the target file,
+	 * so an existing index file is not corrupted if saving fails.
+	 * @param index     index to be saved
+	 * @param indexFile file to save the index to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void save( final HeaderIndex index, final File indexFile ) throws IOException {
+		final File tempFile = new File( indexFile.getPath() + ".tmp" );
+
+		final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ), 1 << 16 ) );
+		try {
+			output.writeInt( FILE_MAGIC   );
+			output.writeInt( FILE_VERSION );
+
+			writeDictionary( output, index.replayPaths );
+			writeDictionary( output, index.mapNames    );
+			writeDictionary( output, index.playerNames );
+
+			final int size = index.size;
+			output.writeInt( size );
+			for ( int i = 0; i < size; i++ ) {
+				output.writeByte ( index.gameEngines [ i ] );
+				output.writeInt  ( index.gameFrames  [ i ] );
+				output.writeInt  ( index.saveTimes   [ i ] );
+				output.writeInt  ( index.mapNameIds  [ i ] );
+				output.writeShort( index.mapWidths   [ i ] );
+				output.writeShort( index.mapHeights  [ i ] );
+				output.writeShort( index.gameTypes   [ i ] );
+				output.writeByte ( index.playerCounts[ i ] );
+				output.writeShort( index.raceCounts  [ i ] );
+			}
+			for ( int i = 0; i < size * HeaderIndex.PLAYER_SLOTS; i++ ) {
+				output.writeInt  ( index.playerNameIds      [ i ] );
+				output.writeByte ( index.playerRaces        [ i ] );
+				output.writeByte ( index.playerIds          [ i ] );
+				output.writeInt  ( index.playerActionsCounts[ i ] );
+				output.writeShort( index.playerApms         [ i ] );
+			}
+		}
+		finally {
+			output.close();
+		}
+
+		Files.move( tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Loads an index from a file.
+	 * @param indexFile file to load the index from
+	 * @return the loaded index
+	 * @throws IOException if an I/O error occurs or the file is not an index file
+	 */
+	public static HeaderIndex load( final File indexFile ) throws IOException {
+		final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ), 1 << 16 ) );
+		try {
+			if ( input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION )
+				throw new IOException( "Not a header index file: " + indexFile );
+
+			final HeaderIndex index = new HeaderIndex();
+			readDictionary( input, index.replayPaths );
+			readDictionary( input, index.mapNames    );
+			readDictionary( input, index.playerNames );
+
+			final int size = input.readInt();
+			index.ensureCapacity( size );
+			for ( int i = 0; i < size; i++ ) {
+				index.gameEngines [ i ] = input.readByte ();
+				index.gameFrames  [ i ] = input.readInt  ();
+				index.saveTimes   [ i ] = input.readInt  ();
+				index.mapNameIds  [ i ] = input.readInt  ();
+				index.mapWidths   [ i ] = input.readShort();
+				index.mapHeights  [ i ] = input.readShort();
+				index.gameTypes   [ i ] = input.readShort();
+				index.playerCounts[ i ] = input.readByte ();
+				index.raceCounts  [ i ] = input.readShort();
+			}
+			for ( int i = 0; i < size * HeaderIndex.PLAYER_SLOTS; i++ ) {
+				index.playerNameIds      [ i ] = input.readInt  ();
+				index.playerRaces        [ i ] = input.readByte ();
+				index.playerIds          [ i ] = input.readByte ();
+				index.playerActionsCounts[ i ] = input.readInt  ();
+				index.playerApms         [ i ] = input.readShort();
+			}
+			index.size = size;
+
+			return index;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Writes a string dictionary.
+	 * @param output     output to write to
+	 * @param dictionary dictionary to be written
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeDictionary( final DataOutputStream output, final StringDictionary dictionary ) throws IOException {
+		final int size = dictionary.size();
+		output.writeInt( size );
+		for ( int i = 0; i < size; i++ )
+			output.writeUTF( dictionary.get( i ) );
+	}
+
+	/**
+	 * Reads a string dictionary.
+	 * @param input      input to read from
+	 * @param dictionary dictionary to read into
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void readDictionary( final DataInputStream input, final StringDictionary dictionary ) throws IOException {
+		for ( int i = input.readInt(); i > 0; i-- )
+			dictionary.add( input.readUTF() );
+	}
+
+}
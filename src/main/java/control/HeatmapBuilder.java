@@ -0,0 +1,100 @@
+package control;
+
+import model.Action;
+import model.Heatmap;
+import model.Heatmaps;
+import model.PlayerActions;
+import model.Replay;
+import model.ReplayHeader;
+
+/**
+ * Builds {@link Heatmaps} from replays: adds the target positions of the actions of the players,
+ * those the parser sets a position for: Build, Move, right click and abilities, and minimap ping.
+ * Build positions are tiles, they are taken at the center of their tile; the other positions are pixels.
+ * Positions outside of the map are ignored.
+ *
+ * <p>Not thread-safe: use one builder per thread and merge their heatmaps.</p>
+ */
+public class HeatmapBuilder {
+
+	/** The heatmaps positions are added to.                           */
+	public final Heatmaps heatmaps;
+	/** Tells if heatmaps of the single players are built.             */
+	public final boolean  perPlayer;
+
+	/**
+	 * Creates a new HeatmapBuilder.
+	 * @param cellSize      size of the cells in pixels (a map tile is 32 pixels)
+	 * @param windowSeconds length of the time windows in seconds; 0 for no windows
+	 * @param perPlayer     tells if heatmaps of the single players are to be built besides the ones of all players
+	 */
+	public HeatmapBuilder( final int cellSize, final int windowSeconds, final boolean perPlayer ) {
+		heatmaps       = new Heatmaps( cellSize, windowSeconds );
+		this.perPlayer = perPlayer;
+	}
+
+	/**
+	 * Adds the target positions of the actions of a replay.
+	 * @param replay replay parsed with the commands section
+	 */
+	public void add( final Replay replay ) {
+		final ReplayHeader replayHeader = replay.replayHeader;
+		if ( replay.replayActions == null || replayHeader.mapWidth <= 0 || replayHeader.mapHeight <= 0 )
+			return;
+
+		final String mapId         = Heatmaps.getMapId( replayHeader );
+		final int    mapWidth      = replayHeader.mapWidth;
+		final int    mapHeight     = replayHeader.mapHeight;
+		final int    pixelsWidth   = mapWidth  * 32;
+		final int    pixelsHeight  = mapHeight * 32;
+		final int    cellSize      = heatmaps.cellSize;
+
+		for ( final PlayerActions playerActions : replay.replayActions.players ) {
+			// A missing name must not be taken as ALL_PLAYERS (null)
+			final String playerName = playerActions.playerName == null ? "" : playerActions.playerName;
+			// Heatmaps are looked up when the first position is found, and again when the window changes (actions are in frame order)
+			Heatmap allHeatmap          = null;
+			Heatmap playerHeatmap       = null;
+			Heatmap windowHeatmap       = null;
+			Heatmap playerWindowHeatmap = null;
+			int     window              = Heatmaps.ALL_WINDOWS;
+
+			for ( final Action action : playerActions.actions ) {
+				if ( !action.hasPosition() )
+					continue;
+				int x = action.getPosX() & 0xffff;
+				int y = action.getPosY() & 0xffff;
+				if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_BUILD ) {
+					x = x * 32 + 16;
+					y = y * 32 + 16;
+				}
+				if ( x >= pixelsWidth || y >= pixelsHeight )
+					continue;
+
+				if ( allHeatmap == null ) {
+					allHeatmap = heatmaps.getOrCreateHeatmap( mapId, Heatmaps.ALL_PLAYERS, Heatmaps.ALL_WINDOWS, mapWidth, mapHeight );
+					if ( perPlayer )
+						playerHeatmap = heatmaps.getOrCreateHeatmap( mapId, playerName, Heatmaps.ALL_WINDOWS, mapWidth, mapHeight );
+				}
+				final int actionWindow = heatmaps.getWindow( action.iteration );
+				if ( actionWindow != Heatmaps.ALL_WINDOWS && ( windowHeatmap == null || actionWindow != window ) ) {
+					window        = actionWindow;
+					windowHeatmap = heatmaps.getOrCreateHeatmap( mapId, Heatmaps.ALL_PLAYERS, window, mapWidth, mapHeight );
+					if ( perPlayer )
+						playerWindowHeatmap = heatmaps.getOrCreateHeatmap( mapId, playerName, window, mapWidth, mapHeight );
+				}
+
+				final int cellX = x / cellSize;
+				final int cellY = y / cellSize;
+				allHeatmap.add( cellX, cellY );
+				if ( playerHeatmap != null )
+					playerHeatmap.add( cellX, cellY );
+				if ( windowHeatmap != null )
+					windowHeatmap.add( cellX, cellY );
+				if ( playerWindowHeatmap != null )
+					playerWindowHeatmap.add( cellX, cellY );
+			}
+		}
+	}
+
+}
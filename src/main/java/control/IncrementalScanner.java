@@ -0,0 +1,782 @@
+package control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import model.ColumnarActions;
+import model.HackDescription;
+import model.Replay;
+
+/**
+ * Replay scanner backed by a persistent result store, so replays are only scanned again when needed.<br>
+ * The store directory contains:
+ * <ul>
+ * 	<li><code>results.bin</code>: for each replay the file size and modification time, the engine version and the detector versions
+ * 		it was scanned with, the action IDs occurring in the replay and the found hacks</li>
+ * 	<li><code>actions.bin</code>: a header with the {@link #ACTIONS_VERSION} and a random file ID, then the actions of the replays
+ * 		in {@link ColumnarActions} form (deflated, appended)</li>
+ * </ul>
+ * The result file refers to the actions file by its ID: if the actions file is of another version or was replaced
+ * (e.g. the scanner stopped in the middle of a {@link #compact()}), a new actions file is started and the replays are parsed again
+ * when their cached actions are needed.
+ * A replay is parsed only if it is not in the store or the file changed. When the {@link ReplayScanner#DETECTOR_VERSIONS} change,
+ * only the changed detectors are run again, only on the replays containing their trigger actions ({@link ReplayScanner#DETECTOR_TRIGGER_ACTIONS}),
+ * and from the cached actions instead of reparsing the replays.<br>
+ * The scanner is thread-safe: replays can be scanned concurrently (but not while the store is compacted).
+ */
+public class IncrementalScanner {
+
+	/** Magic number of the result files: "RSCN". */
+	private static final int FILE_MAGIC   = 0x4e435352;
+	/** Version of the result file format.        */
+	private static final int FILE_VERSION = 2;
+
+	/** Magic number of the cached actions files: "RACT".                    */
+	private static final int ACTIONS_FILE_MAGIC    = 0x54434152;
+	/** Length of the header of the cached actions file: magic, version, ID. */
+	private static final int ACTIONS_HEADER_LENGTH = 16;
+
+	/**
+	 * Version of the cached actions. Has to be increased when their serialized form or the actions produced by the parser change;
+	 * cached actions of other versions are discarded.
+	 */
+	public static final int ACTIONS_VERSION = 1;
+
+	/** Name of the result file.         */
+	private static final String RESULTS_FILE_NAME = "results.bin";
+	/** Name of the cached actions file. */
+	private static final String ACTIONS_FILE_NAME = "actions.bin";
+
+	/**
+	 * Stored scan result of a replay.
+	 */
+	private static class Entry {
+		/** Size of the replay file.                                          */
+		long     fileSize;
+		/** Modification time of the replay file.                             */
+		long     lastModified;
+		/** Engine version the replay was last scanned with.                  */
+		String   engineVersion;
+		/** Versions of the detectors the replay was scanned with; 0 if not run. */
+		int[]    detectorVersions;
+		/** Action IDs occurring in the replay (256-bit set).                 */
+		long[]   actionIdSet;
+		/** Position of the cached actions in the actions file.               */
+		long     actionsPosition;
+		/** Length of the cached actions in the actions file.                 */
+		int      actionsLength;
+		/** Hacks found by the detectors which were run.                      */
+		List< HackDescription > hackDescriptionList;
+	}
+
+	/** Directory of the store.                                   */
+	public final File storeDirectory;
+	/** Bitmask of the enabled detectors (bit = hack type).       */
+	public final int  detectorMask;
+
+	/** Stored results mapped from the absolute paths of the replays; guarded by itself. */
+	private final Map< String, Entry > entryMap = new HashMap< String, Entry >();
+	/** Channel of the cached actions file; appends are guarded by itself.               */
+	private FileChannel                actionsChannel;
+	/** ID of the cached actions file.                                                   */
+	private long                       actionsFileId;
+
+	/** Number of parsed replays.                                          */
+	private final LongAdder parsedCount          = new LongAdder();
+	/** Number of replays whose stored results were up to date.            */
+	private final LongAdder upToDateCount        = new LongAdder();
+	/** Number of replays rescanned from the cached actions.               */
+	private final LongAdder rescannedCount       = new LongAdder();
+	/** Number of detector runs skipped because the trigger actions were missing. */
+	private final LongAdder skippedDetectorCount = new LongAdder();
+
+	/**
+	 * Creates a new IncrementalScanner, and loads the store if it exists.
+	 * @param storeDirectory directory of the store; created if it does not exist
+	 * @param detectorMask   bitmask of the enabled detectors, bit <code>1 &lt;&lt; hackType</code> for each detector;
+	 *                       {@link ReplayScanner#ALL_DETECTORS} to enable all
+	 * @throws IOException if the store directory cannot be created or the store cannot be loaded
+	 */
+	public IncrementalScanner( final File storeDirectory, final int detectorMask ) throws IOException {
+		this.storeDirectory = storeDirectory;
+		this.detectorMask   = detectorMask & ReplayScanner.ALL_DETECTORS;
+
+		if ( !storeDirectory.isDirectory() && !storeDirectory.mkdirs() )
+			throw new IOException( "Cannot create the store directory: " + storeDirectory );
+
+		final File resultsFile = new File( storeDirectory, RESULTS_FILE_NAME );
+		final long resultsActionsFileId = resultsFile.exists() ? loadResults( resultsFile ) : 0;
+
+		openActions( new File( storeDirectory, ACTIONS_FILE_NAME ) );
+		if ( actionsFileId != resultsActionsFileId )
+			for ( final Entry entry : entryMap.values() )
+				entry.actionsPosition = -1;
+	}
+
+	/**
+	 * Scans a replay for hacks with the enabled detectors, using the stored results where possible.
+	 * @param replayFile replay file to be scanned
+	 * @return the hacks found by the enabled detectors ordered by player; or <code>null</code> if the replay cannot be parsed
+	 */
+	public List< HackDescription > scan( final File replayFile ) {
+		final String replayPath   = replayFile.getAbsolutePath();
+		final long   fileSize     = replayFile.length();
+		final long   lastModified = replayFile.lastModified();
+
+		Entry entry;
+		synchronized ( entryMap ) {
+			entry = entryMap.get( replayPath );
+		}
+
+		boolean parse = entry == null || entry.fileSize != fileSize || entry.lastModified != lastModified;
+		if ( !parse ) {
+			try {
+				if ( !rescanCached( entry ) )
+					upToDateCount.increment();
+			}
+			catch ( final IOException ie ) {
+				// The cached actions are missing or corrupt, parse the replay again
+				parse = true;
+			}
+		}
+
+		if ( parse ) {
+			entry = scanParsed( replayFile, fileSize, lastModified );
+			if ( entry == null )
+				return null;
+			synchronized ( entryMap ) {
+				entryMap.put( replayPath, entry );
+			}
+		}
+
+		return getEnabledHacks( entry );
+	}
+
+	/**
+	 * Rescans the stored replays whose results are stale for the enabled detectors, from the cached actions.<br>
+	 * Replays without cached actions are skipped, {@link #scan(File)} parses them again. Replays whose cached actions cannot be read
+	 * keep their stale results, and are reported in the failure map.
+	 * @param threadsCount number of threads to rescan with
+	 * @param failureMap   optional map to put the causes of the failures into, mapped from the absolute paths of the replays
+	 * @return the number of rescanned replays
+	 */
+	public int rescanStale( final int threadsCount, final Map< String, IOException > failureMap ) {
+		final Map< String, Entry > staleEntryMap = new HashMap< String, Entry >();
+		synchronized ( entryMap ) {
+			for ( final Map.Entry< String, Entry > mapEntry : entryMap.entrySet() ) {
+				final Entry entry = mapEntry.getValue();
+				if ( entry.actionsPosition >= 0 && getStaleMask( entry ) != 0 )
+					staleEntryMap.put( mapEntry.getKey(), entry );
+			}
+		}
+
+		final AtomicInteger   rescanned = new AtomicInteger();
+		final ExecutorService executor  = Executors.newFixedThreadPool( Math.max( 1, threadsCount ) );
+		for ( final Map.Entry< String, Entry > mapEntry : staleEntryMap.entrySet() )
+			executor.execute( new Runnable() {
+				public void run() {
+					try {
+						if ( rescanCached( mapEntry.getValue() ) )
+							rescanned.incrementAndGet();
+					}
+					catch ( final IOException ie ) {
+						// The entry is only updated after the actions are read, so it remains stale
+						if ( failureMap != null )
+							synchronized ( failureMap ) {
+								failureMap.put( mapEntry.getKey(), ie );
+							}
+					}
+				}
+			} );
+		executor.shutdown();
+		try {
+			executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		}
+		catch ( final InterruptedException ie ) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		return rescanned.get();
+	}
+
+	/**
+	 * Parses a replay and scans it with all detectors, and caches its actions.
+	 * @param replayFile   replay file to be scanned
+	 * @param fileSize     size of the replay file
+	 * @param lastModified modification time of the replay file
+	 * @return the new entry of the replay; or <code>null</code> if the replay cannot be parsed
+	 */
+	private Entry scanParsed( final File replayFile, final long fileSize, final long lastModified ) {
+		final Replay replay = BinRepParser.parseReplay( replayFile, true, false, false, false );
+		if ( replay == null )
+			return null;
+		parsedCount.increment();
+
+		final ColumnarActions columnarActions = ColumnarActions.fromReplay( replay );
+		final Entry entry = new Entry();
+		entry.fileSize            = fileSize;
+		entry.lastModified        = lastModified;
+		entry.engineVersion       = ReplayScanner.ENGINE_VERSION;
+		entry.detectorVersions    = ReplayScanner.DETECTOR_VERSIONS.clone();
+		entry.actionIdSet         = columnarActions.getActionIdSet();
+		entry.hackDescriptionList = ReplayScanner.scanReplayForHacks( replay, false, ReplayScanner.ALL_DETECTORS );
+
+		try {
+			final byte[] actionsData = serializeActions( columnarActions );
+			synchronized ( actionsChannel ) {
+				entry.actionsPosition = actionsChannel.size();
+				writeFully( actionsChannel, ByteBuffer.wrap( actionsData ), entry.actionsPosition );
+			}
+			entry.actionsLength = actionsData.length;
+		}
+		catch ( final IOException ie ) {
+			// The results are still stored, stale detectors will reparse the replay
+			entry.actionsPosition = -1;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Reruns the stale enabled detectors of an entry from the cached actions. Detectors whose trigger actions
+	 * do not occur in the replay are not run, they cannot find anything.
+	 * @param entry entry to be updated
+	 * @return true if detectors were rerun on the cached actions; false if the entry was up to date or no detector had to be run
+	 * @throws IOException if the cached actions cannot be read
+	 */
+	private boolean rescanCached( final Entry entry ) throws IOException {
+		final int staleMask;
+		synchronized ( entry ) {
+			staleMask = getStaleMask( entry );
+		}
+		if ( staleMask == 0 )
+			return false;
+
+		int runMask = 0;
+		for ( int hackType = 0; hackType < ReplayScanner.DETECTOR_VERSIONS.length; hackType++ )
+			if ( ( staleMask & 1 << hackType ) != 0 ) {
+				if ( containsTriggerAction( entry.actionIdSet, ReplayScanner.DETECTOR_TRIGGER_ACTIONS[ hackType ] ) )
+					runMask |= 1 << hackType;
+				else
+					skippedDetectorCount.increment();
+			}
+
+		final List< HackDescription > newHackDescriptionList = runMask == 0 ? null
+				: ReplayScanner.scanReplayForHacks( readActions( entry ).toReplay(), false, runMask );
+
+		synchronized ( entry ) {
+			final List< HackDescription > hackDescriptionList = new ArrayList< HackDescription >( entry.hackDescriptionList.size() );
+			for ( final HackDescription hackDescription : entry.hackDescriptionList )
+				if ( ( staleMask & 1 << hackDescription.hackType ) == 0 )
+					hackDescriptionList.add( hackDescription );
+			if ( newHackDescriptionList != null )
+				hackDescriptionList.addAll( newHackDescriptionList );
+			sortByPlayer( hackDescriptionList, entry.hackDescriptionList );
+
+			entry.hackDescriptionList = hackDescriptionList;
+			entry.engineVersion       = ReplayScanner.ENGINE_VERSION;
+			for ( int hackType = 0; hackType < ReplayScanner.DETECTOR_VERSIONS.length; hackType++ )
+				if ( ( staleMask & 1 << hackType ) != 0 )
+					entry.detectorVersions[ hackType ] = ReplayScanner.DETECTOR_VERSIONS[ hackType ];
+		}
+
+		if ( runMask == 0 )
+			return false;
+		rescannedCount.increment();
+		return true;
+	}
+
+	/**
+	 * Returns the enabled detectors whose stored results are stale.
+	 * @param entry entry to be checked
+	 * @return the bitmask of the stale enabled detectors
+	 */
+	private int getStaleMask( final Entry entry ) {
+		int staleMask = 0;
+		for ( int hackType = 0; hackType < ReplayScanner.DETECTOR_VERSIONS.length; hackType++ )
+			if ( ( detectorMask & 1 << hackType ) != 0 && entry.detectorVersions[ hackType ] != ReplayScanner.DETECTOR_VERSIONS[ hackType ] )
+				staleMask |= 1 << hackType;
+		return staleMask;
+	}
+
+	/**
+	 * Tells if any of the trigger actions of a detector occurs in a replay.
+	 * @param actionIdSet    action IDs occurring in the replay
+	 * @param triggerActions trigger actions of the detector; <code>null</code> if the detector may report anything
+	 * @return true if the detector has to be run on the replay
+	 */
+	private static boolean containsTriggerAction( final long[] actionIdSet, final byte[] triggerActions ) {
+		if ( triggerActions == null )
+			return true;
+		for ( final byte actionId : triggerActions )
+			if ( ( actionIdSet[ ( actionId & 0xff ) >> 6 ] & 1L << ( actionId & 63 ) ) != 0 )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Sorts hacks by player (stable), in the order the players occur in a reference list.
+	 * @param hackDescriptionList hacks to be sorted
+	 * @param referenceList       hacks in the order of the players
+	 */
+	private static void sortByPlayer( final List< HackDescription > hackDescriptionList, final List< HackDescription > referenceList ) {
+		final List< String > playerNameList = new ArrayList< String >();
+		for ( final HackDescription hackDescription : referenceList )
+			if ( !playerNameList.contains( hackDescription.playerName ) )
+				playerNameList.add( hackDescription.playerName );
+		for ( final HackDescription hackDescription : hackDescriptionList )
+			if ( !playerNameList.contains( hackDescription.playerName ) )
+				playerNameList.add( hackDescription.playerName );
+
+		final List< HackDescription > sortedList = new ArrayList< HackDescription >( hackDescriptionList.size() );
+		for ( final String playerName : playerNameList )
+			for ( final HackDescription hackDescription : hackDescriptionList )
+				if ( hackDescription.playerName.equals( playerName ) )
+					sortedList.add( hackDescription );
+		hackDescriptionList.clear();
+		hackDescriptionList.addAll( sortedList );
+	}
+
+	/**
+	 * Returns the stored hacks of an entry found by the enabled detectors.
+	 * @param entry entry whose hacks to be returned
+	 * @return the hacks of the entry found by the enabled detectors
+	 */
+	private List< HackDescription > getEnabledHacks( final Entry entry ) {
+		synchronized ( entry ) {
+			final List< HackDescription > hackDescriptionList = new ArrayList< HackDescription >( entry.hackDescriptionList.size() );
+			for ( final HackDescription hackDescription : entry.hackDescriptionList )
+				if ( ( detectorMask & 1 << hackDescription.hackType ) != 0 )
+					hackDescriptionList.add( hackDescription );
+			return hackDescriptionList;
+		}
+	}
+
+	/**
+	 * Reads the cached actions of an entry.
+	 * @param entry entry whose actions to be read
+	 * @return the cached actions of the entry
+	 * @throws IOException if the actions are not cached or cannot be read
+	 */
+	private ColumnarActions readActions( final Entry entry ) throws IOException {
+		if ( entry.actionsPosition < 0 )
+			throw new IOException( "Actions are not cached." );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( entry.actionsLength );
+		while ( buffer.hasRemaining() )
+			if ( actionsChannel.read( buffer, entry.actionsPosition + buffer.position() ) < 0 )
+				throw new EOFException( "Cached actions are truncated." );
+
+		final DataInputStream input = new DataInputStream( new BufferedInputStream( new InflaterInputStream( new ByteArrayInputStream( buffer.array() ) ), 1 << 16 ) );
+		try {
+			final int      gameFrames  = input.readInt();
+			final short    gameType    = input.readShort();
+			final short    mapWidth    = input.readShort();
+			final short    mapHeight   = input.readShort();
+			final String   mapName     = input.readUTF();
+			final String[] playerNames = new String[ input.readByte() ];
+			final int[]    playerActionsCounts = new int[ playerNames.length ];
+			for ( int i = 0; i < playerNames.length; i++ ) {
+				playerNames        [ i ] = input.readUTF();
+				playerActionsCounts[ i ] = input.readInt();
+			}
+			final String[] parameters = new String[ input.readInt() ];
+			for ( int i = 0; i < parameters.length; i++ )
+				parameters[ i ] = input.readUTF();
+
+			final int size = input.readInt();
+			final int[]   frames               = new int  [ size ];
+			final byte[]  actionNameIndices    = new byte [ size ];
+			final byte[]  subactionNameIndices = new byte [ size ];
+			final short[] unitNameIndices      = new short[ size ];
+			final short[] buildingNameIndices  = new short[ size ];
+			final short[] posXs                = new short[ size ];
+			final short[] posYs                = new short[ size ];
+			final int[]   parameterIds         = new int  [ size ];
+			for ( int i = 0; i < size; i++ )
+				frames[ i ] = input.readInt();
+			input.readFully( actionNameIndices    );
+			input.readFully( subactionNameIndices );
+			for ( int i = 0; i < size; i++ )
+				unitNameIndices[ i ] = input.readShort();
+			for ( int i = 0; i < size; i++ )
+				buildingNameIndices[ i ] = input.readShort();
+			for ( int i = 0; i < size; i++ )
+				posXs[ i ] = input.readShort();
+			for ( int i = 0; i < size; i++ )
+				posYs[ i ] = input.readShort();
+			for ( int i = 0; i < size; i++ )
+				parameterIds[ i ] = input.readInt();
+
+			return new ColumnarActions( gameFrames, gameType, mapWidth, mapHeight, mapName, playerNames, playerActionsCounts,
+					frames, actionNameIndices, subactionNameIndices, unitNameIndices, buildingNameIndices, posXs, posYs, parameterIds, parameters );
+		}
+		catch ( final RuntimeException re ) {
+			// Corrupt counts (e.g. negative array sizes)
+			throw new IOException( "Cached actions are corrupt.", re );
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Serializes columnar actions, column by column so they deflate well.
+	 * @param columnarActions actions to be serialized
+	 * @return the deflated serialized actions
+	 * @throws IOException never in practice
+	 */
+	private static byte[] serializeActions( final ColumnarActions columnarActions ) throws IOException {
+		final ByteArrayOutputStream byteOutput = new ByteArrayOutputStream( columnarActions.size() * 4 + 256 );
+		final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new DeflaterOutputStream( byteOutput, new Deflater( Deflater.BEST_SPEED ) ), 1 << 16 ) );
+		try {
+			output.writeInt  ( columnarActions.gameFrames );
+			output.writeShort( columnarActions.gameType   );
+			output.writeShort( columnarActions.mapWidth   );
+			output.writeShort( columnarActions.mapHeight  );
+			output.writeUTF  ( columnarActions.mapName == null ? "" : columnarActions.mapName );
+			output.writeByte ( columnarActions.playerNames.length );
+			for ( int i = 0; i < columnarActions.playerNames.length; i++ ) {
+				output.writeUTF( columnarActions.playerNames        [ i ] );
+				output.writeInt( columnarActions.playerActionsCounts[ i ] );
+			}
+			output.writeInt( columnarActions.parameters.length );
+			for ( final String parameter : columnarActions.parameters )
+				output.writeUTF( parameter );
+
+			final int size = columnarActions.size();
+			output.writeInt( size );
+			for ( int i = 0; i < size; i++ )
+				output.writeInt( columnarActions.frames[ i ] );
+			output.write( columnarActions.actionNameIndices    );
+			output.write( columnarActions.subactionNameIndices );
+			for ( int i = 0; i < size; i++ )
+				output.writeShort( columnarActions.unitNameIndices[ i ] );
+			for ( int i = 0; i < size; i++ )
+				output.writeShort( columnarActions.buildingNameIndices[ i ] );
+			for ( int i = 0; i < size; i++ )
+				output.writeShort( columnarActions.posXs[ i ] );
+			for ( int i = 0; i < size; i++ )
+				output.writeShort( columnarActions.posYs[ i ] );
+			for ( int i = 0; i < size; i++ )
+				output.writeInt( columnarActions.parameterIds[ i ] );
+		}
+		finally {
+			output.close();
+		}
+		return byteOutput.toByteArray();
+	}
+
+	/**
+	 * Writes a buffer to a file.
+	 * @param channel  channel of the file
+	 * @param buffer   buffer to be written
+	 * @param position position to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException {
+		while ( buffer.hasRemaining() )
+			channel.write( buffer, position + buffer.position() );
+	}
+
+	/**
+	 * Opens the cached actions file. If it does not exist or its header is missing or of another version, a new file is started with a new ID.
+	 * @param actionsFile cached actions file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void openActions( final File actionsFile ) throws IOException {
+		actionsChannel = FileChannel.open( actionsFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+		final ByteBuffer header = ByteBuffer.allocate( ACTIONS_HEADER_LENGTH );
+		while ( header.hasRemaining() && actionsChannel.read( header, header.position() ) > 0 )
+			;
+		header.flip();
+		if ( header.remaining() == ACTIONS_HEADER_LENGTH && header.getInt() == ACTIONS_FILE_MAGIC && header.getInt() == ACTIONS_VERSION ) {
+			actionsFileId = header.getLong();
+			return;
+		}
+
+		actionsChannel.truncate( 0 );
+		actionsFileId = createActionsFileId();
+		writeFully( actionsChannel, createActionsHeader( actionsFileId ), 0 );
+	}
+
+	/**
+	 * Compacts the cached actions file: copies the cached actions of the stored replays into a new file, dropping the actions
+	 * left behind by replays which were parsed again, then saves the results.<br>
+	 * Must not be called concurrently with scanning.
+	 * @return the number of bytes reclaimed
+	 * @throws IOException if an I/O error occurs; the current actions file is kept then
+	 */
+	public long compact() throws IOException {
+		final File actionsFile = new File( storeDirectory, ACTIONS_FILE_NAME );
+		final File tempFile    = new File( storeDirectory, ACTIONS_FILE_NAME + ".tmp" );
+		final long oldSize     = actionsChannel.size();
+		final long newFileId   = createActionsFileId();
+
+		// Entries are compared by identity
+		final Map< Entry, Long > entryPositionMap = new HashMap< Entry, Long >();
+		long position = ACTIONS_HEADER_LENGTH;
+		boolean moved = false;
+		try {
+			final FileChannel tempChannel = FileChannel.open( tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE );
+			try {
+				writeFully( tempChannel, createActionsHeader( newFileId ), 0 );
+				synchronized ( entryMap ) {
+					for ( final Entry entry : entryMap.values() ) {
+						if ( entry.actionsPosition < 0 )
+							continue;
+						tempChannel.position( position );
+						long transferred = 0;
+						while ( transferred < entry.actionsLength ) {
+							final long count = actionsChannel.transferTo( entry.actionsPosition + transferred, entry.actionsLength - transferred, tempChannel );
+							if ( count <= 0 )
+								break;
+							transferred += count;
+						}
+						// Truncated cached actions are dropped (overwritten by the next entry)
+						if ( transferred == entry.actionsLength ) {
+							entryPositionMap.put( entry, position );
+							position += transferred;
+						}
+					}
+				}
+				tempChannel.truncate( position );
+				tempChannel.force( false );
+			}
+			finally {
+				tempChannel.close();
+			}
+
+			actionsChannel.close();
+			try {
+				Files.move( tempFile.toPath(), actionsFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+				moved = true;
+			}
+			finally {
+				actionsChannel = FileChannel.open( actionsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE );
+			}
+		}
+		finally {
+			if ( !moved )
+				tempFile.delete();
+		}
+
+		actionsFileId = newFileId;
+		synchronized ( entryMap ) {
+			for ( final Entry entry : entryMap.values() ) {
+				final Long newPosition = entryPositionMap.get( entry );
+				entry.actionsPosition = newPosition == null ? -1 : newPosition;
+			}
+		}
+		save();
+
+		return oldSize - position;
+	}
+
+	/**
+	 * Creates a header of the cached actions file.
+	 * @param fileId ID of the file
+	 * @return the header ready to be written
+	 */
+	private static ByteBuffer createActionsHeader( final long fileId ) {
+		final ByteBuffer header = ByteBuffer.allocate( ACTIONS_HEADER_LENGTH );
+		header.putInt( ACTIONS_FILE_MAGIC ).putInt( ACTIONS_VERSION ).putLong( fileId ).flip();
+		return header;
+	}
+
+	/**
+	 * Creates a new random ID for a cached actions file.
+	 * @return a new random, non-zero ID
+	 */
+	private static long createActionsFileId() {
+		long fileId;
+		do
+			fileId = ThreadLocalRandom.current().nextLong();
+		while ( fileId == 0 );
+		return fileId;
+	}
+
+	/**
+	 * Saves the stored results. The cached actions are forced to the disk first, then the results are written
+	 * to a temporary file which then replaces the result file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void save() throws IOException {
+		actionsChannel.force( false );
+
+		final File resultsFile = new File( storeDirectory, RESULTS_FILE_NAME );
+		final File tempFile    = new File( storeDirectory, RESULTS_FILE_NAME + ".tmp" );
+
+		final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ), 1 << 16 ) );
+		try {
+			output.writeInt ( FILE_MAGIC    );
+			output.writeInt ( FILE_VERSION  );
+			output.writeLong( actionsFileId );
+			synchronized ( entryMap ) {
+				output.writeInt( entryMap.size() );
+				for ( final Map.Entry< String, Entry > mapEntry : entryMap.entrySet() ) {
+					final Entry entry = mapEntry.getValue();
+					synchronized ( entry ) {
+						output.writeUTF ( mapEntry.getKey()   );
+						output.writeLong( entry.fileSize      );
+						output.writeLong( entry.lastModified  );
+						output.writeUTF ( entry.engineVersion );
+						output.writeByte( entry.detectorVersions.length );
+						for ( final int detectorVersion : entry.detectorVersions )
+							output.writeInt( detectorVersion );
+						for ( final long word : entry.actionIdSet )
+							output.writeLong( word );
+						output.writeLong( entry.actionsPosition );
+						output.writeInt ( entry.actionsLength   );
+						output.writeInt ( entry.hackDescriptionList.size() );
+						for ( final HackDescription hackDescription : entry.hackDescriptionList ) {
+							output.writeUTF ( hackDescription.playerName );
+							output.writeByte( hackDescription.hackType   );
+							output.writeInt ( hackDescription.iteration  );
+						}
+					}
+				}
+			}
+		}
+		finally {
+			output.close();
+		}
+
+		Files.move( tempFile.toPath(), resultsFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Loads the stored results.
+	 * @param resultsFile result file to load from
+	 * @return the ID of the cached actions file the results refer to; 0 if the results are of version 1 (which had no ID)
+	 * @throws IOException if an I/O error occurs or the file is not a result file of a supported version
+	 */
+	private long loadResults( final File resultsFile ) throws IOException {
+		final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( resultsFile ), 1 << 16 ) );
+		try {
+			if ( input.readInt() != FILE_MAGIC )
+				throw new IOException( "Not a scan result file: " + resultsFile );
+			final int version = input.readInt();
+			if ( version < 1 || version > FILE_VERSION )
+				throw new IOException( "Unsupported scan result file version: " + version );
+			final long resultsActionsFileId = version < 2 ? 0 : input.readLong();
+
+			final int size = input.readInt();
+			for ( int i = 0; i < size; i++ ) {
+				final String replayPath = input.readUTF();
+				final Entry  entry      = new Entry();
+				entry.fileSize      = input.readLong();
+				entry.lastModified  = input.readLong();
+				entry.engineVersion = input.readUTF().intern();
+				// Detectors added since the results were saved are considered not run
+				entry.detectorVersions = new int[ ReplayScanner.DETECTOR_VERSIONS.length ];
+				final int detectorsCount = input.readByte();
+				for ( int j = 0; j < detectorsCount; j++ ) {
+					final int detectorVersion = input.readInt();
+					if ( j < entry.detectorVersions.length )
+						entry.detectorVersions[ j ] = detectorVersion;
+				}
+				entry.actionIdSet = new long[ 4 ];
+				for ( int j = 0; j < entry.actionIdSet.length; j++ )
+					entry.actionIdSet[ j ] = input.readLong();
+				entry.actionsPosition = input.readLong();
+				entry.actionsLength   = input.readInt();
+				final int hacksCount = input.readInt();
+				entry.hackDescriptionList = new ArrayList< HackDescription >( hacksCount );
+				for ( int j = 0; j < hacksCount; j++ )
+					entry.hackDescriptionList.add( new HackDescription( input.readUTF(), input.readByte(), input.readInt() ) );
+				entryMap.put( replayPath, entry );
+			}
+			return resultsActionsFileId;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Saves the stored results and closes the cached actions file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void close() throws IOException {
+		try {
+			save();
+		}
+		finally {
+			actionsChannel.close();
+		}
+	}
+
+	/**
+	 * Returns the number of replays in the store.
+	 * @return the number of replays in the store
+	 */
+	public int getStoredCount() {
+		synchronized ( entryMap ) {
+			return entryMap.size();
+		}
+	}
+
+	/**
+	 * Returns the number of parsed replays.
+	 * @return the number of parsed replays
+	 */
+	public long getParsedCount() {
+		return parsedCount.sum();
+	}
+
+	/**
+	 * Returns the number of replays whose stored results were up to date.
+	 * @return the number of replays whose stored results were up to date
+	 */
+	public long getUpToDateCount() {
+		return upToDateCount.sum();
+	}
+
+	/**
+	 * Returns the number of replays rescanned from the cached actions.
+	 * @return the number of replays rescanned from the cached actions
+	 */
+	public long getRescannedCount() {
+		return rescannedCount.sum();
+	}
+
+	/**
+	 * Returns the number of detector runs skipped because the trigger actions of the detectors did not occur in the replays.
+	 * @return the number of skipped detector runs
+	 */
+	public long getSkippedDetectorCount() {
+		return skippedDetectorCount.sum();
+	}
+
+}
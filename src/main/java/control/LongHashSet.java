@@ -0,0 +1,113 @@
+package control;
+
+/**
+ * Hash set of primitive long values with open addressing (linear probing).<br>
+ * The value 0 cannot be stored (it marks empty slots). Not thread-safe.
+ */
+public class LongHashSet {
+
+	/** Slots of the set; 0 marks an empty slot. */
+	private long[] slots;
+	/** Number of values in the set.             */
+	private int    size;
+
+	/**
+	 * Creates a new LongHashSet.
+	 * @param expectedSize expected number of values
+	 */
+	public LongHashSet( final int expectedSize ) {
+		slots = new long[ Integer.highestOneBit( Math.max( 16, expectedSize * 2 ) - 1 ) << 1 ];
+	}
+
+	/**
+	 * Adds a value to the set.
+	 * @param value value to be added; must not be 0
+	 * @return true if the value was added; false if it was already in the set
+	 */
+	public boolean add( final long value ) {
+		if ( value == 0 )
+			throw new IllegalArgumentException( "0 cannot be stored!" );
+
+		if ( ( size + 1 ) * 4 > slots.length * 3 )
+			rehash( slots.length << 1 );
+
+		final int mask = slots.length - 1;
+		for ( int i = hash( value ) & mask; ; i = ( i + 1 ) & mask ) {
+			if ( slots[ i ] == value )
+				return false;
+			if ( slots[ i ] == 0 ) {
+				slots[ i ] = value;
+				size++;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Tells if a value is in the set.
+	 * @param value value to be tested
+	 * @return true if the value is in the set
+	 */
+	public boolean contains( final long value ) {
+		if ( value == 0 )
+			return false;
+
+		final int mask = slots.length - 1;
+		for ( int i = hash( value ) & mask; ; i = ( i + 1 ) & mask ) {
+			if ( slots[ i ] == value )
+				return true;
+			if ( slots[ i ] == 0 )
+				return false;
+		}
+	}
+
+	/**
+	 * Returns the number of values in the set.
+	 * @return the number of values in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the values of the set in no particular order.
+	 * @return the values of the set
+	 */
+	public long[] toArray() {
+		final long[] values = new long[ size ];
+		int n = 0;
+		for ( final long slot : slots )
+			if ( slot != 0 )
+				values[ n++ ] = slot;
+		return values;
+	}
+
+	/**
+	 * Moves the values into a new slots array.
+	 * @param length length of the new slots array (power of 2)
+	 */
+	private void rehash( final int length ) {
+		final long[] oldSlots = slots;
+		slots = new long[ length ];
+
+		final int mask = length - 1;
+		for ( final long value : oldSlots )
+			if ( value != 0 ) {
+				int i = hash( value ) & mask;
+				while ( slots[ i ] != 0 )
+					i = ( i + 1 ) & mask;
+				slots[ i ] = value;
+			}
+	}
+
+	/**
+	 * Spreads the bits of a value.
+	 * @param value value to be hashed
+	 * @return the hash of the value
+	 */
+	private static int hash( final long value ) {
+		final long h = value * 0x9e3779b97f4a7c15l;
+		return (int) ( h ^ h >>> 32 );
+	}
+
+}
@@ -0,0 +1,195 @@
+package control;
+
+/**
+ * Hash map from primitive long keys to long values with open addressing (linear probing), for counting.<br>
+ * The key 0 cannot be stored (it marks empty slots). Not thread-safe: count per thread and merge the maps.
+ */
+public class LongLongHashMap {
+
+	/** Keys of the slots; 0 marks an empty slot. */
+	private long[] keys;
+	/** Values of the slots.                      */
+	private long[] values;
+	/** Number of keys in the map.                */
+	private int    size;
+
+	/**
+	 * Creates a new LongLongHashMap.
+	 * @param expectedSize expected number of keys
+	 */
+	public LongLongHashMap( final int expectedSize ) {
+		final int length = Integer.highestOneBit( Math.max( 16, expectedSize * 2 ) - 1 ) << 1;
+		keys   = new long[ length ];
+		values = new long[ length ];
+	}
+
+	/**
+	 * Adds a delta to the value of a key; the value of a new key starts from 0.
+	 * @param key   key whose value to be increased; must not be 0
+	 * @param delta delta to be added
+	 * @return the new value of the key
+	 */
+	public long addTo( final long key, final long delta ) {
+		if ( key == 0 )
+			throw new IllegalArgumentException( "0 cannot be stored!" );
+
+		if ( ( size + 1 ) * 4 > keys.length * 3 )
+			rehash( keys.length << 1 );
+
+		final int mask = keys.length - 1;
+		for ( int i = hash( key ) & mask; ; i = ( i + 1 ) & mask ) {
+			if ( keys[ i ] == key )
+				return values[ i ] += delta;
+			if ( keys[ i ] == 0 ) {
+				keys  [ i ] = key;
+				values[ i ] = delta;
+				size++;
+				return delta;
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of a key.
+	 * @param key key whose value to be returned
+	 * @return the value of the key; 0 if the key is not in the map
+	 */
+	public long get( final long key ) {
+		if ( key == 0 )
+			return 0;
+
+		final int mask = keys.length - 1;
+		for ( int i = hash( key ) & mask; ; i = ( i + 1 ) & mask ) {
+			if ( keys[ i ] == key )
+				return values[ i ];
+			if ( keys[ i ] == 0 )
+				return 0;
+		}
+	}
+
+	/**
+	 * Returns the number of keys in the map.
+	 * @return the number of keys in the map
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the values of another map to the values of this.
+	 * @param map map to be merged
+	 */
+	public void merge( final LongLongHashMap map ) {
+		for ( int i = 0; i < map.keys.length; i++ )
+			if ( map.keys[ i ] != 0 )
+				addTo( map.keys[ i ], map.values[ i ] );
+	}
+
+	/**
+	 * Returns the keys with the largest values, using a bounded min-heap (O(size * log k)).
+	 * @param k maximum number of keys to be returned
+	 * @return the keys with the largest values in descending order of their values (ties in ascending order of the keys)
+	 */
+	public long[] getTopKeys( final int k ) {
+		final int    capacity   = Math.min( k, size );
+		final long[] heapKeys   = new long[ capacity ];
+		final long[] heapValues = new long[ capacity ];
+		int heapSize = 0;
+
+		for ( int i = 0; i < keys.length; i++ ) {
+			if ( keys[ i ] == 0 )
+				continue;
+			if ( heapSize < capacity ) {
+				// Sift up
+				int child = heapSize++;
+				while ( child > 0 ) {
+					final int parent = ( child - 1 ) >> 1;
+					if ( !isLess( keys[ i ], values[ i ], heapKeys[ parent ], heapValues[ parent ] ) )
+						break;
+					heapKeys  [ child ] = heapKeys  [ parent ];
+					heapValues[ child ] = heapValues[ parent ];
+					child = parent;
+				}
+				heapKeys  [ child ] = keys  [ i ];
+				heapValues[ child ] = values[ i ];
+			}
+			else if ( capacity > 0 && isLess( heapKeys[ 0 ], heapValues[ 0 ], keys[ i ], values[ i ] ) )
+				siftDown( heapKeys, heapValues, heapSize, keys[ i ], values[ i ] );
+		}
+
+		// Pop the smallest to the end
+		for ( int end = heapSize - 1; end > 0; end-- ) {
+			final long key   = heapKeys  [ end ];
+			final long value = heapValues[ end ];
+			heapKeys  [ end ] = heapKeys  [ 0 ];
+			heapValues[ end ] = heapValues[ 0 ];
+			siftDown( heapKeys, heapValues, end, key, value );
+		}
+		return heapKeys;
+	}
+
+	/**
+	 * Replaces the root of a min-heap and restores the heap.
+	 * @param heapKeys   keys of the heap
+	 * @param heapValues values of the heap
+	 * @param heapSize   size of the heap
+	 * @param key        key of the new root
+	 * @param value      value of the new root
+	 */
+	private static void siftDown( final long[] heapKeys, final long[] heapValues, final int heapSize, final long key, final long value ) {
+		int parent = 0;
+		while ( true ) {
+			int child = 2 * parent + 1;
+			if ( child >= heapSize )
+				break;
+			if ( child + 1 < heapSize && isLess( heapKeys[ child + 1 ], heapValues[ child + 1 ], heapKeys[ child ], heapValues[ child ] ) )
+				child++;
+			if ( !isLess( heapKeys[ child ], heapValues[ child ], key, value ) )
+				break;
+			heapKeys  [ parent ] = heapKeys  [ child ];
+			heapValues[ parent ] = heapValues[ child ];
+			parent = child;
+		}
+		heapKeys  [ parent ] = key;
+		heapValues[ parent ] = value;
+	}
+
+	/**
+	 * Tells if an entry ranks lower than another: smaller value, or larger key for equal values.
+	 */
+	private static boolean isLess( final long key1, final long value1, final long key2, final long value2 ) {
+		return value1 < value2 || value1 == value2 && key1 > key2;
+	}
+
+	/**
+	 * Moves the entries into new slot arrays.
+	 * @param length length of the new slot arrays (power of 2)
+	 */
+	private void rehash( final int length ) {
+		final long[] oldKeys   = keys;
+		final long[] oldValues = values;
+		keys   = new long[ length ];
+		values = new long[ length ];
+
+		final int mask = length - 1;
+		for ( int j = 0; j < oldKeys.length; j++ )
+			if ( oldKeys[ j ] != 0 ) {
+				int i = hash( oldKeys[ j ] ) & mask;
+				while ( keys[ i ] != 0 )
+					i = ( i + 1 ) & mask;
+				keys  [ i ] = oldKeys  [ j ];
+				values[ i ] = oldValues[ j ];
+			}
+	}
+
+	/**
+	 * Spreads the bits of a key.
+	 * @param key key to be hashed
+	 * @return the hash of the key
+	 */
+	private static int hash( final long key ) {
+		final long h = key * 0x9e3779b97f4a7c15l;
+		return (int) ( h ^ h >>> 32 );
+	}
+
+}
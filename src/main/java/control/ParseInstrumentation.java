@@ -0,0 +1,71 @@
+package control;
+
+import java.util.Arrays;
+
+import model.ParseMetrics;
+
+/**
+ * Registry of the {@link ParseMetricsListener}s.<br>
+ * Instrumentation is enabled while at least one listener is registered. When disabled, the parser
+ * does not create metrics objects nor reads the clock, so the overhead is a volatile read per replay.
+ */
+public class ParseInstrumentation {
+
+	/** The registered listeners; replaced on every change so it can be iterated without locking. */
+	private static volatile ParseMetricsListener[] listeners = new ParseMetricsListener[ 0 ];
+
+	/**
+	 * No instances.
+	 */
+	private ParseInstrumentation() {
+	}
+
+	/**
+	 * Registers a listener.
+	 * @param listener listener to be registered
+	 */
+	public static synchronized void addListener( final ParseMetricsListener listener ) {
+		final ParseMetricsListener[] newListeners = Arrays.copyOf( listeners, listeners.length + 1 );
+		newListeners[ listeners.length ] = listener;
+		listeners = newListeners;
+	}
+
+	/**
+	 * Unregisters a listener.
+	 * @param listener listener to be unregistered
+	 * @return true if the listener was registered
+	 */
+	public static synchronized boolean removeListener( final ParseMetricsListener listener ) {
+		final ParseMetricsListener[] listeners = ParseInstrumentation.listeners;
+		for ( int i = 0; i < listeners.length; i++ )
+			if ( listeners[ i ] == listener ) {
+				final ParseMetricsListener[] newListeners = new ParseMetricsListener[ listeners.length - 1 ];
+				System.arraycopy( listeners, 0, newListeners, 0, i );
+				System.arraycopy( listeners, i + 1, newListeners, i, newListeners.length - i );
+				ParseInstrumentation.listeners = newListeners;
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * Tells if instrumentation is enabled (if there are registered listeners).
+	 * @return true if instrumentation is enabled
+	 */
+	public static boolean isEnabled() {
+		return listeners.length > 0;
+	}
+
+	/**
+	 * Notifies the listeners about the metrics of a replay.
+	 * @param metrics metrics of the replay
+	 */
+	static void fireMetrics( final ParseMetrics metrics ) {
+		for ( final ParseMetricsListener listener : listeners )
+			if ( metrics.isFailed() )
+				listener.replayFailed( metrics );
+			else
+				listener.replayParsed( metrics );
+	}
+
+}
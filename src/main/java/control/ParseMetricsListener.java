@@ -0,0 +1,24 @@
+package control;
+
+import model.ParseMetrics;
+
+/**
+ * Listener of the metrics of the parsed replays, registered in {@link ParseInstrumentation}.<br>
+ * Listeners are called in the parsing threads, so they must be thread-safe and should return quickly.
+ * The metrics objects are not reused by the parser, listeners may keep them.
+ */
+public interface ParseMetricsListener {
+
+	/**
+	 * Called when a replay has been parsed.
+	 * @param metrics metrics of the parsed replay
+	 */
+	void replayParsed( ParseMetrics metrics );
+
+	/**
+	 * Called when a replay could not be parsed.
+	 * @param metrics metrics of the replay; {@link ParseMetrics#failedPhase} and {@link ParseMetrics#failure} tell the cause
+	 */
+	void replayFailed( ParseMetrics metrics );
+
+}
@@ -0,0 +1,234 @@
+package control;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import model.ParseMetrics;
+
+/**
+ * Parse metrics listener which aggregates the metrics of all parsed replays,
+ * and keeps the slowest replays to tell which replays and phases dominate the parse time.<br>
+ * The statistics can be published over JMX with {@link #registerMBean()}.
+ */
+public class ParseStatistics implements ParseMetricsListener, ParseStatisticsMXBean {
+
+	/** Object name of the MBean. */
+	public static final String OBJECT_NAME = "bwhf:type=ParseStatistics";
+
+	/** Comparator of metrics by total parse time. */
+	private static final Comparator< ParseMetrics > TOTAL_TIME_COMPARATOR = new Comparator< ParseMetrics >() {
+		public int compare( final ParseMetrics m1, final ParseMetrics m2 ) {
+			return Long.compare( m1.getTotalNanos(), m2.getTotalNanos() );
+		}
+	};
+
+	/** Number of slowest replays to keep. */
+	public final int slowestReplaysCount;
+
+	private final LongAdder       parsedReplaysCount   = new LongAdder();
+	private final LongAdder       failedReplaysCount   = new LongAdder();
+	private final LongAdder[]     phaseNanos           = new LongAdder[ ParseMetrics.PHASE_NAMES.length ];
+	private final LongAdder       inputBytesCount      = new LongAdder();
+	private final LongAdder       unpackedBytesCount   = new LongAdder();
+	private final AtomicLongArray commandCounts        = new AtomicLongArray( 256 );
+	private final AtomicLongArray unknownCommandCounts = new AtomicLongArray( 256 );
+	private final LongAdder       skippedBytesCount    = new LongAdder();
+	private final ConcurrentHashMap< String, LongAdder > failureCounts = new ConcurrentHashMap< String, LongAdder >();
+	/** The slowest replays, the fastest of them at the head. */
+	private final PriorityQueue< ParseMetrics > slowestReplays;
+
+	/**
+	 * Creates a new ParseStatistics.
+	 * @param slowestReplaysCount number of slowest replays to keep
+	 */
+	public ParseStatistics( final int slowestReplaysCount ) {
+		this.slowestReplaysCount = slowestReplaysCount;
+		for ( int i = 0; i < phaseNanos.length; i++ )
+			phaseNanos[ i ] = new LongAdder();
+		slowestReplays = new PriorityQueue< ParseMetrics >( slowestReplaysCount + 1, TOTAL_TIME_COMPARATOR );
+	}
+
+	/**
+	 * Registers this as a listener in {@link ParseInstrumentation} and as an MBean in the platform MBean server.
+	 * @return the object name of the registered MBean
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public ObjectName registerMBean() throws JMException {
+		final ObjectName objectName = new ObjectName( OBJECT_NAME );
+		ManagementFactory.getPlatformMBeanServer().registerMBean( this, objectName );
+		ParseInstrumentation.addListener( this );
+		return objectName;
+	}
+
+	/**
+	 * Unregisters this from {@link ParseInstrumentation} and from the platform MBean server.
+	 * @throws JMException if the MBean cannot be unregistered
+	 */
+	public void unregisterMBean() throws JMException {
+		ParseInstrumentation.removeListener( this );
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean( new ObjectName( OBJECT_NAME ) );
+	}
+
+	public void replayParsed( final ParseMetrics metrics ) {
+		parsedReplaysCount.increment();
+		addMetrics( metrics );
+	}
+
+	public void replayFailed( final ParseMetrics metrics ) {
+		failedReplaysCount.increment();
+		final String causeName = metrics.getFailureCauseName();
+		LongAdder count = failureCounts.get( causeName );
+		if ( count == null ) {
+			final LongAdder newCount = new LongAdder();
+			count = failureCounts.putIfAbsent( causeName, newCount );
+			if ( count == null )
+				count = newCount;
+		}
+		count.increment();
+		addMetrics( metrics );
+	}
+
+	/**
+	 * Adds the metrics of a replay to the statistics.
+	 * @param metrics metrics to be added
+	 */
+	private void addMetrics( final ParseMetrics metrics ) {
+		for ( int i = 0; i < phaseNanos.length; i++ )
+			if ( metrics.phaseNanos[ i ] != 0 )
+				phaseNanos[ i ].add( metrics.phaseNanos[ i ] );
+		inputBytesCount   .add( metrics.inputBytesCount    );
+		unpackedBytesCount.add( metrics.unpackedBytesCount );
+		for ( int i = 0; i < 256; i++ ) {
+			if ( metrics.commandCounts[ i ] != 0 )
+				commandCounts.addAndGet( i, metrics.commandCounts[ i ] );
+			if ( metrics.unknownCommandCounts[ i ] != 0 )
+				unknownCommandCounts.addAndGet( i, metrics.unknownCommandCounts[ i ] );
+		}
+		skippedBytesCount.add( metrics.skippedBytesCount );
+
+		if ( slowestReplaysCount > 0 )
+			synchronized ( slowestReplays ) {
+				if ( slowestReplays.size() < slowestReplaysCount || metrics.getTotalNanos() > slowestReplays.peek().getTotalNanos() ) {
+					slowestReplays.add( metrics );
+					if ( slowestReplays.size() > slowestReplaysCount )
+						slowestReplays.poll();
+				}
+			}
+	}
+
+	public long getParsedReplaysCount() {
+		return parsedReplaysCount.sum();
+	}
+
+	public long getFailedReplaysCount() {
+		return failedReplaysCount.sum();
+	}
+
+	public Map< String, Long > getPhaseMillis() {
+		final Map< String, Long > phaseMillis = new LinkedHashMap< String, Long >();
+		for ( int i = 0; i < phaseNanos.length; i++ )
+			phaseMillis.put( ParseMetrics.PHASE_NAMES[ i ], phaseNanos[ i ].sum() / 1000000 );
+		return phaseMillis;
+	}
+
+	public long getInputBytesCount() {
+		return inputBytesCount.sum();
+	}
+
+	public long getUnpackedBytesCount() {
+		return unpackedBytesCount.sum();
+	}
+
+	public Map< String, Long > getCommandCounts() {
+		return toMap( commandCounts );
+	}
+
+	public Map< String, Long > getUnknownCommandCounts() {
+		return toMap( unknownCommandCounts );
+	}
+
+	public long getSkippedBytesCount() {
+		return skippedBytesCount.sum();
+	}
+
+	public Map< String, Long > getFailureCounts() {
+		final Map< String, Long > counts = new TreeMap< String, Long >();
+		for ( final Map.Entry< String, LongAdder > entry : failureCounts.entrySet() )
+			counts.put( entry.getKey(), entry.getValue().sum() );
+		return counts;
+	}
+
+	public String[] getSlowestReplays() {
+		final ParseMetrics[] metricsArray;
+		synchronized ( slowestReplays ) {
+			metricsArray = slowestReplays.toArray( new ParseMetrics[ slowestReplays.size() ] );
+		}
+		Arrays.sort( metricsArray, Collections.reverseOrder( TOTAL_TIME_COMPARATOR ) );
+
+		final String[] descriptions = new String[ metricsArray.length ];
+		for ( int i = 0; i < descriptions.length; i++ )
+			descriptions[ i ] = metricsArray[ i ].toString() + " (dominant phase: " + ParseMetrics.PHASE_NAMES[ metricsArray[ i ].getDominantPhase() ] + ")";
+		return descriptions;
+	}
+
+	public void reset() {
+		parsedReplaysCount.reset();
+		failedReplaysCount.reset();
+		for ( final LongAdder adder : phaseNanos )
+			adder.reset();
+		inputBytesCount   .reset();
+		unpackedBytesCount.reset();
+		for ( int i = 0; i < 256; i++ ) {
+			commandCounts       .set( i, 0 );
+			unknownCommandCounts.set( i, 0 );
+		}
+		skippedBytesCount.reset();
+		failureCounts.clear();
+		synchronized ( slowestReplays ) {
+			slowestReplays.clear();
+		}
+	}
+
+	/**
+	 * Converts counts indexed by block ID to a map, omitting the zero counts.
+	 * @param counts counts indexed by block ID
+	 * @return a map of the non-zero counts by hexadecimal block ID
+	 */
+	private static Map< String, Long > toMap( final AtomicLongArray counts ) {
+		final Map< String, Long > map = new TreeMap< String, Long >();
+		for ( int i = 0; i < counts.length(); i++ ) {
+			final long count = counts.get( i );
+			if ( count != 0 )
+				map.put( String.format( "0x%02x", i ), count );
+		}
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append( "Parsed: " ).append( getParsedReplaysCount() ).append( ", failed: " ).append( getFailedReplaysCount() );
+		builder.append( ", bytes: " ).append( getInputBytesCount() ).append( " -> " ).append( getUnpackedBytesCount() );
+		builder.append( "\nPhases (ms): " ).append( getPhaseMillis() );
+		if ( !failureCounts.isEmpty() )
+			builder.append( "\nFailures: " ).append( getFailureCounts() );
+		if ( getSkippedBytesCount() > 0 )
+			builder.append( "\nUnknown commands: " ).append( getUnknownCommandCounts() ).append( ", skipped bytes: " ).append( getSkippedBytesCount() );
+		for ( final String slowestReplay : getSlowestReplays() )
+			builder.append( "\n  " ).append( slowestReplay );
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,43 @@
+package control;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ParseStatistics}.
+ */
+public interface ParseStatisticsMXBean {
+
+	/** @return the number of parsed replays */
+	long getParsedReplaysCount();
+
+	/** @return the number of replays which could not be parsed */
+	long getFailedReplaysCount();
+
+	/** @return the milliseconds spent in the parse phases by phase name */
+	Map< String, Long > getPhaseMillis();
+
+	/** @return the number of bytes read from the replays (compressed size) */
+	long getInputBytesCount();
+
+	/** @return the number of unpacked bytes of the processed sections */
+	long getUnpackedBytesCount();
+
+	/** @return the number of decoded known commands by block ID (hexadecimal) */
+	Map< String, Long > getCommandCounts();
+
+	/** @return the number of unknown commands by block ID (hexadecimal) */
+	Map< String, Long > getUnknownCommandCounts();
+
+	/** @return the number of bytes skipped after unknown commands */
+	long getSkippedBytesCount();
+
+	/** @return the number of failed replays by failure cause (phase and exception type) */
+	Map< String, Long > getFailureCounts();
+
+	/** @return descriptions of the slowest replays, slowest first */
+	String[] getSlowestReplays();
+
+	/** Resets the statistics. */
+	void reset();
+
+}
@@ -0,0 +1,124 @@
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import model.HeaderIndex;
+import model.PlayerHistory;
+
+/**
+ * Inverted index from player names to their replays in a {@link HeaderIndex}.<br>
+ * Names are normalized (trimmed and lower cased), so lookups are case-insensitive;
+ * the names are kept sorted so players can be looked up by name prefix too.
+ *
+ * <p>The index is updated incrementally: {@link #update()} only processes the replays added to the header index
+ * since the last update. Computers are not indexed.</p>
+ */
+public class PlayerNameIndex {
+
+	/** The header index whose players are indexed.    */
+	public final HeaderIndex headerIndex;
+
+	/** Histories of the players by normalized name.   */
+	private final TreeMap< String, PlayerHistory > nameHistoryMap = new TreeMap< String, PlayerHistory >();
+	/** Histories of the player names by player name ID in the header index (to normalize each name only once). */
+	private final List< PlayerHistory >            playerNameIdHistoryList = new ArrayList< PlayerHistory >();
+	/** Number of replays of the header index already indexed. */
+	private int                                    indexedReplaysCount;
+
+	/**
+	 * Creates a new PlayerNameIndex and indexes the replays of the header index.
+	 * @param headerIndex the header index whose players to index
+	 */
+	public PlayerNameIndex( final HeaderIndex headerIndex ) {
+		this.headerIndex = headerIndex;
+		update();
+	}
+
+	/**
+	 * Normalizes a player name.
+	 * @param playerName player name to be normalized
+	 * @return the normalized player name
+	 */
+	public static String normalizeName( final String playerName ) {
+		return playerName.trim().toLowerCase( Locale.ENGLISH );
+	}
+
+	/**
+	 * Indexes the replays added to the header index since the last update.
+	 * @return the number of newly indexed replays
+	 */
+	public int update() {
+		final int size = headerIndex.size;
+		for ( int replayId = indexedReplaysCount; replayId < size; replayId++ )
+			for ( int playerIndex = 0; playerIndex < HeaderIndex.PLAYER_SLOTS; playerIndex++ ) {
+				final int slot         = replayId * HeaderIndex.PLAYER_SLOTS + playerIndex;
+				final int playerNameId = headerIndex.playerNameIds[ slot ];
+				if ( playerNameId < 0 || headerIndex.playerIds[ slot ] == (byte) 0xff ) // Computers are listed with playerId values of 0xff
+					continue;
+
+				getHistory( playerNameId ).addGame( replayId, headerIndex.playerNames.get( playerNameId ), headerIndex.playerRaces[ slot ], headerIndex.playerApms[ slot ] );
+			}
+
+		final int newReplaysCount = size - indexedReplaysCount;
+		indexedReplaysCount = size;
+		return newReplaysCount;
+	}
+
+	/**
+	 * Returns the history of a player name, creates it if it doesn't exist yet.
+	 * @param playerNameId ID of the player name in the header index
+	 * @return the history of the player name
+	 */
+	private PlayerHistory getHistory( final int playerNameId ) {
+		while ( playerNameIdHistoryList.size() <= playerNameId )
+			playerNameIdHistoryList.add( null );
+
+		PlayerHistory history = playerNameIdHistoryList.get( playerNameId );
+		if ( history == null ) {
+			final String normalizedName = normalizeName( headerIndex.playerNames.get( playerNameId ) );
+			history = nameHistoryMap.get( normalizedName );
+			if ( history == null )
+				nameHistoryMap.put( normalizedName, history = new PlayerHistory( normalizedName ) );
+			playerNameIdHistoryList.set( playerNameId, history );
+		}
+
+		return history;
+	}
+
+	/**
+	 * Returns the history of a player.
+	 * @param playerName name of the player (case-insensitive)
+	 * @return the history of the player; or <code>null</code> if the player is not in the index
+	 */
+	public PlayerHistory get( final String playerName ) {
+		return nameHistoryMap.get( normalizeName( playerName ) );
+	}
+
+	/**
+	 * Returns the histories of the players whose name starts with a prefix.
+	 * @param prefix prefix of the player names (case-insensitive)
+	 * @return the histories of the players whose name starts with the prefix, ordered by normalized name
+	 */
+	public List< PlayerHistory > findByPrefix( final String prefix ) {
+		final String normalizedPrefix = normalizeName( prefix );
+		final List< PlayerHistory > historyList = new ArrayList< PlayerHistory >();
+		for ( final PlayerHistory history : nameHistoryMap.tailMap( normalizedPrefix ).values() ) {
+			if ( !history.normalizedName.startsWith( normalizedPrefix ) )
+				break;
+			historyList.add( history );
+		}
+		return historyList;
+	}
+
+	/**
+	 * Returns the number of indexed players.
+	 * @return the number of indexed players
+	 */
+	public int size() {
+		return nameHistoryMap.size();
+	}
+
+}
@@ -0,0 +1,411 @@
+package control;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import model.Action;
+import model.PlayerActions;
+import model.Replay;
+import model.ReplayActions;
+import model.ReplayTimeline;
+
+/**
+ * Streaming exporter which writes the actions of replays in text formats.<br>
+ * Supported formats are the BWChart export format (which can be read back by {@link ReplayActionsParser})
+ * and a tab or comma separated table format.
+ *
+ * <p>All output goes through one reusable byte buffer: numbers are formatted directly into the buffer,
+ * action names are taken from a pre-encoded name table, and player names are encoded once per replay.
+ * The exporter is not thread-safe, use one instance per output stream.</p>
+ */
+public class ReplayActionsExporter {
+
+	/** BWChart export format: <code>frame TAB player TAB action TAB parameters TAB TAB unitIds</code>. */
+	public static final int FORMAT_BWCHART = 0;
+	/** Tab separated values with a header line, see {@link #COLUMN_NAMES}; tabs and line breaks in the fields are replaced with spaces. */
+	public static final int FORMAT_TSV     = 1;
+	/** Comma separated values with a header line, see {@link #COLUMN_NAMES}. */
+	public static final int FORMAT_CSV     = 2;
+
+	/** Column names of the TSV and CSV formats. */
+	public static final String[] COLUMN_NAMES = {
+		"replay", "frame", "player", "action_id", "action", "subaction_id", "unit_id", "building_id", "pos_x", "pos_y", "parameters"
+	};
+
+	/** Default size of the output buffer. */
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/** UTF-8 encoded action names indexed by the unsigned action name index. */
+	private static final byte[][] ACTION_NAME_BYTES    = new byte[ 256 ][];
+	/** UTF-8 encoded subaction names indexed by the unsigned subaction name index; <code>null</code> if unknown. */
+	private static final byte[][] SUBACTION_NAME_BYTES = new byte[ 256 ][];
+	/** Name written for actions which were not parsed. */
+	private static final byte[]   NOT_PARSED_BYTES     = "<not parsed>".getBytes( StandardCharsets.UTF_8 );
+	static {
+		for ( int i = 0; i < 256; i++ ) {
+			final String actionName = Action.ACTION_ID_NAME_MAP.get( (byte) i );
+			ACTION_NAME_BYTES[ i ] = ( actionName == null ? "0x" + Integer.toHexString( i ) : actionName ).getBytes( StandardCharsets.UTF_8 );
+
+			final String subactionName = Action.SUBACTION_ID_NAME_MAP.get( (byte) i );
+			if ( subactionName != null )
+				SUBACTION_NAME_BYTES[ i ] = subactionName.getBytes( StandardCharsets.UTF_8 );
+		}
+	}
+
+	/** Output stream to write to. */
+	private final OutputStream output;
+	/** Format of the output.      */
+	private final int          format;
+	/** Field separator of the table formats. */
+	private final byte         separator;
+	/** Tells if tabs and line breaks in the fields are replaced with spaces (TSV format). */
+	private final boolean      replaceBreaks;
+
+	/** Output buffer.                         */
+	private final byte[]       buffer;
+	/** Number of bytes pending in the buffer. */
+	private int                count;
+
+	/**
+	 * Creates a new ReplayActionsExporter with the default buffer size.
+	 * @param output output stream to write to
+	 * @param format format of the output, one of the <code>FORMAT_XXX</code> constants
+	 */
+	public ReplayActionsExporter( final OutputStream output, final int format ) {
+		this( output, format, DEFAULT_BUFFER_SIZE );
+	}
+
+	/**
+	 * Creates a new ReplayActionsExporter.
+	 * @param output     output stream to write to
+	 * @param format     format of the output, one of the <code>FORMAT_XXX</code> constants
+	 * @param bufferSize size of the output buffer in bytes
+	 */
+	public ReplayActionsExporter( final OutputStream output, final int format, final int bufferSize ) {
+		if ( format < FORMAT_BWCHART || format > FORMAT_CSV )
+			throw new IllegalArgumentException( "Unknown format: " + format );
+
+		this.output        = output;
+		this.format        = format;
+		this.separator     = format == FORMAT_CSV ? (byte) ',' : (byte) '\t';
+		this.replaceBreaks = format == FORMAT_TSV;
+		this.buffer        = new byte[ Math.max( bufferSize, 256 ) ];
+	}
+
+	/**
+	 * Writes the header line of the table formats. Does nothing in case of the BWChart format.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeHeader() throws IOException {
+		if ( format == FORMAT_BWCHART )
+			return;
+
+		for ( int i = 0; i < COLUMN_NAMES.length; i++ ) {
+			if ( i > 0 )
+				writeByte( separator );
+			writeString( COLUMN_NAMES[ i ], false );
+		}
+		writeByte( (byte) '\n' );
+	}
+
+	/**
+	 * Exports the actions of a replay.
+	 * @param replayId id of the replay written in the first column of the table formats (may be <code>null</code>)
+	 * @param replay   replay whose actions to be exported; must have been parsed with the commands section
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void exportReplay( final String replayId, final Replay replay ) throws IOException {
+		if ( replay.replayActions != null )
+			exportActions( replayId, replay.replayActions );
+	}
+
+	/**
+	 * Exports replay actions.<br>
+	 * Actions are written in the order of the {@link ReplayActions#getTimeline() timeline}.
+	 * @param replayId      id of the replay written in the first column of the table formats (may be <code>null</code>)
+	 * @param replayActions replay actions to be exported
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void exportActions( final String replayId, final ReplayActions replayActions ) throws IOException {
+		final PlayerActions[] players = replayActions.players;
+
+		// Encode the names once, they are repeated in every line
+		final byte[]   replayIdBytes    = replayId == null ? null : replayId.getBytes( StandardCharsets.UTF_8 );
+		final byte[][] playerNameBytes  = new byte[ players.length ][];
+		for ( int i = 0; i < players.length; i++ )
+			playerNameBytes[ i ] = players[ i ].playerName.getBytes( StandardCharsets.UTF_8 );
+
+		final ReplayTimeline timeline = replayActions.getTimeline();
+		for ( int i = 0; i < timeline.size; i++ ) {
+			final int playerIndex = timeline.playerIndices[ i ];
+			if ( format == FORMAT_BWCHART )
+				writeBWChartLine( playerNameBytes[ playerIndex ], timeline.actions[ i ] );
+			else
+				writeTableLine( replayIdBytes, playerNameBytes[ playerIndex ], timeline.actions[ i ] );
+		}
+	}
+
+	/**
+	 * Writes an action in the BWChart export format.
+	 * @param playerNameBytes encoded name of the player of the action
+	 * @param action          action to be written
+	 */
+	private void writeBWChartLine( final byte[] playerNameBytes, final Action action ) throws IOException {
+		writeInt( action.iteration );
+		writeByte( (byte) '\t' );
+		writeBytes( playerNameBytes );
+		writeByte( (byte) '\t' );
+		writeBytes( getActionNameBytes( action ) );
+		writeByte( (byte) '\t' );
+		if ( action.parameters != null )
+			writeString( action.parameters, false );
+		writeByte( (byte) '\t' );
+		writeByte( (byte) '\t' );
+		if ( action.unitIds != null )
+			writeString( action.unitIds, false );
+		writeByte( (byte) '\n' );
+	}
+
+	/**
+	 * Writes an action as a line of the table formats.
+	 * @param replayIdBytes   encoded id of the replay; may be <code>null</code>
+	 * @param playerNameBytes encoded name of the player of the action
+	 * @param action          action to be written
+	 */
+	private void writeTableLine( final byte[] replayIdBytes, final byte[] playerNameBytes, final Action action ) throws IOException {
+		final boolean quote = format == FORMAT_CSV;
+
+		if ( replayIdBytes != null )
+			writeField( replayIdBytes, quote );
+		writeByte( separator );
+		writeInt( action.iteration );
+		writeByte( separator );
+		writeField( playerNameBytes, quote );
+		writeByte( separator );
+		writeInt( action.actionNameIndex & 0xff );
+		writeByte( separator );
+		writeField( getActionNameBytes( action ), quote );
+		writeByte( separator );
+		writeInt( action.subactionNameIndex & 0xff );
+		writeByte( separator );
+		writeInt( action.parameterUnitNameIndex );
+		writeByte( separator );
+		writeInt( action.parameterBuildingNameIndex );
+		writeByte( separator );
+		if ( action.posX != null )
+			writeInt( action.posX );
+		writeByte( separator );
+		if ( action.posY != null )
+			writeInt( action.posY );
+		writeByte( separator );
+		if ( action.parameters != null )
+			writeString( action.parameters, quote );
+		writeByte( (byte) '\n' );
+	}
+
+	/**
+	 * Returns the encoded name of an action.<br>
+	 * The name is chosen the same way as in {@link Action#toString(String, boolean)}.
+	 * @param action action whose name to be returned
+	 * @return the encoded name of the action
+	 */
+	private static byte[] getActionNameBytes( final Action action ) {
+		if ( action.subactionNameIndex != Action.SUBACTION_NAME_INDEX_UNKNOWN && SUBACTION_NAME_BYTES[ action.subactionNameIndex & 0xff ] != null )
+			return SUBACTION_NAME_BYTES[ action.subactionNameIndex & 0xff ];
+		if ( action.actionNameIndex != Action.ACTION_NAME_INDEX_UNKNOWN )
+			return ACTION_NAME_BYTES[ action.actionNameIndex & 0xff ];
+		return NOT_PARSED_BYTES;
+	}
+
+	/**
+	 * Writes an already encoded field, quoting it if required. Tabs and line breaks are replaced in the TSV format.
+	 * @param bytes encoded field
+	 * @param quote tells if the field has to be quoted if it contains special characters
+	 */
+	private void writeField( final byte[] bytes, final boolean quote ) throws IOException {
+		if ( quote && needsQuoting( bytes ) ) {
+			writeByte( (byte) '"' );
+			for ( final byte b : bytes ) {
+				if ( b == '"' )
+					writeByte( (byte) '"' );
+				writeByte( b );
+			}
+			writeByte( (byte) '"' );
+		}
+		else if ( replaceBreaks && containsBreak( bytes ) ) {
+			// Bytes of multi-byte UTF-8 sequences are never ASCII, so they are not replaced
+			for ( final byte b : bytes )
+				writeByte( isBreak( b ) ? (byte) ' ' : b );
+		}
+		else
+			writeBytes( bytes );
+	}
+
+	/**
+	 * Tells if an encoded TSV field contains a tab or line break character.
+	 * @param bytes encoded field
+	 * @return true if the field contains a tab or line break character; false otherwise
+	 */
+	private static boolean containsBreak( final byte[] bytes ) {
+		for ( final byte b : bytes )
+			if ( isBreak( b ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Tells if a character is a tab or line break character.
+	 */
+	private static boolean isBreak( final int ch ) {
+		return ch == '\t' || ch == '\n' || ch == '\r';
+	}
+
+	/**
+	 * Tells if an encoded CSV field has to be quoted.
+	 * @param bytes encoded field
+	 * @return true if the field contains a separator, quote or line break character; false otherwise
+	 */
+	private static boolean needsQuoting( final byte[] bytes ) {
+		for ( final byte b : bytes )
+			if ( b == ',' || b == '"' || b == '\n' || b == '\r' )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Writes a string encoded in UTF-8 without creating intermediate objects. Tabs and line breaks are replaced in the TSV format.
+	 * @param string string to be written
+	 * @param quote  tells if the string has to be quoted (CSV style) if it contains special characters
+	 */
+	private void writeString( final String string, boolean quote ) throws IOException {
+		final int length = string.length();
+
+		if ( quote ) {
+			quote = false;
+			for ( int i = 0; i < length && !quote; i++ ) {
+				final char ch = string.charAt( i );
+				quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+			}
+		}
+
+		if ( quote )
+			writeByte( (byte) '"' );
+
+		for ( int i = 0; i < length; i++ ) {
+			final char ch = string.charAt( i );
+			if ( ch < 0x80 ) {
+				if ( quote && ch == '"' )
+					writeByte( (byte) '"' );
+				writeByte( replaceBreaks && isBreak( ch ) ? (byte) ' ' : (byte) ch );
+			}
+			else if ( ch < 0x800 ) {
+				writeByte( (byte) ( 0xc0 | ch >> 6 ) );
+				writeByte( (byte) ( 0x80 | ch & 0x3f ) );
+			}
+			else if ( Character.isHighSurrogate( ch ) && i + 1 < length && Character.isLowSurrogate( string.charAt( i + 1 ) ) ) {
+				final int codePoint = Character.toCodePoint( ch, string.charAt( ++i ) );
+				writeByte( (byte) ( 0xf0 | codePoint >> 18 ) );
+				writeByte( (byte) ( 0x80 | codePoint >> 12 & 0x3f ) );
+				writeByte( (byte) ( 0x80 | codePoint >>  6 & 0x3f ) );
+				writeByte( (byte) ( 0x80 | codePoint       & 0x3f ) );
+			}
+			else {
+				writeByte( (byte) ( 0xe0 | ch >> 12 ) );
+				writeByte( (byte) ( 0x80 | ch >> 6 & 0x3f ) );
+				writeByte( (byte) ( 0x80 | ch & 0x3f ) );
+			}
+		}
+
+		if ( quote )
+			writeByte( (byte) '"' );
+	}
+
+	/**
+	 * Writes the decimal representation of an int directly into the buffer.
+	 * @param value value to be written
+	 */
+	private void writeInt( int value ) throws IOException {
+		if ( count + 11 > buffer.length )
+			flushBuffer();
+
+		if ( value < 0 ) {
+			if ( value == Integer.MIN_VALUE ) {
+				writeString( "-2147483648", false );
+				return;
+			}
+			buffer[ count++ ] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for ( int limit = 10; digits < 10 && value >= limit; limit *= 10 )
+			digits++;
+
+		for ( int pos = count + digits - 1; pos >= count; pos-- ) {
+			buffer[ pos ] = (byte) ( '0' + value % 10 );
+			value /= 10;
+		}
+		count += digits;
+	}
+
+	/**
+	 * Writes a byte array into the buffer.
+	 * @param bytes bytes to be written
+	 */
+	private void writeBytes( final byte[] bytes ) throws IOException {
+		if ( count + bytes.length > buffer.length ) {
+			flushBuffer();
+			if ( bytes.length > buffer.length ) {
+				output.write( bytes );
+				return;
+			}
+		}
+		System.arraycopy( bytes, 0, buffer, count, bytes.length );
+		count += bytes.length;
+	}
+
+	/**
+	 * Writes a byte into the buffer.
+	 * @param b byte to be written
+	 */
+	private void writeByte( final byte b ) throws IOException {
+		if ( count == buffer.length )
+			flushBuffer();
+		buffer[ count++ ] = b;
+	}
+
+	/**
+	 * Writes the pending bytes of the buffer to the output stream.
+	 */
+	private void flushBuffer() throws IOException {
+		if ( count > 0 ) {
+			output.write( buffer, 0, count );
+			count = 0;
+		}
+	}
+
+	/**
+	 * Writes the buffered output and flushes the output stream.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		output.flush();
+	}
+
+	/**
+	 * Flushes and closes the output stream.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		}
+		finally {
+			output.close();
+		}
+	}
+
+}
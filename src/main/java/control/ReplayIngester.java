@@ -0,0 +1,822 @@
+package control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import model.HackDescription;
+import model.Replay;
+
+/**
+ * Long-running ingester of the replays landing in watched folders.<br>
+ * The folders (and their sub-folders) are watched with a {@link WatchService}; if it is not available
+ * (or polling is forced, e.g. for network shares where file events are not delivered), the folders are polled periodically.
+ *
+ * <p>Detected replay files are pending until their size and modification time are unchanged for {@link #debounceMillis},
+ * so files still being written or copied are not picked up. Ready files are queued for a bounded worker pool which parses them,
+ * scans them for hacks and hands the results to a {@link Sink}. When the queue is full, ready files stay pending.</p>
+ *
+ * <p>The processed files (path, size and modification time) are recorded in a checkpoint file which is saved periodically and on stop,
+ * after flushing the sink. Deleted files are dropped from it on their delete events and by the folder scans (on start, on lost events
+ * and on each poll). On start, files of the folders not in the checkpoint (or changed since) are ingested, so the state survives restarts.
+ * Delivery is at-least-once: files processed after the last checkpoint are processed again after a crash.</p>
+ *
+ * <p>Queue lag and processing latency can be published over JMX with {@link #registerMBean()}.</p>
+ */
+public class ReplayIngester implements ReplayIngesterMXBean {
+
+	/**
+	 * Receiver of the ingestion results. Methods are called concurrently from the worker threads.
+	 */
+	public interface Sink {
+		/**
+		 * Called when a replay file is parsed and scanned.
+		 * @param replayFile replay file
+		 * @param replay     the parsed replay
+		 * @param hackList   hacks found in the replay
+		 * @throws IOException if the results cannot be written; the file is not checkpointed
+		 */
+		void replayIngested( File replayFile, Replay replay, List< HackDescription > hackList ) throws IOException;
+
+		/**
+		 * Called when a file cannot be parsed.
+		 * @param replayFile replay file
+		 * @param cause      cause of the failure
+		 * @throws IOException if the failure cannot be written; the file is not checkpointed
+		 */
+		void replayFailed( File replayFile, Exception cause ) throws IOException;
+
+		/**
+		 * Called when the ingester hits an error it recovers from: the folders cannot be watched or scanned,
+		 * the results of a file or the checkpoint cannot be saved.
+		 * @param message description of the error
+		 * @param cause   cause of the error
+		 */
+		void ingestError( String message, Exception cause );
+
+		/**
+		 * Makes the written results durable. Called before saving the checkpoint.
+		 * @throws IOException if the results cannot be flushed; the checkpoint is not saved
+		 */
+		void flush() throws IOException;
+	}
+
+	/** Object name of the MBean. */
+	public static final String OBJECT_NAME = "bwhf:type=ReplayIngester";
+
+	/** Magic number of the checkpoint files: "RING". */
+	private static final int FILE_MAGIC   = 0x474e4952;
+	/** Version of the checkpoint file format.       */
+	private static final int FILE_VERSION = 1;
+
+	/** Extension of the replay files. */
+	private static final String REPLAY_EXTENSION = ".rep";
+
+	/** Folders to ingest the replays of.                 */
+	public final List< File > folders;
+	/** File to record the processed files in.            */
+	public final File         checkpointFile;
+	/** Receiver of the results.                          */
+	public final Sink         sink;
+	/** Number of worker threads.                         */
+	public final int          threadsCount;
+
+	/** Time a file must be unchanged (size and modification time) before it is processed, in milliseconds. Set before {@link #start()}. */
+	public long    debounceMillis           = 2000;
+	/** Interval of polling the folders when they are not watched, in milliseconds. Set before {@link #start()}.                       */
+	public long    pollIntervalMillis       = 5000;
+	/** Interval of saving the checkpoint (if files were processed since), in milliseconds. Set before {@link #start()}.              */
+	public long    checkpointIntervalMillis = 10000;
+	/** Capacity of the queue of the workers. Set before {@link #start()}.                                                            */
+	public int     queueCapacity            = 1024;
+	/** Tells if the folders are to be polled even if a watch service is available. Set before {@link #start()}.                      */
+	public boolean forcePolling;
+
+	/**
+	 * A detected file.
+	 */
+	private static class Candidate {
+		public final File   file;
+		public final String path;
+		/** Size and modification time when last checked.    */
+		public long         size, lastModified;
+		/** Time of the detection (nano time).               */
+		public final long   detectedNanos;
+		/** Time since the file is unchanged (nano time).    */
+		public long         unchangedNanos;
+		/** Time the file was queued for the workers (nano time). */
+		public long         queuedNanos;
+
+		public Candidate( final File file, final String path, final long size, final long lastModified, final long detectedNanos ) {
+			this.file          = file;
+			this.path          = path;
+			this.size          = size;
+			this.lastModified  = lastModified;
+			this.detectedNanos = detectedNanos;
+		}
+	}
+
+	/**
+	 * Task of the workers processing a candidate.
+	 */
+	private class IngestTask implements Runnable {
+		public final Candidate candidate;
+
+		public IngestTask( final Candidate candidate ) {
+			this.candidate = candidate;
+		}
+
+		public void run() {
+			process( candidate );
+		}
+	}
+
+	/**
+	 * Count, sum and maximum of durations.
+	 */
+	private static class Timing {
+		private final LongAdder  count    = new LongAdder();
+		private final LongAdder  sumNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		public void add( final long nanos ) {
+			count.increment();
+			sumNanos.add( nanos );
+			long max;
+			while ( nanos > ( max = maxNanos.get() ) && !maxNanos.compareAndSet( max, nanos ) )
+				;
+		}
+
+		public double getAverageMillis() {
+			final long n = count.sum();
+			return n == 0 ? 0 : sumNanos.sum() / 1e6 / n;
+		}
+
+		public long getMaxMillis() {
+			return maxNanos.get() / 1000000;
+		}
+
+		public void reset() {
+			count.reset();
+			sumNanos.reset();
+			maxNanos.set( 0 );
+		}
+	}
+
+	/** Size and modification time of the processed files by absolute path. */
+	private final Map< String, long[] >       processedMap = new HashMap< String, long[] >();
+	/** Detected files waiting to be queued by absolute path, in detection order. */
+	private final Map< String, Candidate >    candidateMap = new LinkedHashMap< String, Candidate >();
+	/** Absolute paths of the queued files and of the files being processed. */
+	private final Set< String >               inFlightSet  = new HashSet< String >();
+	/** Tells if files were processed since the checkpoint was saved. */
+	private volatile boolean                  checkpointDirty;
+
+	private final LongAdder     ingestedCount   = new LongAdder();
+	private final LongAdder     failedCount     = new LongAdder();
+	private final LongAdder     sinkErrorsCount = new LongAdder();
+	private final AtomicInteger inProgressCount = new AtomicInteger();
+	private final Timing        queueLag        = new Timing();
+	private final Timing        processingTime  = new Timing();
+	private final Timing        latency         = new Timing();
+
+	private ThreadPoolExecutor       workers;
+	private ScheduledExecutorService scheduler;
+	private WatchService             watchService;
+	private Thread                   watchThread;
+	private volatile boolean         polling;
+	private volatile boolean         stopped;
+
+	/**
+	 * Creates a new ReplayIngester.<br>
+	 * If the checkpoint file exists, the processed files are loaded from it.
+	 * @param folders        folders to ingest the replays of (watched recursively)
+	 * @param checkpointFile file to record the processed files in
+	 * @param sink           receiver of the results
+	 * @param threadsCount   number of worker threads
+	 * @throws IOException if the checkpoint file exists but cannot be loaded
+	 */
+	public ReplayIngester( final List< File > folders, final File checkpointFile, final Sink sink, final int threadsCount ) throws IOException {
+		this.folders        = folders;
+		this.checkpointFile = checkpointFile;
+		this.sink           = sink;
+		this.threadsCount   = threadsCount;
+
+		if ( checkpointFile.exists() ) {
+			final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( checkpointFile ), 1 << 16 ) );
+			try {
+				if ( input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION )
+					throw new IOException( "Not a checkpoint file: " + checkpointFile );
+				final int count = input.readInt();
+				for ( int i = 0; i < count; i++ ) {
+					final String path = input.readUTF();
+					processedMap.put( path, new long[] { input.readLong(), input.readLong() } );
+				}
+			}
+			finally {
+				input.close();
+			}
+		}
+	}
+
+	/**
+	 * Starts the ingester: starts the workers, watching (or polling) the folders and queues the files not processed yet.
+	 */
+	public synchronized void start() {
+		workers = new ThreadPoolExecutor( threadsCount, threadsCount, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue< Runnable >( queueCapacity ), daemonThreads( "ingest-worker" ) );
+		scheduler = Executors.newSingleThreadScheduledExecutor( daemonThreads( "ingest-scheduler" ) );
+
+		if ( !forcePolling ) {
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+				for ( final File folder : folders )
+					registerTree( folder.toPath() );
+			} catch ( final IOException ie ) {
+				sink.ingestError( "Cannot watch the folders, falling back to polling", ie );
+				closeWatchService();
+			} catch ( final UnsupportedOperationException uoe ) {
+				sink.ingestError( "Cannot watch the folders, falling back to polling", uoe );
+				closeWatchService();
+			}
+		}
+		polling = watchService == null;
+
+		if ( polling ) {
+			// The first poll finds the files not processed yet
+			scheduler.scheduleWithFixedDelay( new Runnable() {
+				public void run() {
+					scanFolders();
+				}
+			}, 0, pollIntervalMillis, TimeUnit.MILLISECONDS );
+		}
+		else {
+			watchThread = new Thread( new Runnable() {
+				public void run() {
+					watchFolders();
+				}
+			}, "ingest-watcher" );
+			watchThread.setDaemon( true );
+			watchThread.start();
+			// Files created before the folders were registered are found by a scan
+			scheduler.execute( new Runnable() {
+				public void run() {
+					scanFolders();
+				}
+			} );
+		}
+
+		final long checkPeriodMillis = Math.max( 50, Math.min( 500, debounceMillis / 4 ) );
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				queueCandidates();
+			}
+		}, checkPeriodMillis, checkPeriodMillis, TimeUnit.MILLISECONDS );
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				if ( checkpointDirty )
+					try {
+						saveCheckpoint();
+					} catch ( final IOException ie ) {
+						sink.ingestError( "Failed to save the checkpoint", ie );
+					}
+			}
+		}, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Stops the ingester: stops watching the folders, waits for the files being processed and saves the checkpoint.<br>
+	 * Queued files not processed yet are not checkpointed, they are ingested after the next start.
+	 * @throws IOException if the checkpoint cannot be saved
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public synchronized void stop() throws IOException, InterruptedException {
+		if ( stopped || workers == null )
+			return;
+		stopped = true;
+		closeWatchService();
+		scheduler.shutdownNow();
+		workers.shutdownNow();
+		workers.awaitTermination( 1, TimeUnit.MINUTES );
+		scheduler.awaitTermination( 1, TimeUnit.MINUTES );
+		saveCheckpoint();
+	}
+
+	/**
+	 * Saves the checkpoint: flushes the sink and records the processed files in the checkpoint file.<br>
+	 * The checkpoint is written to a temporary file first which then replaces the checkpoint file.
+	 * @throws IOException if the sink cannot be flushed or the checkpoint file cannot be written
+	 */
+	public void saveCheckpoint() throws IOException {
+		// Take the snapshot before flushing so all the recorded files have their results flushed
+		checkpointDirty = false;
+		final String[] paths;
+		final long[][] states;
+		synchronized ( processedMap ) {
+			paths  = processedMap.keySet().toArray( new String[ processedMap.size() ] );
+			states = new long[ paths.length ][];
+			for ( int i = 0; i < paths.length; i++ )
+				states[ i ] = processedMap.get( paths[ i ] );
+		}
+
+		try {
+			sink.flush();
+		} catch ( final IOException ie ) {
+			checkpointDirty = true;
+			throw ie;
+		}
+
+		synchronized ( checkpointFile ) {
+			final File tempFile = new File( checkpointFile.getPath() + ".tmp" );
+			final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ), 1 << 16 ) );
+			try {
+				output.writeInt( FILE_MAGIC   );
+				output.writeInt( FILE_VERSION );
+				output.writeInt( paths.length );
+				for ( int i = 0; i < paths.length; i++ ) {
+					output.writeUTF( paths[ i ] );
+					output.writeLong( states[ i ][ 0 ] );
+					output.writeLong( states[ i ][ 1 ] );
+				}
+			}
+			finally {
+				output.close();
+			}
+
+			Files.move( tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Registers this as an MBean in the platform MBean server.
+	 * @return the object name of the registered MBean
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public ObjectName registerMBean() throws JMException {
+		final ObjectName objectName = new ObjectName( OBJECT_NAME );
+		ManagementFactory.getPlatformMBeanServer().registerMBean( this, objectName );
+		return objectName;
+	}
+
+	/**
+	 * Unregisters this from the platform MBean server.
+	 * @throws JMException if the MBean cannot be unregistered
+	 */
+	public void unregisterMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean( new ObjectName( OBJECT_NAME ) );
+	}
+
+	/**
+	 * Tells if there is nothing to do: no pending, queued or in-progress files.
+	 * @return true if there is nothing to do
+	 */
+	public boolean isIdle() {
+		synchronized ( candidateMap ) {
+			if ( !candidateMap.isEmpty() )
+				return false;
+		}
+		synchronized ( inFlightSet ) {
+			return inFlightSet.isEmpty();
+		}
+	}
+
+	/**
+	 * Registers a folder and its sub-folders in the watch service.
+	 * @param root root folder
+	 * @throws IOException if a folder cannot be registered
+	 */
+	private void registerTree( final Path root ) throws IOException {
+		if ( !Files.isDirectory( root ) )
+			return;
+		Files.walkFileTree( root, new SimpleFileVisitor< Path >() {
+			@Override
+			public FileVisitResult preVisitDirectory( final Path dir, final BasicFileAttributes attrs ) throws IOException {
+				dir.register( watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+	}
+
+	/**
+	 * Processes the events of the watch service until it is closed.
+	 */
+	private void watchFolders() {
+		while ( !stopped ) {
+			final WatchKey key;
+			try {
+				key = watchService.take();
+			} catch ( final InterruptedException ie ) {
+				return;
+			} catch ( final ClosedWatchServiceException cwse ) {
+				return;
+			}
+
+			final Path dir = (Path) key.watchable();
+			for ( final WatchEvent< ? > event : key.pollEvents() ) {
+				if ( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+					// Events were lost
+					scanFolders();
+					continue;
+				}
+				final Path path = dir.resolve( (Path) event.context() );
+				if ( event.kind() == StandardWatchEventKinds.ENTRY_DELETE )
+					forgetProcessed( path );
+				else if ( Files.isDirectory( path ) ) {
+					if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE ) {
+						// Files may have been created in the new folder before it was registered
+						try {
+							registerTree( path );
+						} catch ( final IOException ie ) {
+							sink.ingestError( "Cannot watch folder: " + path, ie );
+						} catch ( final ClosedWatchServiceException cwse ) {
+							return;
+						}
+						scanFolder( path );
+					}
+				}
+				else if ( isReplay( path ) )
+					addCandidate( path.toFile() );
+			}
+			key.reset();
+		}
+	}
+
+	/**
+	 * Scans the folders for files not processed yet.
+	 */
+	private void scanFolders() {
+		for ( final File folder : folders )
+			scanFolder( folder.toPath() );
+	}
+
+	/**
+	 * Scans a folder recursively for files not processed yet.
+	 * If the whole folder was scanned, the processed files in it which were not found are dropped from the processed files.
+	 * @param root root folder
+	 */
+	private void scanFolder( final Path root ) {
+		if ( !Files.isDirectory( root ) )
+			return;
+		final Set< String > foundPathSet = new HashSet< String >();
+		try {
+			Files.walkFileTree( root, new SimpleFileVisitor< Path >() {
+				@Override
+				public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs ) {
+					if ( attrs.isRegularFile() && isReplay( file ) ) {
+						final File replayFile = file.toFile();
+						foundPathSet.add( replayFile.getAbsolutePath() );
+						addCandidate( replayFile );
+					}
+					return stopped ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed( final Path file, final IOException ie ) {
+					// Not a proof of deletion, keep its state
+					foundPathSet.add( file.toFile().getAbsolutePath() );
+					return FileVisitResult.CONTINUE;
+				}
+			} );
+		} catch ( final IOException ie ) {
+			sink.ingestError( "Cannot scan folder: " + root, ie );
+			return;
+		}
+		if ( !stopped )
+			pruneProcessed( root, foundPathSet );
+	}
+
+	/**
+	 * Drops the processed files of a scanned folder which were not found by the scan and do not exist.<br>
+	 * Only the files missed by the scan are checked on the disk (files processed while scanning are missed but exist).
+	 * @param root         scanned folder
+	 * @param foundPathSet absolute paths of the files found by the scan
+	 */
+	private void pruneProcessed( final Path root, final Set< String > foundPathSet ) {
+		final String prefix = root.toFile().getAbsolutePath() + File.separator;
+		final List< String > missedPaths = new ArrayList< String >();
+		synchronized ( processedMap ) {
+			for ( final String path : processedMap.keySet() )
+				if ( path.startsWith( prefix ) && !foundPathSet.contains( path ) )
+					missedPaths.add( path );
+		}
+
+		for ( final String path : missedPaths )
+			if ( !new File( path ).exists() )
+				forgetProcessed( new File( path ).toPath() );
+	}
+
+	/**
+	 * Drops a deleted file from the processed files. If it was a folder, the files in it are dropped.
+	 * @param path path of the deleted file or folder
+	 */
+	private void forgetProcessed( final Path path ) {
+		final String absolutePath = path.toFile().getAbsolutePath();
+		boolean removed;
+		synchronized ( processedMap ) {
+			removed = processedMap.remove( absolutePath ) != null;
+			if ( !isReplay( path ) ) {
+				final String prefix = absolutePath + File.separator;
+				for ( final Iterator< String > iterator = processedMap.keySet().iterator(); iterator.hasNext(); )
+					if ( iterator.next().startsWith( prefix ) ) {
+						iterator.remove();
+						removed = true;
+					}
+			}
+		}
+		if ( removed )
+			checkpointDirty = true;
+	}
+
+	private static boolean isReplay( final Path path ) {
+		return path.getFileName().toString().toLowerCase().endsWith( REPLAY_EXTENSION );
+	}
+
+	/**
+	 * Adds a detected file to the candidates if it was not processed yet (or it changed since).
+	 * @param file detected file
+	 */
+	private void addCandidate( final File file ) {
+		final String path = file.getAbsolutePath();
+		synchronized ( candidateMap ) {
+			if ( candidateMap.containsKey( path ) )
+				return;
+		}
+
+		final long size         = file.length();
+		final long lastModified = file.lastModified();
+		if ( isProcessed( path, size, lastModified ) )
+			return;
+
+		final long now = System.nanoTime();
+		final Candidate candidate = new Candidate( file, path, size, lastModified, now );
+		// Files not modified for the debounce time are complete, no need to wait
+		candidate.unchangedNanos = System.currentTimeMillis() - lastModified >= debounceMillis ? now - debounceMillis * 1000000 : now;
+		synchronized ( candidateMap ) {
+			if ( !candidateMap.containsKey( path ) )
+				candidateMap.put( path, candidate );
+		}
+	}
+
+	private boolean isProcessed( final String path, final long size, final long lastModified ) {
+		synchronized ( processedMap ) {
+			final long[] state = processedMap.get( path );
+			return state != null && state[ 0 ] == size && state[ 1 ] == lastModified;
+		}
+	}
+
+	/**
+	 * Checks the candidates, queues the ones unchanged for the debounce time. Called periodically by the scheduler.
+	 */
+	private void queueCandidates() {
+		final List< Candidate > candidates;
+		synchronized ( candidateMap ) {
+			candidates = new ArrayList< Candidate >( candidateMap.values() );
+		}
+
+		final long now = System.nanoTime();
+		final List< Candidate > removedCandidates = new ArrayList< Candidate >();
+		for ( final Candidate candidate : candidates ) {
+			if ( stopped )
+				return;
+			if ( !candidate.file.isFile() ) {
+				removedCandidates.add( candidate );
+				continue;
+			}
+			final long size         = candidate.file.length();
+			final long lastModified = candidate.file.lastModified();
+			if ( size != candidate.size || lastModified != candidate.lastModified ) {
+				candidate.size           = size;
+				candidate.lastModified   = lastModified;
+				candidate.unchangedNanos = now;
+				continue;
+			}
+			if ( isProcessed( candidate.path, size, lastModified ) ) {
+				removedCandidates.add( candidate );
+				continue;
+			}
+			if ( now - candidate.unchangedNanos < debounceMillis * 1000000 )
+				continue;
+
+			synchronized ( inFlightSet ) {
+				// A previous version of the file is still being processed, its state will be checked again after
+				if ( !inFlightSet.add( candidate.path ) )
+					continue;
+			}
+			candidate.queuedNanos = System.nanoTime();
+			try {
+				workers.execute( new IngestTask( candidate ) );
+			} catch ( final RejectedExecutionException ree ) {
+				// The queue is full (or the ingester is stopped): the rest stays pending
+				synchronized ( inFlightSet ) {
+					inFlightSet.remove( candidate.path );
+				}
+				break;
+			}
+			removedCandidates.add( candidate );
+		}
+
+		synchronized ( candidateMap ) {
+			for ( final Candidate candidate : removedCandidates )
+				candidateMap.remove( candidate.path );
+		}
+	}
+
+	/**
+	 * Parses and scans a replay file and hands the results to the sink. Called by the workers.
+	 * @param candidate candidate to be processed
+	 */
+	private void process( final Candidate candidate ) {
+		final long startNanos = System.nanoTime();
+		queueLag.add( startNanos - candidate.queuedNanos );
+		inProgressCount.incrementAndGet();
+		try {
+			Replay    replay  = null;
+			Exception failure = null;
+			try {
+				final BinReplayUnpacker unpacker = new BinReplayUnpacker( candidate.file );
+				try {
+					replay = BinRepParser.parseReplay( unpacker, candidate.file.getPath(), true, false, false, false );
+				}
+				finally {
+					unpacker.close();
+				}
+				if ( replay == null )
+					failure = new Exception( "Not a replay file!" );
+			} catch ( final Exception e ) {
+				failure = e;
+			}
+
+			try {
+				if ( failure == null )
+					sink.replayIngested( candidate.file, replay, ReplayScanner.scanReplayForHacks( replay, false ) );
+				else
+					sink.replayFailed( candidate.file, failure );
+			} catch ( final IOException ie ) {
+				// Not checkpointed, the file is ingested again after a restart
+				sinkErrorsCount.increment();
+				sink.ingestError( "Failed to write the results of " + candidate.path, ie );
+				return;
+			}
+
+			if ( failure == null )
+				ingestedCount.increment();
+			else
+				failedCount.increment();
+			synchronized ( processedMap ) {
+				processedMap.put( candidate.path, new long[] { candidate.size, candidate.lastModified } );
+			}
+			checkpointDirty = true;
+
+			final long endNanos = System.nanoTime();
+			processingTime.add( endNanos - startNanos );
+			latency.add( endNanos - candidate.detectedNanos );
+		}
+		finally {
+			inProgressCount.decrementAndGet();
+			synchronized ( inFlightSet ) {
+				inFlightSet.remove( candidate.path );
+			}
+		}
+	}
+
+	private void closeWatchService() {
+		if ( watchService != null ) {
+			try {
+				watchService.close();
+			} catch ( final IOException ie ) {
+				// Nothing to do
+			}
+			watchService = null;
+		}
+	}
+
+	private static ThreadFactory daemonThreads( final String name ) {
+		final AtomicInteger counter = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread( final Runnable runnable ) {
+				final Thread thread = new Thread( runnable, name + "-" + counter.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+	}
+
+	public boolean isPolling() {
+		return polling;
+	}
+
+	public int getPendingCount() {
+		synchronized ( candidateMap ) {
+			return candidateMap.size();
+		}
+	}
+
+	public int getQueuedCount() {
+		return workers == null ? 0 : workers.getQueue().size();
+	}
+
+	public int getInProgressCount() {
+		return inProgressCount.get();
+	}
+
+	public long getOldestQueuedMillis() {
+		if ( workers == null )
+			return 0;
+		final Iterator< Runnable > iterator = workers.getQueue().iterator();
+		if ( !iterator.hasNext() )
+			return 0;
+		final Runnable task = iterator.next();
+		return task instanceof IngestTask ? ( System.nanoTime() - ( (IngestTask) task ).candidate.queuedNanos ) / 1000000 : 0;
+	}
+
+	public long getIngestedCount() {
+		return ingestedCount.sum();
+	}
+
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	public long getSinkErrorsCount() {
+		return sinkErrorsCount.sum();
+	}
+
+	public double getAverageQueueLagMillis() {
+		return queueLag.getAverageMillis();
+	}
+
+	public long getMaxQueueLagMillis() {
+		return queueLag.getMaxMillis();
+	}
+
+	public double getAverageProcessingMillis() {
+		return processingTime.getAverageMillis();
+	}
+
+	public long getMaxProcessingMillis() {
+		return processingTime.getMaxMillis();
+	}
+
+	public double getAverageLatencyMillis() {
+		return latency.getAverageMillis();
+	}
+
+	public long getMaxLatencyMillis() {
+		return latency.getMaxMillis();
+	}
+
+	public int getCheckpointedCount() {
+		synchronized ( processedMap ) {
+			return processedMap.size();
+		}
+	}
+
+	public void reset() {
+		ingestedCount  .reset();
+		failedCount    .reset();
+		sinkErrorsCount.reset();
+		queueLag       .reset();
+		processingTime .reset();
+		latency        .reset();
+	}
+
+}
@@ -0,0 +1,56 @@
+package control;
+
+/**
+ * Management interface of {@link ReplayIngester}.
+ */
+public interface ReplayIngesterMXBean {
+
+	/** @return true if the folders are polled instead of being watched by a watch service */
+	boolean isPolling();
+
+	/** @return the number of files detected but not yet unchanged for the debounce time (or waiting for room in the queue) */
+	int getPendingCount();
+
+	/** @return the number of files queued for the workers */
+	int getQueuedCount();
+
+	/** @return the number of files being processed by the workers */
+	int getInProgressCount();
+
+	/** @return the age of the oldest queued file in milliseconds (time since it was queued); 0 if the queue is empty */
+	long getOldestQueuedMillis();
+
+	/** @return the number of ingested replays */
+	long getIngestedCount();
+
+	/** @return the number of files which could not be parsed */
+	long getFailedCount();
+
+	/** @return the number of files whose results could not be written to the sink (they are retried after a restart) */
+	long getSinkErrorsCount();
+
+	/** @return the average time files spent in the queue in milliseconds */
+	double getAverageQueueLagMillis();
+
+	/** @return the maximum time a file spent in the queue in milliseconds */
+	long getMaxQueueLagMillis();
+
+	/** @return the average time of parsing, scanning and writing a file to the sink in milliseconds */
+	double getAverageProcessingMillis();
+
+	/** @return the maximum time of parsing, scanning and writing a file to the sink in milliseconds */
+	long getMaxProcessingMillis();
+
+	/** @return the average time from the detection of a file to the end of its processing in milliseconds */
+	double getAverageLatencyMillis();
+
+	/** @return the maximum time from the detection of a file to the end of its processing in milliseconds */
+	long getMaxLatencyMillis();
+
+	/** @return the number of processed files recorded for the checkpoint (including the ones processed since it was last saved) */
+	int getCheckpointedCount();
+
+	/** Resets the counters and the timing statistics. */
+	void reset();
+
+}
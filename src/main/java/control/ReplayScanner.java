@@ -20,6 +20,39 @@ public class ReplayScanner {
 	/** Version of the scan engine. */
 	public static final String ENGINE_VERSION = "1.48";
 	
+	/**
+	 * Versions of the detectors, indexed by hack type.<br>
+	 * The version of a detector has to be increased (along with the {@link #ENGINE_VERSION}) when its logic changes,
+	 * so stored results of the other detectors remain valid (see {@link IncrementalScanner}).
+	 */
+	public static final int[] DETECTOR_VERSIONS = { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 };
+	
+	/** Detector mask of all the detectors. */
+	public static final int ALL_DETECTORS = ( 1 << DETECTOR_VERSIONS.length ) - 1;
+	
+	/**
+	 * Actions the detectors need to report a hack, indexed by hack type: a detector cannot report a hack in a replay
+	 * which has none of its trigger actions; <code>null</code> if the detector can report a hack in any replay.<br>
+	 * Has to be kept up-to-date with the detectors.
+	 */
+	public static final byte[][] DETECTOR_TRIGGER_ACTIONS = {
+		null,                                                                                     // Autogather/autotrain
+		{ Action.ACTION_NAME_INDEX_SELECT, Action.ACTION_NAME_INDEX_BWCHART_HACK },               // Building selection
+		{ Action.ACTION_NAME_INDEX_0X33, Action.ACTION_NAME_INDEX_BWCHART_HACK },                 // Protoss moneyhack
+		{ Action.ACTION_NAME_INDEX_0X33, Action.ACTION_NAME_INDEX_CANCEL_TRAIN },                 // Zerg moneyhack
+		{ Action.ACTION_NAME_INDEX_0X33 },                                                        // Moneyhack
+		{ Action.ACTION_NAME_INDEX_CANCEL_TRAIN },                                                // Terran moneyhack
+		{ Action.ACTION_NAME_INDEX_SELECT },                                                      // Multicommand unit control
+		{ Action.ACTION_NAME_INDEX_SELECT },                                                      // Multicommand rally set
+		null,                                                                                     // Multicommand
+		{ Action.ACTION_NAME_INDEX_ALLY, Action.ACTION_NAME_INDEX_VISION },                       // Ally-vision drophack
+		{ Action.ACTION_NAME_INDEX_BUILD },                                                       // Build anywhere
+		{ Action.ACTION_NAME_INDEX_USE_CHEAT },                                                   // Use cheat drophack
+		{ Action.ACTION_NAME_INDEX_BUILD_SUBUNIT },                                               // Subunit enqueue
+		{ Action.ACTION_NAME_INDEX_TRAIN },                                                       // Auto unit re-queue
+		{ Action.ACTION_NAME_INDEX_BUILD_SUBUNIT }                                                // Auto subunit re-queue
+	};
+	
 	/**
 	 * Scans the replay actions for hacks.
 	 * 
@@ -28,15 +61,53 @@ public class ReplayScanner {
 	 * @return a list of {@link HackDescription}s describing the hacks found in the rep
 	 */
 	public static List< HackDescription > scanReplayForHacks( final Replay replay, final boolean skipLatterActionsOfHackers ) {
+		return scanReplayForHacks( replay, skipLatterActionsOfHackers, ALL_DETECTORS );
+	}
+	
+	/**
+	 * Scans the replay actions for hacks with the specified detectors.<br>
+	 * If <code>skipLatterActionsOfHackers</code> is false, the result is the same as the hacks of the detector types
+	 * in the result of a scan with all the detectors.
+	 * 
+	 * @param replay                     replay to be scanned
+	 * @param skipLatterActionsOfHackers tells whether we have to proceed to the next player if one is found hacking
+	 * @param detectorMask               detectors to run: bit <code>1 &lt;&lt; hackType</code> is set for each hack type to be detected
+	 * @return a list of {@link HackDescription}s describing the hacks found in the rep
+	 */
+	public static List< HackDescription > scanReplayForHacks( final Replay replay, final boolean skipLatterActionsOfHackers, final int detectorMask ) {
 		final List< HackDescription > hackDescriptionList = new ArrayList< HackDescription >();
 		
-		if ( replay.replayHeader.gameFrames > 0 )
+		if ( replay.replayHeader.gameFrames > 0 && detectorMask != 0 )
 			for ( final PlayerActions playerActions : replay.replayActions.players )
-				scanPlayerForHacks( replay.replayHeader, playerActions, hackDescriptionList, skipLatterActionsOfHackers );
+				scanPlayerForHacks( replay.replayHeader, playerActions, hackDescriptionList, skipLatterActionsOfHackers, detectorMask );
 		
 		return hackDescriptionList;
 	}
 	
+	/**
+	 * Tells if any of the specified detectors is enabled in a detector mask.
+	 * @param detectorMask detector mask
+	 * @param hackTypes    hack types of the detectors
+	 * @return true if any of the detectors is enabled
+	 */
+	private static boolean isEnabled( final int detectorMask, final int... hackTypes ) {
+		for ( final int hackType : hackTypes )
+			if ( ( detectorMask & 1 << hackType ) != 0 )
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Adds a hack description to the list if its detector is enabled.
+	 * @param hackDescriptionList list of the hack descriptions
+	 * @param detectorMask        detector mask
+	 * @param hackDescription     hack description to be added
+	 */
+	private static void addHack( final List< HackDescription > hackDescriptionList, final int detectorMask, final HackDescription hackDescription ) {
+		if ( ( detectorMask & 1 << hackDescription.hackType ) != 0 )
+			hackDescriptionList.add( hackDescription );
+	}
+	
 	/**
 	 * Searches known hack patterns in the actions of a player.
 	 * 
@@ -44,15 +115,24 @@ public class ReplayScanner {
 	 * @param player              player to be scanned
 	 * @param hackDescriptionList reference to a hack description list where to put new hack descriptions
 	 * @param skipLatterActionsOfHackers tells whether we have to proceed to the next player if one is found hacking
+	 * @param detectorMask        detectors to run
 	 */
-	private static void scanPlayerForHacks( final ReplayHeader replayHeader, final PlayerActions player, final List< HackDescription > hackDescriptionList, final boolean skipLatterActionsOfHackers ) {
+	private static void scanPlayerForHacks( final ReplayHeader replayHeader, final PlayerActions player, final List< HackDescription > hackDescriptionList, final boolean skipLatterActionsOfHackers, final int detectorMask ) {
 		final Action[] playerActions = player.actions;
 		final int      actionsCount  = playerActions.length;
 		
 		final int initialHackDescriptionListSize = hackDescriptionList.size();
 		
+		// Detectors which are expensive to run (others are cheap, their hacks are filtered when added)
+		final boolean autogatherEnabled      = isEnabled( detectorMask, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN );
+		final boolean buildAnywhereEnabled   = isEnabled( detectorMask, HackDescription.HACK_TYPE_BUILD_ANYWHERE );
+		final boolean multicommandEnabled    = isEnabled( detectorMask, HackDescription.HACK_TYPE_MULTICOMMAND_UNIT_CONTROL, HackDescription.HACK_TYPE_MULTICOMMAND_RALLY_SET );
+		final boolean subunitEnqueueEnabled  = isEnabled( detectorMask, HackDescription.HACK_TYPE_SUBUNIT_ENQUEUE );
+		final boolean autoRequeueEnabled     = isEnabled( detectorMask, HackDescription.HACK_TYPE_AUT0_UNIT_REQUEUE, HackDescription.HACK_TYPE_AUT0_SUBUNIT_REQUEUE );
+		
 		// Autogather/autotrain hack: having more than 1 action at iteration 5
 		int actionsAtIteration5Count = 0;
+		if ( autogatherEnabled )
 		for ( int actionIndex = 0; actionIndex < actionsCount && actionIndex < 25; actionIndex++ )
 			if ( playerActions[ actionIndex ].iteration == 5 ) {
 				if ( playerActions[ actionIndex ].actionNameIndex != Action.ACTION_NAME_INDEX_UNKNOWN && playerActions[ actionIndex ].actionNameIndex != Action.ACTION_NAME_INDEX_LEAVE )
@@ -71,12 +151,12 @@ public class ReplayScanner {
 					break;
 				}
 			if ( actionsAtIteration5Count > 10 || !hasActionAtIteration10 )
-				hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, 5 ) );
+				addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, 5 ) );
 		}
 		
 		// Delayed autogather/autotrain hack (which is most likely at iteration 15, but the algorithm detects it on other iterations too)
 		// Selects with different targets, moves with different targets and all in the same iteration (which is the first action)
-		if ( actionsCount >= 10 ) {
+		if ( autogatherEnabled && actionsCount >= 10 ) {
 			// First variant:  select+train/hatch, 4x select+move
 			if ( playerActions[ 0 ].actionNameIndex == Action.ACTION_NAME_INDEX_SELECT && ( playerActions[ 1 ].actionNameIndex == Action.ACTION_NAME_INDEX_TRAIN || playerActions[ 1 ].actionNameIndex == Action.ACTION_NAME_INDEX_HATCH )
 					&& playerActions[ 0 ].iteration == playerActions[ 9 ].iteration ) {
@@ -96,7 +176,7 @@ public class ReplayScanner {
 					}
 				}
 				if ( isHack )
-					hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, playerActions[ 0 ].iteration ) );
+					addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, playerActions[ 0 ].iteration ) );
 			}
 			// Second variant:  4x select+move, select+train/hatch
 			if ( playerActions[ 8 ].actionNameIndex == Action.ACTION_NAME_INDEX_SELECT && ( playerActions[ 9 ].actionNameIndex == Action.ACTION_NAME_INDEX_TRAIN || playerActions[ 9 ].actionNameIndex == Action.ACTION_NAME_INDEX_HATCH )
@@ -117,7 +197,7 @@ public class ReplayScanner {
 					}
 				}
 				if ( isHack )
-					hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, playerActions[ 0 ].iteration ) );
+					addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, playerActions[ 0 ].iteration ) );
 			}
 		}
 		
@@ -148,23 +228,23 @@ public class ReplayScanner {
 			// TODO: This check should relate to all multiplayer modes.
 			// For now I only check if the game type is only allowed in multiplayer mode, this might skip some multiplayer game.  
 			if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_USE_CHEAT && ( replayHeader.gameType != ReplayHeader.GAME_TYPE_MELEE && replayHeader.gameType != ReplayHeader.GAME_TYPE_FFA && replayHeader.gameType != ReplayHeader.GAME_TYPE_UMS ) )
-				hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_USE_CHEAT_DROPHACK, action.iteration ) );
+				addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_USE_CHEAT_DROPHACK, action.iteration ) );
 			
 			// Ally-vision drophack
 			if ( replayHeader.gameType != ReplayHeader.GAME_TYPE_UMS ) {
 				if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_ALLY )
 					if ( !checkAllyParams( action.parameters ) )
-						hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK, action.iteration ) );
+						addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK, action.iteration ) );
 				if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_VISION )
 					if ( !checkVisionParams( action.parameters ) )
-						hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK, action.iteration ) );
+						addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK, action.iteration ) );
 			}
 			
 			// Build anywhere hack
 			// This can be checked only on standard size maps, because Starcraft only saves standard map sizes.  
 			// If map size is not standard, then the saved map size might be smaller than the actual size,
 			// and this would result in building outside the map box when in fact it is not.
-			if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_BUILD && action.parameters != null && action.parameters.length() > 0 && action.parameterBuildingNameIndex != Action.BUILDING_NAME_INDEX_NON_BUILDING ) {
+			if ( buildAnywhereEnabled && action.actionNameIndex == Action.ACTION_NAME_INDEX_BUILD && action.parameters != null && action.parameters.length() > 0 && action.parameterBuildingNameIndex != Action.BUILDING_NAME_INDEX_NON_BUILDING ) {
 				final Action.Size buildingSize = Action.BUILDING_ID_SIZE_MAP.get( action.parameterBuildingNameIndex );
 				if ( buildingSize != null ) {
 					try {
@@ -175,7 +255,7 @@ public class ReplayScanner {
 						// Only exception for the bottom line is if there is a geyser
 						if ( x > replayHeader.mapWidth - buildingSize.width
 								|| ( y > replayHeader.mapHeight - buildingSize.height - 1 && action.parameterBuildingNameIndex != Action.BUILDING_NAME_INDEX_ASSIMILATOR && action.parameterBuildingNameIndex != Action.BUILDING_NAME_INDEX_EXTRACTOR && action.parameterBuildingNameIndex != Action.BUILDING_NAME_INDEX_REFINERY ) )
-							hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_BUILD_ANYWHERE, action.iteration ) );
+							addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_BUILD_ANYWHERE, action.iteration ) );
 					}
 					catch ( final Exception e ) {
 					}
@@ -188,18 +268,18 @@ public class ReplayScanner {
 					if ( action.parameterBuildingNameIndex < Action.BUILDING_NAME_INDEX_FIRST_ZERG_BUILDING || action.parameterBuildingNameIndex > Action.BUILDING_NAME_INDEX_LAST_ZERG_BUILDING ) // Not a zerg building selected multiple times (that can be done wihtout hack by selecting drones about to morph)
 						if ( action.parameters.length() != Action.UNIT_ID_NAME_MAP.get( (byte) action.parameterBuildingNameIndex ).length() )
 							if ( action.parameters.startsWith( Action.UNIT_ID_NAME_MAP.get( (byte) action.parameterBuildingNameIndex ) + "(x" ) )
-								hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_BUILDING_SELECTION, action.iteration ) );
+								addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_BUILDING_SELECTION, action.iteration ) );
 			
 			// Old zerg and protoss moneyhacks
 			if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_0X33 )
 				if ( lastSelectAction.parameterUnitNameIndex == Action.UNIT_NAME_INDEX_PROBE )
-					hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_PROTOSS_MONEYHACK, action.iteration ) );
+					addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_PROTOSS_MONEYHACK, action.iteration ) );
 				else
 					if ( lastSelectAction.parameterUnitNameIndex == Action.UNIT_NAME_INDEX_DRONE )
-						hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_ZERG_MONEYHACK, action.iteration ) );
+						addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_ZERG_MONEYHACK, action.iteration ) );
 					else
 						if ( lastSelectAction.parameterBuildingNameIndex == Action.BUILDING_NAME_INDEX_NON_BUILDING ) // giving !0x33 means cancel upgrade; sometimes it's just a number (not recognized by BWChart), if not a building => moneyhack
-							hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_MONEYHACK, action.iteration ) );
+							addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_MONEYHACK, action.iteration ) );
 			
 			// Old terran moneyhack (comsat cancel)
 			if ( !foundTerranComsatCancelHack )
@@ -207,11 +287,11 @@ public class ReplayScanner {
 					if ( lastAction != null && lastAction.actionNameIndex == Action.ACTION_NAME_INDEX_TRAIN
 							&& ( lastAction.parameterBuildingNameIndex == Action.BUILDING_NAME_INDEX_COMSAT || lastAction.parameterBuildingNameIndex == Action.BUILDING_NAME_INDEX_CONTROL_TOWER ) ) {
 						foundTerranComsatCancelHack = true;
-						hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_TERRAN_MONEYHACK, action.iteration ) );
+						addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_TERRAN_MONEYHACK, action.iteration ) );
 					}
 			
 			// Multicommand unit control hack and multicommand rally set hack
-			if ( actionIndex + 3 < actionsCount ) {
+			if ( multicommandEnabled && actionIndex + 3 < actionsCount ) {
 				actionAhead1 = playerActions[ actionIndex + 1 ];
 				actionAhead2 = playerActions[ actionIndex + 2 ];
 				actionAhead3 = playerActions[ actionIndex + 3 ];
@@ -222,23 +302,23 @@ public class ReplayScanner {
 					  && actionAhead1.actionNameIndex == actionAhead3.actionNameIndex
 					  && actionAhead1.parameters.equals( actionAhead3.parameters ) ) {
 						if ( action.parameterBuildingNameIndex == Action.BUILDING_NAME_INDEX_NON_BUILDING )
-							hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_MULTICOMMAND_UNIT_CONTROL, action.iteration ) );
+							addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_MULTICOMMAND_UNIT_CONTROL, action.iteration ) );
 						else
-							hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_MULTICOMMAND_RALLY_SET, action.iteration ) );
+							addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_MULTICOMMAND_RALLY_SET, action.iteration ) );
 					}
 			}
 			
 			// Old protoss moneyhack
 			if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_BWCHART_HACK && action.parameters.startsWith( "00 15" ) )
-				hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_PROTOSS_MONEYHACK, action.iteration ) );
+				addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_PROTOSS_MONEYHACK, action.iteration ) );
 			
 			// Zerg moneyhack with cancelling eggs (from Starcraft version 1.15.1)
 			if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_CANCEL_TRAIN && ( action.parameters.equals( "FE 00" ) || action.parameters.equals( "00 00" ) ) )
 				if ( lastAction != null && lastAction.actionNameIndex == Action.ACTION_NAME_INDEX_HATCH )
-					hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_ZERG_MONEYHACK, action.iteration ) );
+					addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_ZERG_MONEYHACK, action.iteration ) );
 			
 			// Subunit enqueue hack: subsequent of "some" subunit build actions being equally 120 iterations from each other
-			if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_BUILD_SUBUNIT ) {
+			if ( subunitEnqueueEnabled && action.actionNameIndex == Action.ACTION_NAME_INDEX_BUILD_SUBUNIT ) {
 				final int HACK_COUNT_LIMIT = 3;
 				final int minTestIteration = action.iteration - ( HACK_COUNT_LIMIT - 1 ) * 120;
 				int    patternSubunitBuildsCount = 0; // Subunit builds in the pattern
@@ -262,7 +342,7 @@ public class ReplayScanner {
 					}
 				} while ( testIndex-- > 0 && testAction.iteration >= minTestIteration );
 				if ( patternSubunitBuildsCount >= HACK_COUNT_LIMIT && allSubunitBuildsCount == patternSubunitBuildsCount ) // To filter out human subunit build spam (this filters out some real hack cases too)
-					hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_SUBUNIT_ENQUEUE, action.iteration ) );
+					addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_SUBUNIT_ENQUEUE, action.iteration ) );
 			}
 			
 			// Multicommand hack: giving "several" actions in the same iteration
@@ -274,7 +354,7 @@ public class ReplayScanner {
 				actionsCountForGeneralMulticommandHack++;
 			else {
 				if ( actionsCountForGeneralMulticommandHack > 20 )
-					hackDescriptionList.add( new HackDescription( player.playerName, HackDescription.HACK_TYPE_MULTICOMMAND, lastAction.iteration ) );
+					addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, HackDescription.HACK_TYPE_MULTICOMMAND, lastAction.iteration ) );
 				lastIteration = action.iteration;
 				actionsCountForGeneralMulticommandHack = 0;
 			}
@@ -283,7 +363,7 @@ public class ReplayScanner {
 			// All at iteration I1 (and just these at I1): Select X, Train, Select Y
 			// All at iteration I2 (and just these at I2): Select Z, Train, Select Y
 			// I1 != I2
-			if ( actionIndex + 6 < actionsCount && lastAction != null && lastAction.iteration != action.iteration && action.iteration != playerActions[ actionIndex + 3 ].iteration && playerActions[ actionIndex + 3 ].iteration != playerActions[ actionIndex + 6 ].iteration )
+			if ( autoRequeueEnabled && actionIndex + 6 < actionsCount && lastAction != null && lastAction.iteration != action.iteration && action.iteration != playerActions[ actionIndex + 3 ].iteration && playerActions[ actionIndex + 3 ].iteration != playerActions[ actionIndex + 6 ].iteration )
 				if ( action.actionNameIndex == Action.ACTION_NAME_INDEX_SELECT && playerActions[ actionIndex + 2 ].actionNameIndex == Action.ACTION_NAME_INDEX_SELECT
 						&& playerActions[ actionIndex + 3 ].actionNameIndex == Action.ACTION_NAME_INDEX_SELECT && playerActions[ actionIndex + 5 ].actionNameIndex == Action.ACTION_NAME_INDEX_SELECT
 						&& action.iteration == playerActions[ actionIndex + 1 ].iteration && action.iteration == playerActions[ actionIndex + 2 ].iteration
@@ -299,8 +379,8 @@ public class ReplayScanner {
 					else {
 						// If this is not the first, it can't be coincidence!
 						if ( autoUnitRequeueCount == 2 )
-							hackDescriptionList.add( lastAutoUnitRequeueOccurance );
-						hackDescriptionList.add( new HackDescription( player.playerName, playerActions[ actionIndex + 1 ].actionNameIndex == Action.ACTION_NAME_INDEX_TRAIN ?HackDescription.HACK_TYPE_AUT0_UNIT_REQUEUE : HackDescription.HACK_TYPE_AUT0_SUBUNIT_REQUEUE, action.iteration ) );
+							addHack( hackDescriptionList, detectorMask, lastAutoUnitRequeueOccurance );
+						addHack( hackDescriptionList, detectorMask, new HackDescription( player.playerName, playerActions[ actionIndex + 1 ].actionNameIndex == Action.ACTION_NAME_INDEX_TRAIN ?HackDescription.HACK_TYPE_AUT0_UNIT_REQUEUE : HackDescription.HACK_TYPE_AUT0_SUBUNIT_REQUEUE, action.iteration ) );
 					}
 				}
 			
@@ -0,0 +1,845 @@
+package control;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import model.Action;
+import model.HackDescription;
+import model.ReplayHeader;
+
+/**
+ * Generates synthetic replays in the binary replay format, for benchmarks and for testing the parser and the scanner at scale.<br>
+ * Player count, game length, APM profiles of the players and the mix of the generated commands are configurable,
+ * and hacks detected by {@link ReplayScanner} can be injected at given frames or randomly.
+ *
+ * <p>Generation is reproducible: the replay of an index only depends on the seed and the configuration, so a corpus
+ * can be regenerated (or extended) instead of being stored. Clean replays (without injected hacks) produce no hack reports.
+ * Once configured, the generator is thread-safe, replays of different indices can be generated in parallel.</p>
+ */
+public class SyntheticReplayGenerator {
+
+	/** Frames in a minute of game time (on fastest speed). */
+	public static final int FRAMES_PER_MINUTE = 60 * 1000 / 42;
+
+	/** The first frame of the normal (non-hack) actions of the players. */
+	public static final int FIRST_ACTION_FRAME = 24;
+
+	/** Default APM of the players by game minute (the last value is held for the rest of the game). */
+	private static final int[] DEFAULT_APM_PROFILE = { 60, 140, 180, 200 };
+
+	/** Hack types which can be injected. */
+	public static final int[] INJECTABLE_HACK_TYPES = {
+		HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN, HackDescription.HACK_TYPE_MULTICOMMAND_UNIT_CONTROL, HackDescription.HACK_TYPE_MULTICOMMAND,
+		HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK, HackDescription.HACK_TYPE_BUILD_ANYWHERE, HackDescription.HACK_TYPE_USE_CHEAT_DROPHACK
+	};
+
+	/** Workers by race.                  */
+	private static final short[]   WORKER_IDS   = { Action.UNIT_NAME_INDEX_DRONE, Action.UNIT_NAME_INDEX_SCV, Action.UNIT_NAME_INDEX_PROBE };
+	/** Basic fighting units by race.     */
+	private static final short[]   FIGHTER_IDS  = { 0x25, 0x00, 0x41 }; // Zergling, Marine, Zealot
+	/** Buildings to build by race.       */
+	private static final short[][] BUILDING_IDS = {
+		{ 0x83, 0x8e, 0x8f },    // Hatchery, Spawning Pool, Creep Colony
+		{ 0x6d, 0x6f, 0x70 },    // Supply Depot, Barracks, Academy
+		{ 0x9c, 0xa0, 0xa6 }     // Pylon, Gateway, Forge
+	};
+	/** Research IDs to choose from.      */
+	private static final byte[]    RESEARCH_IDS = toSortedArray( Action.RESEARCH_ID_NAME_MAP.keySet() );
+	/** Upgrade IDs to choose from.       */
+	private static final byte[]    UPGRADE_IDS  = toSortedArray( Action.UPGRADE_ID_NAME_MAP.keySet() );
+	/** Order types of the 0x15 commands: move, attack move, gather, set rally. */
+	private static final byte[]    ORDER_TYPES  = { 0x00, 0x0e, 0x4f, 0x28 };
+	/** Messages of the chat commands.    */
+	private static final String[]  MESSAGES     = { "gl hf", "hf", "gg", "lag", "wp", "omg", "zzz" };
+
+	/** Default weights of the generated commands, indexed by block ID. */
+	private static final int[]     DEFAULT_OPCODE_WEIGHTS = new int[ 256 ];
+	static {
+		DEFAULT_OPCODE_WEIGHTS[ 0x09 ] = 30; // Select
+		DEFAULT_OPCODE_WEIGHTS[ 0x0a ] =  3; // Shift select
+		DEFAULT_OPCODE_WEIGHTS[ 0x0b ] =  1; // Shift deselect
+		DEFAULT_OPCODE_WEIGHTS[ 0x0c ] =  2; // Build
+		DEFAULT_OPCODE_WEIGHTS[ 0x13 ] = 25; // Hotkey
+		DEFAULT_OPCODE_WEIGHTS[ 0x14 ] = 10; // Move
+		DEFAULT_OPCODE_WEIGHTS[ 0x15 ] = 20; // Attack/Right Click
+		DEFAULT_OPCODE_WEIGHTS[ 0x1a ] =  2; // Stop
+		DEFAULT_OPCODE_WEIGHTS[ 0x1f ] =  5; // Train (Hatch for zerg)
+		DEFAULT_OPCODE_WEIGHTS[ 0x2b ] =  1; // Hold position
+		DEFAULT_OPCODE_WEIGHTS[ 0x30 ] =  1; // Research
+		DEFAULT_OPCODE_WEIGHTS[ 0x32 ] =  1; // Upgrade
+		DEFAULT_OPCODE_WEIGHTS[ 0x58 ] =  1; // Minimap ping
+	}
+
+	/** Seed of the generated replays.                          */
+	public final long   seed;
+
+	/** Number of players (1..8).                               */
+	public int          playersCount   = 2;
+	/** Minimum game length in frames.                          */
+	public int          minGameFrames  = 10 * FRAMES_PER_MINUTE;
+	/** Maximum game length in frames.                          */
+	public int          maxGameFrames  = 25 * FRAMES_PER_MINUTE;
+	/** Width of the map in tiles.                              */
+	public short        mapWidth       = 128;
+	/** Height of the map in tiles.                             */
+	public short        mapHeight      = 128;
+	/** Game type; if negative, one on one for 2 players and team melee otherwise. */
+	public short        gameType       = -1;
+	/** Compression of the sections, one of {@link BinReplayPacker#COMPRESSION_IMPLODE} and {@link BinReplayPacker#COMPRESSION_ZLIB}. */
+	public int          compression    = BinReplayPacker.COMPRESSION_IMPLODE;
+	/** Races of the players; random races are chosen for players not listed here. */
+	public byte[]       playerRaces;
+	/** Probability of injecting a random hack into a replay.   */
+	public double       hackRate;
+
+	/** APM profiles of the players by game minute; <code>null</code> elements mean the default profile. */
+	private final int[][]     apmProfiles   = new int[ 8 ][];
+	/** Weights of the generated commands, indexed by block ID. */
+	private final int[]       opcodeWeights = DEFAULT_OPCODE_WEIGHTS.clone();
+	/** Hacks to inject into every replay: player index, hack type and frame. */
+	private final List< int[] > injectedHackList = new ArrayList< int[] >();
+
+	/**
+	 * Creates a new SyntheticReplayGenerator.
+	 * @param seed seed of the generated replays
+	 */
+	public SyntheticReplayGenerator( final long seed ) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the APM profile of a player.<br>
+	 * The APM of each player is also scaled by a random factor (between 0.8 and 1.2) chosen per replay.
+	 * @param playerIndex index of the player
+	 * @param apmByMinute APM of the player by game minute; the last value is held for the rest of the game
+	 */
+	public void setApmProfile( final int playerIndex, final int... apmByMinute ) {
+		if ( apmByMinute.length == 0 )
+			throw new IllegalArgumentException( "Empty APM profile!" );
+		apmProfiles[ playerIndex ] = apmByMinute.clone();
+	}
+
+	/**
+	 * Sets the weight of a command type in the generated command mix.
+	 * @param blockId block ID of the command;
+	 * 		one of 0x09, 0x0a, 0x0b, 0x0c, 0x13, 0x14, 0x15, 0x1a, 0x1f, 0x2b, 0x30, 0x32, 0x58 and 0x5c (chat)
+	 * @param weight  weight of the command type; 0 to not generate it
+	 */
+	public void setOpcodeWeight( final byte blockId, final int weight ) {
+		switch ( blockId ) {
+			case (byte) 0x09 : case (byte) 0x0a : case (byte) 0x0b : case (byte) 0x0c : case (byte) 0x13 : case (byte) 0x14 : case (byte) 0x15 :
+			case (byte) 0x1a : case (byte) 0x1f : case (byte) 0x2b : case (byte) 0x30 : case (byte) 0x32 : case (byte) 0x58 : case (byte) 0x5c :
+				break;
+			default :
+				throw new IllegalArgumentException( "Unsupported block ID: " + ( blockId & 0xff ) );
+		}
+		if ( weight < 0 )
+			throw new IllegalArgumentException( "Negative weight: " + weight );
+		opcodeWeights[ blockId & 0xff ] = weight;
+	}
+
+	/**
+	 * Injects a hack into every generated replay.<br>
+	 * Autogather/autotrain hacks are always injected at frame 5. The hack is left out from replays shorter than the frame.
+	 * Use cheat drophacks are only reported in non-melee, non-FFA and non-UMS games, ally-vision drophacks in non-UMS games.
+	 * @param playerIndex index of the player to use the hack
+	 * @param hackType    type of the hack, one of {@link #INJECTABLE_HACK_TYPES}
+	 * @param frame       frame of the hack; must be at least {@link #FIRST_ACTION_FRAME} except for autogather
+	 */
+	public void injectHack( final int playerIndex, final int hackType, final int frame ) {
+		if ( Arrays.binarySearch( INJECTABLE_HACK_TYPES, hackType ) < 0 )
+			throw new IllegalArgumentException( "Hack type cannot be injected: " + hackType );
+		if ( hackType != HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN && frame < FIRST_ACTION_FRAME )
+			throw new IllegalArgumentException( "Frame must be at least " + FIRST_ACTION_FRAME + ": " + frame );
+		injectedHackList.add( new int[] { playerIndex, hackType, hackType == HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN ? 5 : frame } );
+	}
+
+	/**
+	 * Generates a replay.
+	 * @param replayIndex index of the replay
+	 * @return the data of the replay
+	 */
+	public byte[] generate( final int replayIndex ) {
+		final Plan   plan   = createPlan( replayIndex );
+		final Random random = new Random( getReplaySeed( replayIndex ) ^ 0x5deece66dl );
+
+		final ByteArrayOutputStream output = new ByteArrayOutputStream( 1 << 16 );
+		final BinReplayPacker       packer = new BinReplayPacker( output, compression );
+		try {
+			final byte[] commandsData = createCommands( plan, random );
+			final byte[] mapData      = createMapData( plan, random );
+			packer.packSection( new byte[] { 'r', 'e', 'R', 'S' } );
+			packer.packSection( createHeader( plan, replayIndex ) );
+			packer.packIntSection( commandsData.length );
+			packer.packSection( commandsData );
+			packer.packIntSection( mapData.length );
+			packer.packSection( mapData );
+		}
+		catch ( final IOException ie ) {
+			throw new RuntimeException( ie ); // Cannot happen with a ByteArrayOutputStream
+		}
+		finally {
+			packer.close();
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Returns the hacks the scanner is expected to report in a generated replay.<br>
+	 * The order of the hacks may differ from the order of the scanner.
+	 * @param replayIndex index of the replay
+	 * @return the hacks expected to be reported
+	 */
+	public List< HackDescription > getExpectedHacks( final int replayIndex ) {
+		final Plan plan = createPlan( replayIndex );
+		final List< HackDescription > hackDescriptionList = new ArrayList< HackDescription >();
+		for ( final int[] hack : plan.hackList )
+			if ( isDetectable( hack[ 1 ], plan.gameType ) )
+				hackDescriptionList.add( new HackDescription( plan.playerNames[ hack[ 0 ] ], hack[ 1 ], hack[ 2 ] ) );
+		return hackDescriptionList;
+	}
+
+	/**
+	 * Generates a replay and writes it to a file.
+	 * @param file        file to write the replay to
+	 * @param replayIndex index of the replay
+	 * @return the size of the replay in bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	public int write( final File file, final int replayIndex ) throws IOException {
+		final byte[] data = generate( replayIndex );
+		final OutputStream output = new FileOutputStream( file );
+		try {
+			output.write( data );
+		}
+		finally {
+			output.close();
+		}
+		return data.length;
+	}
+
+	/**
+	 * Generates a corpus of replays into a folder, named <code>synthetic-NNNNNN.rep</code> by replay index.
+	 * @param folder       folder to write the replays to (created if does not exist)
+	 * @param firstIndex   index of the first replay
+	 * @param count        number of replays to generate
+	 * @param threadsCount number of threads to generate with
+	 * @return the total size of the generated replays in bytes
+	 * @throws IOException if a replay cannot be written
+	 */
+	public long writeCorpus( final File folder, final int firstIndex, final int count, final int threadsCount ) throws IOException {
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+			throw new IOException( "Failed to create folder: " + folder );
+
+		final AtomicLong totalSize = new AtomicLong();
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( threadsCount, count ) ) );
+		try {
+			final List< Future< ? > > futureList = new ArrayList< Future< ? > >( count );
+			for ( int i = 0; i < count; i++ ) {
+				final int replayIndex = firstIndex + i;
+				futureList.add( executor.submit( new Runnable() {
+					public void run() {
+						try {
+							totalSize.addAndGet( write( new File( folder, String.format( "synthetic-%06d.rep", replayIndex ) ), replayIndex ) );
+						}
+						catch ( final IOException ie ) {
+							throw new RuntimeException( ie );
+						}
+					}
+				} ) );
+			}
+
+			for ( final Future< ? > future : futureList )
+				try {
+					future.get();
+				}
+				catch ( final Exception e ) {
+					throw new IOException( "Failed to generate corpus!", e );
+				}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		return totalSize.get();
+	}
+
+	/**
+	 * Plan of a replay: the decisions which determine the reported hacks, made with their own random generator
+	 * so they can be reproduced without generating the commands.
+	 */
+	private static class Plan {
+		/** Game type of the replay.                 */
+		public short         gameType;
+		/** Length of the game in frames.            */
+		public int           gameFrames;
+		/** Races of the players.                    */
+		public byte[]        races;
+		/** Names of the players.                    */
+		public String[]      playerNames;
+		/** APM scale factors of the players.        */
+		public float[]       apmScales;
+		/** Hacks of the replay: player index, hack type and frame, ordered by frame. */
+		public List< int[] > hackList = new ArrayList< int[] >();
+	}
+
+	/**
+	 * Creates the plan of a replay.
+	 * @param replayIndex index of the replay
+	 * @return the plan of the replay
+	 */
+	private Plan createPlan( final int replayIndex ) {
+		if ( playersCount < 1 || playersCount > 8 )
+			throw new IllegalStateException( "Invalid players count: " + playersCount );
+
+		final Random random = new Random( getReplaySeed( replayIndex ) );
+		final Plan   plan   = new Plan();
+
+		plan.gameType    = gameType >= 0 ? gameType : playersCount == 2 ? ReplayHeader.GAME_TYPE_ONE_ON_ONE : ReplayHeader.GAME_TYPE_TEAM_MELEE;
+		plan.gameFrames  = minGameFrames + ( maxGameFrames > minGameFrames ? random.nextInt( maxGameFrames - minGameFrames + 1 ) : 0 );
+		plan.races       = new byte[ playersCount ];
+		plan.playerNames = new String[ playersCount ];
+		plan.apmScales   = new float[ playersCount ];
+		for ( int i = 0; i < playersCount; i++ ) {
+			plan.races      [ i ] = playerRaces != null && i < playerRaces.length ? playerRaces[ i ] : (byte) random.nextInt( 3 );
+			plan.playerNames[ i ] = "Player" + ( random.nextInt( 9000 ) + 1000 ) + "_" + ( i + 1 );
+			plan.apmScales  [ i ] = 0.8f + random.nextFloat() * 0.4f;
+		}
+
+		// The last frames are reserved for the leave commands
+		for ( final int[] hack : injectedHackList )
+			if ( hack[ 0 ] < playersCount && hack[ 2 ] < plan.gameFrames - 2 )
+				plan.hackList.add( hack );
+		if ( random.nextDouble() < hackRate && plan.gameFrames > FIRST_ACTION_FRAME * 4 ) {
+			final int hackType = INJECTABLE_HACK_TYPES[ random.nextInt( INJECTABLE_HACK_TYPES.length ) ];
+			plan.hackList.add( new int[] { random.nextInt( playersCount ), hackType,
+				hackType == HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN ? 5 : FIRST_ACTION_FRAME + random.nextInt( plan.gameFrames - FIRST_ACTION_FRAME * 2 ) } );
+		}
+
+		// One hack per player and frame (a later one would merge into the same frame)
+		final TreeSet< Long > usedFrameSet = new TreeSet< Long >();
+		for ( int i = plan.hackList.size() - 1; i >= 0; i-- )
+			if ( !usedFrameSet.add( (long) plan.hackList.get( i )[ 2 ] << 8 | plan.hackList.get( i )[ 0 ] ) )
+				plan.hackList.remove( i );
+		Collections.sort( plan.hackList, new Comparator< int[] >() {
+			public int compare( final int[] h1, final int[] h2 ) {
+				return h1[ 2 ] - h2[ 2 ];
+			}
+		} );
+
+		return plan;
+	}
+
+	/**
+	 * Tells if a hack type is reported by the scanner in a game type.
+	 * @param hackType type of the hack
+	 * @param gameType game type
+	 * @return true if the hack type is reported by the scanner in the game type
+	 */
+	private static boolean isDetectable( final int hackType, final short gameType ) {
+		switch ( hackType ) {
+			case HackDescription.HACK_TYPE_USE_CHEAT_DROPHACK :
+				return gameType != ReplayHeader.GAME_TYPE_MELEE && gameType != ReplayHeader.GAME_TYPE_FFA && gameType != ReplayHeader.GAME_TYPE_UMS;
+			case HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK :
+				return gameType != ReplayHeader.GAME_TYPE_UMS;
+			default :
+				return true;
+		}
+	}
+
+	/**
+	 * Returns the seed of the random generators of a replay.
+	 * @param replayIndex index of the replay
+	 * @return the seed of the random generators of the replay
+	 */
+	private long getReplaySeed( final int replayIndex ) {
+		long h = seed * 0x9e3779b97f4a7c15l + replayIndex;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Creates the header section.
+	 * @param plan        plan of the replay
+	 * @param replayIndex index of the replay
+	 * @return the header section
+	 */
+	private byte[] createHeader( final Plan plan, final int replayIndex ) {
+		final byte[] header = new byte[ BinRepParser.HEADER_SIZE ];
+		header[ 0x00 ] = ReplayHeader.GAME_ENGINE_BROODWAR;
+		writeInt( header, 0x01, plan.gameFrames );
+		writeInt( header, 0x08, 1230768000 + replayIndex * 3600 ); // Hourly games from 2009-01-01
+		writeString( header, 0x18, "Synthetic " + replayIndex, 28 );
+		writeShort( header, 0x34, mapWidth );
+		writeShort( header, 0x36, mapHeight );
+		writeShort( header, 0x3a, 6 ); // Fastest
+		writeShort( header, 0x3c, plan.gameType );
+		writeShort( header, 0x3e, 1 );
+		writeString( header, 0x48, plan.playerNames[ 0 ], 24 );
+		writeString( header, 0x61, "Synthetic " + mapWidth + "x" + mapHeight, 26 );
+
+		for ( int i = 0; i < 12; i++ ) {
+			final int pos = 0xa1 + i * 36;
+			writeInt( header, pos, i );
+			if ( i < playersCount ) {
+				header[ pos + 4  ] = (byte) i;
+				header[ pos + 8  ] = 2; // Human
+				header[ pos + 9  ] = plan.races[ i ];
+				header[ pos + 10 ] = (byte) ( plan.gameType == ReplayHeader.GAME_TYPE_TEAM_MELEE ? i % 2 + 1 : i + 1 );
+				writeString( header, pos + 11, plan.playerNames[ i ], 25 );
+			}
+			else
+				header[ pos + 4 ] = (byte) 0xff;
+		}
+		for ( int i = 0; i < 8; i++ ) {
+			writeInt( header, 0x251 + i * 4, i );
+			header[ 0x271 + i ] = (byte) i;
+		}
+
+		return header;
+	}
+
+	/**
+	 * Creates the commands section.
+	 * @param plan   plan of the replay
+	 * @param random random generator of the commands
+	 * @return the commands section
+	 */
+	private byte[] createCommands( final Plan plan, final Random random ) {
+		final CommandsWriter writer = new CommandsWriter( plan.gameFrames * playersCount / 4 + 1024 );
+
+		int totalWeight = 0;
+		for ( final int weight : opcodeWeights )
+			totalWeight += weight;
+
+		final float[] actionProbabilities = new float[ playersCount ];
+		final List< int[] > hackList = plan.hackList;
+		int hackIndex = 0;
+
+		final int lastFrame = plan.gameFrames - 1;
+		for ( int frame = 0; frame < lastFrame; frame++ ) {
+			if ( frame % FRAMES_PER_MINUTE == 0 )
+				for ( int i = 0; i < playersCount; i++ ) {
+					final int[] profile = apmProfiles[ i ] == null ? DEFAULT_APM_PROFILE : apmProfiles[ i ];
+					actionProbabilities[ i ] = plan.apmScales[ i ] * profile[ Math.min( frame / FRAMES_PER_MINUTE, profile.length - 1 ) ] / FRAMES_PER_MINUTE;
+				}
+
+			writer.beginFrame( frame );
+			for ( int i = 0; i < playersCount; i++ ) {
+				boolean hacked = false;
+				for ( int h = hackIndex; h < hackList.size() && hackList.get( h )[ 2 ] == frame; h++ )
+					if ( hackList.get( h )[ 0 ] == i ) {
+						writeHack( writer, i, plan.races[ i ], hackList.get( h )[ 1 ], random );
+						hacked = true;
+					}
+				if ( !hacked && frame >= FIRST_ACTION_FRAME && totalWeight > 0 && random.nextFloat() < actionProbabilities[ i ] )
+					writeCommand( writer, i, plan.races[ i ], pickOpcode( random, totalWeight ), random );
+			}
+			while ( hackIndex < hackList.size() && hackList.get( hackIndex )[ 2 ] == frame )
+				hackIndex++;
+			writer.endFrame();
+		}
+
+		// Everybody leaves at the end
+		writer.beginFrame( lastFrame );
+		for ( int i = 0; i < playersCount; i++ )
+			writer.command( i, 0x57, 1 );
+		writer.endFrame();
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Picks a command type by the weights.
+	 * @param random      random generator
+	 * @param totalWeight sum of the weights
+	 * @return the block ID of the picked command type
+	 */
+	private int pickOpcode( final Random random, final int totalWeight ) {
+		int value = random.nextInt( totalWeight );
+		int blockId = 0;
+		while ( value >= opcodeWeights[ blockId ] )
+			value -= opcodeWeights[ blockId++ ];
+		return blockId;
+	}
+
+	/**
+	 * Writes a normal command of a player.
+	 * @param writer      commands writer
+	 * @param playerIndex index of the player
+	 * @param race        race of the player
+	 * @param blockId     block ID of the command
+	 * @param random      random generator
+	 */
+	private void writeCommand( final CommandsWriter writer, final int playerIndex, final byte race, final int blockId, final Random random ) {
+		switch ( blockId ) {
+			case 0x09 : case 0x0a : case 0x0b : {
+				final int unitsCount = random.nextInt( 4 ) == 0 ? 2 + random.nextInt( 11 ) : 1;
+				writer.command( playerIndex, blockId, unitsCount );
+				for ( int i = 0; i < unitsCount; i++ )
+					writer.writeShort( randomUnitTag( playerIndex, random ) );
+				break;
+			}
+			case 0x0c : {
+				final short buildingId = BUILDING_IDS[ race ][ random.nextInt( BUILDING_IDS[ race ].length ) ];
+				final Action.Size size = Action.BUILDING_ID_SIZE_MAP.get( buildingId );
+				final int width  = size == null ? 4 : size.width;
+				final int height = size == null ? 3 : size.height;
+				// Inside the map and above the reserved bottom line
+				writer.command( playerIndex, blockId, 0x19 );
+				writer.writeShort( random.nextInt( mapWidth - width + 1 ) );
+				writer.writeShort( random.nextInt( mapHeight - height ) );
+				writer.writeShort( buildingId );
+				break;
+			}
+			case 0x13 :
+				writer.command( playerIndex, blockId, random.nextInt( 5 ) == 0 ? 0 : 1, random.nextInt( 10 ) );
+				break;
+			case 0x14 :
+				writer.command( playerIndex, blockId );
+				writer.writeShort( random.nextInt( mapWidth * 32 ) );
+				writer.writeShort( random.nextInt( mapHeight * 32 ) );
+				writer.writeShort( 0xffff );
+				writer.writeShort( 0xe4 );
+				writer.writeByte( 0 );
+				break;
+			case 0x15 :
+				writer.command( playerIndex, blockId );
+				writer.writeShort( random.nextInt( mapWidth * 32 ) );
+				writer.writeShort( random.nextInt( mapHeight * 32 ) );
+				writer.writeShort( 0xffff );
+				writer.writeShort( 0xe4 );
+				writer.writeByte( ORDER_TYPES[ random.nextInt( ORDER_TYPES.length ) ] );
+				writer.writeByte( random.nextInt( 8 ) == 0 ? 1 : 0 );
+				break;
+			case 0x1a : case 0x2b :
+				writer.command( playerIndex, blockId, 0 );
+				break;
+			case 0x1f :
+				writer.command( playerIndex, race == ReplayHeader.RACE_ZERG ? 0x23 : 0x1f );
+				writer.writeShort( random.nextInt( 3 ) == 0 ? FIGHTER_IDS[ race ] : WORKER_IDS[ race ] );
+				break;
+			case 0x30 :
+				writer.command( playerIndex, blockId, RESEARCH_IDS[ random.nextInt( RESEARCH_IDS.length ) ] );
+				break;
+			case 0x32 :
+				writer.command( playerIndex, blockId, UPGRADE_IDS[ random.nextInt( UPGRADE_IDS.length ) ] );
+				break;
+			case 0x58 :
+				writer.command( playerIndex, blockId );
+				writer.writeShort( random.nextInt( mapWidth * 32 ) );
+				writer.writeShort( random.nextInt( mapHeight * 32 ) );
+				break;
+			case 0x5c : {
+				writer.command( playerIndex, blockId, playerIndex );
+				final byte[] message = Arrays.copyOf( MESSAGES[ random.nextInt( MESSAGES.length ) ].getBytes(), 80 );
+				for ( final byte b : message )
+					writer.writeByte( b );
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Writes the commands of a hack.
+	 * @param writer      commands writer
+	 * @param playerIndex index of the player
+	 * @param race        race of the player
+	 * @param hackType    type of the hack
+	 * @param random      random generator
+	 */
+	private void writeHack( final CommandsWriter writer, final int playerIndex, final byte race, final int hackType, final Random random ) {
+		switch ( hackType ) {
+			case HackDescription.HACK_TYPE_AUTOGATHER_AUTOTRAIN :
+				// Workers sent to mine before the game starts
+				for ( int i = 0; i < 4; i++ ) {
+					writer.command( playerIndex, 0x09, 1 );
+					writer.writeShort( randomUnitTag( playerIndex, random ) );
+					writer.command( playerIndex, 0x15 );
+					writer.writeShort( random.nextInt( mapWidth * 32 ) );
+					writer.writeShort( random.nextInt( mapHeight * 32 ) );
+					writer.writeShort( 0xffff );
+					writer.writeShort( 0xe4 );
+					writer.writeByte( 0x4f );
+					writer.writeByte( 0 );
+				}
+				break;
+			case HackDescription.HACK_TYPE_MULTICOMMAND :
+				// Different commands to different units in the same frame
+				for ( int i = 0; i < 12; i++ ) {
+					writer.command( playerIndex, 0x09, 1 );
+					writer.writeShort( randomUnitTag( playerIndex, random ) );
+					writer.command( playerIndex, 0x14 );
+					writer.writeShort( i * 64 );
+					writer.writeShort( random.nextInt( mapHeight * 32 ) );
+					writer.writeShort( 0xffff );
+					writer.writeShort( 0xe4 );
+					writer.writeByte( 0 );
+				}
+				break;
+			case HackDescription.HACK_TYPE_MULTICOMMAND_UNIT_CONTROL : {
+				// 2 units moved to the same point in the same frame
+				final int x = random.nextInt( mapWidth * 32 ), y = random.nextInt( mapHeight * 32 );
+				for ( int i = 0; i < 2; i++ ) {
+					writer.command( playerIndex, 0x09, 1 );
+					writer.writeShort( randomUnitTag( playerIndex, random ) + i * 16 );
+					writer.command( playerIndex, 0x14 );
+					writer.writeShort( x );
+					writer.writeShort( y );
+					writer.writeShort( 0xffff );
+					writer.writeShort( 0xe4 );
+					writer.writeByte( 0 );
+				}
+				break;
+			}
+			case HackDescription.HACK_TYPE_BUILD_ANYWHERE :
+				// Building over the right edge of the map
+				writer.command( playerIndex, 0x0c, 0x19 );
+				writer.writeShort( mapWidth - 1 );
+				writer.writeShort( random.nextInt( mapHeight / 2 ) );
+				writer.writeShort( BUILDING_IDS[ race ][ 0 ] );
+				break;
+			case HackDescription.HACK_TYPE_USE_CHEAT_DROPHACK :
+				writer.command( playerIndex, 0x12, 0x00, 0x08, 0x00, 0x00 );
+				break;
+			case HackDescription.HACK_TYPE_ALLY_VISION_DROPHACK :
+				// Shared vision with nobody (not even with himself)
+				writer.command( playerIndex, 0x0d, 0x00, 0x00 );
+				break;
+		}
+	}
+
+	/**
+	 * Returns a random unit tag of a player.
+	 * @param playerIndex index of the player
+	 * @param random      random generator
+	 * @return a random unit tag of the player
+	 */
+	private static int randomUnitTag( final int playerIndex, final Random random ) {
+		return 0x100 + playerIndex * 0x200 + random.nextInt( 0x100 );
+	}
+
+	/**
+	 * Creates the map data section: dimension, tile set, tiles, and the start locations with mineral fields.
+	 * @param plan   plan of the replay
+	 * @param random random generator of the map
+	 * @return the map data section
+	 */
+	private byte[] createMapData( final Plan plan, final Random random ) {
+		final int tilesCount = mapWidth * mapHeight;
+		final int unitsCount = playersCount * 9;
+		final byte[] mapData = new byte[ 8 + 4 + 8 + 2 + 8 + tilesCount * 2 + 8 + unitsCount * 36 ];
+
+		int pos = writeSectionHeader( mapData, 0, "DIM ", 4 );
+		writeShort( mapData, pos, mapWidth );
+		writeShort( mapData, pos + 2, mapHeight );
+		pos = writeSectionHeader( mapData, pos + 4, "ERA ", 2 );
+		writeShort( mapData, pos, random.nextInt( 8 ) );
+		pos = writeSectionHeader( mapData, pos + 2, "MTXM", tilesCount * 2 );
+		for ( int y = 0; y < mapHeight; y++ )
+			for ( int x = 0; x < mapWidth; x++, pos += 2 )
+				writeShort( mapData, pos, ( ( x >> 3 ) + ( y >> 3 ) & 0x03 ) << 4 | ( random.nextInt( 8 ) == 0 ? random.nextInt( 16 ) : 0 ) );
+
+		pos = writeSectionHeader( mapData, pos, "UNIT", unitsCount * 36 );
+		int serial = 0;
+		for ( int i = 0; i < playersCount; i++ ) {
+			// Start locations around the map
+			final double angle = 2 * Math.PI * i / playersCount;
+			final int x = (int) ( mapWidth  * 16 * ( 1 + 0.75 * Math.cos( angle ) ) );
+			final int y = (int) ( mapHeight * 16 * ( 1 + 0.75 * Math.sin( angle ) ) );
+			pos = writeUnit( mapData, pos, serial++, x, y, Action.UNIT_NAME_START_LOCATION, i );
+			for ( int j = 0; j < 8; j++ )
+				pos = writeUnit( mapData, pos, serial++, x - 224 + j * 64, y - 160, Action.UNIT_NAME_MINERAL_FIELD_1 + j % 3, 11 );
+		}
+
+		return mapData;
+	}
+
+	/**
+	 * Writes the header of a map data section.
+	 * @param data   map data
+	 * @param pos    position to write at
+	 * @param name   name of the section
+	 * @param length length of the section
+	 * @return the position after the section header
+	 */
+	private static int writeSectionHeader( final byte[] data, final int pos, final String name, final int length ) {
+		for ( int i = 0; i < 4; i++ )
+			data[ pos + i ] = (byte) name.charAt( i );
+		writeInt( data, pos + 4, length );
+		return pos + 8;
+	}
+
+	/**
+	 * Writes a unit entry of the map data.
+	 * @return the position after the unit entry
+	 */
+	private static int writeUnit( final byte[] data, final int pos, final int serial, final int x, final int y, final int type, final int owner ) {
+		writeInt( data, pos, serial );
+		writeShort( data, pos + 4, x );
+		writeShort( data, pos + 6, y );
+		writeShort( data, pos + 8, type );
+		data[ pos + 16 ] = (byte) owner;
+		return pos + 36;
+	}
+
+	/**
+	 * Writer of the commands section: frame blocks of the commands of each frame,
+	 * split into more blocks of the same frame if the commands do not fit into 255 bytes.
+	 */
+	private static class CommandsWriter {
+		/** The commands section.                     */
+		private byte[] data;
+		/** Length of the commands section.           */
+		private int    length;
+		/** Position of the current frame block.      */
+		private int    blockPos;
+		/** Position of the current command.          */
+		private int    commandPos;
+		/** Frame of the current frame.               */
+		private int    frame;
+
+		/**
+		 * Creates a new CommandsWriter.
+		 * @param capacity initial capacity
+		 */
+		public CommandsWriter( final int capacity ) {
+			data = new byte[ capacity ];
+		}
+
+		/**
+		 * Begins a frame.
+		 * @param frame the frame
+		 */
+		public void beginFrame( final int frame ) {
+			this.frame = frame;
+			blockPos   = -1;
+		}
+
+		/**
+		 * Begins a command, and writes its first data bytes.
+		 * @param playerIndex index of the player
+		 * @param blockId     block ID of the command
+		 * @param bytes       first data bytes of the command
+		 */
+		public void command( final int playerIndex, final int blockId, final int... bytes ) {
+			closeCommand();
+			if ( blockPos < 0 ) {
+				ensureCapacity( 5 );
+				blockPos = length;
+				writeInt( data, length, frame );
+				length += 5;
+			}
+			commandPos = length;
+			writeByte( playerIndex );
+			writeByte( blockId );
+			for ( final int b : bytes )
+				writeByte( b );
+		}
+
+		/**
+		 * Writes a byte of the current command.
+		 * @param value value of the byte
+		 */
+		public void writeByte( final int value ) {
+			ensureCapacity( 1 );
+			data[ length++ ] = (byte) value;
+		}
+
+		/**
+		 * Writes a short of the current command.
+		 * @param value value of the short
+		 */
+		public void writeShort( final int value ) {
+			writeByte( value );
+			writeByte( value >> 8 );
+		}
+
+		/**
+		 * Ends the current frame. Frames without commands are not written.
+		 */
+		public void endFrame() {
+			closeCommand();
+			blockPos = -1;
+		}
+
+		/**
+		 * Returns the commands section.
+		 * @return the commands section
+		 */
+		public byte[] toByteArray() {
+			return Arrays.copyOf( data, length );
+		}
+
+		/**
+		 * Closes the current command: moves it to a new frame block if the current block would exceed 255 bytes.
+		 */
+		private void closeCommand() {
+			if ( blockPos < 0 )
+				return;
+			if ( length - blockPos - 5 > 255 ) {
+				final int commandLength = length - commandPos;
+				ensureCapacity( 5 );
+				System.arraycopy( data, commandPos, data, commandPos + 5, commandLength );
+				data[ blockPos + 4 ] = (byte) ( commandPos - blockPos - 5 );
+				blockPos = commandPos;
+				writeInt( data, blockPos, frame );
+				length += 5;
+				commandPos += 5;
+			}
+			data[ blockPos + 4 ] = (byte) ( length - blockPos - 5 );
+		}
+
+		/**
+		 * Ensures capacity for more bytes.
+		 * @param count number of bytes to be written
+		 */
+		private void ensureCapacity( final int count ) {
+			if ( length + count > data.length )
+				data = Arrays.copyOf( data, Math.max( data.length << 1, length + count ) );
+		}
+	}
+
+	private static byte[] toSortedArray( final Set< Byte > set ) {
+		final byte[] array = new byte[ set.size() ];
+		int i = 0;
+		for ( final Byte value : new TreeSet< Byte >( set ) )
+			array[ i++ ] = value;
+		return array;
+	}
+
+	private static void writeInt( final byte[] data, final int pos, final int value ) {
+		data[ pos     ] = (byte) value;
+		data[ pos + 1 ] = (byte) ( value >> 8 );
+		data[ pos + 2 ] = (byte) ( value >> 16 );
+		data[ pos + 3 ] = (byte) ( value >> 24 );
+	}
+
+	private static void writeShort( final byte[] data, final int pos, final int value ) {
+		data[ pos     ] = (byte) value;
+		data[ pos + 1 ] = (byte) ( value >> 8 );
+	}
+
+	private static void writeString( final byte[] data, final int pos, final String value, final int maxLength ) {
+		final byte[] bytes = value.getBytes();
+		System.arraycopy( bytes, 0, data, pos, Math.min( bytes.length, maxLength - 1 ) );
+	}
+
+}
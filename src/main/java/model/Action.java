@@ -622,6 +622,9 @@ public class Action implements Comparable< Action > {
 	public static final String HOTKEY_ACTION_PARAM_NAME_ADD    = "Add";
 	public static final String HOTKEY_ACTION_PARAM_NAME_ASSIGN = "Assign";
 
+	/** Position value returned by {@link #getPosX()} and {@link #getPosY()} for the actions without position. */
+	public static final short NO_POSITION = Short.MIN_VALUE;
+
 	/** Iteration when this action was given. */
 	public final int     iteration;
 	/** Name of the action.                   */
@@ -722,10 +725,24 @@ public class Action implements Comparable< Action > {
 	 * @param posY Y coord
 	 */
 	public Action( final int iteration, final String parameters, final byte actionNameIndex, final short parameterUnitNameIndex, final short parameterBuildingNameIndex, final short posX, final short posY ) {
-		this( iteration, parameters, actionNameIndex, SUBACTION_NAME_INDEX_UNKNOWN, parameterUnitNameIndex, parameterBuildingNameIndex );
+		this( iteration, parameters, actionNameIndex, SUBACTION_NAME_INDEX_UNKNOWN, parameterUnitNameIndex, parameterBuildingNameIndex, posX, posY );
+	}
+	/**
+	 * Creates a new Action with pre-identified indices and a target position.
+	 *
+	 * @param iteration                  iteration of the action
+	 * @param parameters                 parameter string of the action
+	 * @param actionNameIndex            index determining the action name
+	 * @param subactionNameIndex         index determining the subaction name
+	 * @param parameterUnitNameIndex     index determining the unit name
+	 * @param parameterBuildingNameIndex index determining the building name
+	 * @param posX X coord
+	 * @param posY Y coord
+	 */
+	public Action( final int iteration, final String parameters, final byte actionNameIndex, final byte subactionNameIndex, final short parameterUnitNameIndex, final short parameterBuildingNameIndex, final short posX, final short posY ) {
+		this( iteration, parameters, actionNameIndex, subactionNameIndex, parameterUnitNameIndex, parameterBuildingNameIndex );
 		this.posX = posX;
 		this.posY = posY;
-
 	}
 	/**
 	 * Creates a new Action with pre-identified indices.
@@ -750,6 +767,30 @@ public class Action implements Comparable< Action > {
 	}
 
 
+	/**
+	 * Tells if the action has a target position.
+	 * @return true if the action has a target position
+	 */
+	public boolean hasPosition() {
+		return posX != null && posY != null;
+	}
+
+	/**
+	 * Returns the X coordinate of the target of the action without unboxing <code>null</code>.
+	 * @return the X coordinate of the target of the action; or {@link #NO_POSITION} if the action has no position
+	 */
+	public short getPosX() {
+		return posX == null ? NO_POSITION : posX;
+	}
+
+	/**
+	 * Returns the Y coordinate of the target of the action without unboxing <code>null</code>.
+	 * @return the Y coordinate of the target of the action; or {@link #NO_POSITION} if the action has no position
+	 */
+	public short getPosY() {
+		return posY == null ? NO_POSITION : posY;
+	}
+
 	@Override
 	public String toString() {
 		return toString( null, false );
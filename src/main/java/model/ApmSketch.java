@@ -0,0 +1,159 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Mergeable quantile sketch of non-negative int values (APM, EAPM): a log-linear (HDR style) histogram.<br>
+ * Values below 64 have their own buckets, larger values are counted in 32 buckets per power of two up to {@link #MAX_VALUE},
+ * so quantiles have a relative error below 3.2% while the sketch has a fixed size of {@value #BUCKETS_COUNT} buckets
+ * regardless of the number of values.
+ *
+ * <p>Percentile ranks are looked up in O(1) from a cumulative table which is rebuilt lazily after values are added.
+ * Not thread-safe: build one sketch per thread and merge them.</p>
+ */
+public class ApmSketch {
+
+	/** Largest value distinguished by the sketch, larger values are counted as this. */
+	public static final int MAX_VALUE     = ( 1 << 15 ) - 1;
+	/** Number of buckets: 64 linear buckets, then 32 buckets for each power of two from 2^6 to 2^14. */
+	public static final int BUCKETS_COUNT = 64 + ( 14 - 6 + 1 ) * 32;
+
+	/** Counts of the buckets.                                               */
+	private final long[] counts = new long[ BUCKETS_COUNT ];
+	/** Number of values in the sketch.                                      */
+	private long   totalCount;
+	/** Cumulative counts of the buckets; <code>null</code> if stale. */
+	private long[] cumulativeCounts;
+
+	/**
+	 * Adds a value to the sketch.
+	 * @param value value to be added; negative values are counted as 0
+	 */
+	public void add( final int value ) {
+		counts[ getBucket( value ) ]++;
+		totalCount++;
+		cumulativeCounts = null;
+	}
+
+	/**
+	 * Merges another sketch into this.
+	 * @param sketch sketch to be merged
+	 */
+	public void merge( final ApmSketch sketch ) {
+		for ( int i = 0; i < BUCKETS_COUNT; i++ )
+			counts[ i ] += sketch.counts[ i ];
+		totalCount += sketch.totalCount;
+		cumulativeCounts = null;
+	}
+
+	/**
+	 * Returns the number of values in the sketch.
+	 * @return the number of values in the sketch
+	 */
+	public long getCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Returns the percentile rank of a value: the percentage of the values of the sketch below it (values in the same bucket count half).
+	 * @param value value to be ranked
+	 * @return the percentile rank of the value between 0 and 100; 0 if the sketch is empty
+	 */
+	public double getPercentileRank( final int value ) {
+		if ( totalCount == 0 )
+			return 0;
+		if ( cumulativeCounts == null ) {
+			final long[] cumulativeCounts_ = new long[ BUCKETS_COUNT ];
+			long cumulative = 0;
+			for ( int i = 0; i < BUCKETS_COUNT; i++ )
+				cumulativeCounts_[ i ] = cumulative += counts[ i ];
+			cumulativeCounts = cumulativeCounts_;
+		}
+
+		final int bucket = getBucket( value );
+		return ( cumulativeCounts[ bucket ] - counts[ bucket ] / 2.0 ) * 100 / totalCount;
+	}
+
+	/**
+	 * Returns a quantile of the values: the lower bound of the bucket containing it.
+	 * @param quantile quantile between 0 and 1, e.g. 0.9
+	 * @return the quantile of the values; 0 if the sketch is empty
+	 */
+	public int getQuantile( final double quantile ) {
+		if ( totalCount == 0 )
+			return 0;
+		final long rank = Math.max( 1, (long) Math.ceil( quantile * totalCount ) );
+		long cumulative = 0;
+		for ( int i = 0; i < BUCKETS_COUNT; i++ )
+			if ( ( cumulative += counts[ i ] ) >= rank )
+				return getLowerBound( i );
+		return MAX_VALUE;
+	}
+
+	/**
+	 * Writes the sketch (the non-empty buckets).
+	 * @param output output to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write( final DataOutput output ) throws IOException {
+		int bucketsCount = 0;
+		for ( final long count : counts )
+			if ( count > 0 )
+				bucketsCount++;
+		output.writeShort( bucketsCount );
+		for ( int i = 0; i < BUCKETS_COUNT; i++ )
+			if ( counts[ i ] > 0 ) {
+				output.writeShort( i );
+				output.writeLong ( counts[ i ] );
+			}
+	}
+
+	/**
+	 * Reads a sketch written by {@link #write(DataOutput)}.
+	 * @param input input to read from
+	 * @return the read sketch
+	 * @throws IOException if an I/O error occurs or the data is invalid
+	 */
+	public static ApmSketch read( final DataInput input ) throws IOException {
+		final ApmSketch sketch = new ApmSketch();
+		final int bucketsCount = input.readShort();
+		for ( int i = 0; i < bucketsCount; i++ ) {
+			final int bucket = input.readShort();
+			if ( bucket < 0 || bucket >= BUCKETS_COUNT )
+				throw new IOException( "Invalid sketch bucket: " + bucket );
+			final long count = input.readLong();
+			sketch.counts[ bucket ] += count;
+			sketch.totalCount       += count;
+		}
+		return sketch;
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 * @param value value whose bucket to be returned
+	 * @return the bucket of the value
+	 */
+	private static int getBucket( int value ) {
+		if ( value < 64 )
+			return value < 0 ? 0 : value;
+		if ( value > MAX_VALUE )
+			value = MAX_VALUE;
+		final int shift = 31 - Integer.numberOfLeadingZeros( value ) - 5;
+		return ( shift + 1 ) * 32 + ( value >>> shift ) - 32;
+	}
+
+	/**
+	 * Returns the smallest value of a bucket.
+	 * @param bucket bucket whose lower bound to be returned
+	 * @return the smallest value of the bucket
+	 */
+	private static int getLowerBound( final int bucket ) {
+		if ( bucket < 64 )
+			return bucket;
+		final int shift = bucket / 32 - 1;
+		return ( bucket % 32 + 32 ) << shift;
+	}
+
+}
@@ -0,0 +1,283 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of {@link ApmSketch}es of the APM and EAPM of the players by race, matchup and period (month of the save time).<br>
+ * A value is added to 4 sketches: of its matchup and period, of its matchup in all periods, of any matchup in its period
+ * and of any matchup in all periods, so the population of a player can be looked up at any of these levels.
+ * The memory is bounded by the number of race, matchup and period combinations, not by the number of values.
+ *
+ * <p>Sets are serializable and can be merged, so they can be built per thread or per shard and combined. Not thread-safe.</p>
+ */
+public class ApmSketches {
+
+	/** Magic number of the serialized sets: "RAPS". */
+	private static final int FILE_MAGIC   = 0x53504152;
+	/** Version of the serialized format.            */
+	private static final int FILE_VERSION = 1;
+
+	/** APM metric.  */
+	public static final int METRIC_APM  = 0;
+	/** EAPM metric. */
+	public static final int METRIC_EAPM = 1;
+	/** Names of the metrics. */
+	public static final String[] METRIC_NAMES = { "apm", "eapm" };
+
+	/** Matchup value meaning any matchup.  */
+	public static final int ANY_MATCHUP = 0xffff;
+	/** Period value meaning all periods.   */
+	public static final int ALL_PERIODS = 0xffff;
+	/** Period value of missing save times. */
+	public static final int NO_PERIOD   = -1;
+
+	/** First year of the periods (the year StarCraft was released). */
+	private static final int FIRST_YEAR = 1998;
+
+	/** Sketches mapped from their keys (see {@link #getKey(int, int, int, int)}). */
+	private final Map< Long, ApmSketch > keySketchMap = new HashMap< Long, ApmSketch >();
+
+	/**
+	 * Adds a value of a player.
+	 * @param metric  metric of the value ({@link #METRIC_APM} or {@link #METRIC_EAPM})
+	 * @param race    race of the player
+	 * @param matchup matchup of the game (see {@link #getMatchup(ReplayHeader)})
+	 * @param period  period of the game (see {@link #getPeriod(Date)}); {@link #NO_PERIOD} to add it to all periods only
+	 * @param value   value to be added
+	 */
+	public void add( final int metric, final int race, final int matchup, final int period, final int value ) {
+		getOrCreateSketch( metric, race, matchup    , ALL_PERIODS ).add( value );
+		getOrCreateSketch( metric, race, ANY_MATCHUP, ALL_PERIODS ).add( value );
+		if ( period != NO_PERIOD ) {
+			getOrCreateSketch( metric, race, matchup    , period ).add( value );
+			getOrCreateSketch( metric, race, ANY_MATCHUP, period ).add( value );
+		}
+	}
+
+	/**
+	 * Returns a sketch.
+	 * @param metric  metric of the sketch
+	 * @param race    race of the sketch
+	 * @param matchup matchup of the sketch; or {@link #ANY_MATCHUP}
+	 * @param period  period of the sketch; or {@link #ALL_PERIODS}
+	 * @return the sketch; or <code>null</code> if no values were added to it
+	 */
+	public ApmSketch getSketch( final int metric, final int race, final int matchup, final int period ) {
+		return keySketchMap.get( getKey( metric, race, matchup, period ) );
+	}
+
+	/**
+	 * Returns the percentile rank of a value of a player in a population.
+	 * @param metric  metric of the value
+	 * @param race    race of the player
+	 * @param matchup matchup of the population; or {@link #ANY_MATCHUP}
+	 * @param period  period of the population; or {@link #ALL_PERIODS}
+	 * @param value   value to be ranked
+	 * @return the percentile rank of the value between 0 and 100; or {@link Double#NaN} if the population is empty
+	 */
+	public double getPercentileRank( final int metric, final int race, final int matchup, final int period, final int value ) {
+		final ApmSketch sketch = getSketch( metric, race, matchup, period );
+		return sketch == null ? Double.NaN : sketch.getPercentileRank( value );
+	}
+
+	/**
+	 * Returns the keys of the sketches in ascending order: by metric, race, matchup and period.
+	 * @return the keys of the sketches
+	 */
+	public long[] getKeys() {
+		final long[] keys = new long[ keySketchMap.size() ];
+		int i = 0;
+		for ( final Long key : keySketchMap.keySet() )
+			keys[ i++ ] = key;
+		Arrays.sort( keys );
+		return keys;
+	}
+
+	/**
+	 * Returns the sketch of a key.
+	 * @param key key of the sketch (see {@link #getKeys()})
+	 * @return the sketch of the key; or <code>null</code> if none
+	 */
+	public ApmSketch getSketch( final long key ) {
+		return keySketchMap.get( key );
+	}
+
+	/**
+	 * Merges another set into this.
+	 * @param sketches set to be merged
+	 */
+	public void merge( final ApmSketches sketches ) {
+		for ( final Map.Entry< Long, ApmSketch > entry : sketches.keySketchMap.entrySet() ) {
+			ApmSketch sketch = keySketchMap.get( entry.getKey() );
+			if ( sketch == null )
+				keySketchMap.put( entry.getKey(), sketch = new ApmSketch() );
+			sketch.merge( entry.getValue() );
+		}
+	}
+
+	/**
+	 * Writes the set.
+	 * @param output output to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write( final DataOutput output ) throws IOException {
+		output.writeInt( FILE_MAGIC   );
+		output.writeInt( FILE_VERSION );
+		final long[] keys = getKeys();
+		output.writeInt( keys.length );
+		for ( final long key : keys ) {
+			output.writeLong( key );
+			keySketchMap.get( key ).write( output );
+		}
+	}
+
+	/**
+	 * Reads a set written by {@link #write(DataOutput)}.
+	 * @param input input to read from
+	 * @return the read set
+	 * @throws IOException if an I/O error occurs or the data is not a sketch set
+	 */
+	public static ApmSketches read( final DataInput input ) throws IOException {
+		if ( input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION )
+			throw new IOException( "Not an APM sketch set!" );
+
+		final ApmSketches sketches = new ApmSketches();
+		final int size = input.readInt();
+		for ( int i = 0; i < size; i++ ) {
+			final long key = input.readLong();
+			sketches.keySketchMap.put( key, ApmSketch.read( input ) );
+		}
+		return sketches;
+	}
+
+	/**
+	 * Returns the sketch of a key, creates it if it does not exist.
+	 */
+	private ApmSketch getOrCreateSketch( final int metric, final int race, final int matchup, final int period ) {
+		final long key = getKey( metric, race, matchup, period );
+		ApmSketch sketch = keySketchMap.get( key );
+		if ( sketch == null )
+			keySketchMap.put( key, sketch = new ApmSketch() );
+		return sketch;
+	}
+
+	/**
+	 * Returns the key of a sketch.
+	 * @param metric  metric of the sketch
+	 * @param race    race of the sketch
+	 * @param matchup matchup of the sketch; or {@link #ANY_MATCHUP}
+	 * @param period  period of the sketch; or {@link #ALL_PERIODS}
+	 * @return the key of the sketch
+	 */
+	public static long getKey( final int metric, final int race, final int matchup, final int period ) {
+		return (long) metric << 40 | (long) race << 32 | (long) ( matchup & 0xffff ) << 16 | period & 0xffff;
+	}
+
+	/**
+	 * Returns the metric of a key.
+	 * @param key key of a sketch
+	 * @return the metric of the key
+	 */
+	public static int getMetric( final long key ) {
+		return (int) ( key >>> 40 );
+	}
+
+	/**
+	 * Returns the race of a key.
+	 * @param key key of a sketch
+	 * @return the race of the key
+	 */
+	public static int getRace( final long key ) {
+		return (int) ( key >>> 32 ) & 0xff;
+	}
+
+	/**
+	 * Returns the matchup of a key.
+	 * @param key key of a sketch
+	 * @return the matchup of the key; or {@link #ANY_MATCHUP}
+	 */
+	public static int getMatchup( final long key ) {
+		return (int) ( key >>> 16 ) & 0xffff;
+	}
+
+	/**
+	 * Returns the period of a key.
+	 * @param key key of a sketch
+	 * @return the period of the key; or {@link #ALL_PERIODS}
+	 */
+	public static int getPeriod( final long key ) {
+		return (int) key & 0xffff;
+	}
+
+	/**
+	 * Returns the matchup of a game: the number of Zerg, Terran and Protoss human players,
+	 * encoded as <code>zergs * 169 + terrans * 13 + protosses</code> (at most 12 each).
+	 * @param replayHeader header of the game
+	 * @return the matchup of the game; 0 if there are no human players of these races
+	 */
+	public static int getMatchup( final ReplayHeader replayHeader ) {
+		int zergs = 0, terrans = 0, protosses = 0;
+		for ( int i = 0; i < replayHeader.playerNames.length; i++ )
+			if ( replayHeader.playerNames[ i ] != null && ( replayHeader.playerIds[ i ] & 0xff ) != 0xff )
+				switch ( replayHeader.playerRaces[ i ] ) {
+				case ReplayHeader.RACE_ZERG    : zergs++;     break;
+				case ReplayHeader.RACE_TERRAN  : terrans++;   break;
+				case ReplayHeader.RACE_PROTOSS : protosses++; break;
+				}
+		return Math.min( zergs, 12 ) * 169 + Math.min( terrans, 12 ) * 13 + Math.min( protosses, 12 );
+	}
+
+	/**
+	 * Returns the name of a matchup: the races of the players in P, T, Z order, e.g. <code>PvT</code>.
+	 * @param matchup matchup whose name to be returned
+	 * @return the name of the matchup; <code>"any"</code> for {@link #ANY_MATCHUP}
+	 */
+	public static String getMatchupName( final int matchup ) {
+		if ( matchup == ANY_MATCHUP )
+			return "any";
+		final StringBuilder nameBuilder = new StringBuilder();
+		final int[] raceCounts = { matchup % 13, matchup / 13 % 13, matchup / 169 };
+		final char[] raceCharacters = { 'P', 'T', 'Z' };
+		for ( int i = 0; i < raceCounts.length; i++ )
+			for ( int j = 0; j < raceCounts[ i ]; j++ ) {
+				if ( nameBuilder.length() > 0 )
+					nameBuilder.append( 'v' );
+				nameBuilder.append( raceCharacters[ i ] );
+			}
+		return nameBuilder.toString();
+	}
+
+	/**
+	 * Returns the period of a save time: the months since January of {@value #FIRST_YEAR} (UTC).
+	 * @param saveTime save time of a game; can be <code>null</code>
+	 * @return the period of the save time; or {@link #NO_PERIOD} if the save time is missing or out of the range
+	 */
+	public static int getPeriod( final Date saveTime ) {
+		if ( saveTime == null )
+			return NO_PERIOD;
+		final OffsetDateTime date = saveTime.toInstant().atOffset( ZoneOffset.UTC );
+		final int period = ( date.getYear() - FIRST_YEAR ) * 12 + date.getMonthValue() - 1;
+		return period < 0 || period >= ALL_PERIODS ? NO_PERIOD : period;
+	}
+
+	/**
+	 * Returns the name of a period, e.g. <code>2009-03</code>.
+	 * @param period period whose name to be returned
+	 * @return the name of the period; <code>"all"</code> for {@link #ALL_PERIODS}
+	 */
+	public static String getPeriodName( final int period ) {
+		if ( period == ALL_PERIODS )
+			return "all";
+		final int month = period % 12 + 1;
+		return ( FIRST_YEAR + period / 12 ) + ( month < 10 ? "-0" : "-" ) + month;
+	}
+
+}
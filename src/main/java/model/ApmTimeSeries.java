@@ -0,0 +1,85 @@
+package model;
+
+/**
+ * APM and EAPM time series of the players of a replay.<br>
+ * The game is divided into buckets of {@link #bucketFrames} frames; the value of a bucket is calculated
+ * from the actions of the sliding window of the last {@link #windowBuckets} buckets ending with that bucket.
+ */
+public class ApmTimeSeries {
+
+	/** Number of frames in a bucket.                        */
+	public final int      bucketFrames;
+	/** Number of buckets in the sliding window.             */
+	public final int      windowBuckets;
+	/** Number of buckets in the series.                     */
+	public final int      bucketsCount;
+
+	/** Names of the players (indexed by player index).      */
+	public final String[] playerNames;
+	/** APM series of the players: [player index][bucket].   */
+	public final int[][]  apm;
+	/** EAPM series of the players: [player index][bucket].  */
+	public final int[][]  eapm;
+	/** Total number of actions of the players.              */
+	public final int[]    actionsCounts;
+	/** Total number of effective actions of the players.    */
+	public final int[]    effectiveActionsCounts;
+
+	/**
+	 * Creates a new ApmTimeSeries.
+	 * @param bucketFrames           number of frames in a bucket
+	 * @param windowBuckets          number of buckets in the sliding window
+	 * @param playerNames            names of the players
+	 * @param apm                    APM series of the players
+	 * @param eapm                   EAPM series of the players
+	 * @param actionsCounts          total number of actions of the players
+	 * @param effectiveActionsCounts total number of effective actions of the players
+	 */
+	public ApmTimeSeries( final int bucketFrames, final int windowBuckets, final String[] playerNames, final int[][] apm, final int[][] eapm,
+			final int[] actionsCounts, final int[] effectiveActionsCounts ) {
+		this.bucketFrames           = bucketFrames;
+		this.windowBuckets          = windowBuckets;
+		this.bucketsCount           = apm.length == 0 ? 0 : apm[ 0 ].length;
+		this.playerNames            = playerNames;
+		this.apm                    = apm;
+		this.eapm                   = eapm;
+		this.actionsCounts          = actionsCounts;
+		this.effectiveActionsCounts = effectiveActionsCounts;
+	}
+
+	/**
+	 * Returns the first frame of a bucket.
+	 * @param bucket index of the bucket
+	 * @return the first frame of the bucket
+	 */
+	public int getBucketStartFrame( final int bucket ) {
+		return bucket * bucketFrames;
+	}
+
+	/**
+	 * Returns the maximum APM of a player over the series.
+	 * @param playerIndex index of the player
+	 * @return the maximum APM of the player
+	 */
+	public int getMaxApm( final int playerIndex ) {
+		int max = 0;
+		for ( final int value : apm[ playerIndex ] )
+			if ( value > max )
+				max = value;
+		return max;
+	}
+
+	/**
+	 * Returns the maximum EAPM of a player over the series.
+	 * @param playerIndex index of the player
+	 * @return the maximum EAPM of the player
+	 */
+	public int getMaxEapm( final int playerIndex ) {
+		int max = 0;
+		for ( final int value : eapm[ playerIndex ] )
+			if ( value > max )
+				max = value;
+		return max;
+	}
+
+}
@@ -0,0 +1,94 @@
+package model;
+
+/**
+ * Build order of a player: the sequence of build, train, hatch, morph, research and upgrade commands
+ * with the cancelled items netted out.<br>
+ * Items are stored in primitive arrays: item <code>i</code> is described by <code>frames[ i ]</code>, <code>kinds[ i ]</code>,
+ * <code>ids[ i ]</code> and <code>supplies[ i ]</code>; only the first {@link #size} elements of the arrays are valid.
+ */
+public class BuildOrder {
+
+	/** Kind of the build commands (0x0c), the ID is a unit ID.     */
+	public static final byte KIND_BUILD    = (byte) 0x00;
+	/** Kind of the train commands (0x1f), the ID is a unit ID.     */
+	public static final byte KIND_TRAIN    = (byte) 0x01;
+	/** Kind of the hatch commands (0x23), the ID is a unit ID.     */
+	public static final byte KIND_HATCH    = (byte) 0x02;
+	/** Kind of the morph commands (0x35), the ID is a unit ID.     */
+	public static final byte KIND_MORPH    = (byte) 0x03;
+	/** Kind of the research commands (0x30), the ID is a research ID. */
+	public static final byte KIND_RESEARCH = (byte) 0x04;
+	/** Kind of the upgrade commands (0x32), the ID is an upgrade ID.  */
+	public static final byte KIND_UPGRADE  = (byte) 0x05;
+
+	/** Names of the kinds. */
+	public static final String[] KIND_NAMES = {
+		"Build", "Train", "Hatch", "Morph", "Research", "Upgrade"
+	};
+
+	/** Name of the player.                                                      */
+	public final String  playerName;
+	/** Race of the player.                                                      */
+	public final byte    race;
+	/** Number of items.                                                         */
+	public final int     size;
+	/** Frames of the items.                                                     */
+	public final int[]   frames;
+	/** Kinds of the items.                                                      */
+	public final byte[]  kinds;
+	/** Unit, research or upgrade IDs of the items, depending on the kind.       */
+	public final short[] ids;
+	/** Estimated supply count of the player when the items were ordered.       */
+	public final short[] supplies;
+
+	/**
+	 * Creates a new BuildOrder.
+	 * @param playerName name of the player
+	 * @param race       race of the player
+	 * @param size       number of items
+	 * @param frames     frames of the items
+	 * @param kinds      kinds of the items
+	 * @param ids        unit, research or upgrade IDs of the items
+	 * @param supplies   estimated supply counts when the items were ordered
+	 */
+	public BuildOrder( final String playerName, final byte race, final int size, final int[] frames, final byte[] kinds, final short[] ids, final short[] supplies ) {
+		this.playerName = playerName;
+		this.race       = race;
+		this.size       = size;
+		this.frames     = frames;
+		this.kinds      = kinds;
+		this.ids        = ids;
+		this.supplies   = supplies;
+	}
+
+	/**
+	 * Returns the name of the unit, research or upgrade of an item.
+	 * @param index index of the item
+	 * @return the name of the unit, research or upgrade of the item
+	 */
+	public String getItemName( final int index ) {
+		switch ( kinds[ index ] ) {
+			case KIND_RESEARCH :
+				return Action.RESEARCH_ID_NAME_MAP.get( (byte) ids[ index ] );
+			case KIND_UPGRADE :
+				return Action.UPGRADE_ID_NAME_MAP.get( (byte) ids[ index ] );
+			default :
+				return Action.UNIT_ID_NAME_MAP.get( ids[ index ] );
+		}
+	}
+
+	/**
+	 * Returns the build order in the common "supply item" notation, one item per line.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder( playerName ).append( ':' );
+		for ( int i = 0; i < size; i++ ) {
+			builder.append( "\r\n" );
+			ReplayHeader.formatFrames( frames[ i ], builder, false );
+			builder.append( ' ' ).append( supplies[ i ] ).append( ' ' ).append( KIND_NAMES[ kinds[ i ] ] ).append( ' ' ).append( getItemName( i ) );
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,195 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact columnar copy of the actions of a replay with the header fields the replay scanner needs,
+ * to rescan replays without reparsing them.<br>
+ * The actions of the players are stored one player after the other in parallel arrays (columns);
+ * the parameter strings are encoded with a dictionary of the replay.
+ */
+public class ColumnarActions {
+
+	/** Position value of the actions without position. */
+	public static final short NO_POSITION = Action.NO_POSITION;
+
+	/** Number of frames of the game.   */
+	public final int      gameFrames;
+	/** Type of the game.               */
+	public final short    gameType;
+	/** Width of the map.               */
+	public final short    mapWidth;
+	/** Height of the map.              */
+	public final short    mapHeight;
+	/** Name of the map.                */
+	public final String   mapName;
+
+	/** Names of the players.                                         */
+	public final String[] playerNames;
+	/** Number of actions of the players (indexed like the names).   */
+	public final int[]    playerActionsCounts;
+
+	/** Frames of the actions.                                        */
+	public final int[]    frames;
+	/** Action name indices of the actions.                           */
+	public final byte[]   actionNameIndices;
+	/** Subaction name indices of the actions.                        */
+	public final byte[]   subactionNameIndices;
+	/** Unit name indices of the actions.                             */
+	public final short[]  unitNameIndices;
+	/** Building name indices of the actions.                         */
+	public final short[]  buildingNameIndices;
+	/** X coordinates of the actions; {@link #NO_POSITION} if none.   */
+	public final short[]  posXs;
+	/** Y coordinates of the actions; {@link #NO_POSITION} if none.   */
+	public final short[]  posYs;
+	/** Parameter string IDs of the actions; -1 if <code>null</code>. */
+	public final int[]    parameterIds;
+	/** Distinct parameter strings indexed by ID.                     */
+	public final String[] parameters;
+
+	/**
+	 * Creates a new ColumnarActions.
+	 * @param gameFrames           number of frames of the game
+	 * @param gameType             type of the game
+	 * @param mapWidth             width of the map
+	 * @param mapHeight            height of the map
+	 * @param mapName              name of the map
+	 * @param playerNames          names of the players
+	 * @param playerActionsCounts  number of actions of the players
+	 * @param frames               frames of the actions
+	 * @param actionNameIndices    action name indices of the actions
+	 * @param subactionNameIndices subaction name indices of the actions
+	 * @param unitNameIndices      unit name indices of the actions
+	 * @param buildingNameIndices  building name indices of the actions
+	 * @param posXs                X coordinates of the actions
+	 * @param posYs                Y coordinates of the actions
+	 * @param parameterIds         parameter string IDs of the actions
+	 * @param parameters           distinct parameter strings indexed by ID
+	 */
+	public ColumnarActions( final int gameFrames, final short gameType, final short mapWidth, final short mapHeight, final String mapName,
+			final String[] playerNames, final int[] playerActionsCounts, final int[] frames, final byte[] actionNameIndices, final byte[] subactionNameIndices,
+			final short[] unitNameIndices, final short[] buildingNameIndices, final short[] posXs, final short[] posYs, final int[] parameterIds, final String[] parameters ) {
+		this.gameFrames           = gameFrames;
+		this.gameType             = gameType;
+		this.mapWidth             = mapWidth;
+		this.mapHeight            = mapHeight;
+		this.mapName              = mapName;
+		this.playerNames          = playerNames;
+		this.playerActionsCounts  = playerActionsCounts;
+		this.frames               = frames;
+		this.actionNameIndices    = actionNameIndices;
+		this.subactionNameIndices = subactionNameIndices;
+		this.unitNameIndices      = unitNameIndices;
+		this.buildingNameIndices  = buildingNameIndices;
+		this.posXs                = posXs;
+		this.posYs                = posYs;
+		this.parameterIds         = parameterIds;
+		this.parameters           = parameters;
+	}
+
+	/**
+	 * Creates the columnar copy of the actions of a replay.
+	 * @param replay replay parsed with the commands section
+	 * @return the columnar copy of the actions of the replay
+	 */
+	public static ColumnarActions fromReplay( final Replay replay ) {
+		final ReplayHeader    header  = replay.replayHeader;
+		final PlayerActions[] players = replay.replayActions.players;
+
+		int size = 0;
+		for ( final PlayerActions player : players )
+			size += player.actions.length;
+
+		final String[] playerNames          = new String[ players.length ];
+		final int[]    playerActionsCounts  = new int   [ players.length ];
+		final int[]    frames               = new int   [ size ];
+		final byte[]   actionNameIndices    = new byte  [ size ];
+		final byte[]   subactionNameIndices = new byte  [ size ];
+		final short[]  unitNameIndices      = new short [ size ];
+		final short[]  buildingNameIndices  = new short [ size ];
+		final short[]  posXs                = new short [ size ];
+		final short[]  posYs                = new short [ size ];
+		final int[]    parameterIds         = new int   [ size ];
+		final StringDictionary dictionary   = new StringDictionary();
+
+		int i = 0;
+		for ( int playerIndex = 0; playerIndex < players.length; playerIndex++ ) {
+			playerNames        [ playerIndex ] = players[ playerIndex ].playerName;
+			playerActionsCounts[ playerIndex ] = players[ playerIndex ].actions.length;
+			for ( final Action action : players[ playerIndex ].actions ) {
+				frames              [ i ] = action.iteration;
+				actionNameIndices   [ i ] = action.actionNameIndex;
+				subactionNameIndices[ i ] = action.subactionNameIndex;
+				unitNameIndices     [ i ] = action.parameterUnitNameIndex;
+				buildingNameIndices [ i ] = action.parameterBuildingNameIndex;
+				posXs               [ i ] = action.getPosX();
+				posYs               [ i ] = action.getPosY();
+				parameterIds        [ i ] = action.parameters == null ? -1 : dictionary.add( action.parameters );
+				i++;
+			}
+		}
+
+		final String[] parameters = new String[ dictionary.size() ];
+		for ( int id = 0; id < parameters.length; id++ )
+			parameters[ id ] = dictionary.get( id );
+
+		return new ColumnarActions( header.gameFrames, header.gameType, header.mapWidth, header.mapHeight, header.mapName,
+				playerNames, playerActionsCounts, frames, actionNameIndices, subactionNameIndices, unitNameIndices, buildingNameIndices,
+				posXs, posYs, parameterIds, parameters );
+	}
+
+	/**
+	 * Returns the number of actions.
+	 * @return the number of actions
+	 */
+	public int size() {
+		return frames.length;
+	}
+
+	/**
+	 * Returns the action IDs which occur in the actions as a 256-bit set.
+	 * @return the action IDs which occur in the actions: bit <code>id &amp; 63</code> of element <code>id &gt;&gt; 6</code> is set for each action ID
+	 */
+	public long[] getActionIdSet() {
+		final long[] actionIdSet = new long[ 4 ];
+		for ( final byte actionNameIndex : actionNameIndices )
+			actionIdSet[ ( actionNameIndex & 0xff ) >> 6 ] |= 1L << ( actionNameIndex & 63 );
+		return actionIdSet;
+	}
+
+	/**
+	 * Recreates a replay from the columnar copy: a header with the stored fields and the actions of the players.
+	 * @return a replay which can be scanned for hacks
+	 */
+	public Replay toReplay() {
+		final ReplayHeader header = new ReplayHeader();
+		header.gameFrames = gameFrames;
+		header.gameType   = gameType;
+		header.mapWidth   = mapWidth;
+		header.mapHeight  = mapHeight;
+		header.mapName    = mapName;
+
+		final Map< String, List< Action > > playerNameActionListMap = new LinkedHashMap< String, List< Action > >();
+		int i = 0;
+		for ( int playerIndex = 0; playerIndex < playerNames.length; playerIndex++ ) {
+			final List< Action > actionList = new ArrayList< Action >( playerActionsCounts[ playerIndex ] );
+			for ( int j = 0; j < playerActionsCounts[ playerIndex ]; j++, i++ ) {
+				final Action action = new Action( frames[ i ], parameterIds[ i ] < 0 ? null : parameters[ parameterIds[ i ] ],
+						actionNameIndices[ i ], subactionNameIndices[ i ], unitNameIndices[ i ], buildingNameIndices[ i ] );
+				if ( posXs[ i ] != NO_POSITION )
+					action.posX = posXs[ i ];
+				if ( posYs[ i ] != NO_POSITION )
+					action.posY = posYs[ i ];
+				actionList.add( action );
+			}
+			playerNameActionListMap.put( playerNames[ playerIndex ], actionList );
+		}
+
+		return new Replay( header, new ReplayActions( playerNameActionListMap ), null, null );
+	}
+
+}
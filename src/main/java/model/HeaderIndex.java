@@ -0,0 +1,180 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Columnar index of replay headers of a replay corpus.<br>
+ * Header fields are stored in primitive arrays indexed by replay ID (the order replays were added),
+ * strings are dictionary encoded. Player columns are indexed by <code>replayId * PLAYER_SLOTS + playerIndex</code>
+ * where player index is the index of the player in the header.
+ *
+ * <p>Only the first {@link #size} elements (or <code>size * PLAYER_SLOTS</code> for player columns) of the arrays are valid;
+ * the arrays are replaced when the index grows, so references to them should not be kept while adding replays.</p>
+ */
+public class HeaderIndex {
+
+	/** Number of player slots of a replay header. */
+	public static final int PLAYER_SLOTS = 12;
+
+	/** Bit shift of the count of a race in the race counts: race * RACE_COUNT_SHIFT. */
+	public static final int RACE_COUNT_SHIFT = 4;
+
+	/** Paths of the replays, the ID of a path is the replay ID. */
+	public final StringDictionary replayPaths = new StringDictionary();
+	/** Dictionary of the map names.                             */
+	public final StringDictionary mapNames    = new StringDictionary();
+	/** Dictionary of the player names.                          */
+	public final StringDictionary playerNames = new StringDictionary();
+
+	/** Number of replays in the index. */
+	public int size;
+
+	/** Game engines.                                                  */
+	public byte [] gameEngines  = new byte [ 0 ];
+	/** Game lengths in frames.                                        */
+	public int  [] gameFrames   = new int  [ 0 ];
+	/** Save times in seconds since the epoch.                         */
+	public int  [] saveTimes    = new int  [ 0 ];
+	/** Map name IDs.                                                  */
+	public int  [] mapNameIds   = new int  [ 0 ];
+	/** Map widths.                                                    */
+	public short[] mapWidths    = new short[ 0 ];
+	/** Map heights.                                                   */
+	public short[] mapHeights   = new short[ 0 ];
+	/** Game types.                                                    */
+	public short[] gameTypes    = new short[ 0 ];
+	/** Number of players.                                             */
+	public byte [] playerCounts = new byte [ 0 ];
+	/** Counts of the races of the players, 4 bits per race (see {@link #getRaceCounts(int, int, int)}). */
+	public short[] raceCounts   = new short[ 0 ];
+
+	/** Player name IDs, -1 for empty slots.                           */
+	public int  [] playerNameIds       = new int  [ 0 ];
+	/** Player races.                                                  */
+	public byte [] playerRaces         = new byte [ 0 ];
+	/** Player IDs (0xff for computers).                               */
+	public byte [] playerIds           = new byte [ 0 ];
+	/** Action counts of the players.                                  */
+	public int  [] playerActionsCounts = new int  [ 0 ];
+	/** APMs of the players (see {@link ReplayHeader#getPlayerApm(int)}). */
+	public short[] playerApms          = new short[ 0 ];
+
+	/**
+	 * Packs race counts into the format of {@link #raceCounts}.
+	 * @param zergCount    number of zerg players
+	 * @param terranCount  number of terran players
+	 * @param protossCount number of protoss players
+	 * @return the packed race counts
+	 */
+	public static short getRaceCounts( final int zergCount, final int terranCount, final int protossCount ) {
+		return (short) ( zergCount << ReplayHeader.RACE_ZERG * RACE_COUNT_SHIFT | terranCount << ReplayHeader.RACE_TERRAN * RACE_COUNT_SHIFT
+				| protossCount << ReplayHeader.RACE_PROTOSS * RACE_COUNT_SHIFT );
+	}
+
+	/**
+	 * Adds a replay to the index.
+	 * @param replayPath   path of the replay
+	 * @param replayHeader header of the replay; the action counts are taken from it if the commands section was parsed
+	 * @return the ID of the replay; or -1 if a replay with the same path is already in the index
+	 */
+	public int add( final String replayPath, final ReplayHeader replayHeader ) {
+		if ( replayPaths.getId( replayPath ) >= 0 )
+			return -1;
+
+		final int replayId = replayPaths.add( replayPath );
+		ensureCapacity( replayId + 1 );
+
+		gameEngines[ replayId ] = replayHeader.gameEngine;
+		gameFrames [ replayId ] = replayHeader.gameFrames;
+		saveTimes  [ replayId ] = (int) ( replayHeader.saveTime.getTime() / 1000 );
+		mapNameIds [ replayId ] = mapNames.add( replayHeader.mapName );
+		mapWidths  [ replayId ] = replayHeader.mapWidth;
+		mapHeights [ replayId ] = replayHeader.mapHeight;
+		gameTypes  [ replayId ] = replayHeader.gameType;
+
+		int playerCount = 0;
+		int raceCount   = 0;
+		for ( int i = 0; i < PLAYER_SLOTS; i++ ) {
+			final int slot = replayId * PLAYER_SLOTS + i;
+			final String playerName = replayHeader.playerNames[ i ];
+			if ( playerName == null ) {
+				playerNameIds[ slot ] = -1;
+				continue;
+			}
+
+			playerCount++;
+			final byte race = replayHeader.playerRaces[ i ];
+			if ( race >= ReplayHeader.RACE_ZERG && race <= ReplayHeader.RACE_PROTOSS )
+				raceCount += 1 << race * RACE_COUNT_SHIFT;
+
+			final int playerId = replayHeader.playerIds[ i ];
+			playerNameIds      [ slot ] = playerNames.add( playerName );
+			playerRaces        [ slot ] = race;
+			playerIds          [ slot ] = (byte) playerId;
+			playerActionsCounts[ slot ] = playerId < replayHeader.playerIdActionsCounts.length ? replayHeader.playerIdActionsCounts[ playerId ] : 0;
+			playerApms         [ slot ] = (short) Math.min( replayHeader.getPlayerApm( i ), Short.MAX_VALUE );
+		}
+		playerCounts[ replayId ] = (byte) playerCount;
+		raceCounts  [ replayId ] = (short) raceCount;
+
+		size = replayId + 1;
+		return replayId;
+	}
+
+	/**
+	 * Returns the path of a replay.
+	 * @param replayId ID of the replay
+	 * @return the path of the replay
+	 */
+	public String getReplayPath( final int replayId ) {
+		return replayPaths.get( replayId );
+	}
+
+	/**
+	 * Returns the map name of a replay.
+	 * @param replayId ID of the replay
+	 * @return the map name of the replay
+	 */
+	public String getMapName( final int replayId ) {
+		return mapNames.get( mapNameIds[ replayId ] );
+	}
+
+	/**
+	 * Returns the name of a player of a replay.
+	 * @param replayId    ID of the replay
+	 * @param playerIndex index of the player in the header
+	 * @return the name of the player; or <code>null</code> if the slot is empty
+	 */
+	public String getPlayerName( final int replayId, final int playerIndex ) {
+		final int playerNameId = playerNameIds[ replayId * PLAYER_SLOTS + playerIndex ];
+		return playerNameId < 0 ? null : playerNames.get( playerNameId );
+	}
+
+	/**
+	 * Ensures the columns can hold the specified number of replays.
+	 * @param capacity number of replays the columns must hold
+	 */
+	public void ensureCapacity( final int capacity ) {
+		if ( gameFrames.length >= capacity )
+			return;
+
+		final int newLength = Math.max( capacity, Math.max( 1024, gameFrames.length + ( gameFrames.length >> 1 ) ) );
+		gameEngines  = Arrays.copyOf( gameEngines , newLength );
+		gameFrames   = Arrays.copyOf( gameFrames  , newLength );
+		saveTimes    = Arrays.copyOf( saveTimes   , newLength );
+		mapNameIds   = Arrays.copyOf( mapNameIds  , newLength );
+		mapWidths    = Arrays.copyOf( mapWidths   , newLength );
+		mapHeights   = Arrays.copyOf( mapHeights  , newLength );
+		gameTypes    = Arrays.copyOf( gameTypes   , newLength );
+		playerCounts = Arrays.copyOf( playerCounts, newLength );
+		raceCounts   = Arrays.copyOf( raceCounts  , newLength );
+
+		final int newPlayersLength = newLength * PLAYER_SLOTS;
+		playerNameIds       = Arrays.copyOf( playerNameIds      , newPlayersLength );
+		playerRaces         = Arrays.copyOf( playerRaces        , newPlayersLength );
+		playerIds           = Arrays.copyOf( playerIds          , newPlayersLength );
+		playerActionsCounts = Arrays.copyOf( playerActionsCounts, newPlayersLength );
+		playerApms          = Arrays.copyOf( playerApms         , newPlayersLength );
+	}
+
+}
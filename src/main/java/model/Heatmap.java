@@ -0,0 +1,148 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Grid of the target positions of actions on a map: the number of positions falling into each cell.<br>
+ * A heatmap belongs to a map, a player (or all players) and a time window (or all windows), see {@link Heatmaps}.
+ *
+ * <p>Heatmaps of the same map and resolution can be merged. Not thread-safe.</p>
+ */
+public class Heatmap {
+
+	/** Identity of the map (see {@link Heatmaps#getMapId(ReplayHeader)}).            */
+	public final String mapId;
+	/** Name of the player; or {@link Heatmaps#ALL_PLAYERS} (<code>null</code>).      */
+	public final String playerName;
+	/** Time window of the positions; or {@link Heatmaps#ALL_WINDOWS}.                */
+	public final int    window;
+	/** Width of the grid in cells.                                                   */
+	public final int    width;
+	/** Height of the grid in cells.                                                  */
+	public final int    height;
+
+	/** Position counts of the cells, row by row.   */
+	private final int[] counts;
+	/** Number of positions added to the heatmap.   */
+	private long        total;
+
+	/**
+	 * Creates a new, empty Heatmap.
+	 * @param mapId      identity of the map
+	 * @param playerName name of the player; or {@link Heatmaps#ALL_PLAYERS}
+	 * @param window     time window of the positions; or {@link Heatmaps#ALL_WINDOWS}
+	 * @param width      width of the grid in cells
+	 * @param height     height of the grid in cells
+	 */
+	public Heatmap( final String mapId, final String playerName, final int window, final int width, final int height ) {
+		this.mapId      = mapId;
+		this.playerName = playerName;
+		this.window     = window;
+		this.width      = width;
+		this.height     = height;
+		counts = new int[ width * height ];
+	}
+
+	/**
+	 * Adds a position.
+	 * @param x X coordinate of the cell of the position
+	 * @param y Y coordinate of the cell of the position
+	 */
+	public void add( final int x, final int y ) {
+		counts[ y * width + x ]++;
+		total++;
+	}
+
+	/**
+	 * Returns the number of positions in a cell.
+	 * @param x X coordinate of the cell
+	 * @param y Y coordinate of the cell
+	 * @return the number of positions in the cell
+	 */
+	public int getCount( final int x, final int y ) {
+		return counts[ y * width + x ];
+	}
+
+	/**
+	 * Returns the number of positions added to the heatmap.
+	 * @return the number of positions added to the heatmap
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Adds the counts of another heatmap to the counts of this.
+	 * @param heatmap heatmap to be merged, of the same grid size
+	 * @throws IllegalArgumentException if the grid size of the heatmap is different
+	 */
+	public void merge( final Heatmap heatmap ) {
+		if ( heatmap.width != width || heatmap.height != height )
+			throw new IllegalArgumentException( "Different grid sizes: " + width + "x" + height + " and " + heatmap.width + "x" + heatmap.height );
+
+		for ( int i = 0; i < counts.length; i++ )
+			counts[ i ] += heatmap.counts[ i ];
+		total += heatmap.total;
+	}
+
+	/**
+	 * Writes the heatmap: the identity (the player name after a flag telling if it is not {@link Heatmaps#ALL_PLAYERS})
+	 * and size, then the non-empty cells.
+	 * @param output output to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write( final DataOutput output ) throws IOException {
+		output.writeUTF    ( mapId                              );
+		output.writeBoolean( playerName != Heatmaps.ALL_PLAYERS );
+		if ( playerName != Heatmaps.ALL_PLAYERS )
+			output.writeUTF( playerName );
+		output.writeInt    ( window                             );
+		output.writeShort  ( width                              );
+		output.writeShort  ( height                             );
+		output.writeLong   ( total                              );
+
+		int cellsCount = 0;
+		for ( final int count : counts )
+			if ( count != 0 )
+				cellsCount++;
+		output.writeInt( cellsCount );
+		for ( int i = 0; i < counts.length; i++ )
+			if ( counts[ i ] != 0 ) {
+				output.writeInt( i           );
+				output.writeInt( counts[ i ] );
+			}
+	}
+
+	/**
+	 * Reads a heatmap written by {@link #write(DataOutput)}.
+	 * @param input   input to read from
+	 * @param version version of the heatmap set; version 1 has no player flag and names all players <code>"*"</code>
+	 * @return the read heatmap
+	 * @throws IOException if an I/O error occurs or a cell is out of the grid
+	 */
+	static Heatmap read( final DataInput input, final int version ) throws IOException {
+		final String mapId = input.readUTF();
+		String playerName;
+		if ( version == 1 ) {
+			playerName = input.readUTF();
+			if ( playerName.equals( "*" ) )
+				playerName = Heatmaps.ALL_PLAYERS;
+		}
+		else
+			playerName = input.readBoolean() ? input.readUTF() : Heatmaps.ALL_PLAYERS;
+		final Heatmap heatmap = new Heatmap( mapId, playerName, input.readInt(), input.readUnsignedShort(), input.readUnsignedShort() );
+		heatmap.total = input.readLong();
+
+		final int cellsCount = input.readInt();
+		for ( int i = 0; i < cellsCount; i++ ) {
+			final int cell = input.readInt();
+			if ( cell < 0 || cell >= heatmap.counts.length )
+				throw new IOException( "Invalid heatmap cell: " + cell );
+			heatmap.counts[ cell ] = input.readInt();
+		}
+		return heatmap;
+	}
+
+}
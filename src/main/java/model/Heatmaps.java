@@ -0,0 +1,213 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of {@link Heatmap}s of the target positions of actions by map, player and time window, at a fixed resolution.<br>
+ * A position is added to the heatmaps of its map: of all players in all windows, of all players in its window,
+ * and if players are tracked, of its player in all windows and in its window.
+ * Maps are identified by their name and size (see {@link #getMapId(ReplayHeader)}).
+ *
+ * <p>Sets of the same resolution and time windows are serializable and can be merged, so they can be built per thread
+ * or per shard and combined. Not thread-safe.</p>
+ */
+public class Heatmaps {
+
+	/** Magic number of the serialized sets: "RHMP". */
+	private static final int FILE_MAGIC   = 0x504d4852;
+	/** Version of the serialized format: 2 flags the heatmaps of all players instead of naming them "*". */
+	private static final int FILE_VERSION = 2;
+
+	/** Player name meaning all players: <code>null</code>, so it cannot collide with the name of a player. */
+	public static final String ALL_PLAYERS = null;
+	/** Window value meaning all windows. */
+	public static final int    ALL_WINDOWS = -1;
+
+	/** Size of the cells in pixels (a map tile is 32 pixels).               */
+	public final int cellSize;
+	/** Length of the time windows in seconds; 0 if there are no windows.    */
+	public final int windowSeconds;
+
+	/** Heatmaps mapped from their keys (see {@link #getKey(String, String, int)}).  */
+	private final Map< String, Heatmap > keyHeatmapMap = new HashMap< String, Heatmap >();
+
+	/**
+	 * Creates a new, empty Heatmaps.
+	 * @param cellSize      size of the cells in pixels
+	 * @param windowSeconds length of the time windows in seconds; 0 for no windows
+	 */
+	public Heatmaps( final int cellSize, final int windowSeconds ) {
+		if ( cellSize < 1 )
+			throw new IllegalArgumentException( "Invalid cell size: " + cellSize );
+		if ( windowSeconds < 0 )
+			throw new IllegalArgumentException( "Invalid window length: " + windowSeconds );
+		this.cellSize      = cellSize;
+		this.windowSeconds = windowSeconds;
+	}
+
+	/**
+	 * Returns a heatmap, creates it if it does not exist.
+	 * @param mapId      identity of the map
+	 * @param playerName name of the player; or {@link #ALL_PLAYERS}
+	 * @param window     time window; or {@link #ALL_WINDOWS}
+	 * @param mapWidth   width of the map in tiles
+	 * @param mapHeight  height of the map in tiles
+	 * @return the heatmap
+	 */
+	public Heatmap getOrCreateHeatmap( final String mapId, final String playerName, final int window, final int mapWidth, final int mapHeight ) {
+		final String key = getKey( mapId, playerName, window );
+		Heatmap heatmap = keyHeatmapMap.get( key );
+		if ( heatmap == null )
+			keyHeatmapMap.put( key, heatmap = new Heatmap( mapId, playerName, window, getCells( mapWidth ), getCells( mapHeight ) ) );
+		return heatmap;
+	}
+
+	/**
+	 * Returns a heatmap.
+	 * @param mapId      identity of the map
+	 * @param playerName name of the player; or {@link #ALL_PLAYERS}
+	 * @param window     time window; or {@link #ALL_WINDOWS}
+	 * @return the heatmap; or <code>null</code> if no positions were added to it
+	 */
+	public Heatmap getHeatmap( final String mapId, final String playerName, final int window ) {
+		return keyHeatmapMap.get( getKey( mapId, playerName, window ) );
+	}
+
+	/**
+	 * Returns the heatmaps ordered by map, player ({@link #ALL_PLAYERS} first) and window ({@link #ALL_WINDOWS} first).
+	 * @return the heatmaps
+	 */
+	public List< Heatmap > getHeatmaps() {
+		final List< Heatmap > heatmaps = new ArrayList< Heatmap >( keyHeatmapMap.values() );
+		Collections.sort( heatmaps, new Comparator< Heatmap >() {
+			@Override
+			public int compare( final Heatmap heatmap1, final Heatmap heatmap2 ) {
+				int result = heatmap1.mapId.compareTo( heatmap2.mapId );
+				if ( result == 0 && heatmap1.playerName != heatmap2.playerName )
+					result = heatmap1.playerName == ALL_PLAYERS ? -1 : heatmap2.playerName == ALL_PLAYERS ? 1 : heatmap1.playerName.compareTo( heatmap2.playerName );
+				return result == 0 ? Integer.compare( heatmap1.window, heatmap2.window ) : result;
+			}
+		} );
+		return heatmaps;
+	}
+
+	/**
+	 * Returns the number of heatmaps.
+	 * @return the number of heatmaps
+	 */
+	public int size() {
+		return keyHeatmapMap.size();
+	}
+
+	/**
+	 * Merges another set into this.
+	 * @param heatmaps set to be merged
+	 * @throws IllegalArgumentException if the resolution or the time windows of the set are different
+	 */
+	public void merge( final Heatmaps heatmaps ) {
+		if ( heatmaps.cellSize != cellSize || heatmaps.windowSeconds != windowSeconds )
+			throw new IllegalArgumentException( "Different resolutions or time windows!" );
+
+		for ( final Map.Entry< String, Heatmap > entry : heatmaps.keyHeatmapMap.entrySet() ) {
+			final Heatmap heatmap = keyHeatmapMap.get( entry.getKey() );
+			if ( heatmap == null ) {
+				final Heatmap source = entry.getValue();
+				keyHeatmapMap.put( entry.getKey(), new Heatmap( source.mapId, source.playerName, source.window, source.width, source.height ) );
+			}
+			keyHeatmapMap.get( entry.getKey() ).merge( entry.getValue() );
+		}
+	}
+
+	/**
+	 * Writes the set.
+	 * @param output output to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write( final DataOutput output ) throws IOException {
+		output.writeInt( FILE_MAGIC    );
+		output.writeInt( FILE_VERSION  );
+		output.writeInt( cellSize      );
+		output.writeInt( windowSeconds );
+		final List< Heatmap > heatmaps = getHeatmaps();
+		output.writeInt( heatmaps.size() );
+		for ( final Heatmap heatmap : heatmaps )
+			heatmap.write( output );
+	}
+
+	/**
+	 * Reads a set written by {@link #write(DataOutput)}.
+	 * Sets of version 1 are also read, their player name <code>"*"</code> is taken as {@link #ALL_PLAYERS}.
+	 * @param input input to read from
+	 * @return the read set
+	 * @throws IOException if an I/O error occurs or the data is not a heatmap set
+	 */
+	public static Heatmaps read( final DataInput input ) throws IOException {
+		if ( input.readInt() != FILE_MAGIC )
+			throw new IOException( "Not a heatmap set!" );
+		final int version = input.readInt();
+		if ( version < 1 || version > FILE_VERSION )
+			throw new IOException( "Unsupported heatmap set version: " + version );
+
+		final Heatmaps heatmaps = new Heatmaps( input.readInt(), input.readInt() );
+		final int size = input.readInt();
+		for ( int i = 0; i < size; i++ ) {
+			final Heatmap heatmap = Heatmap.read( input, version );
+			heatmaps.keyHeatmapMap.put( getKey( heatmap.mapId, heatmap.playerName, heatmap.window ), heatmap );
+		}
+		return heatmaps;
+	}
+
+	/**
+	 * Returns the number of cells covering a map dimension.
+	 * @param tiles map dimension in tiles
+	 * @return the number of cells covering the map dimension
+	 */
+	public int getCells( final int tiles ) {
+		return ( tiles * 32 + cellSize - 1 ) / cellSize;
+	}
+
+	/**
+	 * Returns the time window of a frame.
+	 * @param frame frame whose window to be returned
+	 * @return the time window of the frame; or {@link #ALL_WINDOWS} if there are no windows
+	 */
+	public int getWindow( final int frame ) {
+		return windowSeconds == 0 ? ALL_WINDOWS : ReplayHeader.convertFramesToSeconds( frame ) / windowSeconds;
+	}
+
+	/**
+	 * Returns the name of a time window, e.g. <code>300-600s</code>.
+	 * @param window window whose name to be returned
+	 * @return the name of the window; <code>"all"</code> for {@link #ALL_WINDOWS}
+	 */
+	public String getWindowName( final int window ) {
+		return window == ALL_WINDOWS ? "all" : window * windowSeconds + "-" + ( window + 1 ) * windowSeconds + "s";
+	}
+
+	/**
+	 * Returns the identity of the map of a game: the name and the size of the map, e.g. <code>Lost Temple (128x128)</code>.
+	 * @param replayHeader header of the game
+	 * @return the identity of the map of the game
+	 */
+	public static String getMapId( final ReplayHeader replayHeader ) {
+		return ( replayHeader.mapName == null ? "" : replayHeader.mapName.trim() ) + " (" + replayHeader.getMapSize() + ")";
+	}
+
+	/**
+	 * Returns the key of a heatmap. The map identity is prefixed by its length and {@link #ALL_PLAYERS} has no player part,
+	 * so no map identity or player name can make the keys of different heatmaps equal.
+	 */
+	private static String getKey( final String mapId, final String playerName, final int window ) {
+		final String key = window + ":" + mapId.length() + ":" + mapId;
+		return playerName == ALL_PLAYERS ? key : key + ':' + playerName;
+	}
+
+}
@@ -0,0 +1,145 @@
+package model;
+
+/**
+ * Metrics of parsing a replay: time spent in the parse phases, compressed and unpacked bytes,
+ * decoded commands by block ID and the problems encountered.<br>
+ * Only created by the parser if parse instrumentation is enabled.
+ */
+public class ParseMetrics {
+
+	public static final int PHASE_ID              = 0; // Reading the replay ID section
+	public static final int PHASE_HEADER          = 1; // Unpacking and parsing the header section
+	public static final int PHASE_COMMANDS_UNPACK = 2; // Unpacking the commands section
+	public static final int PHASE_COMMANDS_DECODE = 3; // Decoding the commands and building the actions
+	public static final int PHASE_MAP_DATA_UNPACK = 4; // Unpacking the map data section
+	public static final int PHASE_MAP_DATA_PARSE  = 5; // Parsing the map data section
+
+	public static final String[] PHASE_NAMES = {
+		"ID", "Header", "Commands unpack", "Commands decode", "Map data unpack", "Map data parse"
+	};
+
+	/** Name of the parsed replay (file path or archive entry name); can be <code>null</code>. */
+	public final String  replayName;
+
+	/** Nanoseconds spent in the phases, indexed by phase.                    */
+	public final long[]  phaseNanos           = new long[ PHASE_NAMES.length ];
+	/** Number of bytes read from the replay (compressed size).                */
+	public long          inputBytesCount;
+	/** Number of unpacked bytes of the processed sections.                    */
+	public long          unpackedBytesCount;
+	/** Number of decoded known commands, indexed by the block ID as it appears in the replay. */
+	public final int[]   commandCounts        = new int[ 256 ];
+	/** Number of unknown commands, indexed by their block ID.                 */
+	public final int[]   unknownCommandCounts = new int[ 256 ];
+	/** Number of unknown commands.                                            */
+	public int           unknownCommandsCount;
+	/** Number of bytes skipped after unknown commands.                        */
+	public int           skippedBytesCount;
+
+	/** Phase in which parsing failed; -1 if parsing succeeded.                */
+	public int           failedPhase = -1;
+	/** Cause of the failure; <code>null</code> if parsing succeeded or the input is not a replay. */
+	public Exception     failure;
+
+	/** The current phase.                      */
+	private int          phase;
+	/** Start time of the current phase in nanoseconds. */
+	private long         phaseStartTime;
+	/** Tells if the current phase has not ended yet. */
+	private boolean      inPhase;
+
+	/**
+	 * Creates a new ParseMetrics.
+	 * @param replayName name of the parsed replay; can be <code>null</code>
+	 */
+	public ParseMetrics( final String replayName ) {
+		this.replayName = replayName;
+	}
+
+	/**
+	 * Begins a phase.
+	 * @param phase phase to begin
+	 */
+	public void beginPhase( final int phase ) {
+		this.phase     = phase;
+		inPhase        = true;
+		phaseStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Ends the current phase (if not ended yet), adds its elapsed time to the time of the phase.
+	 */
+	public void endPhase() {
+		if ( inPhase ) {
+			phaseNanos[ phase ] += System.nanoTime() - phaseStartTime;
+			inPhase = false;
+		}
+	}
+
+	/**
+	 * Marks the parsing failed in the current (or last) phase.
+	 * @param failure cause of the failure; <code>null</code> if the input is not a replay
+	 */
+	public void fail( final Exception failure ) {
+		endPhase();
+		failedPhase  = phase;
+		this.failure = failure;
+	}
+
+	/**
+	 * Tells if parsing failed.
+	 * @return true if parsing failed
+	 */
+	public boolean isFailed() {
+		return failedPhase >= 0;
+	}
+
+	/**
+	 * Returns the name of the failure cause, which is the name of the failed phase and the exception type.
+	 * @return the name of the failure cause; or <code>null</code> if parsing succeeded
+	 */
+	public String getFailureCauseName() {
+		if ( failedPhase < 0 )
+			return null;
+		return PHASE_NAMES[ failedPhase ] + ": " + ( failure == null ? "Not a replay" : failure.getClass().getSimpleName() );
+	}
+
+	/**
+	 * Returns the total time spent parsing the replay.
+	 * @return the total time spent parsing the replay in nanoseconds
+	 */
+	public long getTotalNanos() {
+		long totalNanos = 0;
+		for ( final long nanos : phaseNanos )
+			totalNanos += nanos;
+		return totalNanos;
+	}
+
+	/**
+	 * Returns the phase the most time was spent in.
+	 * @return the phase the most time was spent in
+	 */
+	public int getDominantPhase() {
+		int dominantPhase = 0;
+		for ( int i = 1; i < phaseNanos.length; i++ )
+			if ( phaseNanos[ i ] > phaseNanos[ dominantPhase ] )
+				dominantPhase = i;
+		return dominantPhase;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append( replayName ).append( ": " ).append( getTotalNanos() / 1000 ).append( " us" );
+		for ( int i = 0; i < phaseNanos.length; i++ )
+			if ( phaseNanos[ i ] > 0 )
+				builder.append( ", " ).append( PHASE_NAMES[ i ] ).append( ": " ).append( phaseNanos[ i ] / 1000 ).append( " us" );
+		builder.append( ", bytes: " ).append( inputBytesCount ).append( " -> " ).append( unpackedBytesCount );
+		if ( unknownCommandsCount > 0 )
+			builder.append( ", unknown commands: " ).append( unknownCommandsCount ).append( " (" ).append( skippedBytesCount ).append( " bytes skipped)" );
+		if ( failedPhase >= 0 )
+			builder.append( ", failed: " ).append( getFailureCauseName() );
+		return builder.toString();
+	}
+
+}
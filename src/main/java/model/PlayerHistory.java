@@ -0,0 +1,93 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * History of a player across a replay corpus: the replays the player played in and aggregates of them.<br>
+ * Players are identified by their normalized name, so the same player might appear with different cases of the name.
+ */
+public class PlayerHistory {
+
+	/** Normalized name of the player.                                            */
+	public final String normalizedName;
+	/** Name of the player as it appeared in the last added replay.               */
+	public String       name;
+
+	/** Number of games of the player.                                            */
+	public int          gamesCount;
+	/** IDs of the replays of the player in increasing order (in the {@link HeaderIndex}); only the first {@link #gamesCount} are valid. */
+	public int[]        replayIds  = new int[ 4 ];
+	/** Number of games played with each race, indexed by race.                   */
+	public final int[]  raceCounts = new int[ ReplayHeader.RACE_NAMES.length ];
+	/** Sum of the APMs of the games which have APM.                              */
+	public long         apmSum;
+	/** Number of games which have APM (games with actions after the first 2 minutes). */
+	public int          apmGamesCount;
+
+	/**
+	 * Creates a new PlayerHistory.
+	 * @param normalizedName normalized name of the player
+	 */
+	public PlayerHistory( final String normalizedName ) {
+		this.normalizedName = normalizedName;
+	}
+
+	/**
+	 * Adds a game of the player.
+	 * @param replayId ID of the replay
+	 * @param name     name of the player in the replay
+	 * @param race     race of the player in the replay
+	 * @param apm      APM of the player in the replay; 0 if unknown
+	 */
+	public void addGame( final int replayId, final String name, final byte race, final int apm ) {
+		if ( gamesCount == replayIds.length )
+			replayIds = Arrays.copyOf( replayIds, gamesCount << 1 );
+		replayIds[ gamesCount++ ] = replayId;
+
+		this.name = name;
+		if ( race >= 0 && race < raceCounts.length )
+			raceCounts[ race ]++;
+		if ( apm > 0 ) {
+			apmSum += apm;
+			apmGamesCount++;
+		}
+	}
+
+	/**
+	 * Returns the IDs of the replays of the player.
+	 * @return the IDs of the replays of the player in increasing order
+	 */
+	public int[] getReplayIds() {
+		return Arrays.copyOf( replayIds, gamesCount );
+	}
+
+	/**
+	 * Returns the average APM of the player.
+	 * @return the average APM of the games which have APM; 0 if there are no such games
+	 */
+	public int getAverageApm() {
+		return apmGamesCount == 0 ? 0 : (int) ( apmSum / apmGamesCount );
+	}
+
+	/**
+	 * Returns the race the player played the most games with.
+	 * @return the race the player played the most games with; -1 if no games with known race
+	 */
+	public byte getMainRace() {
+		byte mainRace = -1;
+		for ( byte race = 0; race < raceCounts.length; race++ )
+			if ( raceCounts[ race ] > 0 && ( mainRace < 0 || raceCounts[ race ] > raceCounts[ mainRace ] ) )
+				mainRace = race;
+		return mainRace;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder( name ).append( ", games: " ).append( gamesCount );
+		for ( int race = 0; race < raceCounts.length; race++ )
+			if ( raceCounts[ race ] > 0 )
+				builder.append( ", " ).append( ReplayHeader.RACE_CHARACTERS[ race ] ).append( ": " ).append( raceCounts[ race ] );
+		return builder.append( ", avg APM: " ).append( getAverageApm() ).toString();
+	}
+
+}
@@ -16,6 +16,9 @@ public class ReplayActions {
 	/** Players of the replay. */
 	public final PlayerActions[] players;
 	
+	/** Frame ordered timeline of the actions of all players, created lazily if not provided by the parser. */
+	private ReplayTimeline timeline;
+	
 	/**
 	 * Creates a new ReplayActions.
 	 * 
@@ -36,4 +39,24 @@ public class ReplayActions {
 		}
 	}
 	
+	/**
+	 * Returns the frame ordered timeline of the actions of all players.<br>
+	 * If the timeline was not provided by the parser, it is merged from the actions of the players on first call.
+	 * @return the frame ordered timeline of the actions of all players
+	 */
+	public ReplayTimeline getTimeline() {
+		if ( timeline == null )
+			timeline = ReplayTimeline.merge( players );
+		return timeline;
+	}
+	
+	/**
+	 * Sets the timeline of the actions.<br>
+	 * Used by parsers which know the original order of the actions.
+	 * @param timeline timeline of the actions of {@link #players}
+	 */
+	public void setTimeline( final ReplayTimeline timeline ) {
+		this.timeline = timeline;
+	}
+	
 }
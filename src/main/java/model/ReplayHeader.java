@@ -68,8 +68,17 @@ public class ReplayHeader {
 	
 	public static final int FRAMES_IN_TWO_MINUTES = 120 * 1000 / 42;
 	
+	public static final byte REPLAY_FORMAT_LEGACY     = (byte) 0x00; // Pre 1.18, PKWARE imploded sections
+	public static final byte REPLAY_FORMAT_MODERN     = (byte) 0x01; // 1.18-1.20, zlib compressed sections
+	public static final byte REPLAY_FORMAT_MODERN_121 = (byte) 0x02; // 1.21 and newer, zlib compressed sections, new command types
+	
+	public static final String[] REPLAY_FORMAT_NAMES = {
+		"Legacy", "Modern", "Modern 1.21"
+	};
+	
 	// Header fields
 	
+	public byte     replayFormat;
 	public byte     gameEngine;
 	public int      gameFrames;
 	public Date     saveTime;
@@ -0,0 +1,251 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Frame ordered view of the actions of all players of a replay.<br>
+ * Actions are stored in parallel arrays (columns) in the order they were given, and frame indices
+ * allow to look up the actions of any frame range in <code>O(log n)</code> time, globally or per player.
+ *
+ * <p>Ranges are half-open: <code>fromFrame</code> is inclusive, <code>toFrame</code> is exclusive.</p>
+ */
+public class ReplayTimeline {
+
+	/** Number of frames covered by one bucket of the frame indices (as a power of 2): 64 frames, about 2.7 seconds. */
+	private static final int FRAME_BUCKET_SHIFT = 6;
+
+	/** Players of the replay, player indices refer to this array. */
+	public final PlayerActions[] players;
+
+	/** Number of actions in the timeline.           */
+	public final int      size;
+	/** Frames of the actions.                       */
+	public final int[]    frames;
+	/** Indices of the players of the actions.       */
+	public final byte[]   playerIndices;
+	/** Action name indices of the actions.          */
+	public final byte[]   actionNameIndices;
+	/** Subaction name indices of the actions.       */
+	public final byte[]   subactionNameIndices;
+	/** The actions.                                 */
+	public final Action[] actions;
+
+	/** Frames of the actions of each player (indexed by player index). */
+	private final int[][]      playerFrames;
+	/** Frame index of the whole timeline.                              */
+	private final FrameIndex   frameIndex;
+	/** Frame indices of the players (indexed by player index).         */
+	private final FrameIndex[] playerFrameIndices;
+
+	/**
+	 * Creates a new ReplayTimeline.
+	 * @param players             players of the replay
+	 * @param actionPlayerIndices indices of the players in the order their actions were given;
+	 *                            the i<sup>th</sup> occurrence of a player index denotes the i<sup>th</sup> action of that player
+	 * @param size                number of actions (valid elements of <code>actionPlayerIndices</code>)
+	 */
+	public ReplayTimeline( final PlayerActions[] players, final byte[] actionPlayerIndices, final int size ) {
+		this.players  = players;
+		this.size     = size;
+
+		frames        = new int[ size ];
+		playerIndices = Arrays.copyOf( actionPlayerIndices, size );
+		actions       = new Action[ size ];
+
+		actionNameIndices    = new byte[ size ];
+		subactionNameIndices = new byte[ size ];
+
+		final int[] nextIndices = new int[ players.length ];
+		for ( int i = 0; i < size; i++ ) {
+			final int    playerIndex = playerIndices[ i ];
+			final Action action      = players[ playerIndex ].actions[ nextIndices[ playerIndex ]++ ];
+			actions             [ i ] = action;
+			frames              [ i ] = action.iteration;
+			actionNameIndices   [ i ] = action.actionNameIndex;
+			subactionNameIndices[ i ] = action.subactionNameIndex;
+		}
+
+		playerFrames       = new int[ players.length ][];
+		playerFrameIndices = new FrameIndex[ players.length ];
+		for ( int playerIndex = 0; playerIndex < players.length; playerIndex++ ) {
+			final Action[] playerActions = players[ playerIndex ].actions;
+			final int[]    frames_       = new int[ playerActions.length ];
+			for ( int i = 0; i < frames_.length; i++ )
+				frames_[ i ] = playerActions[ i ].iteration;
+			playerFrames      [ playerIndex ] = frames_;
+			playerFrameIndices[ playerIndex ] = new FrameIndex( frames_, frames_.length );
+		}
+		frameIndex = new FrameIndex( frames, size );
+	}
+
+	/**
+	 * Creates a timeline by merging the (frame ordered) actions of the players.<br>
+	 * Actions of different players in the same frame are ordered by player index,
+	 * the original order inside a frame is only known by the binary replay parser.
+	 * @param players players of the replay
+	 * @return the merged timeline
+	 */
+	public static ReplayTimeline merge( final PlayerActions[] players ) {
+		int size = 0;
+		for ( final PlayerActions player : players )
+			size += player.actions.length;
+
+		final byte[] actionPlayerIndices = new byte[ size ];
+		final int[]  nextIndices         = new int[ players.length ];
+		// k-way merge: the number of players is small, a linear minimum search is faster than a heap
+		for ( int i = 0; i < size; i++ ) {
+			int playerIndex = -1;
+			int minFrame    = Integer.MAX_VALUE;
+			for ( int j = 0; j < players.length; j++ )
+				if ( nextIndices[ j ] < players[ j ].actions.length && ( playerIndex < 0 || players[ j ].actions[ nextIndices[ j ] ].iteration < minFrame ) ) {
+					minFrame    = players[ j ].actions[ nextIndices[ j ] ].iteration;
+					playerIndex = j;
+				}
+			nextIndices[ playerIndex ]++;
+			actionPlayerIndices[ i ] = (byte) playerIndex;
+		}
+
+		return new ReplayTimeline( players, actionPlayerIndices, size );
+	}
+
+	/**
+	 * Frame index over a sorted frames array.<br>
+	 * Element <code>b</code> of the offsets is the position of the first action whose frame is in bucket <code>b</code> or later.
+	 */
+	private static class FrameIndex {
+		/** Number of frames covered by one bucket (as a power of 2). */
+		final int   shift;
+		/** Positions of the first actions of the buckets.            */
+		final int[] offsets;
+
+		/**
+		 * Creates a new FrameIndex.
+		 * @param frames sorted frames
+		 * @param size   number of valid elements in <code>frames</code>
+		 */
+		FrameIndex( final int[] frames, final int size ) {
+			final int lastFrame = size == 0 ? 0 : Math.max( frames[ size - 1 ], 0 );
+			// Broken replays might contain insane frames, don't let the index grow beyond the number of actions
+			int shift_ = FRAME_BUCKET_SHIFT;
+			while ( ( lastFrame >>> shift_ ) > size + 1024 )
+				shift_++;
+			shift = shift_;
+
+			final int bucketsCount = size == 0 ? 0 : ( lastFrame >>> shift ) + 1;
+			offsets = new int[ bucketsCount + 1 ];
+			int pos = 0;
+			for ( int bucket = 0; bucket <= bucketsCount; bucket++ ) {
+				final long bucketStartFrame = (long) bucket << shift;
+				while ( pos < size && frames[ pos ] < bucketStartFrame )
+					pos++;
+				offsets[ bucket ] = pos;
+			}
+		}
+
+		/**
+		 * Returns the position of the first action whose frame is greater than or equal to the specified frame.
+		 * @param frames sorted frames this index was created for
+		 * @param size   number of valid elements in <code>frames</code>
+		 * @param frame  frame to search
+		 * @return the position of the first action at or after the frame; <code>size</code> if there is no such action
+		 */
+		int lowerBound( final int[] frames, final int size, final int frame ) {
+			if ( frame <= 0 )
+				return 0;
+			final int bucket = frame >>> shift;
+			if ( bucket >= offsets.length - 1 )
+				return size;
+
+			// Binary search inside the bucket
+			int low  = offsets[ bucket ];
+			int high = offsets[ bucket + 1 ];
+			while ( low < high ) {
+				final int mid = ( low + high ) >>> 1;
+				if ( frames[ mid ] < frame )
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Returns the timeline position of the first action given at or after the specified frame.
+	 * @param frame frame to search
+	 * @return the position of the first action at or after the frame; {@link #size} if there is no such action
+	 */
+	public int indexOfFrame( final int frame ) {
+		return frameIndex.lowerBound( frames, size, frame );
+	}
+
+	/**
+	 * Returns the position of the first action of a player given at or after the specified frame.
+	 * @param playerIndex index of the player
+	 * @param frame       frame to search
+	 * @return the position in the action array of the player; the number of actions of the player if there is no such action
+	 */
+	public int indexOfFrame( final int playerIndex, final int frame ) {
+		final int[] frames_ = playerFrames[ playerIndex ];
+		return playerFrameIndices[ playerIndex ].lowerBound( frames_, frames_.length, frame );
+	}
+
+	/**
+	 * Returns the number of actions in a frame range.
+	 * @param fromFrame first frame of the range (inclusive)
+	 * @param toFrame   end frame of the range (exclusive)
+	 * @return the number of actions in the frame range
+	 */
+	public int countBetween( final int fromFrame, final int toFrame ) {
+		return toFrame <= fromFrame ? 0 : indexOfFrame( toFrame ) - indexOfFrame( fromFrame );
+	}
+
+	/**
+	 * Returns the number of actions of a player in a frame range.
+	 * @param playerIndex index of the player
+	 * @param fromFrame   first frame of the range (inclusive)
+	 * @param toFrame     end frame of the range (exclusive)
+	 * @return the number of actions of the player in the frame range
+	 */
+	public int countBetween( final int playerIndex, final int fromFrame, final int toFrame ) {
+		return toFrame <= fromFrame ? 0 : indexOfFrame( playerIndex, toFrame ) - indexOfFrame( playerIndex, fromFrame );
+	}
+
+	/**
+	 * Returns the actions of all players in a frame range, in the order they were given.
+	 * @param fromFrame first frame of the range (inclusive)
+	 * @param toFrame   end frame of the range (exclusive)
+	 * @return the actions in the frame range
+	 */
+	public Action[] actionsBetween( final int fromFrame, final int toFrame ) {
+		if ( toFrame <= fromFrame )
+			return new Action[ 0 ];
+		return Arrays.copyOfRange( actions, indexOfFrame( fromFrame ), indexOfFrame( toFrame ) );
+	}
+
+	/**
+	 * Returns the actions of a player in a frame range.
+	 * @param playerIndex index of the player
+	 * @param fromFrame   first frame of the range (inclusive)
+	 * @param toFrame     end frame of the range (exclusive)
+	 * @return the actions of the player in the frame range
+	 */
+	public Action[] actionsBetween( final int playerIndex, final int fromFrame, final int toFrame ) {
+		if ( toFrame <= fromFrame )
+			return new Action[ 0 ];
+		return Arrays.copyOfRange( players[ playerIndex ].actions, indexOfFrame( playerIndex, fromFrame ), indexOfFrame( playerIndex, toFrame ) );
+	}
+
+	/**
+	 * Returns the index of a player specified by his/her name.
+	 * @param playerName name of player to be searched
+	 * @return the index of the player in {@link #players}; or -1 if player name not found
+	 */
+	public int getPlayerIndexByName( final String playerName ) {
+		for ( int i = 0; i < players.length; i++ )
+			if ( players[ i ].playerName.equals( playerName ) )
+				return i;
+		return -1;
+	}
+
+}
@@ -0,0 +1,64 @@
+package model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary to encode strings as int IDs.<br>
+ * IDs are assigned in the order the strings are added, starting from 0.
+ */
+public class StringDictionary {
+
+	/** Map from the strings to their IDs. */
+	private final Map< String, Integer > stringIdMap = new HashMap< String, Integer >();
+	/** Strings indexed by their IDs.      */
+	private String[] strings = new String[ 64 ];
+	/** Number of strings.                 */
+	private int      size;
+
+	/**
+	 * Returns the ID of a string, adds the string if it is not in the dictionary yet.
+	 * @param string string to be encoded
+	 * @return the ID of the string
+	 */
+	public int add( final String string ) {
+		final Integer id = stringIdMap.get( string );
+		if ( id != null )
+			return id;
+
+		if ( size == strings.length )
+			strings = Arrays.copyOf( strings, size << 1 );
+		strings[ size ] = string;
+		stringIdMap.put( string, size );
+		return size++;
+	}
+
+	/**
+	 * Returns the ID of a string.
+	 * @param string string whose ID to be returned
+	 * @return the ID of the string; or -1 if the string is not in the dictionary
+	 */
+	public int getId( final String string ) {
+		final Integer id = stringIdMap.get( string );
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the string of an ID.
+	 * @param id ID of the string
+	 * @return the string of the ID
+	 */
+	public String get( final int id ) {
+		return strings[ id ];
+	}
+
+	/**
+	 * Returns the number of strings in the dictionary.
+	 * @return the number of strings in the dictionary
+	 */
+	public int size() {
+		return size;
+	}
+
+}
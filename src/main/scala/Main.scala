@@ -1,26 +1,43 @@
-import control.BinRepParser
-import java.io.{File, PrintWriter}
-import model.Action
+import cli.{BatchOptions, BatchRunner, ServeCommand, WatchCommand}
+import cluster.{ShardCoordinator, ShardWorker}
 
+/**
+ * Command line batch tool: parses replays (files, archives, directories, glob patterns) and outputs
+ * their headers, actions, hacks or statistics (optionally sharded across worker processes), watches folders for new replays or runs the scan service. Run without arguments for the usage.
+ */
 object Main {
   def main(args: Array[String]): Unit = {
-    val replayName = "C:\\Users\\VPPopov\\IdeaProjects\\ScalaReplayDecoder\\replays\\BW\\ProtosRush-1.rep"
-    val replay = BinRepParser.parseReplay(new File(replayName), true, false, true, true)
-    val outFile: PrintWriter = new PrintWriter(System.out, true)
-    //replay.replayHeader.printHeaderInformation(outFile)
-    //println(replay.replayHeader.playerNames.mkString("Array(", ", ", ")"))
-    println(replay.replayActions.players.mkString("Array(", ", ", ")"))
-    for (player <- replay.replayActions.players) {
-      println(player.playerName)
-      //p.iteration кол-во фреймов - 1 фрейм 42 ms
+    if (BatchOptions.isHelp(args)) {
+      println(BatchOptions.Usage)
+      return
+    }
+
+    val options = try {
+      BatchOptions.parse(args)
+    } catch {
+      case e: IllegalArgumentException =>
+        System.err.println(e.getMessage)
+        System.err.println(BatchOptions.Usage)
+        sys.exit(2)
+    }
 
-      for (p <- player.actions) {
-        println(s"$p --->Iteration ${p.iteration}," +
-          s" ActionNameIndex ${Action.ACTION_ID_NAME_MAP.get(p.actionNameIndex)} ," +
-          s" ${p.parameterBuildingNameIndex} ${p.posX} ${p.posY} "+
-          s"Parameters ${p.parameters}"
-        )
-      }
+    try {
+      if (options.mode == BatchOptions.ModeWatch)
+        WatchCommand.run(options)
+      else if (options.mode == BatchOptions.ModeServe)
+        ServeCommand.run(options)
+      else if (options.mode == BatchOptions.ModeWorker) {
+        val address = options.inputs.head
+        val separator = address.lastIndexOf(':')
+        new ShardWorker(address.substring(0, separator), address.substring(separator + 1).toInt, options.threads, options.quiet).run()
+      } else if (options.sharded)
+        new ShardCoordinator(options).run()
+      else
+        new BatchRunner(options).run()
+    } catch {
+      case e: java.io.IOException =>
+        System.err.println(e.getMessage)
+        sys.exit(1)
     }
   }
-}
\ No newline at end of file
+}
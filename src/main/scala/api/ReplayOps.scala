@@ -0,0 +1,184 @@
+package api
+
+import scala.collection.AbstractIterator
+import scala.collection.immutable.ArraySeq
+
+import model.{Action, PlayerActions, Replay, ReplayHeader, ReplayTimeline}
+
+/**
+ * Scala API over the parsed replay model.
+ *
+ * {{{
+ * import api.ReplayOps._
+ *
+ * val replay = BinRepParser.parseReplay(file, true, false, false, false)
+ * replay.header.foreachPlayer { i => println(replay.header.playerNames(i) + ": " + replay.header.apm(i)) }
+ * val targeted = replay.actions.count(_.hasPosition)
+ * var selects = 0
+ * replay.timeline.foreachBetween(0, ReplayHeader.convertSecondsToFrames(300)) { i => if (replay.timeline.actionIdAt(i) == 0x09) selects += 1 }
+ * }}}
+ *
+ * The wrappers are value classes, so calling their methods does not allocate. Nothing is copied into Scala collections:
+ * iterators walk the arrays of the model lazily, sequences wrap them (`ArraySeq`), and the accessors return primitives
+ * (unsigned IDs as `Int`, -1 for unknown values) instead of boxed or optional values.
+ * Loops with `Int => Unit` functions (`foreachPlayer`, `foreachBetween`) do not box the indices.
+ */
+object ReplayOps {
+
+  /** Iterator over a range of an array. */
+  private final class ArrayRangeIterator[T](array: Array[T], private var from: Int, until: Int) extends AbstractIterator[T] {
+    override def knownSize: Int = until - from
+    override def hasNext: Boolean = from < until
+    override def next(): T =
+      if (from < until) {
+        val element = array(from)
+        from += 1
+        element
+      }
+      else Iterator.empty.next()
+  }
+
+  implicit final class RichReplay(val replay: Replay) extends AnyVal {
+    def header: ReplayHeader = replay.replayHeader
+
+    /** Players who have actions, wrapping the model array; empty if the commands were not parsed. */
+    def players: ArraySeq[PlayerActions] =
+      if (replay.replayActions == null) ArraySeq.empty else ArraySeq.unsafeWrapArray(replay.replayActions.players)
+
+    /** Frame ordered timeline of the actions of all players; null if the commands were not parsed. */
+    def timeline: ReplayTimeline = if (replay.replayActions == null) null else replay.replayActions.getTimeline
+
+    /** Actions of all players in the order they were given; empty if the commands were not parsed. */
+    def actions: Iterator[Action] = if (replay.replayActions == null) Iterator.empty else timeline.iterator
+
+    /** Actions of a player by name; empty if the player has no actions. */
+    def actionsOf(playerName: String): Iterator[Action] = {
+      val players = this.players
+      var i = 0
+      while (i < players.length) {
+        if (players(i).playerName == playerName)
+          return players(i).iterator
+        i += 1
+      }
+      Iterator.empty
+    }
+  }
+
+  implicit final class RichHeader(val header: ReplayHeader) extends AnyVal {
+    def durationSeconds: Int = header.getDurationSeconds
+
+    /** Tells if a player slot is a human player (has a name and a player ID). */
+    def isPlayer(playerIndex: Int): Boolean = header.playerNames(playerIndex) != null && header.playerIds(playerIndex) != 0xff
+
+    /** Calls a function with the index of each human player. */
+    @inline def foreachPlayer(f: Int => Unit): Unit = {
+      var i = 0
+      while (i < header.playerNames.length) {
+        if (isPlayer(i))
+          f(i)
+        i += 1
+      }
+    }
+
+    def playersCount: Int = {
+      var count = 0
+      foreachPlayer(_ => count += 1)
+      count
+    }
+
+    /** Race of a player, one of the `ReplayHeader.RACE_XXX` constants. */
+    def race(playerIndex: Int): Int = header.playerRaces(playerIndex)
+
+    def apm(playerIndex: Int): Int = header.getPlayerApm(playerIndex)
+
+    /** Number of actions of a player; 0 for computers or if the commands were not parsed. */
+    def actionsCount(playerIndex: Int): Int = {
+      val playerId = header.playerIds(playerIndex)
+      if (playerId < header.playerIdActionsCounts.length) header.playerIdActionsCounts(playerId) else 0
+    }
+  }
+
+  implicit final class RichPlayer(val player: PlayerActions) extends AnyVal {
+    def name: String = player.playerName
+    def size: Int = player.actions.length
+    def apply(actionIndex: Int): Action = player.actions(actionIndex)
+    def frameAt(actionIndex: Int): Int = player.actions(actionIndex).iteration
+    def iterator: Iterator[Action] = new ArrayRangeIterator(player.actions, 0, player.actions.length)
+
+    /** Calls a function with each action of the player. */
+    @inline def foreachAction(f: Action => Unit): Unit = {
+      val actions = player.actions
+      var i = 0
+      while (i < actions.length) {
+        f(actions(i))
+        i += 1
+      }
+    }
+  }
+
+  implicit final class RichAction(val action: Action) extends AnyVal {
+    def frame: Int = action.iteration
+
+    /** Action ID (action name index) as unsigned value. */
+    def actionId: Int = action.actionNameIndex & 0xff
+
+    /** Subaction ID as unsigned value; 0xff if the action has no subaction. */
+    def subactionId: Int = action.subactionNameIndex & 0xff
+
+    /** Unit ID parameter of the action; -1 if the action has no unit parameter. */
+    def unitId: Int = action.parameterUnitNameIndex
+
+    /** Building ID parameter of the action; -1 if the action has no building parameter. */
+    def buildingId: Int = action.parameterBuildingNameIndex
+
+    def hasPosition: Boolean = action.hasPosition
+
+    /** X coordinate of the target of the action; -1 if the action has no position. */
+    def x: Int = if (action.posX == null) -1 else action.posX.intValue
+
+    /** Y coordinate of the target of the action; -1 if the action has no position. */
+    def y: Int = if (action.posY == null) -1 else action.posY.intValue
+
+    /** Name of the action like in `Action.toString()`: the known name or the hex ID. */
+    def actionName: String = {
+      val name = Action.ACTION_ID_NAME_MAP.get(action.actionNameIndex)
+      if (name == null) "0x" + Integer.toHexString(actionId) else name
+    }
+  }
+
+  implicit final class RichTimeline(val timeline: ReplayTimeline) extends AnyVal {
+    def frameAt(position: Int): Int = timeline.frames(position)
+    def playerIndexAt(position: Int): Int = timeline.playerIndices(position)
+    def actionIdAt(position: Int): Int = timeline.actionNameIndices(position) & 0xff
+    def subactionIdAt(position: Int): Int = timeline.subactionNameIndices(position) & 0xff
+    def actionAt(position: Int): Action = timeline.actions(position)
+
+    /** Frames of the actions, wrapping the frames column (its `apply()` returns unboxed ints). */
+    def frameSeq: ArraySeq.ofInt = new ArraySeq.ofInt(timeline.frames)
+
+    /** Actions of all players in the order they were given. */
+    def iterator: Iterator[Action] = new ArrayRangeIterator(timeline.actions, 0, timeline.size)
+
+    /** Actions in a frame range (from inclusive, to exclusive), in the order they were given. */
+    def between(fromFrame: Int, toFrame: Int): Iterator[Action] =
+      if (toFrame <= fromFrame) Iterator.empty
+      else new ArrayRangeIterator(timeline.actions, timeline.indexOfFrame(fromFrame), timeline.indexOfFrame(toFrame))
+
+    /** Actions of a player in a frame range (from inclusive, to exclusive). */
+    def between(playerIndex: Int, fromFrame: Int, toFrame: Int): Iterator[Action] =
+      if (toFrame <= fromFrame) Iterator.empty
+      else new ArrayRangeIterator(timeline.players(playerIndex).actions,
+        timeline.indexOfFrame(playerIndex, fromFrame), timeline.indexOfFrame(playerIndex, toFrame))
+
+    /** Calls a function with the timeline position of each action in a frame range (from inclusive, to exclusive). */
+    @inline def foreachBetween(fromFrame: Int, toFrame: Int)(f: Int => Unit): Unit =
+      if (toFrame > fromFrame) {
+        var i = timeline.indexOfFrame(fromFrame)
+        val end = timeline.indexOfFrame(toFrame)
+        while (i < end) {
+          f(i)
+          i += 1
+        }
+      }
+  }
+}
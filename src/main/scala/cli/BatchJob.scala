@@ -0,0 +1,109 @@
+package cli
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, FileInputStream, FileOutputStream, IOException}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.BitSet
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * State of a resumable batch job, kept in a job directory:
+ *  - `manifest.txt`: the input files (one path per line, sorted), enumerated once when the job is created;
+ *    the line index of a file is its ID, so the IDs are stable across runs even if the inputs change
+ *  - `checkpoint.bin`: the IDs of the completed files (a bitmap) and the length of the output when it was saved
+ *
+ * The runner sets the bit of a file in the same critical section it writes the records of the file in,
+ * and the checkpoint is taken in one critical section after flushing and syncing the output. When a job is resumed,
+ * the output is truncated to the checkpointed length and only the files not completed are processed, so the output of
+ * replay files is exactly the same as of an uninterrupted run (records of the files completed after the checkpoint are
+ * discarded and written again). Archives are completed as a whole when all their entries are processed; the records
+ * of partly processed archives may be written again after a resume (at-least-once).
+ *
+ * @param directory    job directory
+ * @param manifest     input files by ID
+ * @param completed    IDs of the completed files; guarded by the output of the runner
+ * @param outputLength length of the output at the last checkpoint
+ */
+final class BatchJob private (val directory: File, val manifest: IndexedSeq[String], val completed: BitSet, val outputLength: Long) {
+
+  /**
+   * Saves a checkpoint: the completed files and the length of the output. Written to a temporary file first
+   * which then replaces the checkpoint file.
+   * @param completedSnapshot IDs of the completed files, taken together with the output length
+   * @param length            length of the (flushed and synced) output
+   */
+  def saveCheckpoint(completedSnapshot: BitSet, length: Long): Unit = synchronized {
+    val file = new File(directory, BatchJob.CheckpointName)
+    val tempFile = new File(directory, BatchJob.CheckpointName + ".tmp")
+    val output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))
+    try {
+      output.writeInt(BatchJob.FileMagic)
+      output.writeInt(BatchJob.FileVersion)
+      output.writeInt(manifest.size)
+      output.writeLong(length)
+      val words = completedSnapshot.toLongArray
+      output.writeInt(words.length)
+      words.foreach(output.writeLong)
+    } finally {
+      output.close()
+    }
+    Files.move(tempFile.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING)
+  }
+}
+
+object BatchJob {
+  /** Magic number of the checkpoint files: "RJOB". */
+  private val FileMagic = 0x424f4a52
+  /** Version of the checkpoint file format. */
+  private val FileVersion = 1
+
+  private val ManifestName = "manifest.txt"
+  private val CheckpointName = "checkpoint.bin"
+
+  /**
+   * Opens a job: loads the manifest and the checkpoint of the job directory, or creates the directory and the manifest
+   * from the inputs if the job is new.
+   * @param directory job directory
+   * @param inputs    inputs of the job, only used when the job is created
+   * @throws IOException if the job directory cannot be created, the inputs are missing or cannot be enumerated,
+   *                     or the checkpoint is invalid
+   */
+  def open(directory: File, inputs: Seq[String]): BatchJob = {
+    val manifestFile = new File(directory, ManifestName)
+    val manifest = if (manifestFile.exists)
+      Files.readAllLines(manifestFile.toPath, StandardCharsets.UTF_8).toArray(new Array[String](0)).toIndexedSeq
+    else {
+      if (inputs.isEmpty)
+        throw new IOException(s"No inputs specified for the new job: $directory")
+      if (!directory.isDirectory && !directory.mkdirs())
+        throw new IOException(s"Cannot create the job directory: $directory")
+      val paths = ArrayBuffer[String]()
+      ReplayInputs.foreach(inputs)(file => paths += file.getPath)
+      val sorted = paths.sorted.toIndexedSeq
+      val tempFile = new File(directory, ManifestName + ".tmp")
+      Files.write(tempFile.toPath, sorted.mkString("", "\n", if (sorted.isEmpty) "" else "\n").getBytes(StandardCharsets.UTF_8))
+      Files.move(tempFile.toPath, manifestFile.toPath, StandardCopyOption.REPLACE_EXISTING)
+      sorted
+    }
+
+    val checkpointFile = new File(directory, CheckpointName)
+    if (!checkpointFile.exists)
+      return new BatchJob(directory, manifest, new BitSet(manifest.size), 0)
+
+    val input = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile), 1 << 16))
+    try {
+      if (input.readInt() != FileMagic || input.readInt() != FileVersion)
+        throw new IOException(s"Not a checkpoint file: $checkpointFile")
+      if (input.readInt() != manifest.size)
+        throw new IOException(s"The checkpoint does not match the manifest: $checkpointFile")
+      val outputLength = input.readLong()
+      val words = new Array[Long](input.readInt())
+      for (i <- words.indices)
+        words(i) = input.readLong()
+      new BatchJob(directory, manifest, BitSet.valueOf(words), outputLength)
+    } finally {
+      input.close()
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package cli
+
+/**
+ * Options of the batch tool.
+ *
+ * @param mode            what to output: [[BatchOptions.ModeHeader]], [[BatchOptions.ModeActions]], [[BatchOptions.ModeScan]], [[BatchOptions.ModeStats]]
+ *                        [[BatchOptions.ModeReport]], [[BatchOptions.ModeSketch]], [[BatchOptions.ModeNgrams]] or [[BatchOptions.ModeHeatmap]],
+ *                        [[BatchOptions.ModeWatch]] to ingest the replays landing in folders, [[BatchOptions.ModeServe]] to run the scan service
+ *                        or [[BatchOptions.ModeWorker]] to run a worker of a sharded run
+ * @param format          output format: [[BatchOptions.FormatJsonl]], [[BatchOptions.FormatTsv]] or [[BatchOptions.FormatBinary]]
+ * @param threads         number of parsing threads
+ * @param output          output file; `None` to write to the standard output
+ * @param progressSeconds interval of the progress reports on the standard error in seconds; 0 to disable them
+ * @param quiet           do not report the replays which cannot be parsed
+ * @param checkpoint      checkpoint file of the watch mode; `None` for the default (output file + `.checkpoint`, or `replays.checkpoint`)
+ * @param poll            poll the folders in watch mode instead of using a watch service
+ * @param port            port of the scan service or of the coordinator of a sharded run
+ * @param maxRequestBytes size limit of the replays posted to the scan service
+ * @param job             job directory to make the run resumable (see [[BatchJob]]); `None` for a one-off run
+ * @param checkpointSeconds interval of the checkpoints of a resumable job in seconds
+ * @param workers         number of local worker processes of a sharded run (see [[cluster.ShardCoordinator]])
+ * @param shards          number of shards of a sharded run; 0 for the number of local workers (no sharding if both are 0)
+ * @param cellSize        size of the heatmap cells in pixels (a map tile is 32 pixels)
+ * @param windowSeconds   length of the heatmap time windows in seconds; 0 for no windows
+ * @param perPlayer       build heatmaps of the single players too
+ * @param inputs          replay files, archives (ZIP, TAR, TAR.GZ), directories (searched recursively) or glob patterns;
+ *                        folders in watch mode; the coordinator address (host:port) in worker mode
+ */
+final case class BatchOptions(mode: String = BatchOptions.ModeHeader,
+                              format: String = BatchOptions.FormatJsonl,
+                              threads: Int = Runtime.getRuntime.availableProcessors,
+                              output: Option[String] = None,
+                              progressSeconds: Int = 5,
+                              quiet: Boolean = false,
+                              checkpoint: Option[String] = None,
+                              poll: Boolean = false,
+                              port: Int = 8080,
+                              maxRequestBytes: Int = service.ScanService.DefaultMaxRequestBytes,
+                              job: Option[String] = None,
+                              checkpointSeconds: Int = 30,
+                              workers: Int = 0,
+                              shards: Int = 0,
+                              cellSize: Int = 128,
+                              windowSeconds: Int = 300,
+                              perPlayer: Boolean = false,
+                              inputs: Seq[String] = Nil) {
+
+  /** Tells if the run is sharded across worker processes. */
+  def sharded: Boolean = workers > 0 || shards > 0
+}
+
+object BatchOptions {
+  /** One record per replay with the header fields and the players. */
+  val ModeHeader = "header"
+  /** One record per player action. */
+  val ModeActions = "actions"
+  /** One record per hack found by the replay scanner. */
+  val ModeScan = "scan"
+  /** One record with the statistics of all replays (game types, races, maps, actions, hacks). */
+  val ModeStats = "stats"
+  /** One record with the corpus report (matchups, maps, game lengths, APMs, action types, hack rates by month). */
+  val ModeReport = "report"
+  /** One record with the APM and EAPM sketches by race, matchup and period (summary, or the mergeable sketches in binary format). */
+  val ModeSketch = "sketch"
+  /** One record with the most frequent action n-grams of the players. */
+  val ModeNgrams = "ngrams"
+  /** One record with the heatmaps of the action target positions by map, player and time window (cells, or the mergeable heatmaps in binary format). */
+  val ModeHeatmap = "heatmap"
+  /** Watches folders and outputs the hack records of the replays landing in them, until stopped. */
+  val ModeWatch = "watch"
+  /** Runs the HTTP scan service, until stopped. */
+  val ModeServe = "serve"
+  /** Runs a worker of a sharded run, until the coordinator shuts it down. */
+  val ModeWorker = "worker"
+
+  val FormatJsonl = "jsonl"
+  val FormatTsv = "tsv"
+  val FormatBinary = "bin"
+
+  private val Modes = Seq(ModeHeader, ModeActions, ModeScan, ModeStats, ModeReport, ModeSketch, ModeNgrams, ModeHeatmap, ModeWatch, ModeServe, ModeWorker)
+  private val Formats = Seq(FormatJsonl, FormatTsv, FormatBinary)
+
+  val Usage: String =
+    """Usage: replays [options] <mode> <input>...
+      |
+      |Modes:
+      |  header   one record per replay: header fields and players
+      |  actions  one record per player action
+      |  scan     one record per hack found by the replay scanner
+      |  stats    one record with the statistics of all replays
+      |  report   one record with the corpus report: matchups, maps, game lengths, APM distributions by race,
+      |           action types, and hack rates by month of the save time
+      |  sketch   one record with the APM and EAPM percentile sketches by race, matchup and month: quantiles
+      |           in jsonl/tsv, the mergeable sketch set in bin format
+      |  ngrams   one record with the most frequent action n-grams (1 to 3 consecutive actions of a player)
+      |  heatmap  one record with the heatmaps of the target positions of build, move, right click, ability and
+      |           minimap ping actions by map and time window: the non-empty cells in jsonl/tsv, the mergeable
+      |           heatmap set in bin format
+      |  watch    watch folders and output the hack records of the replays landing in them (until stopped);
+      |           processed files are recorded in a checkpoint file, the output file is appended to
+      |  serve    run the HTTP scan service (POST /scan, GET /metrics) until stopped, no inputs
+      |  worker   run a worker of a sharded run for the coordinator given as the input (host:port),
+      |           e.g. on another host
+      |
+      |Inputs: replay files, archives (.zip, .tar, .tar.gz, .tgz), directories (searched recursively)
+      |        or glob patterns (e.g. 'replays/**/*.rep', quote them to keep them from the shell)
+      |
+      |Options:
+      |  -f, --format <jsonl|tsv|bin>  output format (default: jsonl)
+      |  -t, --threads <n>             number of parsing threads (default: number of processors)
+      |  -o, --output <file>           output file (default: standard output)
+      |  -p, --progress <seconds>      interval of the progress reports on the standard error, 0 to disable (default: 5)
+      |  -q, --quiet                   do not report the replays which cannot be parsed
+      |  -c, --checkpoint <file>       checkpoint file of the watch mode (default: output file + .checkpoint,
+      |                                or replays.checkpoint)
+      |      --poll                    poll the folders in watch mode instead of using file events
+      |      --port <port>             port of the scan service or of the coordinator of a sharded run (default: 8080)
+      |      --max-bytes <n>           size limit of the replays posted to the scan service (default: 8 MB)
+      |  -j, --job <dir>               make the run resumable (header, actions and scan modes, requires --output):
+      |                                the inputs are listed in the job directory when the job is created, completed
+      |                                files are checkpointed; run the same command again to resume (inputs optional)
+      |      --checkpoint-seconds <n>  interval of the checkpoints of a resumable job (default: 30)
+      |      --workers <n>             shard the run (header, actions, scan, stats, sketch modes) across n local worker
+      |                                processes; workers started by hand on other hosts can connect to --port
+      |                                (they open the inputs by their absolute paths, so they need the same file system paths)
+      |      --shards <n>              number of shards of a sharded run (default: number of local workers);
+      |                                with no local workers, the run waits for workers started by hand
+      |      --cell-size <pixels>      size of the heatmap cells, a map tile is 32 pixels (default: 128)
+      |      --window-seconds <n>      length of the heatmap time windows, 0 for no windows (default: 300)
+      |      --per-player              build heatmaps of the single players too
+      |  -h, --help                    print this help""".stripMargin
+
+  /**
+   * Parses the command line arguments.
+   * @param args command line arguments
+   * @return the parsed options
+   * @throws IllegalArgumentException if the arguments are invalid
+   */
+  def parse(args: Array[String]): BatchOptions = {
+    var options = BatchOptions()
+    var mode: String = null
+    val inputs = Seq.newBuilder[String]
+    var i = 0
+    def value(name: String): String = {
+      i += 1
+      if (i >= args.length)
+        throw new IllegalArgumentException(s"Missing value of $name")
+      args(i)
+    }
+    def intValue(name: String, min: Int): Int = {
+      val v = value(name)
+      val n = v.toIntOption.getOrElse(throw new IllegalArgumentException(s"Invalid value of $name: $v"))
+      if (n < min)
+        throw new IllegalArgumentException(s"Value of $name must be at least $min: $v")
+      n
+    }
+
+    while (i < args.length) {
+      args(i) match {
+        case "-f" | "--format" =>
+          val format = value("--format")
+          if (!Formats.contains(format))
+            throw new IllegalArgumentException(s"Unknown format: $format (expected ${Formats.mkString(", ")})")
+          options = options.copy(format = format)
+        case "-t" | "--threads" => options = options.copy(threads = intValue("--threads", 1))
+        case "-o" | "--output" => options = options.copy(output = Some(value("--output")))
+        case "-p" | "--progress" => options = options.copy(progressSeconds = intValue("--progress", 0))
+        case "-q" | "--quiet" => options = options.copy(quiet = true)
+        case "-c" | "--checkpoint" => options = options.copy(checkpoint = Some(value("--checkpoint")))
+        case "--poll" => options = options.copy(poll = true)
+        case "--port" => options = options.copy(port = intValue("--port", 0))
+        case "--max-bytes" => options = options.copy(maxRequestBytes = intValue("--max-bytes", 1))
+        case "-j" | "--job" => options = options.copy(job = Some(value("--job")))
+        case "--checkpoint-seconds" => options = options.copy(checkpointSeconds = intValue("--checkpoint-seconds", 1))
+        case "--workers" => options = options.copy(workers = intValue("--workers", 0))
+        case "--shards" => options = options.copy(shards = intValue("--shards", 0))
+        case "--cell-size" => options = options.copy(cellSize = intValue("--cell-size", 1))
+        case "--window-seconds" => options = options.copy(windowSeconds = intValue("--window-seconds", 0))
+        case "--per-player" => options = options.copy(perPlayer = true)
+        case arg if arg.startsWith("-") && arg.length > 1 => throw new IllegalArgumentException(s"Unknown option: $arg")
+        case arg if mode == null =>
+          if (!Modes.contains(arg))
+            throw new IllegalArgumentException(s"Unknown mode: $arg (expected ${Modes.mkString(", ")})")
+          mode = arg
+        case arg => inputs += arg
+      }
+      i += 1
+    }
+
+    if (mode == null)
+      throw new IllegalArgumentException("No mode specified!")
+    options = options.copy(mode = mode, inputs = inputs.result())
+    if (options.inputs.isEmpty && mode != ModeServe && options.job.isEmpty)
+      throw new IllegalArgumentException("No inputs specified!")
+    if (options.job.isDefined && !Seq(ModeHeader, ModeActions, ModeScan).contains(mode))
+      throw new IllegalArgumentException(s"Resumable jobs are not supported in $mode mode!")
+    if (options.job.isDefined && options.output.isEmpty)
+      throw new IllegalArgumentException("Resumable jobs require an output file!")
+    if (options.sharded && !Seq(ModeHeader, ModeActions, ModeScan, ModeStats, ModeSketch).contains(mode))
+      throw new IllegalArgumentException(s"Sharded runs are not supported in $mode mode!")
+    if (options.sharded && options.job.isDefined)
+      throw new IllegalArgumentException("Sharded runs cannot be resumable jobs!")
+    if (mode == ModeWorker) {
+      if (options.inputs.size != 1 || !options.inputs.head.contains(':'))
+        throw new IllegalArgumentException("The worker mode requires the coordinator address (host:port) as the only input!")
+      val address = options.inputs.head
+      if (!address.substring(address.lastIndexOf(':') + 1).toIntOption.exists(port => port >= 1 && port <= 65535))
+        throw new IllegalArgumentException(s"Invalid port of the coordinator address: $address")
+    }
+    options
+  }
+
+  /** Tells if the arguments ask for the help. */
+  def isHelp(args: Array[String]): Boolean = args.isEmpty || args.exists(arg => arg == "-h" || arg == "--help")
+}
@@ -0,0 +1,371 @@
+package cli
+
+import java.io.{BufferedOutputStream, File, FileOutputStream, IOException, OutputStream, RandomAccessFile}
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.BitSet
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentLinkedQueue, ExecutorService, Executors, Semaphore, ThreadFactory, TimeUnit}
+
+import control.{ActionNgramCounter, ApmSketchBuilder, ArchiveReplayReader, HeatmapBuilder, BinRepParser, BinReplayUnpacker, ReplayScanner}
+import model.{ApmSketches, HackDescription, Heatmaps, Replay}
+
+/**
+ * Runs a batch job: parses the replays of the inputs in parallel and streams the records to the output.
+ *
+ * Files are submitted to a fixed thread pool as they are found, with a bounded number of pending files.
+ * Each thread reuses its read buffer, unpacker and record buffer; the records of a replay are formatted by the thread
+ * and written to the output in one piece, in the order the replays are finished (not in input order if `threads > 1`).
+ * Archives are read one by one, the entries of ZIP archives are parsed in parallel on the same thread pool.
+ *
+ * Progress (replays/s, MB/s) is reported periodically and a summary at the end on the standard error.
+ *
+ * With a job directory the run is resumable: the files of the job manifest are processed instead of the inputs,
+ * the completed files are checkpointed periodically, and a resumed run continues the output from the last checkpoint
+ * (see [[BatchJob]]).
+ *
+ * @param options options of the job
+ */
+final class BatchRunner(options: BatchOptions) {
+
+  /** Per thread state of the job. */
+  private final class WorkerState {
+    var buffer = new Array[Byte](1 << 16)
+    var unpacker: BinReplayUnpacker = _
+    val records = new RecordBuffer
+    val format: RecordFormat = RecordFormat(options.format, records)
+    val statistics = new BatchStatistics
+    val corpus = new CorpusStatistics
+    val sketchBuilder = new ApmSketchBuilder
+    val ngrams = new ActionNgramCounter
+    val heatmapBuilder = new HeatmapBuilder(options.cellSize, options.windowSeconds, options.perPlayer)
+  }
+
+  private val parseCommands = options.mode != BatchOptions.ModeHeader
+  private val states = new ConcurrentLinkedQueue[WorkerState]()
+  private val state = ThreadLocal.withInitial[WorkerState] { () =>
+    val s = new WorkerState
+    states.add(s)
+    s
+  }
+
+  private val replaysCount = new AtomicLong
+  private val failedCount = new AtomicLong
+  private val bytesCount = new AtomicLong
+  private val recordsBytesCount = new AtomicLong
+
+  private var output: OutputStream = _
+  private var startNanos = 0L
+
+  /** The resumable job; `null` for a one-off run. */
+  private var job: BatchJob = _
+  /** Output file of a resumable job, to sync it before the checkpoints. */
+  private var jobOutput: FileOutputStream = _
+  /** Length of the output of a resumable job; guarded by the output. */
+  private var outputLength = 0L
+
+  /**
+   * Runs the job.
+   * @return the statistics of the job (totals only unless in stats mode)
+   * @throws IOException if an input cannot be enumerated or the output cannot be written
+   */
+  def run(): BatchStatistics = {
+    startNanos = System.nanoTime
+    output = new BufferedOutputStream(openOutput(), 1 << 16)
+    val executor = Executors.newFixedThreadPool(options.threads, daemonThreads("batch-worker"))
+    val progress = if (options.progressSeconds > 0) Executors.newSingleThreadScheduledExecutor(daemonThreads("batch-progress")) else null
+    if (progress != null)
+      progress.scheduleAtFixedRate(() => reportProgress(), options.progressSeconds, options.progressSeconds, TimeUnit.SECONDS)
+    val checkpoints = if (job != null) Executors.newSingleThreadScheduledExecutor(daemonThreads("batch-checkpoint")) else null
+    if (checkpoints != null)
+      checkpoints.scheduleWithFixedDelay(() => checkpoint(), options.checkpointSeconds, options.checkpointSeconds, TimeUnit.SECONDS)
+
+    try {
+      if (job == null || job.outputLength == 0) {
+        val begin = state.get
+        begin.format.begin(options.mode)
+        writeRecords(begin.records)
+      }
+
+      process(executor)
+
+      val statistics = new BatchStatistics
+      states.forEach(s => statistics.merge(s.statistics))
+      statistics.replays = replaysCount.get
+      statistics.failed = failedCount.get
+      statistics.bytes = bytesCount.get
+      if (options.mode == BatchOptions.ModeStats) {
+        val end = state.get
+        end.format.stats(statistics)
+        writeRecords(end.records)
+      } else if (options.mode == BatchOptions.ModeReport) {
+        val corpus = new CorpusStatistics
+        states.forEach(s => corpus.merge(s.corpus))
+        val end = state.get
+        end.format.report(corpus)
+        writeRecords(end.records)
+      } else if (options.mode == BatchOptions.ModeSketch) {
+        val sketches = new ApmSketches
+        states.forEach(s => sketches.merge(s.sketchBuilder.sketches))
+        val end = state.get
+        end.format.sketches(sketches)
+        writeRecords(end.records)
+      } else if (options.mode == BatchOptions.ModeNgrams) {
+        val ngrams = new ActionNgramCounter
+        states.forEach(s => ngrams.merge(s.ngrams))
+        val end = state.get
+        end.format.ngrams(ngrams)
+        writeRecords(end.records)
+      } else if (options.mode == BatchOptions.ModeHeatmap) {
+        val heatmaps = new Heatmaps(options.cellSize, options.windowSeconds)
+        states.forEach(s => heatmaps.merge(s.heatmapBuilder.heatmaps))
+        val end = state.get
+        end.format.heatmaps(heatmaps)
+        writeRecords(end.records)
+      }
+      statistics
+    } finally {
+      if (progress != null)
+        progress.shutdownNow()
+      executor.shutdownNow()
+      if (checkpoints != null) {
+        checkpoints.shutdown()
+        checkpoints.awaitTermination(1, TimeUnit.MINUTES)
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+        checkpoint()
+      }
+      output.synchronized {
+        if (options.output.isEmpty) output.flush() else output.close()
+      }
+      reportSummary()
+    }
+  }
+
+  /**
+   * Opens the output. For a resumable job, loads the job and truncates the output to the length at the checkpoint.
+   */
+  private def openOutput(): OutputStream = {
+    if (options.job.isEmpty)
+      return options.output.map(new FileOutputStream(_): OutputStream).getOrElse(System.out)
+
+    job = BatchJob.open(new File(options.job.get), options.inputs)
+    val file = new File(options.output.get)
+    if (file.length < job.outputLength)
+      throw new IOException(s"The output is shorter than at the last checkpoint of the job: $file")
+    val channel = FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+    try {
+      channel.truncate(job.outputLength)
+    } finally {
+      channel.close()
+    }
+    outputLength = job.outputLength
+    val completedCount = job.completed.cardinality
+    if (completedCount > 0)
+      System.err.println(s"Resuming the job: $completedCount of ${job.manifest.size} files completed")
+    jobOutput = new FileOutputStream(file, true)
+    jobOutput
+  }
+
+  /**
+   * Saves a checkpoint of the resumable job: takes the completed files and the output length together, after flushing and syncing the output.
+   */
+  private def checkpoint(): Unit =
+    try {
+      val (completed, length) = output.synchronized {
+        output.flush()
+        jobOutput.getFD.sync()
+        (job.completed.clone().asInstanceOf[BitSet], outputLength)
+      }
+      job.saveCheckpoint(completed, length)
+    } catch {
+      case e: IOException => System.err.println(s"Failed to save the checkpoint: $e")
+    }
+
+  /**
+   * Enumerates the inputs and submits the replay files, waits for all of them to be processed.
+   */
+  private def process(executor: ExecutorService): Unit = {
+    // Bound the pending files so the enumeration does not run ahead of the parsing
+    val maxPending = options.threads * 4
+    val pending = new Semaphore(maxPending)
+    // Archives are read in this thread, so waiting for their entries on the pool cannot block the pool
+    val archiveReader = new ArchiveReplayReader(executor, parseCommands, false, false, false)
+    @volatile var failure: Throwable = null
+
+    def submit(file: File, id: Int): Unit = {
+      if (failure != null)
+        throw new IOException("Failed to write the output", failure)
+      if (ArchiveReplayReader.isArchive(file))
+        processArchive(archiveReader, file, id)
+      else {
+        pending.acquire()
+        executor.execute { () =>
+          try {
+            processFile(file, id)
+          } catch {
+            case t: Throwable => failure = t
+          } finally {
+            pending.release()
+          }
+        }
+      }
+    }
+
+    if (job == null)
+      ReplayInputs.foreach(options.inputs)(submit(_, -1))
+    else {
+      // Completed at the last checkpoint (the workers complete the others concurrently)
+      val completed = output.synchronized(job.completed.clone().asInstanceOf[BitSet])
+      for (id <- job.manifest.indices)
+        if (!completed.get(id))
+          submit(new File(job.manifest(id)), id)
+    }
+
+    pending.acquire(maxPending)
+    if (failure != null)
+      throw new IOException("Failed to write the output", failure)
+  }
+
+  /**
+   * Parses a replay file and writes its records.
+   * @param id ID of the file in the job manifest; -1 if not a resumable job
+   */
+  private def processFile(file: File, id: Int): Unit = {
+    val s = state.get
+    val length = file.length
+    val replay = try {
+      if (length > Int.MaxValue)
+        throw new IOException("Replay too big!")
+      if (s.buffer.length < length)
+        s.buffer = new Array[Byte](math.max(length.toInt, s.buffer.length * 2))
+      val input = new RandomAccessFile(file, "r")
+      try {
+        input.readFully(s.buffer, 0, length.toInt)
+      } finally {
+        input.close()
+      }
+      if (s.unpacker == null)
+        s.unpacker = new BinReplayUnpacker(s.buffer, 0, length.toInt)
+      else
+        s.unpacker.reset(s.buffer, 0, length.toInt)
+      val replay = BinRepParser.parseReplay(s.unpacker, file.getPath, parseCommands, false, false, false)
+      if (replay == null)
+        throw new Exception("Not a replay file!")
+      replay
+    } catch {
+      case e: Exception =>
+        replayFailed(file.getPath, e)
+        null
+    }
+    bytesCount.addAndGet(length)
+    if (replay != null)
+      replayParsed(file.getPath, replay, id)
+    else
+      writeRecords(s.records, id)
+  }
+
+  /**
+   * Parses the replays of an archive and writes their records.
+   * @param id ID of the archive in the job manifest; -1 if not a resumable job
+   * @throws IOException if the output cannot be written
+   */
+  private def processArchive(archiveReader: ArchiveReplayReader, file: File, id: Int): Unit = {
+    // Failure to write the records of an entry: aborts the run, unlike the failures to read the archive
+    @volatile var outputFailure: IOException = null
+    try {
+      archiveReader.read(file, new ArchiveReplayReader.Handler {
+        override def replayParsed(entryName: String, replay: Replay): Unit =
+          try {
+            BatchRunner.this.replayParsed(file.getPath + "!/" + entryName, replay, -1)
+          } catch {
+            case e: IOException =>
+              outputFailure = e
+              throw e
+          }
+
+        override def replayFailed(entryName: String, cause: Exception): Unit =
+          BatchRunner.this.replayFailed(file.getPath + "!/" + entryName, cause)
+      })
+    } catch {
+      case e: IOException =>
+        if (outputFailure != null)
+          throw new IOException("Failed to write the output", outputFailure)
+        replayFailed(file.getPath, e)
+    }
+    bytesCount.addAndGet(file.length)
+    // The archive is completed as a whole
+    writeRecords(state.get.records, id)
+  }
+
+  /**
+   * Formats the records of a parsed replay and writes them to the output. Called in the parsing threads.
+   * @param id ID of the replay file in the job manifest; -1 if not a resumable job or an archive entry
+   */
+  private def replayParsed(name: String, replay: Replay, id: Int): Unit = {
+    val s = state.get
+    val hacks: java.util.List[HackDescription] =
+      if (options.mode == BatchOptions.ModeScan || options.mode == BatchOptions.ModeStats || options.mode == BatchOptions.ModeReport)
+        ReplayScanner.scanReplayForHacks(replay, false)
+      else null
+    options.mode match {
+      case BatchOptions.ModeHeader => s.format.header(name, replay)
+      case BatchOptions.ModeActions => s.format.actions(name, replay)
+      case BatchOptions.ModeScan => s.format.hacks(name, hacks)
+      case BatchOptions.ModeStats => s.statistics.add(replay, hacks)
+      case BatchOptions.ModeReport => s.corpus.add(replay, hacks)
+      case BatchOptions.ModeSketch => s.sketchBuilder.add(replay)
+      case BatchOptions.ModeNgrams => s.ngrams.add(replay)
+      case BatchOptions.ModeHeatmap => s.heatmapBuilder.add(replay)
+      case mode => throw new IllegalArgumentException(s"Unsupported mode: $mode")
+    }
+    writeRecords(s.records, id)
+    replaysCount.incrementAndGet()
+  }
+
+  private def replayFailed(name: String, cause: Exception): Unit = {
+    failedCount.incrementAndGet()
+    if (!options.quiet)
+      System.err.println(s"Failed to parse replay: $name: $cause")
+  }
+
+  /**
+   * Writes the records to the output.
+   * @param id ID of the completed file in the job manifest, marked in the same critical section; -1 if none
+   */
+  private def writeRecords(records: RecordBuffer, id: Int = -1): Unit =
+    if (records.size > 0 || (job != null && id >= 0)) {
+      recordsBytesCount.addAndGet(records.size)
+      output.synchronized {
+        outputLength += records.size
+        records.drainTo(output)
+        if (job != null && id >= 0)
+          job.completed.set(id)
+      }
+    }
+
+  private def reportProgress(): Unit = {
+    output.synchronized {
+      output.flush()
+    }
+    System.err.println(s"Processed ${replaysCount.get} replays, ${failedCount.get} failed: " + rates())
+  }
+
+  private def reportSummary(): Unit =
+    System.err.println(s"Done: ${replaysCount.get} replays, ${failedCount.get} failed, ${recordsBytesCount.get / 1024} KB output: " + rates())
+
+  private def rates(): String = {
+    val seconds = math.max(1e-3, (System.nanoTime - startNanos) / 1e9)
+    val replays = replaysCount.get + failedCount.get
+    val megabytes = bytesCount.get / (1024.0 * 1024.0)
+    f"$megabytes%.1f MB in $seconds%.1f s, ${replays / seconds}%.1f replays/s, ${megabytes / seconds}%.2f MB/s"
+  }
+
+  private def daemonThreads(name: String): ThreadFactory = {
+    val counter = new AtomicLong
+    runnable => {
+      val thread = new Thread(runnable, name + "-" + counter.incrementAndGet())
+      thread.setDaemon(true)
+      thread
+    }
+  }
+}
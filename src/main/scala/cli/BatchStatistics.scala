@@ -0,0 +1,152 @@
+package cli
+
+import java.io.{DataInput, DataOutput, IOException}
+
+import scala.collection.mutable
+
+import model.{Action, HackDescription, Replay, ReplayHeader}
+
+/**
+ * Statistics of replays (stats mode). Each thread accumulates into its own instance, they are merged at the end.
+ */
+final class BatchStatistics {
+  var replays = 0L
+  var failed = 0L
+  var bytes = 0L
+  var frames = 0L
+  var actions = 0L
+  var hacks = 0L
+  val actionCounts = new Array[Long](256)
+  val hackCounts = new Array[Long](HackDescription.HACK_TYPE_NAMES.length)
+  val raceCounts = new Array[Long](ReplayHeader.RACE_NAMES.length)
+  val gameTypeCounts = mutable.HashMap[String, Long]()
+  val mapCounts = mutable.HashMap[String, Long]()
+
+  /**
+   * Adds a parsed replay and the hacks found in it.
+   */
+  def add(replay: Replay, replayHacks: java.util.List[HackDescription]): Unit = {
+    val header = replay.replayHeader
+    frames += header.gameFrames
+    var i = 0
+    while (i < header.playerNames.length) {
+      val race = header.playerRaces(i)
+      if (header.playerNames(i) != null && header.playerIds(i) != 0xff && race >= 0 && race < raceCounts.length)
+        raceCounts(race) += 1
+      i += 1
+    }
+    gameTypeCounts(BatchStatistics.gameTypeName(header.gameType)) = gameTypeCounts.getOrElse(BatchStatistics.gameTypeName(header.gameType), 0L) + 1
+    if (header.mapName != null)
+      mapCounts(header.mapName) = mapCounts.getOrElse(header.mapName, 0L) + 1
+
+    if (replay.replayActions != null) {
+      val timeline = replay.replayActions.getTimeline
+      actions += timeline.size
+      val ids = timeline.actionNameIndices
+      i = 0
+      while (i < timeline.size) {
+        actionCounts(ids(i) & 0xff) += 1
+        i += 1
+      }
+    }
+    if (replayHacks != null) {
+      hacks += replayHacks.size
+      replayHacks.forEach(hack => hackCounts(hack.hackType) += 1)
+    }
+  }
+
+  /**
+   * Merges another statistics into this.
+   */
+  def merge(other: BatchStatistics): Unit = {
+    replays += other.replays
+    failed += other.failed
+    bytes += other.bytes
+    frames += other.frames
+    actions += other.actions
+    hacks += other.hacks
+    for (i <- actionCounts.indices) actionCounts(i) += other.actionCounts(i)
+    for (i <- hackCounts.indices) hackCounts(i) += other.hackCounts(i)
+    for (i <- raceCounts.indices) raceCounts(i) += other.raceCounts(i)
+    other.gameTypeCounts.foreach { case (k, v) => gameTypeCounts(k) = gameTypeCounts.getOrElse(k, 0L) + v }
+    other.mapCounts.foreach { case (k, v) => mapCounts(k) = mapCounts.getOrElse(k, 0L) + v }
+  }
+
+  /**
+   * Writes the statistics, to send partial statistics to another process (see [[BatchStatistics.read]]).
+   */
+  def write(output: DataOutput): Unit = {
+    Seq(replays, failed, bytes, frames, actions, hacks).foreach(output.writeLong)
+    for (counts <- Seq(actionCounts, hackCounts, raceCounts)) {
+      output.writeInt(counts.length)
+      counts.foreach(output.writeLong)
+    }
+    for (counts <- Seq(gameTypeCounts, mapCounts)) {
+      output.writeInt(counts.size)
+      counts.foreach { case (k, v) =>
+        output.writeUTF(k)
+        output.writeLong(v)
+      }
+    }
+  }
+
+  /**
+   * Returns the statistics as named groups of counters, groups and counters in output order.
+   * Counters are sorted by value descending, maps are limited to the most played ones.
+   */
+  def groups: Seq[(String, Seq[(String, Long)])] = {
+    def sorted(counts: Iterable[(String, Long)]): Seq[(String, Long)] = counts.filter(_._2 > 0).toSeq.sortBy { case (k, v) => (-v, k) }
+    Seq(
+      "totals" -> Seq("replays" -> replays, "failed" -> failed, "bytes" -> bytes, "frames" -> frames,
+        "avgDurationSeconds" -> (if (replays == 0) 0L else ReplayHeader.convertLongFramesToSeconds(frames / replays)),
+        "actions" -> actions, "hacks" -> hacks),
+      "gameTypes" -> sorted(gameTypeCounts),
+      "races" -> sorted(ReplayHeader.RACE_NAMES.indices.map(i => ReplayHeader.RACE_NAMES(i) -> raceCounts(i))),
+      "maps" -> sorted(mapCounts).take(BatchStatistics.MapsCount),
+      "actionTypes" -> sorted(actionCounts.indices.map(i => BatchStatistics.actionName(i) -> actionCounts(i))),
+      "hackTypes" -> sorted(hackCounts.indices.map(i => HackDescription.HACK_TYPE_NAMES(i).trim -> hackCounts(i)))
+    )
+  }
+}
+
+object BatchStatistics {
+  /** Number of maps listed in the statistics. */
+  val MapsCount = 20
+
+  /**
+   * Reads statistics written by [[BatchStatistics.write]].
+   * @throws IOException if an I/O error occurs or the counters do not match
+   */
+  def read(input: DataInput): BatchStatistics = {
+    val statistics = new BatchStatistics
+    statistics.replays = input.readLong()
+    statistics.failed = input.readLong()
+    statistics.bytes = input.readLong()
+    statistics.frames = input.readLong()
+    statistics.actions = input.readLong()
+    statistics.hacks = input.readLong()
+    for (counts <- Seq(statistics.actionCounts, statistics.hackCounts, statistics.raceCounts)) {
+      if (input.readInt() != counts.length)
+        throw new IOException("The counters of the statistics do not match!")
+      for (i <- counts.indices)
+        counts(i) = input.readLong()
+    }
+    for (counts <- Seq(statistics.gameTypeCounts, statistics.mapCounts))
+      for (_ <- 0 until input.readInt())
+        counts(input.readUTF()) = input.readLong()
+    statistics
+  }
+
+  /** Name of an action ID like in `Action.toString()`. */
+  def actionName(actionId: Int): String =
+    if (actionId == (Action.ACTION_NAME_INDEX_UNKNOWN & 0xff)) "<not parsed>"
+    else {
+      val name = Action.ACTION_ID_NAME_MAP.get(actionId.toByte)
+      if (name == null) "0x" + Integer.toHexString(actionId) else name
+    }
+
+  def gameTypeName(gameType: Short): String = {
+    val name = if (gameType >= 0 && gameType < ReplayHeader.GAME_TYPE_NAMES.length) ReplayHeader.GAME_TYPE_NAMES(gameType) else null
+    if (name == null) "0x" + Integer.toHexString(gameType) else name
+  }
+}
@@ -0,0 +1,205 @@
+package cli
+
+import java.util.Arrays
+
+import model.{ApmSketches, HackDescription, Replay, ReplayHeader, StringDictionary}
+
+/**
+ * Corpus statistics of the report mode: race matchups, map popularity, game lengths, APM distributions by race,
+ * action (opcode) frequencies and hack rates by month.
+ *
+ * Each thread accumulates into its own instance, they are merged at the end. The accumulators are primitive arrays indexed by
+ * small integer keys (maps by their ID in a dictionary of the instance), so adding a replay does not allocate or box.
+ */
+final class CorpusStatistics {
+  import CorpusStatistics._
+
+  var replays = 0L
+  /** Replays with a save time in the months range. */
+  var datedReplays = 0L
+  /** Replays by matchup, indexed by `zergs * 169 + terrans * 13 + protosses` of the human players. */
+  val matchupCounts = new Array[Long](13 * 13 * 13)
+  /** Replays by game length in whole minutes, the last bucket counts the longer games. */
+  val lengthCounts = new Array[Long](LengthBuckets)
+  /** APM histograms of the human players by race, `ApmBuckets` buckets of 10 APM per race. */
+  val apmCounts = new Array[Long](3 * ApmBuckets)
+  /** Sum of the APMs by race. */
+  val apmSums = new Array[Long](3)
+  /** Actions by action ID. */
+  val actionCounts = new Array[Long](256)
+  /** Replays by month. */
+  val monthReplays = new Array[Long](MonthsCount)
+  /** Replays with at least one hack of a type by month, indexed by `month * hackTypes + hackType`. */
+  val monthHackReplays = new Array[Long](MonthsCount * HackTypesCount)
+  /** Map names of the instance. */
+  val mapNames = new StringDictionary
+  /** Replays by map ID. */
+  var mapCounts = new Array[Long](64)
+
+  /**
+   * Adds a parsed replay and the hacks found in it.
+   */
+  def add(replay: Replay, replayHacks: java.util.List[HackDescription]): Unit = {
+    val header = replay.replayHeader
+    replays += 1
+
+    var i = 0
+    while (i < header.playerNames.length) {
+      if (header.playerNames(i) != null && header.playerIds(i) != 0xff) {
+        val race = header.playerRaces(i)
+        if (race >= 0 && race < 3) {
+          val apm = header.getPlayerApm(i)
+          if (apm > 0) {
+            apmCounts(race * ApmBuckets + bucket(apm / 10, ApmBuckets)) += 1
+            apmSums(race) += apm
+          }
+        }
+      }
+      i += 1
+    }
+    val matchup = ApmSketches.getMatchup(header)
+    if (matchup != 0)
+      matchupCounts(matchup) += 1
+
+    // Crafted headers can have negative or overflowing frame counts
+    lengthCounts(bucket(header.getDurationSeconds / 60, LengthBuckets)) += 1
+
+    if (header.mapName != null) {
+      val mapId = mapNames.add(header.mapName)
+      if (mapId >= mapCounts.length)
+        mapCounts = Arrays.copyOf(mapCounts, mapCounts.length * 2)
+      mapCounts(mapId) += 1
+    }
+
+    if (replay.replayActions != null) {
+      val timeline = replay.replayActions.getTimeline
+      val ids = timeline.actionNameIndices
+      i = 0
+      while (i < timeline.size) {
+        actionCounts(ids(i) & 0xff) += 1
+        i += 1
+      }
+    }
+
+    val month = monthOf(header)
+    if (month >= 0) {
+      datedReplays += 1
+      monthReplays(month) += 1
+      if (replayHacks != null) {
+        var hackTypes = 0
+        replayHacks.forEach(hack => if (hack.hackType >= 0 && hack.hackType < HackTypesCount) hackTypes |= 1 << hack.hackType)
+        var hackType = 0
+        while (hackTypes != 0) {
+          if ((hackTypes & 1) != 0)
+            monthHackReplays(month * HackTypesCount + hackType) += 1
+          hackTypes >>>= 1
+          hackType += 1
+        }
+      }
+    }
+  }
+
+  /**
+   * Merges another statistics into this.
+   */
+  def merge(other: CorpusStatistics): Unit = {
+    replays += other.replays
+    datedReplays += other.datedReplays
+    for ((counts, otherCounts) <- Seq(matchupCounts -> other.matchupCounts, lengthCounts -> other.lengthCounts, apmCounts -> other.apmCounts,
+      apmSums -> other.apmSums, actionCounts -> other.actionCounts, monthReplays -> other.monthReplays, monthHackReplays -> other.monthHackReplays))
+      for (i <- counts.indices)
+        counts(i) += otherCounts(i)
+    for (otherId <- 0 until other.mapNames.size) {
+      val mapId = mapNames.add(other.mapNames.get(otherId))
+      while (mapId >= mapCounts.length)
+        mapCounts = Arrays.copyOf(mapCounts, mapCounts.length * 2)
+      mapCounts(mapId) += other.mapCounts(otherId)
+    }
+  }
+
+  /**
+   * Returns the report as named groups of counters, groups and counters in output order:
+   *  - `totals`: replays, dated replays (by save time)
+   *  - `matchups`: replays by the races of the human players (e.g. `PvT`), most frequent first
+   *  - `maps`: replays by map, the [[CorpusStatistics.MapsCount]] most played ones
+   *  - `gameLengthMinutes`: replays by game length in whole minutes (`60+` for the longer games)
+   *  - `apm`: mean, median and 90th percentile APM by race (e.g. `Zerg.p50`), from histograms of 10 APM buckets
+   *  - `apmHistogram`: players by race and APM bucket (e.g. `Zerg.120` for 120-129 APM)
+   *  - `actionTypes`: actions by type, most frequent first
+   *  - `months`: replays by month of the save time (e.g. `2009-03`)
+   *  - `hackReplays`: replays with a hack type by month (e.g. `2009-03.Autogather/autotrain`)
+   *  - `hackRatesPerMille`: the same per 1000 replays of the month
+   */
+  def groups: Seq[(String, Seq[(String, Long)])] = {
+    def sorted(counts: Iterable[(String, Long)]): Seq[(String, Long)] = counts.filter(_._2 > 0).toSeq.sortBy { case (k, v) => (-v, k) }
+    def raceName(race: Int): String = ReplayHeader.RACE_NAMES(race)
+
+    val months = monthReplays.indices.filter(monthReplays(_) > 0)
+    val hackReplays = for (month <- months; hackType <- 0 until HackTypesCount
+                           if monthHackReplays(month * HackTypesCount + hackType) > 0)
+      yield (month, hackType, monthHackReplays(month * HackTypesCount + hackType))
+
+    Seq(
+      "totals" -> Seq("replays" -> replays, "datedReplays" -> datedReplays),
+      "matchups" -> sorted(matchupCounts.indices.map(i => matchupName(i) -> matchupCounts(i))),
+      "maps" -> sorted((0 until mapNames.size).map(i => mapNames.get(i) -> mapCounts(i))).take(MapsCount),
+      "gameLengthMinutes" -> lengthCounts.indices.filter(lengthCounts(_) > 0)
+        .map(i => (if (i == LengthBuckets - 1) s"$i+" else i.toString) -> lengthCounts(i)),
+      "apm" -> (0 until 3).filter(race => apmPlayers(race) > 0).flatMap(race => Seq(
+        s"${raceName(race)}.mean" -> apmSums(race) / apmPlayers(race),
+        s"${raceName(race)}.p50" -> apmPercentile(race, 0.5),
+        s"${raceName(race)}.p90" -> apmPercentile(race, 0.9))),
+      "apmHistogram" -> (for (race <- 0 until 3; bucket <- 0 until ApmBuckets if apmCounts(race * ApmBuckets + bucket) > 0)
+        yield s"${raceName(race)}.${bucket * 10}" -> apmCounts(race * ApmBuckets + bucket)),
+      "actionTypes" -> sorted(actionCounts.indices.map(i => BatchStatistics.actionName(i) -> actionCounts(i))),
+      "months" -> months.map(month => monthName(month) -> monthReplays(month)),
+      "hackReplays" -> hackReplays.map { case (month, hackType, count) => s"${monthName(month)}.${RecordFormat.hackName(hackType)}" -> count },
+      "hackRatesPerMille" -> hackReplays.map { case (month, hackType, count) =>
+        s"${monthName(month)}.${RecordFormat.hackName(hackType)}" -> count * 1000 / monthReplays(month) }
+    )
+  }
+
+  private def apmPlayers(race: Int): Long = {
+    var players = 0L
+    for (bucket <- 0 until ApmBuckets)
+      players += apmCounts(race * ApmBuckets + bucket)
+    players
+  }
+
+  /** Returns the lower bound of the APM bucket of a percentile of a race. */
+  private def apmPercentile(race: Int, quantile: Double): Long = {
+    val rank = math.max(1L, math.ceil(quantile * apmPlayers(race)).toLong)
+    var cumulative = apmCounts(race * ApmBuckets)
+    var bucket = 0
+    while (cumulative < rank && bucket < ApmBuckets - 1) {
+      bucket += 1
+      cumulative += apmCounts(race * ApmBuckets + bucket)
+    }
+    bucket * 10L
+  }
+}
+
+object CorpusStatistics {
+  /** Number of maps listed in the report. */
+  val MapsCount = 50
+  /** Game lengths are counted in whole minutes up to an hour. */
+  private val LengthBuckets = 61
+  /** APMs are counted in buckets of 10 up to 1000. */
+  private val ApmBuckets = 101
+  /** Number of months in the months range (starting with the first period of [[model.ApmSketches]]). */
+  private val MonthsCount = 40 * 12
+  private val HackTypesCount = HackDescription.HACK_TYPE_NAMES.length
+
+  /** Returns the bucket of a value clamped to `[0, buckets - 1]`. */
+  private def bucket(value: Int, buckets: Int): Int = if (value < 0) 0 else math.min(value, buckets - 1)
+
+  /** Returns the month index (the period) of the save time of a replay; -1 if it is missing or out of the range. */
+  private def monthOf(header: ReplayHeader): Int = {
+    val month = ApmSketches.getPeriod(header.saveTime)
+    if (month >= MonthsCount) -1 else month
+  }
+
+  private def monthName(month: Int): String = ApmSketches.getPeriodName(month)
+
+  private def matchupName(matchup: Int): String = ApmSketches.getMatchupName(matchup)
+}
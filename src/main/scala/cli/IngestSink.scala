@@ -0,0 +1,52 @@
+package cli
+
+import java.io.{BufferedOutputStream, File, FileOutputStream, OutputStream}
+
+import control.ReplayIngester
+import model.{HackDescription, Replay}
+
+/**
+ * Sink of the watch mode: writes the hack records of the ingested replays in the format of the batch tool.
+ *
+ * The output file is appended to, so the records of all the runs end up in the same file;
+ * the beginning of the output (column names, magic) is only written to new (empty) files.
+ * Flushing syncs the file to the disk, so the checkpoint never records replays whose records could be lost.
+ *
+ * @param format output format
+ * @param output output file; `None` to write to the standard output
+ * @param quiet  do not report the replays which cannot be parsed
+ */
+final class IngestSink(format: String, output: Option[File], quiet: Boolean) extends ReplayIngester.Sink with AutoCloseable {
+
+  private val fileOutput = output.map(file => new FileOutputStream(file, true))
+  private val out: OutputStream = new BufferedOutputStream(fileOutput.getOrElse(System.out), 1 << 16)
+  private val records = new RecordBuffer
+  private val recordFormat = RecordFormat(format, records)
+
+  if (output.forall(_.length == 0)) {
+    recordFormat.begin(BatchOptions.ModeScan)
+    records.drainTo(out)
+  }
+
+  override def replayIngested(replayFile: File, replay: Replay, hackList: java.util.List[HackDescription]): Unit =
+    synchronized {
+      recordFormat.hacks(replayFile.getPath, hackList)
+      records.drainTo(out)
+    }
+
+  override def replayFailed(replayFile: File, cause: Exception): Unit =
+    if (!quiet)
+      System.err.println(s"Failed to parse replay: ${replayFile.getPath}: $cause")
+
+  override def ingestError(message: String, cause: Exception): Unit =
+    System.err.println(s"$message: $cause")
+
+  override def flush(): Unit = synchronized {
+    out.flush()
+    fileOutput.foreach(_.getFD.sync())
+  }
+
+  override def close(): Unit = synchronized {
+    if (fileOutput.isEmpty) out.flush() else out.close()
+  }
+}
@@ -0,0 +1,129 @@
+package cli
+
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets
+import java.util.Arrays
+
+/**
+ * Reusable buffer the records of a replay are formatted into before they are written to the output in one piece.
+ * Text is written as UTF-8, numbers are formatted without creating strings. Not thread-safe (and not synchronized).
+ */
+final class RecordBuffer extends OutputStream {
+
+  private var buffer = new Array[Byte](1 << 16)
+  private var count = 0
+
+  /** Number of bytes in the buffer. */
+  def size: Int = count
+
+  private def ensure(length: Int): Unit =
+    if (count + length > buffer.length)
+      buffer = Arrays.copyOf(buffer, math.max(buffer.length * 2, count + length))
+
+  override def write(b: Int): Unit = {
+    ensure(1)
+    buffer(count) = b.toByte
+    count += 1
+  }
+
+  override def write(bytes: Array[Byte], offset: Int, length: Int): Unit = {
+    ensure(length)
+    System.arraycopy(bytes, offset, buffer, count, length)
+    count += length
+  }
+
+  def bytes(bytes: Array[Byte]): RecordBuffer = {
+    write(bytes, 0, bytes.length)
+    this
+  }
+
+  /** Writes a string of ASCII characters. */
+  def ascii(s: String): RecordBuffer = {
+    ensure(s.length)
+    var i = 0
+    while (i < s.length) {
+      buffer(count + i) = s.charAt(i).toByte
+      i += 1
+    }
+    count += s.length
+    this
+  }
+
+  def char(c: Char): RecordBuffer = {
+    write(c)
+    this
+  }
+
+  def utf8(s: String): RecordBuffer = if (s == null) this else bytes(s.getBytes(StandardCharsets.UTF_8))
+
+  def number(value: Long): RecordBuffer = {
+    if (value == Long.MinValue)
+      return ascii(value.toString)
+    ensure(20)
+    if (value < 0)
+      write('-')
+    var v = math.abs(value)
+    var digits = 1
+    var limit = 10L
+    while (digits < 19 && v >= limit) {
+      digits += 1
+      limit *= 10
+    }
+    var i = count + digits
+    count = i
+    do {
+      i -= 1
+      buffer(i) = ('0' + v % 10).toByte
+      v /= 10
+    } while (v != 0)
+    this
+  }
+
+  /** Writes a JSON string literal (with the quotes); `null` is written as `null`. */
+  def json(s: String): RecordBuffer = bytes(RecordBuffer.jsonBytes(s))
+
+  /** Writes a TSV field: tabs and line breaks are replaced by spaces. */
+  def tsv(s: String): RecordBuffer =
+    if (s == null) this
+    else if (s.exists(c => c == '\t' || c == '\n' || c == '\r')) utf8(s.map(c => if (c == '\t' || c == '\n' || c == '\r') ' ' else c))
+    else utf8(s)
+
+  /** Writes the content of the buffer to an output stream and clears the buffer. */
+  def drainTo(output: OutputStream): Unit = {
+    output.write(buffer, 0, count)
+    count = 0
+  }
+
+  /** Returns a copy of the content of the buffer and clears the buffer. */
+  def drain(): Array[Byte] = {
+    val bytes = Arrays.copyOf(buffer, count)
+    count = 0
+    bytes
+  }
+}
+
+object RecordBuffer {
+
+  /**
+   * Encodes a JSON string literal (with the quotes) as UTF-8, for values written many times; `null` is encoded as `null`.
+   */
+  def jsonBytes(s: String): Array[Byte] = {
+    if (s == null)
+      return "null".getBytes(StandardCharsets.US_ASCII)
+    val builder = new java.lang.StringBuilder(s.length + 2).append('"')
+    var i = 0
+    while (i < s.length) {
+      s.charAt(i) match {
+        case '"' => builder.append("\\\"")
+        case '\\' => builder.append("\\\\")
+        case '\n' => builder.append("\\n")
+        case '\r' => builder.append("\\r")
+        case '\t' => builder.append("\\t")
+        case c if c < 0x20 => builder.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16))
+        case c => builder.append(c)
+      }
+      i += 1
+    }
+    builder.append('"').toString.getBytes(StandardCharsets.UTF_8)
+  }
+}
@@ -0,0 +1,408 @@
+package cli
+
+import java.io.DataOutputStream
+
+import scala.jdk.CollectionConverters._
+
+import control.{ActionNgramCounter, ReplayActionsExporter, ReplayScanner}
+import model.{Action, ApmSketches, HackDescription, Heatmaps, Replay, ReplayHeader}
+
+/**
+ * Formats the records of the batch tool into a [[RecordBuffer]].
+ * An instance is used by one thread only.
+ */
+sealed abstract class RecordFormat(val out: RecordBuffer) {
+
+  /** Writes the beginning of the output (column names, magic), called once before all records. */
+  def begin(mode: String): Unit
+
+  /** Writes the header record of a replay. */
+  def header(name: String, replay: Replay): Unit
+
+  /** Writes the action records of a replay (parsed with the commands). */
+  def actions(name: String, replay: Replay): Unit
+
+  /** Writes the hack records of a replay. */
+  def hacks(name: String, hacks: java.util.List[HackDescription]): Unit
+
+  /** Writes the statistics record. */
+  def stats(statistics: BatchStatistics): Unit = groups(statistics.groups)
+
+  /** Writes the corpus report record. */
+  def report(statistics: CorpusStatistics): Unit = groups(statistics.groups)
+
+  /** Writes the APM sketches record: the summary of the sketches (see [[RecordFormat.sketchGroups]]). */
+  def sketches(sketches: ApmSketches): Unit = groups(RecordFormat.sketchGroups(sketches))
+
+  /** Writes the action n-grams record (see [[RecordFormat.ngramGroups]]). */
+  def ngrams(counter: ActionNgramCounter): Unit = groups(RecordFormat.ngramGroups(counter))
+
+  /** Writes the heatmaps record: the non-empty cells of the heatmaps (see [[RecordFormat.heatmapGroups]]). */
+  def heatmaps(heatmaps: Heatmaps): Unit = groups(RecordFormat.heatmapGroups(heatmaps))
+
+  /** Writes a record of named groups of counters (statistics, report). */
+  protected def groups(groups: Seq[(String, Seq[(String, Long)])]): Unit
+
+  protected def humanPlayers(header: ReplayHeader): Seq[Int] =
+    header.playerNames.indices.filter(i => header.playerNames(i) != null && header.playerIds(i) != 0xff)
+
+  protected def raceName(race: Byte): String =
+    if (race >= 0 && race < ReplayHeader.RACE_NAMES.length) ReplayHeader.RACE_NAMES(race) else null
+}
+
+object RecordFormat {
+
+  /** Column names of the header records. */
+  val HeaderColumns = Seq("replay", "replay_format", "engine", "save_time", "frames", "duration_seconds", "game_type",
+    "game_name", "creator", "map", "map_width", "map_height", "players", "races")
+  /** Column names of the action records, the same as of the TSV format of [[ReplayActionsExporter]]. */
+  val ActionColumns: Seq[String] = ReplayActionsExporter.COLUMN_NAMES.toSeq
+  /** Column names of the hack records. */
+  val HackColumns = Seq("replay", "player", "frame", "hack_type", "hack_name", "description", "engine_version")
+
+  /**
+   * Creates a record format.
+   * @param format one of the `BatchOptions.FormatXxx` constants
+   * @param out    buffer to format into
+   */
+  def apply(format: String, out: RecordBuffer): RecordFormat = format match {
+    case BatchOptions.FormatJsonl => new JsonlFormat(out)
+    case BatchOptions.FormatTsv => new TsvFormat(out)
+    case BatchOptions.FormatBinary => new BinaryFormat(out)
+    case _ => throw new IllegalArgumentException(s"Unknown format: $format")
+  }
+
+  /** Quantiles listed in the summary of the APM sketches. */
+  private val SketchQuantiles = Seq(10, 25, 50, 75, 90, 99)
+
+  /**
+   * Returns the summary of APM sketches as named groups of counters: a group for each metric, race, matchup and period
+   * (e.g. `apm.Zerg.TvZ.all`, `eapm.Protoss.any.2009-03`) with the number of players and the quantiles of the values.
+   * The sketches of the single matchups in the single periods are omitted.
+   */
+  def sketchGroups(sketches: ApmSketches): Seq[(String, Seq[(String, Long)])] =
+    for (key <- sketches.getKeys.toSeq
+         if ApmSketches.getMatchup(key) == ApmSketches.ANY_MATCHUP || ApmSketches.getPeriod(key) == ApmSketches.ALL_PERIODS) yield {
+      val sketch = sketches.getSketch(key)
+      val group = Seq(ApmSketches.METRIC_NAMES(ApmSketches.getMetric(key)), ReplayHeader.RACE_NAMES(ApmSketches.getRace(key)),
+        ApmSketches.getMatchupName(ApmSketches.getMatchup(key)), ApmSketches.getPeriodName(ApmSketches.getPeriod(key))).mkString(".")
+      group -> (("players" -> sketch.getCount) +: SketchQuantiles.map(q => s"p$q" -> sketch.getQuantile(q / 100.0).toLong))
+    }
+
+  /** Number of n-grams of each length listed in the n-grams record. */
+  private val TopNgrams = 50
+
+  /**
+   * Returns the most frequent action n-grams as named groups of counters: the number of distinct n-grams by length (`distinct`),
+   * and a group for each length (`1-grams`, `2-grams`, ...) with the top n-grams named by their actions (e.g. `Select > Train`).
+   * Different n-grams with the same name (e.g. the Move action and the Move subaction of right clicks) get their packed
+   * action and subaction name indices appended in hex, so the keys of a group are unique.
+   */
+  def ngramGroups(counter: ActionNgramCounter): Seq[(String, Seq[(String, Long)])] =
+    ("distinct" -> (1 to counter.maxN).map(n => s"$n-grams" -> counter.getDistinctCount(n).toLong)) +:
+      (1 to counter.maxN).map { n =>
+        val ngrams = counter.getTopNgrams(n, TopNgrams).toSeq
+        val names = ngrams.map(ActionNgramCounter.getName)
+        val duplicates = names.groupBy(identity).filter(_._2.size > 1).keySet
+        s"$n-grams" -> ngrams.zip(names).map { case (ngram, name) =>
+          (if (duplicates.contains(name)) s"$name (%0${4 * n}x)".format(ngram & 0xffffffffffffL) else name) -> counter.getCount(ngram)
+        }
+      }
+
+  /**
+   * Returns the heatmaps as named groups of counters: the resolution (`heatmaps`), and a group for each map, player and
+   * time window (e.g. `Lost Temple (128x128)|*|300-600s`) with the grid size, the number of positions and the count of
+   * each non-empty cell keyed by its coordinates (`x,y`).
+   * The player is `*` for all players; `\` and `|` in the map and player names, and a player named `*` are escaped
+   * with a `\`, so the group names are unambiguous.
+   */
+  def heatmapGroups(heatmaps: Heatmaps): Seq[(String, Seq[(String, Long)])] =
+    ("heatmaps" -> Seq("cellSize" -> heatmaps.cellSize.toLong, "windowSeconds" -> heatmaps.windowSeconds.toLong, "heatmaps" -> heatmaps.size.toLong)) +:
+      heatmaps.getHeatmaps.asScala.toSeq.map { heatmap =>
+        val cells = for (y <- 0 until heatmap.height; x <- 0 until heatmap.width if heatmap.getCount(x, y) != 0)
+          yield s"$x,$y" -> heatmap.getCount(x, y).toLong
+        val player = if (heatmap.playerName == Heatmaps.ALL_PLAYERS) "*"
+          else if (heatmap.playerName == "*") "\\*" else escapeGroupPart(heatmap.playerName)
+        Seq(escapeGroupPart(heatmap.mapId), player, heatmaps.getWindowName(heatmap.window)).mkString("|") ->
+          (Seq("width" -> heatmap.width.toLong, "height" -> heatmap.height.toLong, "positions" -> heatmap.getTotal) ++ cells)
+      }
+
+  /** Escapes the `\` and `|` characters of a part of a heatmap group name with a `\`. */
+  private def escapeGroupPart(part: String): String = part.replace("\\", "\\\\").replace("|", "\\|")
+
+  private[cli] def hackName(hackType: Int): String = HackDescription.HACK_TYPE_NAMES(hackType).trim
+
+  private[cli] def gameTypeName(header: ReplayHeader): String = BatchStatistics.gameTypeName(header.gameType)
+}
+
+/**
+ * JSON Lines: one JSON object per line. Keys are the column names, missing values are `null`.
+ */
+final class JsonlFormat(out: RecordBuffer) extends RecordFormat(out) {
+
+  override def begin(mode: String): Unit = {}
+
+  override def header(name: String, replay: Replay): Unit = {
+    out.ascii("{\"replay\":").json(name).char(',')
+    headerFields(replay.replayHeader)
+    out.ascii("}\n")
+  }
+
+  /** Writes the fields of a header record without the replay name and the braces (also used by the scan service). */
+  def headerFields(h: ReplayHeader): Unit = {
+    out.ascii("\"replay_format\":").json(ReplayHeader.REPLAY_FORMAT_NAMES(h.replayFormat))
+      .ascii(",\"engine\":").json(h.getGameEngineString)
+      .ascii(",\"save_time\":").number(if (h.saveTime == null) 0 else h.saveTime.getTime)
+      .ascii(",\"frames\":").number(h.gameFrames)
+      .ascii(",\"duration_seconds\":").number(h.getDurationSeconds)
+      .ascii(",\"game_type\":").json(RecordFormat.gameTypeName(h))
+      .ascii(",\"game_name\":").json(h.gameName)
+      .ascii(",\"creator\":").json(h.creatorName)
+      .ascii(",\"map\":").json(h.mapName)
+      .ascii(",\"map_width\":").number(h.mapWidth)
+      .ascii(",\"map_height\":").number(h.mapHeight)
+      .ascii(",\"players\":[")
+    var first = true
+    for (i <- humanPlayers(h)) {
+      if (!first)
+        out.char(',')
+      first = false
+      out.ascii("{\"name\":").json(h.playerNames(i)).ascii(",\"race\":").json(raceName(h.playerRaces(i))).char('}')
+    }
+    out.char(']')
+  }
+
+  override def actions(name: String, replay: Replay): Unit = {
+    if (replay.replayActions == null)
+      return
+    val timeline = replay.replayActions.getTimeline
+    // Encode the names once, they are repeated in every line
+    val replayPrefix = RecordBuffer.jsonBytes(name)
+    val playerNames = timeline.players.map(player => RecordBuffer.jsonBytes(player.playerName))
+    var i = 0
+    while (i < timeline.size) {
+      val action = timeline.actions(i)
+      out.ascii("{\"replay\":").bytes(replayPrefix)
+        .ascii(",\"frame\":").number(action.iteration)
+        .ascii(",\"player\":").bytes(playerNames(timeline.playerIndices(i)))
+        .ascii(",\"action_id\":").number(action.actionNameIndex & 0xff)
+        .ascii(",\"action\":").bytes(JsonlFormat.ActionNames(action.actionNameIndex & 0xff))
+        .ascii(",\"subaction_id\":")
+      optional(action.subactionNameIndex == Action.SUBACTION_NAME_INDEX_UNKNOWN, action.subactionNameIndex & 0xff)
+      out.ascii(",\"unit_id\":")
+      optional(action.parameterUnitNameIndex == Action.UNIT_NAME_INDEX_UNKNOWN, action.parameterUnitNameIndex)
+      out.ascii(",\"building_id\":")
+      optional(action.parameterBuildingNameIndex == Action.BUILDING_NAME_INDEX_NON_BUILDING, action.parameterBuildingNameIndex)
+      out.ascii(",\"pos_x\":")
+      optional(action.posX == null, action.getPosX)
+      out.ascii(",\"pos_y\":")
+      optional(action.posY == null, action.getPosY)
+      out.ascii(",\"parameters\":").json(action.parameters).ascii("}\n")
+      i += 1
+    }
+  }
+
+  private def optional(missing: Boolean, value: Int): Unit = if (missing) out.ascii("null") else out.number(value)
+
+  override def hacks(name: String, hacks: java.util.List[HackDescription]): Unit =
+    hacks.forEach { hack =>
+      out.ascii("{\"replay\":").json(name).char(',')
+      hackFields(hack)
+      out.ascii(",\"engine_version\":").json(ReplayScanner.ENGINE_VERSION).ascii("}\n")
+    }
+
+  /** Writes the fields of a hack record without the replay name, the engine version and the braces (also used by the scan service). */
+  def hackFields(hack: HackDescription): Unit =
+    out.ascii("\"player\":").json(hack.playerName)
+      .ascii(",\"frame\":").number(hack.iteration)
+      .ascii(",\"hack_type\":").number(hack.hackType)
+      .ascii(",\"hack_name\":").json(RecordFormat.hackName(hack.hackType))
+      .ascii(",\"description\":").json(hack.description)
+
+  override protected def groups(groups: Seq[(String, Seq[(String, Long)])]): Unit = {
+    out.char('{')
+    for (((group, counters), g) <- groups.zipWithIndex) {
+      if (g > 0)
+        out.char(',')
+      out.json(group).ascii(":{")
+      for (((key, value), c) <- counters.zipWithIndex) {
+        if (c > 0)
+          out.char(',')
+        out.json(key).char(':').number(value)
+      }
+      out.char('}')
+    }
+    out.ascii("}\n")
+  }
+}
+
+private object JsonlFormat {
+  /** JSON encoded action names indexed by the unsigned action ID. */
+  private val ActionNames: Array[Array[Byte]] = Array.tabulate(256)(i => RecordBuffer.jsonBytes(BatchStatistics.actionName(i)))
+}
+
+/**
+ * Tab separated values with a line of column names. Tabs and line breaks in the values are replaced by spaces,
+ * missing values are empty.
+ */
+final class TsvFormat(out: RecordBuffer) extends RecordFormat(out) {
+
+  /** Actions are written by the exporter (same columns), it flushes into the buffer after each replay. */
+  private val exporter = new ReplayActionsExporter(out, ReplayActionsExporter.FORMAT_TSV)
+
+  override def begin(mode: String): Unit = mode match {
+    case BatchOptions.ModeHeader => columns(RecordFormat.HeaderColumns)
+    case BatchOptions.ModeActions =>
+      exporter.writeHeader()
+      exporter.flush()
+    case BatchOptions.ModeScan => columns(RecordFormat.HackColumns)
+    case BatchOptions.ModeStats | BatchOptions.ModeReport | BatchOptions.ModeSketch | BatchOptions.ModeNgrams | BatchOptions.ModeHeatmap => columns(Seq("group", "key", "value"))
+    case _ => throw new IllegalArgumentException(s"Unsupported mode: $mode")
+  }
+
+  private def columns(names: Seq[String]): Unit = out.ascii(names.mkString("\t")).char('\n')
+
+  override def header(name: String, replay: Replay): Unit = {
+    val h = replay.replayHeader
+    val players = humanPlayers(h)
+    out.tsv(name).char('\t')
+      .tsv(ReplayHeader.REPLAY_FORMAT_NAMES(h.replayFormat)).char('\t')
+      .tsv(h.getGameEngineString).char('\t')
+      .number(if (h.saveTime == null) 0 else h.saveTime.getTime).char('\t')
+      .number(h.gameFrames).char('\t')
+      .number(h.getDurationSeconds).char('\t')
+      .tsv(RecordFormat.gameTypeName(h)).char('\t')
+      .tsv(h.gameName).char('\t')
+      .tsv(h.creatorName).char('\t')
+      .tsv(h.mapName).char('\t')
+      .number(h.mapWidth).char('\t')
+      .number(h.mapHeight).char('\t')
+      .tsv(players.map(h.playerNames(_)).mkString(",")).char('\t')
+      .tsv(players.map(i => raceName(h.playerRaces(i))).mkString(",")).char('\n')
+  }
+
+  override def actions(name: String, replay: Replay): Unit = {
+    exporter.exportReplay(name, replay)
+    exporter.flush()
+  }
+
+  override def hacks(name: String, hacks: java.util.List[HackDescription]): Unit =
+    hacks.forEach { hack =>
+      out.tsv(name).char('\t')
+        .tsv(hack.playerName).char('\t')
+        .number(hack.iteration).char('\t')
+        .number(hack.hackType).char('\t')
+        .tsv(RecordFormat.hackName(hack.hackType)).char('\t')
+        .tsv(hack.description).char('\t')
+        .tsv(ReplayScanner.ENGINE_VERSION).char('\n')
+    }
+
+  override protected def groups(groups: Seq[(String, Seq[(String, Long)])]): Unit =
+    for ((group, counters) <- groups; (key, value) <- counters)
+      out.tsv(group).char('\t').tsv(key).char('\t').number(value).char('\n')
+}
+
+/**
+ * Compact binary format written with `DataOutputStream` (big endian, strings as `writeUTF()`), readable with `DataInputStream`.
+ *
+ * The output starts with the magic `"RPB1"` and the mode (`writeUTF()`), followed by tagged records:
+ *  - `'H'` header: replay, replay format, engine, save time (long, ms), frames (int), game type, game name, creator, map,
+ *    map width (short), map height (short), players count (byte), then name and race (byte) of each player
+ *  - `'R'` replay of the following actions: replay, players count (byte), player names
+ *  - `'A'` action: frame (int), player index (byte), action ID (byte), subaction ID (byte), unit ID (short),
+ *    building ID (short), x (short), y (short); missing values are -1 (0xff for bytes)
+ *  - `'K'` hack: replay, player, frame (int), hack type (byte), description
+ *  - `'S'` statistics or report: groups count (int), then for each group: name, counters count (int), key and value (long) of each counter
+ *  - `'P'` APM sketches: the sketch set written by `ApmSketches.write()`, can be read back and merged with other sets
+ *  - `'M'` heatmaps: the heatmap set written by `Heatmaps.write()`, can be read back and merged with other sets of the same resolution
+ */
+final class BinaryFormat(out: RecordBuffer) extends RecordFormat(out) {
+
+  private val data = new DataOutputStream(out)
+
+  private def string(s: String): Unit = data.writeUTF(if (s == null) "" else s)
+
+  override def begin(mode: String): Unit = {
+    data.writeBytes("RPB1")
+    data.writeUTF(mode)
+  }
+
+  override def header(name: String, replay: Replay): Unit = {
+    val h = replay.replayHeader
+    val players = humanPlayers(h)
+    data.writeByte('H')
+    string(name)
+    string(ReplayHeader.REPLAY_FORMAT_NAMES(h.replayFormat))
+    string(h.getGameEngineString)
+    data.writeLong(if (h.saveTime == null) 0 else h.saveTime.getTime)
+    data.writeInt(h.gameFrames)
+    string(RecordFormat.gameTypeName(h))
+    string(h.gameName)
+    string(h.creatorName)
+    string(h.mapName)
+    data.writeShort(h.mapWidth)
+    data.writeShort(h.mapHeight)
+    data.writeByte(players.length)
+    for (i <- players) {
+      string(h.playerNames(i))
+      data.writeByte(h.playerRaces(i))
+    }
+  }
+
+  override def actions(name: String, replay: Replay): Unit = {
+    if (replay.replayActions == null)
+      return
+    val timeline = replay.replayActions.getTimeline
+    data.writeByte('R')
+    string(name)
+    data.writeByte(timeline.players.length)
+    timeline.players.foreach(player => string(player.playerName))
+    var i = 0
+    while (i < timeline.size) {
+      val action = timeline.actions(i)
+      data.writeByte('A')
+      data.writeInt(action.iteration)
+      data.writeByte(timeline.playerIndices(i))
+      data.writeByte(action.actionNameIndex)
+      data.writeByte(action.subactionNameIndex)
+      data.writeShort(action.parameterUnitNameIndex)
+      data.writeShort(action.parameterBuildingNameIndex)
+      data.writeShort(if (action.posX == null) -1 else action.getPosX)
+      data.writeShort(if (action.posY == null) -1 else action.getPosY)
+      i += 1
+    }
+  }
+
+  override def hacks(name: String, hacks: java.util.List[HackDescription]): Unit =
+    hacks.forEach { hack =>
+      data.writeByte('K')
+      string(name)
+      string(hack.playerName)
+      data.writeInt(hack.iteration)
+      data.writeByte(hack.hackType)
+      string(hack.description)
+    }
+
+  override def sketches(sketches: ApmSketches): Unit = {
+    data.writeByte('P')
+    sketches.write(data)
+  }
+
+  override def heatmaps(heatmaps: Heatmaps): Unit = {
+    data.writeByte('M')
+    heatmaps.write(data)
+  }
+
+  override protected def groups(groups: Seq[(String, Seq[(String, Long)])]): Unit = {
+    data.writeByte('S')
+    data.writeInt(groups.length)
+    for ((group, counters) <- groups) {
+      string(group)
+      data.writeInt(counters.length)
+      for ((key, value) <- counters) {
+        string(key)
+        data.writeLong(value)
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package cli
+
+import java.io.{File, IOException}
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{FileSystems, FileVisitResult, Files, Path, Paths, SimpleFileVisitor}
+
+import control.ArchiveReplayReader
+
+/**
+ * Enumerates the files of the inputs: replay files, archives, directories and glob patterns.
+ *
+ * Files are passed to the callback as they are found (directories are walked, not listed first),
+ * so processing starts right away even for huge folders.
+ */
+object ReplayInputs {
+
+  /**
+   * Tells if a file is to be processed: a replay or an archive (based on its name).
+   */
+  def isInput(file: File): Boolean = file.getName.toLowerCase.endsWith(".rep") || ArchiveReplayReader.isArchive(file)
+
+  /**
+   * Calls a function with each file of the inputs.
+   * Files given explicitly are processed regardless of their name, files of directories and glob patterns only if they are inputs.
+   * @param inputs replay files, archives, directories (searched recursively) or glob patterns
+   * @param f      function to be called with the files
+   * @throws IOException if an input does not exist or cannot be walked
+   */
+  def foreach(inputs: Seq[String])(f: File => Unit): Unit =
+    for (input <- inputs) {
+      val file = new File(input)
+      if (file.isFile)
+        f(file)
+      else if (file.isDirectory)
+        walk(file.toPath, _ => true, f)
+      else if (isGlob(input))
+        foreachGlobMatch(input, f)
+      else
+        throw new IOException(s"Input does not exist: $input")
+    }
+
+  private def isGlob(input: String): Boolean = input.exists("*?[{".contains(_))
+
+  /**
+   * Walks the longest directory prefix of the pattern without glob characters, and calls the function with the matching files.
+   */
+  private def foreachGlobMatch(pattern: String, f: File => Unit): Unit = {
+    val normalized = pattern.replace(File.separatorChar, '/')
+    val firstGlob = normalized.indexWhere("*?[{".contains(_))
+    val baseEnd = normalized.lastIndexOf('/', firstGlob)
+    val base = if (baseEnd < 0) Paths.get("") else Paths.get(if (baseEnd == 0) "/" else normalized.substring(0, baseEnd))
+    val matcher = FileSystems.getDefault.getPathMatcher("glob:" + normalized)
+    if (Files.isDirectory(base))
+      walk(base, path => matcher.matches(path) || matcher.matches(path.normalize), f)
+  }
+
+  private def walk(root: Path, accept: Path => Boolean, f: File => Unit): Unit =
+    Files.walkFileTree(root, new SimpleFileVisitor[Path] {
+      override def visitFile(path: Path, attributes: BasicFileAttributes): FileVisitResult = {
+        if (attributes.isRegularFile && accept(path)) {
+          val file = path.toFile
+          if (isInput(file))
+            f(file)
+        }
+        FileVisitResult.CONTINUE
+      }
+    })
+}
@@ -0,0 +1,30 @@
+package cli
+
+import java.util.concurrent.CountDownLatch
+
+import service.ScanService
+
+/**
+ * Serve mode of the batch tool: runs a [[service.ScanService]] until the process is stopped.
+ */
+object ServeCommand {
+
+  /**
+   * Runs the serve mode, returns when the process is stopped.
+   * @param options options of the tool (port, size limit, number of decoder threads)
+   * @throws java.io.IOException if the port cannot be bound
+   */
+  def run(options: BatchOptions): Unit = {
+    val service = new ScanService(options.port, options.threads, options.maxRequestBytes)
+    service.start()
+    System.err.println(s"Scan service listening on port ${service.boundPort} with ${options.threads} decoders" +
+      (if (service.virtualThreads) " (virtual threads)" else ""))
+
+    val stopped = new CountDownLatch(1)
+    Runtime.getRuntime.addShutdownHook(new Thread(() => {
+      service.stop()
+      stopped.countDown()
+    }, "serve-shutdown"))
+    stopped.await()
+  }
+}
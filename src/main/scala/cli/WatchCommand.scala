@@ -0,0 +1,60 @@
+package cli
+
+import java.io.{File, IOException}
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import scala.jdk.CollectionConverters._
+
+import control.ReplayIngester
+
+/**
+ * Watch mode of the batch tool: runs a [[control.ReplayIngester]] over the input folders until the process is stopped
+ * (the checkpoint is saved by a shutdown hook). The ingester is published over JMX, progress with the queue lag
+ * and latency is reported periodically on the standard error.
+ */
+object WatchCommand {
+
+  /** Checkpoint file used when there is no output file nor checkpoint option. */
+  val DefaultCheckpoint = "replays.checkpoint"
+
+  /**
+   * Runs the watch mode, returns when the process is stopped.
+   * @param options options of the tool
+   * @throws IOException if an input is not a folder, or the checkpoint cannot be loaded
+   */
+  def run(options: BatchOptions): Unit = {
+    val folders = options.inputs.map(new File(_))
+    folders.find(!_.isDirectory).foreach(folder => throw new IOException(s"Not a folder: $folder"))
+    val checkpoint = new File(options.checkpoint.getOrElse(options.output.map(_ + ".checkpoint").getOrElse(DefaultCheckpoint)))
+
+    val sink = new IngestSink(options.format, options.output.map(new File(_)), options.quiet)
+    val ingester = new ReplayIngester(folders.asJava, checkpoint, sink, options.threads)
+    ingester.forcePolling = options.poll
+    ingester.registerMBean()
+    ingester.start()
+    System.err.println(s"Watching ${folders.mkString(", ")}" + (if (ingester.isPolling) " (polling)" else "") +
+      s", ${ingester.getCheckpointedCount} files in the checkpoint $checkpoint")
+
+    val stopped = new CountDownLatch(1)
+    Runtime.getRuntime.addShutdownHook(new Thread(() => {
+      try {
+        ingester.stop()
+        sink.close()
+        System.err.println("Stopped: " + status(ingester))
+      } catch {
+        case e: IOException => System.err.println(s"Failed to save the checkpoint: $e")
+      } finally {
+        stopped.countDown()
+      }
+    }, "watch-shutdown"))
+
+    val intervalMillis = if (options.progressSeconds > 0) options.progressSeconds * 1000L else Long.MaxValue
+    while (!stopped.await(intervalMillis, TimeUnit.MILLISECONDS))
+      System.err.println(status(ingester))
+  }
+
+  private def status(ingester: ReplayIngester): String =
+    f"${ingester.getIngestedCount} ingested, ${ingester.getFailedCount} failed, ${ingester.getPendingCount} pending, " +
+      f"${ingester.getQueuedCount} queued; queue lag avg ${ingester.getAverageQueueLagMillis}%.1f ms max ${ingester.getMaxQueueLagMillis} ms, " +
+      f"latency avg ${ingester.getAverageLatencyMillis}%.1f ms max ${ingester.getMaxLatencyMillis} ms"
+}
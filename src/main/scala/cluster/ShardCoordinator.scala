@@ -0,0 +1,381 @@
+package cluster
+
+import java.io.{BufferedInputStream, BufferedOutputStream, ByteArrayInputStream, DataInputStream, DataOutputStream, File, FileOutputStream, IOException, OutputStream}
+import java.net.{ServerSocket, Socket, SocketException, SocketTimeoutException}
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+
+import cli.{BatchOptions, BatchStatistics, RecordBuffer, RecordFormat, ReplayInputs}
+import control.{ArchiveReplayReader, DuplicateDetector}
+import model.ApmSketches
+
+/**
+ * Coordinator of a sharded run: distributes the files of the inputs to worker processes ([[ShardWorker]]s) which can run
+ * on this host (started by the coordinator) or on other hosts (started by hand, connecting to the coordinator),
+ * and merges the records and partial statistics they send back.
+ *
+ * The input files are sharded deterministically by content: a replay goes to shard `fingerprint mod shards` where the
+ * fingerprint is the [[control.DuplicateDetector]] fingerprint of its header (duplicates of a game land in the same shard;
+ * archives and unreadable files are sharded by path). The files of a shard are split into tasks of a few files.
+ *
+ * Each worker owns a shard and takes the tasks of it from the front. A worker whose shard is done adopts a shard without
+ * an owner, or steals tasks from the back of the shard with the most remaining tasks, so uneven shards do not leave
+ * workers idle. If a worker dies (the connection fails, it sends an invalid message, or no message, not even a heartbeat,
+ * arrives in [[ShardCoordinator.WorkerTimeoutMillis]]), the tasks in flight at it are put back to their shards and its shard
+ * loses its owner, to be adopted by another worker.
+ * A task failing [[ShardCoordinator.MaxAttempts]] times is dropped and its files are counted as failed.
+ *
+ * The records are written in the order the tasks are completed; the statistics and the APM sketches are the same as of a batch run.
+ *
+ * @param options options of the run (mode, format, output, number of local workers and threads, shards, port)
+ */
+final class ShardCoordinator(options: BatchOptions) {
+
+  /**
+   * Files to be processed together by a worker.
+   * @param paths absolute paths of the files, opened by the workers (which may run in another directory)
+   * @param names names of the files in the records: the paths as given in the inputs, the same as in a batch run
+   */
+  private final class Task(val id: Int, val shard: Int, val paths: Array[String], val names: Array[String]) {
+    var attempts = 0
+  }
+
+  /** A connected worker. */
+  private final class WorkerInfo(val id: Int, val name: String) {
+    /** Tasks sent to the worker and not yet completed, in sending order. */
+    val inFlight = mutable.Queue[Task]()
+    var completedTasks = 0
+    var stolenTasks = 0
+    var alive = true
+  }
+
+  /** Lock of the scheduling state. */
+  private val lock = new Object
+  /** Tasks of the shards, owners take them from the front, thieves from the back; guarded by the lock. */
+  private var shardTasks: Array[java.util.ArrayDeque[Task]] = _
+  /** Owner worker IDs of the shards, -1 if none; guarded by the lock. */
+  private var shardOwners: Array[Int] = _
+  /** Number of tasks not completed or dropped; guarded by the lock. */
+  private var remainingTasks = 0
+  /** All workers which have connected; guarded by the lock. */
+  private val workers = ArrayBuffer[WorkerInfo]()
+  private var reassignedTasks = 0
+  private var droppedFiles = 0L
+
+  private val statistics = new BatchStatistics
+  private val sketches = new ApmSketches
+  private var output: OutputStream = _
+  private var recordsBytes = 0L
+  private val localWorkers = ArrayBuffer[Process]()
+
+  /**
+   * Runs the sharded job: enumerates and shards the inputs, starts the local workers, accepts the workers and waits until
+   * all tasks are completed.
+   * @return the merged statistics of the workers
+   * @throws IOException if an input cannot be enumerated, the output cannot be written, the port cannot be bound,
+   *                     or all local workers died and no other worker is connected
+   */
+  def run(): BatchStatistics = {
+    val startNanos = System.nanoTime
+    val shards = if (options.shards > 0) options.shards else math.max(1, options.workers)
+    createTasks(shards)
+
+    val server = new ServerSocket(options.port, 64)
+    output = new BufferedOutputStream(options.output.map(new FileOutputStream(_): OutputStream).getOrElse(System.out), 1 << 16)
+    val begin = new RecordBuffer
+    RecordFormat(options.format, begin).begin(options.mode)
+    begin.drainTo(output)
+
+    val acceptor = new Thread(() => acceptWorkers(server), "shard-acceptor")
+    acceptor.setDaemon(true)
+    try {
+      acceptor.start()
+      System.err.println(s"Coordinator listening on port ${server.getLocalPort}: $remainingTasks tasks in $shards shards")
+      startLocalWorkers(server.getLocalPort)
+
+      lock.synchronized {
+        while (remainingTasks > 0) {
+          lock.wait(1000)
+          if (remainingTasks > 0 && options.workers > 0 && localWorkers.forall(!_.isAlive) && !workers.exists(_.alive))
+            throw new IOException("All workers died!")
+        }
+        // Wake up the idle workers to shut them down
+        lock.notifyAll()
+      }
+
+      if (options.mode == BatchOptions.ModeStats) {
+        val end = new RecordBuffer
+        RecordFormat(options.format, end).stats(statistics)
+        end.drainTo(output)
+      } else if (options.mode == BatchOptions.ModeSketch) {
+        val end = new RecordBuffer
+        RecordFormat(options.format, end).sketches(sketches)
+        end.drainTo(output)
+      }
+      statistics
+    } finally {
+      server.close()
+      for (process <- localWorkers)
+        if (!process.waitFor(10, TimeUnit.SECONDS))
+          process.destroyForcibly()
+      output.synchronized {
+        if (options.output.isEmpty) output.flush() else output.close()
+      }
+      reportSummary(startNanos)
+    }
+  }
+
+  /**
+   * Enumerates the inputs and creates the tasks of the shards. The fingerprints are computed in parallel.
+   */
+  private def createTasks(shards: Int): Unit = {
+    val files = ArrayBuffer[File]()
+    ReplayInputs.foreach(options.inputs)(files += _)
+    val sortedFiles = files.sortBy(_.getPath)
+
+    val executor = Executors.newFixedThreadPool(options.threads)
+    val shardIndices = try {
+      executor.invokeAll(sortedFiles.map(file => (() => shardOf(file, shards)): Callable[Int]).asJava).asScala.map(_.get).toArray
+    } finally {
+      executor.shutdownNow()
+    }
+
+    shardTasks = Array.fill(shards)(new java.util.ArrayDeque[Task]())
+    shardOwners = Array.fill(shards)(-1)
+    var taskId = 0
+    for (shard <- 0 until shards) {
+      val shardFiles = sortedFiles.indices.filter(shardIndices(_) == shard).map(sortedFiles(_))
+      for (files <- shardFiles.grouped(ShardCoordinator.TaskFiles)) {
+        shardTasks(shard).addLast(new Task(taskId, shard, files.map(_.getAbsolutePath).toArray, files.map(_.getPath).toArray))
+        taskId += 1
+      }
+    }
+    remainingTasks = taskId
+  }
+
+  /** Returns the shard of a file: by the fingerprint of the replay, or by the path for archives and unreadable files. */
+  private def shardOf(file: File, shards: Int): Int = {
+    val fingerprint = if (ArchiveReplayReader.isArchive(file)) DuplicateDetector.NO_FINGERPRINT else DuplicateDetector.fingerprint(file, false)
+    val hash = if (fingerprint == DuplicateDetector.NO_FINGERPRINT) file.getPath.hashCode.toLong else fingerprint
+    java.lang.Math.floorMod(hash, shards.toLong).toInt
+  }
+
+  /**
+   * Starts the local worker processes with the class path of this process. Their standard output is discarded,
+   * their standard error is inherited.
+   */
+  private def startLocalWorkers(port: Int): Unit = {
+    val java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath
+    val threads = math.max(1, options.threads / math.max(1, options.workers))
+    for (_ <- 0 until options.workers) {
+      val command = Seq(java, "-cp", System.getProperty("java.class.path"), "Main", BatchOptions.ModeWorker, "-t", threads.toString) ++
+        (if (options.quiet) Seq("-q") else Nil) :+ s"127.0.0.1:$port"
+      localWorkers += new ProcessBuilder(command: _*)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start()
+    }
+  }
+
+  /** Accepts the worker connections until the server socket is closed, each worker is served by its own thread. */
+  private def acceptWorkers(server: ServerSocket): Unit =
+    try {
+      while (true) {
+        val socket = server.accept()
+        val thread = new Thread(() => serveWorker(socket), "shard-worker-connection")
+        thread.setDaemon(true)
+        thread.start()
+      }
+    } catch {
+      case _: SocketException => // Closed
+    }
+
+  /**
+   * Serves a worker: sends it tasks (up to [[ShardProtocol.PrefetchTasks]] ahead) and processes its results
+   * until all tasks are completed. If the connection fails, the tasks in flight are put back.
+   */
+  private def serveWorker(socket: Socket): Unit = {
+    var worker: WorkerInfo = null
+    try {
+      socket.setTcpNoDelay(true)
+      socket.setSoTimeout(ShardCoordinator.WorkerTimeoutMillis)
+      val input = new DataInputStream(new BufferedInputStream(socket.getInputStream, 1 << 16))
+      val output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream, 1 << 16))
+      ShardProtocol.readHello(input)
+      val name = input.readUTF()
+      val threads = input.readInt()
+      ShardProtocol.writeHello(output)
+      output.writeUTF(options.mode)
+      output.writeUTF(options.format)
+      output.flush()
+
+      worker = lock.synchronized {
+        val w = new WorkerInfo(workers.size, name)
+        workers += w
+        // Claim a shard without an owner
+        val shard = shardOwners.indexOf(-1)
+        if (shard >= 0)
+          shardOwners(shard) = w.id
+        w
+      }
+      System.err.println(s"Worker ${worker.id} connected: $name ($threads threads)")
+
+      while (true) {
+        // Top up the tasks in flight, or wait for tasks to be put back until all are completed
+        val tasks = lock.synchronized {
+          val next = ArrayBuffer[Task]()
+          def topUp(): Unit = {
+            var task = if (worker.inFlight.size + next.size < ShardProtocol.PrefetchTasks) nextTask(worker) else None
+            while (task.isDefined) {
+              next += task.get
+              task = if (worker.inFlight.size + next.size < ShardProtocol.PrefetchTasks) nextTask(worker) else None
+            }
+          }
+          topUp()
+          while (next.isEmpty && worker.inFlight.isEmpty) {
+            if (remainingTasks == 0) {
+              output.writeInt(ShardProtocol.MessageShutdown)
+              output.flush()
+              return
+            }
+            lock.wait(1000)
+            topUp()
+          }
+          worker.inFlight ++= next
+          next
+        }
+        for (task <- tasks) {
+          output.writeInt(ShardProtocol.MessageTask)
+          output.writeInt(task.id)
+          output.writeInt(task.paths.length)
+          for (i <- task.paths.indices) {
+            output.writeUTF(task.paths(i))
+            output.writeUTF(task.names(i))
+          }
+        }
+        output.flush()
+
+        var message = input.readInt()
+        while (message == ShardProtocol.MessageHeartbeat)
+          message = input.readInt()
+        if (message != ShardProtocol.MessageResult)
+          throw new IOException(s"Unexpected message: $message")
+        val taskId = input.readInt()
+        val records = ShardProtocol.readBytes(input)
+        val taskStatistics = BatchStatistics.read(input)
+        val sketchesBytes = ShardProtocol.readBytes(input)
+        val taskSketches = if (sketchesBytes.isEmpty) null else ApmSketches.read(new DataInputStream(new ByteArrayInputStream(sketchesBytes)))
+        taskCompleted(worker, taskId, records, taskStatistics, taskSketches)
+      }
+    } catch {
+      case _: SocketTimeoutException => workerDied(worker, s"no message in ${ShardCoordinator.WorkerTimeoutMillis / 1000} s")
+      case NonFatal(e) => workerDied(worker, e.toString)
+    } finally {
+      socket.close()
+    }
+  }
+
+  /**
+   * Returns the next task for a worker: from the front of its own shards, from the front of a shard without an owner
+   * (which the worker adopts), or from the back of the shard with the most remaining tasks. Called with the lock held.
+   */
+  private def nextTask(worker: WorkerInfo): Option[Task] = {
+    val ownShard = shardTasks.indices.find(shard => shardOwners(shard) == worker.id && !shardTasks(shard).isEmpty)
+      .orElse(shardTasks.indices.find(shard => shardOwners(shard) == -1 && !shardTasks(shard).isEmpty).map { shard =>
+        shardOwners(shard) = worker.id
+        shard
+      })
+    ownShard match {
+      case Some(shard) => Some(shardTasks(shard).pollFirst())
+      case None =>
+        val victim = shardTasks.indices.maxBy(shardTasks(_).size)
+        if (shardTasks(victim).isEmpty)
+          None
+        else {
+          worker.stolenTasks += 1
+          Some(shardTasks(victim).pollLast())
+        }
+    }
+  }
+
+  /**
+   * Writes the records of a completed task and merges its statistics and APM sketches (`null` if none).
+   * @throws IOException if the task is not the first one in flight at the worker (nothing is written then)
+   */
+  private def taskCompleted(worker: WorkerInfo, taskId: Int, records: Array[Byte], taskStatistics: BatchStatistics, taskSketches: ApmSketches): Unit = {
+    // Only this connection thread removes the tasks in flight at the worker, so the first one cannot change until it is dequeued
+    lock.synchronized {
+      val expected = worker.inFlight.headOption
+      if (!expected.exists(_.id == taskId))
+        throw new IOException(s"Unexpected result of task $taskId, expected ${expected.map(_.id.toString).getOrElse("none")}")
+    }
+    output.synchronized {
+      output.write(records)
+      recordsBytes += records.length
+    }
+    lock.synchronized {
+      worker.inFlight.dequeue()
+      statistics.merge(taskStatistics)
+      if (taskSketches != null)
+        sketches.merge(taskSketches)
+      worker.completedTasks += 1
+      remainingTasks -= 1
+      lock.notifyAll()
+    }
+  }
+
+  /**
+   * Puts back the tasks in flight at a dead worker and releases its shards.
+   * @param worker the dead worker; `null` if it died before the handshake
+   */
+  private def workerDied(worker: WorkerInfo, cause: String): Unit = {
+    if (worker == null)
+      return
+    lock.synchronized {
+      worker.alive = false
+      for (shard <- shardOwners.indices)
+        if (shardOwners(shard) == worker.id)
+          shardOwners(shard) = -1
+      // Put them back in reverse so the front of the shard keeps the original order
+      for (task <- worker.inFlight.reverseIterator) {
+        task.attempts += 1
+        if (task.attempts >= ShardCoordinator.MaxAttempts) {
+          System.err.println(s"Dropped task ${task.id} after ${task.attempts} attempts: ${task.names.mkString(", ")}")
+          droppedFiles += task.paths.length
+          statistics.failed += task.paths.length
+          remainingTasks -= 1
+        } else {
+          shardTasks(task.shard).addFirst(task)
+          reassignedTasks += 1
+        }
+      }
+      worker.inFlight.clear()
+      lock.notifyAll()
+    }
+    System.err.println(s"Worker ${worker.id} died: $cause")
+  }
+
+  private def reportSummary(startNanos: Long): Unit = lock.synchronized {
+    val seconds = math.max(1e-3, (System.nanoTime - startNanos) / 1e9)
+    val megabytes = statistics.bytes / (1024.0 * 1024.0)
+    System.err.println(s"Done: ${statistics.replays} replays, ${statistics.failed} failed, ${recordsBytes / 1024} KB output, " +
+      s"$reassignedTasks tasks reassigned, $droppedFiles files dropped: " +
+      f"$megabytes%.1f MB in $seconds%.1f s, ${(statistics.replays + statistics.failed) / seconds}%.1f replays/s, ${megabytes / seconds}%.2f MB/s")
+    for (worker <- workers)
+      System.err.println(s"  worker ${worker.id} (${worker.name}): ${worker.completedTasks} tasks, ${worker.stolenTasks} stolen" +
+        (if (worker.alive) "" else ", died"))
+  }
+}
+
+object ShardCoordinator {
+  /** Number of files in a task. */
+  val TaskFiles = 16
+  /** A worker is considered dead if no message (result or heartbeat) arrives from it in this time. */
+  val WorkerTimeoutMillis: Int = 6 * ShardProtocol.HeartbeatMillis
+  /** A task is dropped after failing at this many workers. */
+  val MaxAttempts = 3
+}
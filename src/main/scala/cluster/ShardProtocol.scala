@@ -0,0 +1,63 @@
+package cluster
+
+import java.io.{DataInputStream, DataOutputStream, IOException}
+
+/**
+ * Wire protocol between the shard coordinator and the workers, over one TCP connection per worker.
+ *
+ *  - handshake: the worker sends the magic number, the version, its name and number of threads;
+ *    the coordinator answers with the magic number, the version, the mode and the output format
+ *  - [[ShardProtocol.MessageTask]] (coordinator to worker): task ID, number of files, then the absolute path and the record name
+ *    (the path as given in the inputs) of each file; workers on other hosts need the files at the same absolute paths
+ *  - [[ShardProtocol.MessageResult]] (worker to coordinator): task ID, the records of the files (in task order),
+ *    the partial statistics of the task and in sketch mode the partial APM sketches (length prefixed, empty in other modes)
+ *  - [[ShardProtocol.MessageShutdown]] (coordinator to worker): no more tasks, the worker exits
+ *  - [[ShardProtocol.MessageHeartbeat]] (worker to coordinator): sent every [[ShardProtocol.HeartbeatMillis]], so the coordinator
+ *    can tell a worker busy with a long task (e.g. big archives) from a dead one
+ *
+ * The coordinator keeps up to [[ShardProtocol.PrefetchTasks]] tasks in flight per worker, so the worker
+ * can start the next task while the result of the previous one is transferred.
+ */
+private[cluster] object ShardProtocol {
+  /** Magic number of the protocol: "SHRD". */
+  val Magic = 0x44524853
+  /** Version of the protocol. */
+  val Version = 4
+
+  val MessageTask = 1
+  val MessageResult = 2
+  val MessageShutdown = 3
+  val MessageHeartbeat = 4
+
+  /** Number of tasks sent to a worker ahead of its results. */
+  val PrefetchTasks = 2
+
+  /** Interval of the heartbeats of the workers. */
+  val HeartbeatMillis = 10 * 1000
+
+  def writeHello(output: DataOutputStream): Unit = {
+    output.writeInt(Magic)
+    output.writeInt(Version)
+  }
+
+  /**
+   * Reads the magic number and the version sent by the other side.
+   * @throws IOException if the other side does not speak this protocol
+   */
+  def readHello(input: DataInputStream): Unit =
+    if (input.readInt() != Magic || input.readInt() != Version)
+      throw new IOException("Not a shard protocol peer, or a different version!")
+
+  /**
+   * Reads a length prefixed byte array.
+   * @throws IOException if the length is negative
+   */
+  def readBytes(input: DataInputStream): Array[Byte] = {
+    val length = input.readInt()
+    if (length < 0)
+      throw new IOException(s"Invalid length: $length")
+    val bytes = new Array[Byte](length)
+    input.readFully(bytes)
+    bytes
+  }
+}
@@ -0,0 +1,265 @@
+package cluster
+
+import java.io.{BufferedInputStream, BufferedOutputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream, EOFException, File, IOException, RandomAccessFile}
+import java.lang.management.ManagementFactory
+import java.net.{InetSocketAddress, Socket}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, ExecutorService, Executors, TimeUnit}
+
+import cli.{BatchOptions, BatchStatistics, RecordBuffer, RecordFormat}
+import control.{ApmSketchBuilder, ArchiveReplayReader, BinRepParser, BinReplayUnpacker, ReplayScanner}
+import model.{ApmSketches, HackDescription, Replay}
+
+/**
+ * Worker process of a sharded run: connects to the [[ShardCoordinator]], runs the parse-and-scan pipeline on the files
+ * of the tasks it receives and sends back their records and partial statistics, until the coordinator shuts it down.
+ *
+ * The files of a task are parsed in parallel; each thread reuses its read buffer, unpacker and record buffer like the batch runner.
+ * The records of a task are sent in task order, so the output of a task does not depend on the thread scheduling.
+ * A heartbeat is sent to the coordinator every [[ShardProtocol.HeartbeatMillis]], so long tasks are not taken for a dead worker.
+ *
+ * @param host    host of the coordinator
+ * @param port    port of the coordinator
+ * @param threads number of parsing threads
+ * @param quiet   do not report the replays which cannot be parsed
+ */
+final class ShardWorker(host: String, port: Int, threads: Int, quiet: Boolean) {
+
+  /** Per thread state of the worker. */
+  private final class WorkerState(format: String) {
+    var buffer = new Array[Byte](1 << 16)
+    var unpacker: BinReplayUnpacker = _
+    val records = new RecordBuffer
+    val recordFormat: RecordFormat = RecordFormat(format, records)
+    /** Statistics of the current task; replaced after each task. */
+    var statistics = new BatchStatistics
+    /** APM sketches of the current task; replaced after each task. */
+    var sketchBuilder = new ApmSketchBuilder
+  }
+
+  private val states = new ConcurrentLinkedQueue[WorkerState]()
+  private var mode: String = _
+  private var state: ThreadLocal[WorkerState] = _
+
+  /** Name of the worker reported to the coordinator: process ID and host. */
+  val name: String = ManagementFactory.getRuntimeMXBean.getName
+
+  /**
+   * Runs the worker, returns when the coordinator shuts it down or closes the connection.
+   * @return the number of tasks processed
+   * @throws IOException if the coordinator cannot be reached or the connection fails during a task
+   */
+  def run(): Int = {
+    val socket = new Socket()
+    socket.connect(new InetSocketAddress(host, port))
+    socket.setTcpNoDelay(true)
+    val executor = Executors.newFixedThreadPool(threads, runnable => {
+      val thread = new Thread(runnable, "shard-worker-" + states.size)
+      thread.setDaemon(true)
+      thread
+    })
+    val heartbeats = Executors.newSingleThreadScheduledExecutor(runnable => {
+      val thread = new Thread(runnable, "shard-worker-heartbeat")
+      thread.setDaemon(true)
+      thread
+    })
+    try {
+      val input = new DataInputStream(new BufferedInputStream(socket.getInputStream, 1 << 16))
+      val output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream, 1 << 16))
+      ShardProtocol.writeHello(output)
+      output.writeUTF(name)
+      output.writeInt(threads)
+      output.flush()
+
+      ShardProtocol.readHello(input)
+      mode = input.readUTF()
+      // A failed heartbeat is not reported, the connection failure surfaces when the next result is sent
+      heartbeats.scheduleAtFixedRate(() => try {
+        output.synchronized {
+          output.writeInt(ShardProtocol.MessageHeartbeat)
+          output.flush()
+        }
+      } catch {
+        case _: IOException =>
+      }, ShardProtocol.HeartbeatMillis, ShardProtocol.HeartbeatMillis, TimeUnit.MILLISECONDS)
+      val format = input.readUTF()
+      state = ThreadLocal.withInitial[WorkerState] { () =>
+        val s = new WorkerState(format)
+        states.add(s)
+        s
+      }
+
+      var tasks = 0
+      while (true) {
+        val message = try {
+          input.readInt()
+        } catch {
+          case _: EOFException => return tasks
+        }
+        if (message == ShardProtocol.MessageShutdown)
+          return tasks
+        if (message != ShardProtocol.MessageTask)
+          throw new IOException(s"Unexpected message: $message")
+
+        val taskId = input.readInt()
+        val filesCount = input.readInt()
+        val paths = new Array[String](filesCount)
+        val names = new Array[String](filesCount)
+        for (i <- 0 until filesCount) {
+          paths(i) = input.readUTF()
+          names(i) = input.readUTF()
+        }
+        val (records, statistics, sketches) = processTask(executor, paths, names)
+
+        output.synchronized {
+          output.writeInt(ShardProtocol.MessageResult)
+          output.writeInt(taskId)
+          output.writeInt(records.map(_.length).sum)
+          records.foreach(output.write)
+          statistics.write(output)
+          output.writeInt(sketches.length)
+          output.write(sketches)
+          output.flush()
+        }
+        tasks += 1
+      }
+      tasks
+    } finally {
+      heartbeats.shutdownNow()
+      executor.shutdownNow()
+      socket.close()
+    }
+  }
+
+  /**
+   * Processes the files of a task in parallel.
+   * @param paths absolute paths of the files
+   * @param names names of the files in the records
+   * @return the records of the files in task order, the statistics of the task and the serialized APM sketches of the task (sketch mode only)
+   */
+  private def processTask(executor: ExecutorService, paths: Array[String], names: Array[String]): (Array[Array[Byte]], BatchStatistics, Array[Byte]) = {
+    val records = new Array[Array[Byte]](paths.length)
+    val replays = new AtomicLong
+    val failed = new AtomicLong
+    val bytes = new AtomicLong
+    val done = new CountDownLatch(paths.length)
+    for (i <- paths.indices)
+      executor.execute { () =>
+        try {
+          val file = new File(paths(i))
+          if (ArchiveReplayReader.isArchive(file))
+            processArchive(file, names(i), replays, failed)
+          else if (processFile(file, names(i)))
+            replays.incrementAndGet()
+          else
+            failed.incrementAndGet()
+          bytes.addAndGet(file.length)
+          records(i) = state.get.records.drain()
+        } catch {
+          case t: Throwable =>
+            failed.incrementAndGet()
+            System.err.println(s"Failed to process: ${names(i)}: $t")
+            records(i) = new Array[Byte](0)
+        } finally {
+          done.countDown()
+        }
+      }
+    done.await()
+
+    // The threads are idle until the next task
+    val statistics = new BatchStatistics
+    val sketches = new ApmSketches
+    states.forEach { s =>
+      statistics.merge(s.statistics)
+      s.statistics = new BatchStatistics
+      if (mode == BatchOptions.ModeSketch) {
+        sketches.merge(s.sketchBuilder.sketches)
+        s.sketchBuilder = new ApmSketchBuilder
+      }
+    }
+    statistics.replays = replays.get
+    statistics.failed = failed.get
+    statistics.bytes = bytes.get
+    val sketchesBytes = new ByteArrayOutputStream
+    if (mode == BatchOptions.ModeSketch)
+      sketches.write(new DataOutputStream(sketchesBytes))
+    (records, statistics, sketchesBytes.toByteArray)
+  }
+
+  /**
+   * Parses a replay file and formats its records into the buffer of the thread.
+   * @param name name of the file in the records
+   * @return true if the replay was parsed; false if it cannot be parsed
+   */
+  private def processFile(file: File, name: String): Boolean = {
+    val s = state.get
+    val replay = try {
+      val length = file.length
+      if (length > Int.MaxValue)
+        throw new IOException("Replay too big!")
+      if (s.buffer.length < length)
+        s.buffer = new Array[Byte](math.max(length.toInt, s.buffer.length * 2))
+      val input = new RandomAccessFile(file, "r")
+      try {
+        input.readFully(s.buffer, 0, length.toInt)
+      } finally {
+        input.close()
+      }
+      if (s.unpacker == null)
+        s.unpacker = new BinReplayUnpacker(s.buffer, 0, length.toInt)
+      else
+        s.unpacker.reset(s.buffer, 0, length.toInt)
+      BinRepParser.parseReplay(s.unpacker, name, mode != BatchOptions.ModeHeader, false, false, false)
+    } catch {
+      case e: Exception =>
+        if (!quiet)
+          System.err.println(s"Failed to parse replay: $name: $e")
+        null
+    }
+    if (replay == null)
+      return false
+    replayParsed(s, name, replay)
+    true
+  }
+
+  /**
+   * Parses the replays of an archive (sequentially in the calling thread) and formats their records into the buffer of the thread.
+   * @param name name of the archive in the records
+   */
+  private def processArchive(file: File, name: String, replays: AtomicLong, failed: AtomicLong): Unit = {
+    val s = state.get
+    val archiveReader = new ArchiveReplayReader(1, mode != BatchOptions.ModeHeader, false, false, false)
+    try {
+      archiveReader.read(file, new ArchiveReplayReader.Handler {
+        override def replayParsed(entryName: String, replay: Replay): Unit = {
+          ShardWorker.this.replayParsed(s, name + "!/" + entryName, replay)
+          replays.incrementAndGet()
+        }
+
+        override def replayFailed(entryName: String, cause: Exception): Unit = {
+          failed.incrementAndGet()
+          if (!quiet)
+            System.err.println(s"Failed to parse replay: $name!/$entryName: $cause")
+        }
+      })
+    } catch {
+      case e: IOException =>
+        failed.incrementAndGet()
+        if (!quiet)
+          System.err.println(s"Failed to read archive: $name: $e")
+    }
+  }
+
+  private def replayParsed(s: WorkerState, name: String, replay: Replay): Unit = {
+    val hacks: java.util.List[HackDescription] =
+      if (mode == BatchOptions.ModeScan || mode == BatchOptions.ModeStats) ReplayScanner.scanReplayForHacks(replay, false) else null
+    mode match {
+      case BatchOptions.ModeHeader => s.recordFormat.header(name, replay)
+      case BatchOptions.ModeActions => s.recordFormat.actions(name, replay)
+      case BatchOptions.ModeScan => s.recordFormat.hacks(name, hacks)
+      case BatchOptions.ModeStats => s.statistics.add(replay, hacks)
+      case BatchOptions.ModeSketch => s.sketchBuilder.add(replay)
+      case _ => throw new IllegalArgumentException(s"Unsupported mode: $mode")
+    }
+  }
+}
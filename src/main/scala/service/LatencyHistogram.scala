@@ -0,0 +1,81 @@
+package service
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+/**
+ * Concurrent log-linear histogram of durations in microseconds, for latency percentiles.
+ *
+ * Values below 128 µs have their own buckets, larger values are counted in 64 buckets per power of two,
+ * so the relative error of the percentiles is below 1.6%. Values are capped at about 1 hour.
+ * Recording is lock-free and allocation-free; percentiles are calculated by walking the buckets.
+ */
+final class LatencyHistogram {
+
+  private val counts = new AtomicLongArray(LatencyHistogram.BucketsCount)
+  private val total = new AtomicLong
+  private val max = new AtomicLong
+
+  /** Records a duration in nanoseconds. */
+  def recordNanos(nanos: Long): Unit = {
+    val micros = math.min(math.max(nanos / 1000, 0L), LatencyHistogram.MaxMicros)
+    counts.incrementAndGet(LatencyHistogram.bucket(micros))
+    total.incrementAndGet()
+    var m = max.get
+    while (micros > m && !max.compareAndSet(m, micros))
+      m = max.get
+  }
+
+  /** Number of recorded durations. */
+  def count: Long = total.get
+
+  /** Maximum recorded duration in milliseconds. */
+  def maxMillis: Double = max.get / 1000.0
+
+  /**
+   * Returns a percentile of the recorded durations in milliseconds (the upper bound of its bucket, at most the maximum).
+   * @param quantile quantile between 0 and 1, e.g. 0.99
+   */
+  def percentileMillis(quantile: Double): Double = {
+    val n = total.get
+    if (n == 0)
+      return 0
+    val rank = math.max(1L, math.ceil(quantile * n).toLong)
+    var cumulative = 0L
+    var i = 0
+    while (i < LatencyHistogram.BucketsCount) {
+      cumulative += counts.get(i)
+      if (cumulative >= rank)
+        return math.min(LatencyHistogram.upperBound(i), max.get) / 1000.0
+      i += 1
+    }
+    maxMillis
+  }
+
+  def reset(): Unit = {
+    for (i <- 0 until LatencyHistogram.BucketsCount)
+      counts.set(i, 0)
+    total.set(0)
+    max.set(0)
+  }
+}
+
+object LatencyHistogram {
+  /** Values are capped at 2^32 µs (about 71 minutes). */
+  private val MaxMicros = (1L << 32) - 1
+  /** 128 linear buckets, then 64 buckets for each power of two from 2^7 to 2^31. */
+  private val BucketsCount = 128 + (31 - 7 + 1) * 64
+
+  private def bucket(micros: Long): Int =
+    if (micros < 128) micros.toInt
+    else {
+      val shift = 63 - java.lang.Long.numberOfLeadingZeros(micros) - 6
+      (shift + 1) * 64 + (micros >>> shift).toInt - 64
+    }
+
+  private def upperBound(bucket: Int): Long =
+    if (bucket < 128) bucket
+    else {
+      val shift = bucket / 64 - 1
+      ((bucket % 64 + 64 + 1).toLong << shift) - 1
+    }
+}
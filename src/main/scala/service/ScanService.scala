@@ -0,0 +1,365 @@
+package service
+
+import java.io.{IOException, InputStream}
+import java.net.InetSocketAddress
+import java.util.Arrays
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.{ArrayBlockingQueue, CompletableFuture, ExecutionException, ExecutorService, Executors, Semaphore, ThreadFactory, TimeUnit, TimeoutException}
+
+import com.sun.net.httpserver.{HttpExchange, HttpServer}
+
+import cli.{JsonlFormat, RecordBuffer}
+import control.{ApmCalculator, BinRepParser, BinReplayUnpacker, ReplayScanner}
+import model.Replay
+
+/**
+ * Embedded HTTP service which parses and scans uploaded replays, so the upload site does not start a JVM per replay.
+ *
+ * Endpoints:
+ *  - `POST /scan` with the replay file as the body: returns the header and the hacks found by [[control.ReplayScanner]] as JSON,
+ *    with `?stats=true` also the action counts and APM of the players.
+ *    Status 400 if the body is not a replay, 413 if it is larger than the size limit, 503 if the decoders are overloaded.
+ *  - `GET /metrics`: request counts, batching and latency percentiles (end-to-end, queue and processing) as JSON.
+ *  - `GET /health`: `ok`.
+ *
+ * Requests are handled on virtual threads if the JVM supports them (JDK 21+), on a cached thread pool otherwise;
+ * they only read the body and wait for the result. A request is admitted (or rejected) before its body is read, so at most
+ * `queueCapacity` bodies are buffered. The replays are queued for a fixed pool of decoder threads:
+ * a decoder takes all the queued replays (up to the batch size) at once and processes them with its own reused
+ * unpacker, APM calculator and output buffer.
+ *
+ * @param port            port to listen on (0 for any free port)
+ * @param decodersCount   number of decoder threads
+ * @param maxRequestBytes maximum size of a replay in bytes
+ * @param queueCapacity   maximum number of replays being read or waiting for the decoders; further requests are rejected with 503
+ * @param batchSize       maximum number of replays a decoder takes at once
+ */
+final class ScanService(port: Int,
+                        decodersCount: Int = Runtime.getRuntime.availableProcessors,
+                        maxRequestBytes: Int = ScanService.DefaultMaxRequestBytes,
+                        queueCapacity: Int = 1024,
+                        batchSize: Int = 16) {
+
+  /** A replay waiting for a decoder; the status is set before the result is completed. */
+  private final class ScanJob(val data: Array[Byte], val length: Int, val stats: Boolean) {
+    val result = new CompletableFuture[Array[Byte]]
+    var status = 200
+    val queuedNanos: Long = System.nanoTime
+  }
+
+  /** Reused state of a decoder thread. */
+  private final class Decoder {
+    var unpacker: BinReplayUnpacker = _
+    val apmCalculator = new ApmCalculator
+    val buffer = new RecordBuffer
+    val format = new JsonlFormat(buffer)
+  }
+
+  private val queue = new ArrayBlockingQueue[ScanJob](queueCapacity)
+  /** Permits of the requests being read or queued, a permit is released when a decoder takes the job; guarantees room in the queue. */
+  private val admission = new Semaphore(queueCapacity)
+  @volatile private var running = false
+  private var server: HttpServer = _
+  private var requestExecutor: ExecutorService = _
+  private var virtual = false
+  private var decoders: Seq[Thread] = Nil
+
+  private val requestsCount = new LongAdder
+  private val failedCount = new LongAdder
+  private val rejectedCount = new LongAdder
+  private val tooLargeCount = new LongAdder
+  private val bytesCount = new LongAdder
+  private val batchesCount = new LongAdder
+  private val batchedCount = new LongAdder
+  /** Time from the end of reading the request to the result. */
+  private val latency = new LatencyHistogram
+  /** Time spent in the queue. */
+  private val queueLatency = new LatencyHistogram
+  /** Time of parsing and scanning. */
+  private val processingLatency = new LatencyHistogram
+
+  /** Port the service listens on (the actual port if started with 0). */
+  def boundPort: Int = server.getAddress.getPort
+
+  /** Tells if the requests are handled on virtual threads. */
+  def virtualThreads: Boolean = virtual
+
+  /**
+   * Starts the decoders and the HTTP server.
+   * @throws IOException if the server cannot be bound
+   */
+  def start(): Unit = synchronized {
+    running = true
+    decoders = (1 to decodersCount).map { i =>
+      val thread = new Thread(() => decode(), s"scan-decoder-$i")
+      thread.setDaemon(true)
+      thread.start()
+      thread
+    }
+    val (executor, isVirtual) = ScanService.newRequestExecutor()
+    requestExecutor = executor
+    virtual = isVirtual
+    server = HttpServer.create(new InetSocketAddress(port), 0)
+    server.createContext("/scan", exchange => handle(exchange)(scan))
+    server.createContext("/metrics", exchange => handle(exchange)(metrics))
+    server.createContext("/health", exchange => handle(exchange)(respond(_, 200, "text/plain", ScanService.Ok)))
+    server.setExecutor(requestExecutor)
+    server.start()
+  }
+
+  /**
+   * Stops the HTTP server (waiting at most `delaySeconds` for the running requests) and the decoders.
+   */
+  def stop(delaySeconds: Int = 1): Unit = synchronized {
+    if (server != null)
+      server.stop(delaySeconds)
+    running = false
+    decoders.foreach(_.interrupt())
+    decoders.foreach(_.join())
+    var job = queue.poll()
+    while (job != null) {
+      admission.release()
+      job.status = 503
+      job.result.complete(error("Service stopped"))
+      job = queue.poll()
+    }
+    if (requestExecutor != null)
+      requestExecutor.shutdownNow()
+  }
+
+  private def handle(exchange: HttpExchange)(handler: HttpExchange => Unit): Unit =
+    try {
+      handler(exchange)
+    } catch {
+      case _: IOException => // The client is gone
+    } finally {
+      exchange.close()
+    }
+
+  private def scan(exchange: HttpExchange): Unit = {
+    if (exchange.getRequestMethod != "POST") {
+      respond(exchange, 405, "application/json", error("POST a replay file"))
+      return
+    }
+    requestsCount.increment()
+    val declaredLength = Option(exchange.getRequestHeaders.getFirst("Content-Length")).flatMap(_.toLongOption).getOrElse(-1L)
+    if (declaredLength > maxRequestBytes) {
+      tooLargeCount.increment()
+      respond(exchange, 413, "application/json", error(s"Replay larger than $maxRequestBytes bytes"))
+      return
+    }
+    if (!admission.tryAcquire()) {
+      rejectedCount.increment()
+      respond(exchange, 503, "application/json", error("Too many requests"))
+      return
+    }
+
+    var queued = false
+    val job = try {
+      val job = readBody(exchange.getRequestBody, declaredLength, ScanService.isTrue(exchange.getRequestURI.getRawQuery, "stats"))
+      if (job != null) {
+        // The permit guarantees room in the queue
+        queue.add(job)
+        queued = true
+      }
+      job
+    } finally {
+      if (!queued)
+        admission.release()
+    }
+    if (job == null) {
+      tooLargeCount.increment()
+      respond(exchange, 413, "application/json", error(s"Replay larger than $maxRequestBytes bytes"))
+      return
+    }
+    bytesCount.add(job.length)
+
+    val result = try {
+      job.result.get(ScanService.TimeoutSeconds, TimeUnit.SECONDS)
+    } catch {
+      case _: TimeoutException =>
+        job.status = 503
+        error("Timed out")
+      case e: ExecutionException =>
+        job.status = 500
+        error(String.valueOf(e.getCause))
+    }
+    latency.recordNanos(System.nanoTime - job.queuedNanos)
+    respond(exchange, job.status, "application/json", result)
+  }
+
+  /**
+   * Reads the body of a scan request.
+   * @return the job of the replay, or `null` if the body is larger than the size limit
+   */
+  private def readBody(input: InputStream, declaredLength: Long, stats: Boolean): ScanJob = {
+    // One byte more than declared to detect longer bodies
+    var data = new Array[Byte](if (declaredLength >= 0) declaredLength.toInt + 1 else math.min(maxRequestBytes + 1, 1 << 16))
+    var length = 0
+    var n = 0
+    while (n >= 0) {
+      if (length == data.length) {
+        if (length > maxRequestBytes)
+          return null
+        data = Arrays.copyOf(data, math.min(data.length * 2L, maxRequestBytes + 1L).toInt)
+      }
+      n = input.read(data, length, data.length - length)
+      if (n > 0)
+        length += n
+    }
+    if (length > maxRequestBytes) null else new ScanJob(data, length, stats)
+  }
+
+  /**
+   * Takes the queued replays in batches and processes them, until the service is stopped. Run by the decoder threads.
+   */
+  private def decode(): Unit = {
+    val decoder = new Decoder
+    val batch = new java.util.ArrayList[ScanJob](batchSize)
+    while (running) {
+      val first = try {
+        queue.poll(100, TimeUnit.MILLISECONDS)
+      } catch {
+        case _: InterruptedException => null
+      }
+      if (first != null) {
+        batch.add(first)
+        queue.drainTo(batch, batchSize - 1)
+        admission.release(batch.size)
+        batchesCount.increment()
+        batchedCount.add(batch.size)
+        batch.forEach(job => process(decoder, job))
+        batch.clear()
+      }
+    }
+  }
+
+  private def process(decoder: Decoder, job: ScanJob): Unit = {
+    val startNanos = System.nanoTime
+    queueLatency.recordNanos(startNanos - job.queuedNanos)
+    val result = try {
+      if (decoder.unpacker == null)
+        decoder.unpacker = new BinReplayUnpacker(job.data, 0, job.length)
+      else
+        decoder.unpacker.reset(job.data, 0, job.length)
+      val replay = BinRepParser.parseReplay(decoder.unpacker, ScanService.ReplayName, true, false, false, false)
+      if (replay == null)
+        throw new Exception("Not a replay file!")
+      writeResult(decoder, replay, job.stats)
+      decoder.buffer.drain()
+    } catch {
+      case e: Exception =>
+        failedCount.increment()
+        job.status = 400
+        error(e.toString)
+    }
+    processingLatency.recordNanos(System.nanoTime - startNanos)
+    job.result.complete(result)
+  }
+
+  private def writeResult(decoder: Decoder, replay: Replay, stats: Boolean): Unit = {
+    val out = decoder.buffer
+    val header = replay.replayHeader
+    out.ascii("{\"engine_version\":").json(ReplayScanner.ENGINE_VERSION).ascii(",\"header\":{")
+    decoder.format.headerFields(header)
+    out.ascii("},\"hacks\":[")
+    var first = true
+    ReplayScanner.scanReplayForHacks(replay, false).forEach { hack =>
+      if (!first)
+        out.char(',')
+      first = false
+      out.char('{')
+      decoder.format.hackFields(hack)
+      out.char('}')
+    }
+    out.char(']')
+
+    if (stats && replay.replayActions != null) {
+      val series = decoder.apmCalculator.calculate(replay)
+      out.ascii(",\"stats\":{\"players\":[")
+      for (i <- series.playerNames.indices) {
+        if (i > 0)
+          out.char(',')
+        val headerIndex = header.getPlayerIndexByName(series.playerNames(i))
+        out.ascii("{\"name\":").json(series.playerNames(i))
+          .ascii(",\"actions\":").number(series.actionsCounts(i))
+          .ascii(",\"effective_actions\":").number(series.effectiveActionsCounts(i))
+          .ascii(",\"apm\":").number(if (headerIndex < 0) 0 else header.getPlayerApm(headerIndex))
+          .ascii(",\"max_apm\":").number(series.getMaxApm(i))
+          .ascii(",\"max_eapm\":").number(series.getMaxEapm(i)).char('}')
+      }
+      out.ascii("]}")
+    }
+    out.ascii("}\n")
+  }
+
+  private def metrics(exchange: HttpExchange): Unit = {
+    val out = new RecordBuffer
+    def histogram(name: String, h: LatencyHistogram): Unit = {
+      out.ascii(",\"").ascii(name).ascii("\":{\"count\":").number(h.count)
+      for ((key, q) <- ScanService.Percentiles)
+        out.ascii(",\"").ascii(key).ascii("\":").ascii(ScanService.decimal(h.percentileMillis(q)))
+      out.ascii(",\"max\":").ascii(ScanService.decimal(h.maxMillis)).char('}')
+    }
+    val batches = batchesCount.sum
+    out.ascii("{\"requests\":").number(requestsCount.sum)
+      .ascii(",\"failed\":").number(failedCount.sum)
+      .ascii(",\"rejected\":").number(rejectedCount.sum)
+      .ascii(",\"too_large\":").number(tooLargeCount.sum)
+      .ascii(",\"bytes\":").number(bytesCount.sum)
+      .ascii(",\"queued\":").number(queue.size)
+      .ascii(",\"decoders\":").number(decodersCount)
+      .ascii(",\"virtual_threads\":").ascii(virtual.toString)
+      .ascii(",\"batches\":").number(batches)
+      .ascii(",\"avg_batch_size\":").ascii(ScanService.decimal(if (batches == 0) 0 else batchedCount.sum.toDouble / batches))
+    histogram("latency_ms", latency)
+    histogram("queue_ms", queueLatency)
+    histogram("processing_ms", processingLatency)
+    out.ascii("}\n")
+    respond(exchange, 200, "application/json", out.drain())
+  }
+
+  private def respond(exchange: HttpExchange, status: Int, contentType: String, body: Array[Byte]): Unit = {
+    exchange.getResponseHeaders.set("Content-Type", contentType)
+    exchange.sendResponseHeaders(status, if (body.isEmpty) -1 else body.length)
+    if (body.nonEmpty)
+      exchange.getResponseBody.write(body)
+  }
+
+  private def error(message: String): Array[Byte] =
+    new RecordBuffer().ascii("{\"error\":").json(message).ascii("}\n").drain()
+}
+
+object ScanService {
+  /** Default size limit of the replays: 8 MB (replays are rarely larger than 1 MB). */
+  val DefaultMaxRequestBytes: Int = 8 << 20
+  /** Maximum time a request waits for its result. */
+  private val TimeoutSeconds = 30
+  /** Name of the uploaded replays in the error messages. */
+  private val ReplayName = "upload"
+  private val Ok = "ok".getBytes
+  private val Percentiles = Seq("p50" -> 0.5, "p90" -> 0.9, "p99" -> 0.99, "p999" -> 0.999)
+
+  /**
+   * Creates the executor of the requests: virtual threads if supported (looked up reflectively, the tool targets JDK 17),
+   * a cached pool of daemon threads otherwise.
+   * @return the executor and whether it runs virtual threads
+   */
+  private def newRequestExecutor(): (ExecutorService, Boolean) =
+    try {
+      (classOf[Executors].getMethod("newVirtualThreadPerTaskExecutor").invoke(null).asInstanceOf[ExecutorService], true)
+    } catch {
+      case _: ReflectiveOperationException =>
+        val factory: ThreadFactory = runnable => {
+          val thread = new Thread(runnable, "scan-request")
+          thread.setDaemon(true)
+          thread
+        }
+        (Executors.newCachedThreadPool(factory), false)
+    }
+
+  private def isTrue(query: String, name: String): Boolean =
+    query != null && query.split('&').exists(p => p == name || p == name + "=true" || p == name + "=1")
+
+  private def decimal(value: Double): String = String.format(java.util.Locale.ROOT, "%.3f", value)
+}
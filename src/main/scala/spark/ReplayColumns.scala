@@ -0,0 +1,161 @@
+package spark
+
+import control.ReplayScanner
+import model.{Action, HackDescription, Replay, ReplayHeader}
+import org.apache.spark.sql.catalyst.util.GenericArrayData
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+
+/**
+ * State of the row being produced: the replay file, the parsed replay, and the current player, action or hack.
+ */
+private[spark] final class RowContext {
+  var path: UTF8String = _
+  var fileSize: Long = _
+  var replay: Replay = _
+  var playerName: UTF8String = _
+  var action: Action = _
+  var hack: HackDescription = _
+
+  def header: ReplayHeader = replay.replayHeader
+}
+
+/**
+ * A column of a replay table.
+ *
+ * @param name        name of the column
+ * @param dataType    Spark type of the column
+ * @param sections    sections which have to be decoded to produce the column, a combination of the `Sections` flags
+ * @param replayLevel tells if the value is the same for all rows of a replay (such columns can be filtered before decoding the commands)
+ * @param value       returns the value of the column in Spark's internal representation
+ */
+private[spark] final case class ReplayColumn(name: String, dataType: DataType, sections: Int, replayLevel: Boolean, value: RowContext => Any) {
+  def field: StructField = StructField(name, dataType, nullable = true)
+}
+
+/**
+ * Sections of the replay which have to be decoded, flags to be combined with `|`.
+ */
+object Sections {
+  /** Nothing has to be decoded, the value comes from the file listing. */
+  val File = 0
+  /** The replay header: game, map and player infos. */
+  val Header = 1
+  /** The player actions of the commands section. */
+  val Commands = 2
+  /** The game chat (needs the commands). */
+  val Chat = 4
+}
+
+/**
+ * The tables a replay file can be read as: one row per replay, per action, or per hack found by the scanner.
+ */
+private[spark] object ReplayTables {
+  val HeaderTable = "header"
+  val ActionsTable = "actions"
+  val HacksTable = "hacks"
+
+  /** Action names by action name index, chosen like in `Action.toString()`; null for not parsed actions. */
+  private val ActionNames: Array[UTF8String] = Array.tabulate(256) { i =>
+    val name = Action.ACTION_ID_NAME_MAP.get(i.toByte)
+    if (i.toByte == Action.ACTION_NAME_INDEX_UNKNOWN) null
+    else UTF8String.fromString(if (name == null) "0x" + Integer.toHexString(i) else name)
+  }
+  private val HackTypeNames: Array[UTF8String] = HackDescription.HACK_TYPE_NAMES.map(UTF8String.fromString)
+  private val EngineVersion = UTF8String.fromString(ReplayScanner.ENGINE_VERSION)
+
+  private def utf8(s: String): UTF8String = if (s == null) null else UTF8String.fromString(s)
+
+  /** Columns of all tables, they identify the replay and can be used to filter the replays. */
+  private val ReplayColumns = Seq(
+    ReplayColumn("path", StringType, Sections.File, replayLevel = true, _.path),
+    ReplayColumn("fileSize", LongType, Sections.File, replayLevel = true, _.fileSize),
+    ReplayColumn("saveTime", TimestampType, Sections.Header, replayLevel = true, c => c.header.saveTime.getTime * 1000L),
+    ReplayColumn("gameType", StringType, Sections.Header, replayLevel = true, c => utf8(gameTypeName(c.header.gameType))),
+    ReplayColumn("mapName", StringType, Sections.Header, replayLevel = true, c => utf8(c.header.mapName)),
+    ReplayColumn("gameFrames", IntegerType, Sections.Header, replayLevel = true, _.header.gameFrames)
+  )
+
+  private val HeaderColumns = ReplayColumns ++ Seq(
+    ReplayColumn("replayFormat", StringType, Sections.Header, replayLevel = true, c => utf8(ReplayHeader.REPLAY_FORMAT_NAMES(c.header.replayFormat))),
+    ReplayColumn("gameEngine", StringType, Sections.Header, replayLevel = true, c => utf8(c.header.getGameEngineString)),
+    ReplayColumn("gameName", StringType, Sections.Header, replayLevel = true, c => utf8(c.header.gameName)),
+    ReplayColumn("creatorName", StringType, Sections.Header, replayLevel = true, c => utf8(c.header.creatorName)),
+    ReplayColumn("mapWidth", IntegerType, Sections.Header, replayLevel = true, _.header.mapWidth.toInt),
+    ReplayColumn("mapHeight", IntegerType, Sections.Header, replayLevel = true, _.header.mapHeight.toInt),
+    ReplayColumn("gameSpeed", IntegerType, Sections.Header, replayLevel = true, _.header.gameSpeed.toInt),
+    ReplayColumn("durationSeconds", IntegerType, Sections.Header, replayLevel = true, _.header.getDurationSeconds),
+    ReplayColumn("playerNames", ArrayType(StringType), Sections.Header, replayLevel = true,
+      c => new GenericArrayData(playerIndices(c.header).map(i => utf8(c.header.playerNames(i)): Any))),
+    ReplayColumn("playerRaces", ArrayType(StringType), Sections.Header, replayLevel = true,
+      c => new GenericArrayData(playerIndices(c.header).map(i => raceName(c.header.playerRaces(i)): Any))),
+    ReplayColumn("playerActionCounts", ArrayType(IntegerType), Sections.Header | Sections.Commands, replayLevel = true,
+      c => new GenericArrayData(playerIndices(c.header).map(i => actionsCount(c.header, i): Any))),
+    ReplayColumn("playerApms", ArrayType(IntegerType), Sections.Header | Sections.Commands, replayLevel = true,
+      c => new GenericArrayData(playerIndices(c.header).map(i => c.header.getPlayerApm(i): Any))),
+    ReplayColumn("gameChat", StringType, Sections.Header | Sections.Commands | Sections.Chat, replayLevel = true, c => utf8(c.replay.gameChat))
+  )
+
+  private val ActionColumns = ReplayColumns ++ Seq(
+    ReplayColumn("playerName", StringType, Sections.Header | Sections.Commands, replayLevel = false, _.playerName),
+    ReplayColumn("frame", IntegerType, Sections.Header | Sections.Commands, replayLevel = false, _.action.iteration),
+    ReplayColumn("actionId", IntegerType, Sections.Header | Sections.Commands, replayLevel = false, _.action.actionNameIndex & 0xff),
+    ReplayColumn("actionName", StringType, Sections.Header | Sections.Commands, replayLevel = false, c => ActionNames(c.action.actionNameIndex & 0xff)),
+    ReplayColumn("parameters", StringType, Sections.Header | Sections.Commands, replayLevel = false, c => utf8(c.action.parameters)),
+    ReplayColumn("unitId", IntegerType, Sections.Header | Sections.Commands, replayLevel = false,
+      c => if (c.action.parameterUnitNameIndex == Action.UNIT_NAME_INDEX_UNKNOWN) null else c.action.parameterUnitNameIndex.toInt),
+    ReplayColumn("buildingId", IntegerType, Sections.Header | Sections.Commands, replayLevel = false,
+      c => if (c.action.parameterBuildingNameIndex == Action.BUILDING_NAME_INDEX_NON_BUILDING) null else c.action.parameterBuildingNameIndex.toInt)
+  )
+
+  private val HackColumns = ReplayColumns ++ Seq(
+    ReplayColumn("playerName", StringType, Sections.Header | Sections.Commands, replayLevel = false, c => utf8(c.hack.playerName)),
+    ReplayColumn("frame", IntegerType, Sections.Header | Sections.Commands, replayLevel = false, _.hack.iteration),
+    ReplayColumn("hackType", IntegerType, Sections.Header | Sections.Commands, replayLevel = false, _.hack.hackType),
+    ReplayColumn("hackTypeName", StringType, Sections.Header | Sections.Commands, replayLevel = false, c => HackTypeNames(c.hack.hackType)),
+    ReplayColumn("description", StringType, Sections.Header | Sections.Commands, replayLevel = false, c => utf8(c.hack.description)),
+    ReplayColumn("engineVersion", StringType, Sections.Header | Sections.Commands, replayLevel = false, _ => EngineVersion)
+  )
+
+  /**
+   * Returns the columns of a table.
+   * @param table name of the table
+   * @return the columns of the table
+   */
+  def columns(table: String): Seq[ReplayColumn] = table match {
+    case HeaderTable => HeaderColumns
+    case ActionsTable => ActionColumns
+    case HacksTable => HackColumns
+    case _ => throw new IllegalArgumentException(s"Unknown replay table: $table (expected $HeaderTable, $ActionsTable or $HacksTable)")
+  }
+
+  /**
+   * Returns the schema of a table.
+   * @param table name of the table
+   * @return the schema of the table
+   */
+  def schema(table: String): StructType = StructType(columns(table).map(_.field))
+
+  /**
+   * Returns the sections which have to be decoded for a table even if no columns are required (to produce the right number of rows).
+   * @param table name of the table
+   * @return the sections which have to be decoded for the table
+   */
+  def minimumSections(table: String): Int =
+    if (table == HeaderTable) Sections.Header else Sections.Header | Sections.Commands
+
+  /** Indices of the human players (who have a name and a player ID). */
+  private def playerIndices(header: ReplayHeader): Array[Int] =
+    header.playerNames.indices.filter(i => header.playerNames(i) != null && header.playerIds(i) != 0xff).toArray
+
+  private def actionsCount(header: ReplayHeader, playerIndex: Int): Int = {
+    val playerId = header.playerIds(playerIndex)
+    if (playerId < header.playerIdActionsCounts.length) header.playerIdActionsCounts(playerId) else 0
+  }
+
+  private def raceName(race: Byte): UTF8String =
+    if (race >= 0 && race < ReplayHeader.RACE_NAMES.length) UTF8String.fromString(ReplayHeader.RACE_NAMES(race)) else null
+
+  private def gameTypeName(gameType: Short): String =
+    if (gameType >= 0 && gameType < ReplayHeader.GAME_TYPE_NAMES.length) ReplayHeader.GAME_TYPE_NAMES(gameType) else null
+}
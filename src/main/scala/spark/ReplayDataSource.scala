@@ -0,0 +1,201 @@
+package spark
+
+import java.util
+
+import scala.collection.mutable.ArrayBuffer
+import scala.jdk.CollectionConverters._
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FileStatus, Path}
+import org.apache.spark.network.util.JavaUtils
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.connector.catalog.{SupportsRead, Table, TableCapability, TableProvider}
+import org.apache.spark.sql.connector.expressions.Transform
+import org.apache.spark.sql.connector.read._
+import org.apache.spark.sql.sources.{DataSourceRegister, Filter}
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.sql.util.CaseInsensitiveStringMap
+import org.apache.spark.unsafe.types.UTF8String
+
+/**
+ * Spark data source (V2) reading binary replay files.
+ *
+ * {{{
+ * spark.read.format("replay").option("table", "actions").load("replays/BW")
+ * }}}
+ *
+ * Options:
+ *  - `table`: `header` (one row per replay, default), `actions` (one row per player action) or `hacks` (one row per hack found by the scanner)
+ *  - `maxPartitionBytes`: maximum compressed bytes of a partition (e.g. `64m`), a guideline as files are not split (default: `spark.sql.files.maxPartitionBytes`)
+ *  - `openCostInBytes`: estimated cost of a replay file in bytes on top of its size (default: 64 KB)
+ *  - `ignoreCorruptFiles`: skip the files which cannot be read or are not replays instead of failing (default: `spark.sql.files.ignoreCorruptFiles`)
+ *
+ * Paths may be files, directories (searched recursively for `.rep` files) or glob patterns.
+ * Only the sections needed by the required columns are decoded (header columns do not need the commands section),
+ * and filters on the replay columns (path, file size and header fields) are pushed down:
+ * path and file size filters prune files before planning, header filters skip replays before their commands are decoded.
+ */
+class ReplayDataSource extends TableProvider with DataSourceRegister {
+
+  override def shortName(): String = "replay"
+
+  override def inferSchema(options: CaseInsensitiveStringMap): StructType =
+    ReplayTables.schema(options.getOrDefault("table", ReplayTables.HeaderTable))
+
+  override def getTable(schema: StructType, partitioning: Array[Transform], properties: util.Map[String, String]): Table =
+    new ReplayTable(new CaseInsensitiveStringMap(properties))
+}
+
+/**
+ * A replay table: header, actions or hacks rows of the replays of the given paths.
+ */
+private[spark] class ReplayTable(options: CaseInsensitiveStringMap) extends Table with SupportsRead {
+
+  private val tableName = options.getOrDefault("table", ReplayTables.HeaderTable)
+
+  override def name(): String = s"replay.$tableName"
+
+  override def schema(): StructType = ReplayTables.schema(tableName)
+
+  override def capabilities(): util.Set[TableCapability] = util.EnumSet.of(TableCapability.BATCH_READ)
+
+  override def newScanBuilder(scanOptions: CaseInsensitiveStringMap): ScanBuilder = {
+    val mergedOptions = new util.HashMap[String, String](options.asCaseSensitiveMap)
+    mergedOptions.putAll(scanOptions.asCaseSensitiveMap)
+    new ReplayScanBuilder(tableName, new CaseInsensitiveStringMap(mergedOptions))
+  }
+}
+
+/**
+ * Scan builder which records the required columns and the pushed filters.
+ */
+private[spark] class ReplayScanBuilder(table: String, options: CaseInsensitiveStringMap)
+  extends ScanBuilder with SupportsPushDownRequiredColumns with SupportsPushDownFilters {
+
+  private val columnMap = ReplayTables.columns(table).map(c => c.name -> c).toMap
+  private var requiredSchema = ReplayTables.schema(table)
+  private var filters = Array.empty[Filter]
+
+  override def pruneColumns(requiredSchema: StructType): Unit = this.requiredSchema = requiredSchema
+
+  override def pushFilters(filters: Array[Filter]): Array[Filter] = {
+    this.filters = filters.filter(ReplayFilters.isSupported(_, columnMap))
+    // Spark evaluates all filters again, the pushed ones only save decoding
+    filters
+  }
+
+  override def pushedFilters(): Array[Filter] = filters
+
+  override def build(): Scan = new ReplayScan(table, requiredSchema, filters, options)
+}
+
+/**
+ * Scan of the replay files: lists the files and plans them into partitions by size (see [[ReplayPartitions.plan]]).
+ */
+private[spark] class ReplayScan(table: String, requiredSchema: StructType, filters: Array[Filter], options: CaseInsensitiveStringMap)
+  extends Scan with Batch {
+
+  private lazy val session = SparkSession.active
+
+  override def readSchema(): StructType = requiredSchema
+
+  override def description(): String =
+    s"ReplayScan table: $table, columns: ${requiredSchema.fieldNames.mkString("[", ", ", "]")}, pushed filters: ${filters.mkString("[", ", ", "]")}"
+
+  override def toBatch: Batch = this
+
+  override def planInputPartitions(): Array[InputPartition] = {
+    val hadoopConf = newHadoopConf()
+    val files = ReplayScan.listFiles(ReplayScan.getPaths(options), hadoopConf).filter { file =>
+      // Path and file size filters can be decided from the listing
+      val value: String => Option[Any] = {
+        case "path" => Some(UTF8String.fromString(file.getPath.toString))
+        case "fileSize" => Some(file.getLen)
+        case _ => None
+      }
+      filters.forall(ReplayFilters.evaluate(_, value).getOrElse(true))
+    }
+
+    // Byte strings like "128m" are accepted, as by Spark for the session configuration
+    val maxPartitionBytes =
+      if (options.containsKey("maxPartitionBytes")) JavaUtils.byteStringAsBytes(options.get("maxPartitionBytes"))
+      else session.sessionState.conf.filesMaxPartitionBytes
+    val openCostInBytes = options.getLong("openCostInBytes", ReplayScan.DefaultOpenCostInBytes)
+    val totalBytes = files.map(_.getLen + openCostInBytes).sum
+    val partitionsCount = ReplayPartitions.partitionsCount(totalBytes, maxPartitionBytes, openCostInBytes, session.sparkContext.defaultParallelism)
+
+    ReplayPartitions.plan(files.map(file => ReplayFile(file.getPath.toString, file.getLen)), partitionsCount, openCostInBytes)
+      .map(ReplayInputPartition(_): InputPartition)
+  }
+
+  override def createReaderFactory(): PartitionReaderFactory = {
+    val ignoreCorruptFiles = options.getBoolean("ignoreCorruptFiles", session.conf.get("spark.sql.files.ignoreCorruptFiles", "false").toBoolean)
+    new ReplayPartitionReaderFactory(table, requiredSchema, filters, ignoreCorruptFiles,
+      session.sparkContext.broadcast(new SerializableHadoopConf(newHadoopConf())))
+  }
+
+  private def newHadoopConf(): Configuration = {
+    val conf = new Configuration(session.sparkContext.hadoopConfiguration)
+    options.asCaseSensitiveMap.asScala.foreach { case (key, value) => conf.set(key, value) }
+    conf
+  }
+}
+
+private[spark] object ReplayScan {
+
+  /** Estimated cost of a replay file in bytes on top of its size: a replay decodes to several times its compressed size. */
+  val DefaultOpenCostInBytes: Long = 64 * 1024
+
+  /**
+   * Returns the paths of the options: the `path` option or the `paths` option (JSON array, set by Spark for multiple paths).
+   */
+  def getPaths(options: CaseInsensitiveStringMap): Seq[String] = {
+    val paths = ArrayBuffer[String]()
+    if (options.containsKey("path"))
+      paths += options.get("path")
+    if (options.containsKey("paths"))
+      paths ++= new ObjectMapper().readValue(options.get("paths"), classOf[Array[String]])
+    if (paths.isEmpty)
+      throw new IllegalArgumentException("No replay paths specified!")
+    paths.toSeq
+  }
+
+  /**
+   * Lists the replay files of paths: files, directories (recursively) and glob patterns.
+   * @return the replay files sorted by path
+   */
+  def listFiles(paths: Seq[String], hadoopConf: Configuration): Seq[FileStatus] = {
+    val files = ArrayBuffer[FileStatus]()
+    def addFiles(status: FileStatus): Unit =
+      if (status.isDirectory) {
+        val fs = status.getPath.getFileSystem(hadoopConf)
+        fs.listStatus(status.getPath).foreach(addFiles)
+      }
+      else if (status.getPath.getName.toLowerCase.endsWith(".rep"))
+        files += status
+
+    for (path <- paths) {
+      val hadoopPath = new Path(path)
+      val fs = hadoopPath.getFileSystem(hadoopConf)
+      val statuses = fs.globStatus(hadoopPath)
+      if (statuses == null || (statuses.isEmpty && !isGlob(path)))
+        throw new IllegalArgumentException(s"Path does not exist: $path")
+      statuses.foreach { status =>
+        // Files given explicitly are read regardless of their extension
+        if (status.isFile) files += status else addFiles(status)
+      }
+    }
+    files.distinct.sortBy(_.getPath.toString).toSeq
+  }
+
+  private def isGlob(path: String): Boolean = path.exists("*?[{".contains(_))
+}
+
+/**
+ * A partition of replay files.
+ * @param files the replay files
+ */
+private[spark] case class ReplayInputPartition(files: Array[ReplayFile]) extends InputPartition {
+  def totalBytes: Long = files.map(_.size).sum
+}
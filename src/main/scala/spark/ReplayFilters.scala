@@ -0,0 +1,95 @@
+package spark
+
+import java.sql.Timestamp
+import java.time.Instant
+
+import org.apache.spark.sql.sources._
+import org.apache.spark.unsafe.types.UTF8String
+
+/**
+ * Evaluation of the filters pushed down to the replay reader.
+ *
+ * Only filters on replay level columns which are available before the commands are decoded are pushed
+ * (path, file size and the header columns). They are evaluated on the file listing when possible (path and file size),
+ * otherwise right after the header is parsed, so the commands of filtered out replays are never decoded.
+ */
+private[spark] object ReplayFilters {
+
+  /**
+   * Tells if a filter can be pushed down.
+   * @param filter  filter to be tested
+   * @param columns columns of the table by name
+   * @return true if the filter only refers to columns which are known before decoding the commands
+   */
+  def isSupported(filter: Filter, columns: Map[String, ReplayColumn]): Boolean = filter match {
+    case And(left, right) => isSupported(left, columns) && isSupported(right, columns)
+    case Or(left, right) => isSupported(left, columns) && isSupported(right, columns)
+    case Not(child) => isSupported(child, columns)
+    case EqualTo(_, _) | EqualNullSafe(_, _) | GreaterThan(_, _) | GreaterThanOrEqual(_, _) | LessThan(_, _) | LessThanOrEqual(_, _)
+         | In(_, _) | IsNull(_) | IsNotNull(_) | StringStartsWith(_, _) | StringEndsWith(_, _) | StringContains(_, _) =>
+      filter.references.forall { name =>
+        columns.get(name).exists(c => c.replayLevel && (c.sections & Sections.Commands) == 0 && !c.dataType.isInstanceOf[org.apache.spark.sql.types.ArrayType])
+      }
+    case _ => false
+  }
+
+  /**
+   * Evaluates a filter.
+   * @param filter filter to be evaluated
+   * @param value  returns the value of a column in Spark's internal representation; `None` if it is not known yet
+   * @return the result of the filter; `None` if it cannot be decided because of unknown values
+   */
+  def evaluate(filter: Filter, value: String => Option[Any]): Option[Boolean] = filter match {
+    case And(left, right) =>
+      (evaluate(left, value), evaluate(right, value)) match {
+        case (Some(false), _) | (_, Some(false)) => Some(false)
+        case (Some(true), Some(true)) => Some(true)
+        case _ => None
+      }
+    case Or(left, right) =>
+      (evaluate(left, value), evaluate(right, value)) match {
+        case (Some(true), _) | (_, Some(true)) => Some(true)
+        case (Some(false), Some(false)) => Some(false)
+        case _ => None
+      }
+    case Not(child) => evaluate(child, value).map(!_)
+    case IsNull(attribute) => value(attribute).map(_ == null)
+    case IsNotNull(attribute) => value(attribute).map(_ != null)
+    case EqualNullSafe(attribute, literal) => value(attribute).map(v => if (v == null || literal == null) v == null && literal == null else compare(v, literal) == 0)
+    case EqualTo(attribute, literal) => compareWith(attribute, literal, value)(_ == 0)
+    case GreaterThan(attribute, literal) => compareWith(attribute, literal, value)(_ > 0)
+    case GreaterThanOrEqual(attribute, literal) => compareWith(attribute, literal, value)(_ >= 0)
+    case LessThan(attribute, literal) => compareWith(attribute, literal, value)(_ < 0)
+    case LessThanOrEqual(attribute, literal) => compareWith(attribute, literal, value)(_ <= 0)
+    case In(attribute, literals) => value(attribute).map(v => v != null && literals.exists(l => l != null && compare(v, l) == 0))
+    case StringStartsWith(attribute, prefix) => stringTest(attribute, value)(_.startsWith(prefix))
+    case StringEndsWith(attribute, suffix) => stringTest(attribute, value)(_.endsWith(suffix))
+    case StringContains(attribute, part) => stringTest(attribute, value)(_.contains(part))
+    case _ => None
+  }
+
+  private def compareWith(attribute: String, literal: Any, value: String => Option[Any])(test: Int => Boolean): Option[Boolean] =
+    value(attribute).map(v => v != null && literal != null && test(compare(v, literal)))
+
+  private def stringTest(attribute: String, value: String => Option[Any])(test: String => Boolean): Option[Boolean] =
+    value(attribute).map(v => v != null && test(v.toString))
+
+  /**
+   * Compares a column value (internal representation) with a filter literal (external representation).
+   * Timestamps are compared in microseconds, numbers as longs or doubles, everything else as strings.
+   */
+  private def compare(value: Any, literal: Any): Int = (value, literal) match {
+    case (v: Long, t: Timestamp) => java.lang.Long.compare(v, t.getTime * 1000L + t.getNanos / 1000 % 1000)
+    case (v: Long, i: Instant) => java.lang.Long.compare(v, i.getEpochSecond * 1000000L + i.getNano / 1000)
+    case (v: Number, l: Number) =>
+      if (isIntegral(v) && isIntegral(l)) java.lang.Long.compare(v.longValue, l.longValue)
+      else java.lang.Double.compare(v.doubleValue, l.doubleValue)
+    case (v: UTF8String, l) => v.toString.compareTo(l.toString)
+    case (v, l) => v.toString.compareTo(l.toString)
+  }
+
+  private def isIntegral(n: Number): Boolean = n match {
+    case _: java.lang.Long | _: java.lang.Integer | _: java.lang.Short | _: java.lang.Byte => true
+    case _ => false
+  }
+}
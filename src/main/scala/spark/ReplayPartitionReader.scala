@@ -0,0 +1,170 @@
+package spark
+
+import java.io.{IOException, ObjectInputStream, ObjectOutputStream}
+
+import control.ReplayScanner
+import model.Replay
+import org.apache.hadoop.conf.Configuration
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.GenericInternalRow
+import org.apache.spark.sql.connector.read.{InputPartition, PartitionReader, PartitionReaderFactory}
+import org.apache.spark.sql.sources.Filter
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.unsafe.types.UTF8String
+
+/**
+ * Hadoop configuration which can be broadcast to the executors.
+ */
+private[spark] class SerializableHadoopConf(@transient var value: Configuration) extends Serializable {
+  private def writeObject(out: ObjectOutputStream): Unit = {
+    out.defaultWriteObject()
+    value.write(out)
+  }
+
+  private def readObject(in: ObjectInputStream): Unit = {
+    value = new Configuration(false)
+    value.readFields(in)
+  }
+}
+
+/**
+ * Creates the readers of the replay partitions.
+ */
+private[spark] class ReplayPartitionReaderFactory(table: String, requiredSchema: StructType, filters: Array[Filter],
+                                                  ignoreCorruptFiles: Boolean, hadoopConf: Broadcast[SerializableHadoopConf])
+  extends PartitionReaderFactory {
+
+  override def createReader(partition: InputPartition): PartitionReader[InternalRow] =
+    new ReplayPartitionReader(table, requiredSchema, filters, ignoreCorruptFiles, hadoopConf.value.value, partition.asInstanceOf[ReplayInputPartition])
+}
+
+/**
+ * Reads the rows of the replays of a partition.
+ *
+ * Replays are read one by one with a [[ReplayDecoder]] (reused buffer and unpacker). Only the sections needed by the required columns are decoded;
+ * if filters were pushed, the header is parsed first and the rest of the replay is only decoded (continuing after the header) if the filters pass.
+ * The returned row is reused.
+ */
+private[spark] class ReplayPartitionReader(table: String, requiredSchema: StructType, filters: Array[Filter],
+                                           ignoreCorruptFiles: Boolean, hadoopConf: Configuration, partition: ReplayInputPartition)
+  extends PartitionReader[InternalRow] {
+
+  private val columnMap = ReplayTables.columns(table).map(c => c.name -> c).toMap
+  private val columns = requiredSchema.fieldNames.map(columnMap)
+  private val sections = columns.foldLeft(ReplayTables.minimumSections(table))(_ | _.sections)
+  private val filterColumns = filters.flatMap(_.references).distinct.map(columnMap)
+
+  private val context = new RowContext
+  private val values = new Array[Any](columns.length)
+  private val row = new GenericInternalRow(values)
+
+  private val decoder = new ReplayDecoder(hadoopConf)
+  private var fileIndex = -1
+  /** Number of rows of the current replay. */
+  private var rowsCount = 0
+  /** Index of the next row of the current replay. */
+  private var rowIndex = 0
+  /** Player of the current action and index of the current action (actions table). */
+  private var playerIndex = 0
+  private var actionIndex = 0
+  /** Hacks of the current replay (hacks table). */
+  private var hacks: java.util.List[model.HackDescription] = _
+
+  override def next(): Boolean = {
+    while (rowIndex >= rowsCount) {
+      fileIndex += 1
+      if (fileIndex >= partition.files.length)
+        return false
+      openReplay(partition.files(fileIndex))
+    }
+    advanceRow()
+    var i = 0
+    while (i < columns.length) {
+      values(i) = columns(i).value(context)
+      i += 1
+    }
+    true
+  }
+
+  override def get(): InternalRow = row
+
+  override def close(): Unit = decoder.close()
+
+  /**
+   * Reads and parses a replay, and prepares its rows.
+   */
+  private def openReplay(file: ReplayFile): Unit = {
+    rowsCount = 0
+    rowIndex = 0
+    context.path = UTF8String.fromString(file.path)
+    context.fileSize = file.size
+    // A file which is not a replay is corrupt, a replay filtered out is null
+    val replay = try {
+      decoder.read(file)
+      parse(file.path)
+    } catch {
+      case e: Exception =>
+        if (!ignoreCorruptFiles)
+          throw new IOException(s"Failed to read replay: ${file.path}", e)
+        null
+    }
+    if (replay == null)
+      return
+    context.replay = replay
+
+    table match {
+      case ReplayTables.HeaderTable =>
+        rowsCount = 1
+      case ReplayTables.ActionsTable =>
+        playerIndex = 0
+        actionIndex = 0
+        rowsCount = replay.replayActions.players.map(_.actions.length).sum
+      case ReplayTables.HacksTable =>
+        hacks = ReplayScanner.scanReplayForHacks(replay, false)
+        rowsCount = hacks.size
+      case _ => throw new IllegalArgumentException(s"Unknown table: $table")
+    }
+  }
+
+  /**
+   * Parses the replay read by the decoder.
+   * @return the parsed replay; or null if it is filtered out
+   * @throws IOException if the file is not a replay
+   */
+  private def parse(path: String): Replay = {
+    if (filterColumns.isEmpty)
+      return checkReplay(decoder.parse(path, sections))
+
+    val header = checkReplay(decoder.parse(path, Sections.Header))
+    context.replay = header
+    val value: String => Option[Any] = name => Some(columnMap(name).value(context))
+    if (filters.forall(ReplayFilters.evaluate(_, value).getOrElse(true))) checkReplay(decoder.parseRest(path, header, sections)) else null
+  }
+
+  /** Returns a parsed replay, throws an IOException if it is null (the file is not a replay). */
+  private def checkReplay(replay: Replay): Replay =
+    if (replay == null) throw new IOException("Not a replay file!") else replay
+
+  /**
+   * Moves the context to the next row of the current replay.
+   */
+  private def advanceRow(): Unit = {
+    table match {
+      case ReplayTables.ActionsTable =>
+        val players = context.replay.replayActions.players
+        while (actionIndex >= players(playerIndex).actions.length) {
+          playerIndex += 1
+          actionIndex = 0
+        }
+        if (actionIndex == 0)
+          context.playerName = UTF8String.fromString(players(playerIndex).playerName)
+        context.action = players(playerIndex).actions(actionIndex)
+        actionIndex += 1
+      case ReplayTables.HacksTable =>
+        context.hack = hacks.get(rowIndex)
+      case _ =>
+    }
+    rowIndex += 1
+  }
+}
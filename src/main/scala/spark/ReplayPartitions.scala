@@ -0,0 +1,234 @@
+package spark
+
+import java.io.{Closeable, IOException}
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.reflect.ClassTag
+
+import control.{BinRepParser, BinReplayUnpacker}
+import model.Replay
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.spark.{SparkContext, TaskContext}
+import org.apache.spark.rdd.RDD
+
+/**
+ * A replay file to be decoded.
+ * @param path path of the replay file (any Hadoop file system)
+ * @param size size of the replay file in bytes
+ */
+final case class ReplayFile(path: String, size: Long)
+
+/**
+ * Decoding context of a partition: reads replay files into a reused buffer and parses them with a reused unpacker,
+ * so the read buffer and the unpacker buffers are allocated once per partition instead of once per replay.
+ *
+ * Not thread-safe, create one per partition (task) and close it when the partition is done.
+ *
+ * @param hadoopConf Hadoop configuration to access the file systems of the replays
+ */
+final class ReplayDecoder(hadoopConf: Configuration) extends Closeable {
+
+  private var buffer = new Array[Byte](1 << 16)
+  /** Length of the replay in the buffer. */
+  private var length = 0
+  private var unpacker: BinReplayUnpacker = _
+
+  /**
+   * Reads a replay file into the buffer, replacing the previously read one.
+   * @param file replay file to be read
+   */
+  def read(file: ReplayFile): Unit = {
+    if (file.size > Int.MaxValue)
+      throw new IOException(s"Replay too big: ${file.path}")
+    val size = file.size.toInt
+    if (buffer.length < size)
+      buffer = new Array[Byte](math.max(size, buffer.length * 2))
+    val hadoopPath = new Path(file.path)
+    val input = hadoopPath.getFileSystem(hadoopConf).open(hadoopPath)
+    try {
+      input.readFully(0, buffer, 0, size)
+    } finally {
+      input.close()
+    }
+    length = size
+  }
+
+  /**
+   * Parses the replay read last. It can be parsed several times, e.g. the header first to decide if the commands are needed.
+   * @param name     name of the replay to be reported in the parse metrics
+   * @param sections sections to be decoded, a combination of the [[Sections]] flags
+   * @return the parsed replay; or null if it is not a replay
+   */
+  def parse(name: String, sections: Int): Replay = {
+    if (unpacker == null)
+      unpacker = new BinReplayUnpacker(buffer, 0, length)
+    else
+      unpacker.reset(buffer, 0, length)
+    BinRepParser.parseReplay(unpacker, name, (sections & Sections.Commands) != 0, (sections & Sections.Chat) != 0, false, false)
+  }
+
+  /**
+   * Parses the rest of the replay read last, after its header was parsed with [[parse]] with the header section only.
+   * The header is not unpacked and parsed again; nothing else may be parsed in between.
+   * @param name     name of the replay to be reported in the parse metrics
+   * @param header   the replay parsed with the header section only
+   * @param sections sections to be decoded, a combination of the [[Sections]] flags
+   * @return the parsed replay, with the header of `header`
+   */
+  def parseRest(name: String, header: Replay, sections: Int): Replay =
+    if ((sections & Sections.Commands) == 0) header
+    else BinRepParser.parseCommands(unpacker, name, header.replayHeader, (sections & Sections.Chat) != 0, false, false)
+
+  /**
+   * Reads and parses a replay file.
+   * @param file     replay file to be decoded
+   * @param sections sections to be decoded, a combination of the [[Sections]] flags
+   * @return the parsed replay; or null if it is not a replay
+   */
+  def decode(file: ReplayFile, sections: Int): Replay = {
+    read(file)
+    parse(file.path, sections)
+  }
+
+  /** Releases the unpacker (its inflater is returned to the pool). */
+  override def close(): Unit =
+    if (unpacker != null) {
+      unpacker.close()
+      unpacker = null
+    }
+}
+
+/**
+ * Partition-level decoding of replay files for RDD jobs.
+ *
+ * {{{
+ * val files = ReplayPartitions.replayFiles(sc, Seq("replays/BW"))
+ * val apms = ReplayPartitions.mapReplays(files, Sections.Header | Sections.Commands)(() => new StringBuilder) {
+ *   (builder, file, replay) =>
+ *     builder.setLength(0)
+ *     Iterator.single(builder.append(file.path).append('\t').append(replay.replayHeader.getPlayerApm(0)).toString)
+ * }
+ * }}}
+ *
+ * Files are planned into partitions by their compressed size (not by their count), so a few long games
+ * do not end up in the same partition and make it a straggler.
+ */
+object ReplayPartitions {
+
+  /**
+   * Plans replay files into partitions by size with the longest processing time first rule:
+   * files are taken by size descending, each file goes into the partition with the smallest total size so far.
+   * The biggest partition is at most 4/3 of the optimum.
+   * @param files           replay files to be planned
+   * @param partitionsCount number of partitions to be made (less if there are less files)
+   * @param openCostInBytes estimated cost of a file in bytes on top of its size
+   * @return the files of the partitions
+   */
+  def plan(files: Seq[ReplayFile], partitionsCount: Int, openCostInBytes: Long): Array[Array[ReplayFile]] = {
+    if (files.isEmpty)
+      return Array.empty
+    val count = math.max(1, math.min(partitionsCount, files.length))
+    val loads = new Array[Long](count)
+    val partitions = Array.fill(count)(ArrayBuffer[ReplayFile]())
+    // Least loaded partition first, lower index first on ties so the plan is deterministic
+    val queue = mutable.PriorityQueue.from(0 until count)(new Ordering[Int] {
+      override def compare(x: Int, y: Int): Int = {
+        val c = java.lang.Long.compare(loads(y), loads(x))
+        if (c != 0) c else Integer.compare(y, x)
+      }
+    })
+    for (file <- files.sortBy(file => (-file.size, file.path))) {
+      val i = queue.dequeue()
+      partitions(i) += file
+      loads(i) = loads(i) + file.size + openCostInBytes
+      queue.enqueue(i)
+    }
+    partitions.map(_.toArray)
+  }
+
+  /**
+   * Returns the number of partitions for files like Spark's file sources do: enough partitions to use all cores,
+   * but partitions not bigger than the max partition bytes and not smaller than a file open.
+   * @param totalBytes         total size of the files including the open costs
+   * @param maxPartitionBytes  maximum bytes of a partition
+   * @param openCostInBytes    estimated cost of a file in bytes on top of its size
+   * @param defaultParallelism default parallelism of the cluster
+   * @return the number of partitions
+   */
+  def partitionsCount(totalBytes: Long, maxPartitionBytes: Long, openCostInBytes: Long, defaultParallelism: Int): Int = {
+    val splitBytes = math.max(1L, math.min(maxPartitionBytes, math.max(openCostInBytes, totalBytes / math.max(1, defaultParallelism))))
+    math.max(1L, math.min(Int.MaxValue, (totalBytes + splitBytes - 1) / splitBytes)).toInt
+  }
+
+  /**
+   * Lists the replay files of paths and distributes them into partitions planned by size.
+   * @param sc              Spark context
+   * @param paths           files, directories (searched recursively for `.rep` files) or glob patterns
+   * @param partitionsCount number of partitions (default: the default parallelism of the cluster)
+   * @param openCostInBytes estimated cost of a file in bytes on top of its size
+   * @return the replay files, one partition of the RDD for each planned partition
+   */
+  def replayFiles(sc: SparkContext, paths: Seq[String], partitionsCount: Int = -1,
+                  openCostInBytes: Long = ReplayScan.DefaultOpenCostInBytes): RDD[ReplayFile] = {
+    val files = ReplayScan.listFiles(paths, sc.hadoopConfiguration).map(status => ReplayFile(status.getPath.toString, status.getLen))
+    val partitions = plan(files, if (partitionsCount > 0) partitionsCount else sc.defaultParallelism, openCostInBytes)
+    // One element per slice, so each planned partition becomes an RDD partition
+    sc.parallelize(partitions.toSeq, math.max(1, partitions.length)).flatMap(_.iterator)
+  }
+
+  /**
+   * Decodes the replays of each partition with one decoder and one output builder per partition.
+   * @param files              replay files to be decoded
+   * @param sections           sections to be decoded, a combination of the [[Sections]] flags
+   * @param ignoreCorruptFiles skip replays which cannot be read or parsed instead of failing the task
+   * @param newBuilder         creates the output builder of a partition (called once per partition)
+   * @param f                  produces the output of a replay, it gets the builder of the partition, the file and the parsed replay
+   * @return the outputs of the replays
+   */
+  def mapReplays[B, T: ClassTag](files: RDD[ReplayFile], sections: Int, ignoreCorruptFiles: Boolean = false)
+                                (newBuilder: () => B)(f: (B, ReplayFile, Replay) => IterableOnce[T]): RDD[T] = {
+    val hadoopConf = files.sparkContext.broadcast(new SerializableHadoopConf(files.sparkContext.hadoopConfiguration))
+    files.mapPartitions(iterator => decode(iterator, hadoopConf.value.value, sections, ignoreCorruptFiles)(newBuilder())(f))
+  }
+
+  /**
+   * Decodes replay files with one decoder, to be used in `mapPartitions()`.
+   * The decoder is closed when the returned iterator is exhausted or fails, or when the Spark task completes
+   * (if called in a task), so it is also closed if the iterator is not consumed to the end.
+   * @param files              replay files to be decoded
+   * @param hadoopConf         Hadoop configuration to access the file systems of the replays
+   * @param sections           sections to be decoded, a combination of the [[Sections]] flags
+   * @param ignoreCorruptFiles skip replays which cannot be read or parsed instead of failing
+   * @param builder            output builder passed to each call of `f`
+   * @param f                  produces the output of a replay, it gets the builder, the file and the parsed replay
+   * @return the outputs of the replays
+   */
+  def decode[B, T](files: Iterator[ReplayFile], hadoopConf: Configuration, sections: Int, ignoreCorruptFiles: Boolean)
+                  (builder: B)(f: (B, ReplayFile, Replay) => IterableOnce[T]): Iterator[T] = {
+    val decoder = new ReplayDecoder(hadoopConf)
+    val outputs = files.flatMap { file =>
+      val replay = try {
+        decoder.decode(file, sections)
+      } catch {
+        case e: Exception =>
+          if (!ignoreCorruptFiles)
+            throw new IOException(s"Failed to read replay: ${file.path}", e)
+          null
+      }
+      if (replay == null) Iterator.empty else f(builder, file, replay)
+    }
+    Option(TaskContext.get()).foreach(_.addTaskCompletionListener[Unit](_ => decoder.close()))
+    def closeOnFailure[A](body: => A): A =
+      try body catch {
+        case e: Throwable =>
+          decoder.close()
+          throw e
+      }
+    new Iterator[T] {
+      override def hasNext: Boolean = closeOnFailure(outputs.hasNext || { decoder.close(); false })
+      override def next(): T = closeOnFailure(outputs.next())
+    }
+  }
+}
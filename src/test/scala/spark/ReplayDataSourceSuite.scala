@@ -0,0 +1,147 @@
+package spark
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+
+import control.SyntheticReplayGenerator
+import org.apache.spark.SparkException
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.functions.col
+import org.apache.spark.sql.types.{ArrayType, IntegerType, LongType, StringType, TimestampType}
+import org.scalatest.BeforeAndAfterAll
+import org.scalatest.funsuite.AnyFunSuite
+
+/**
+ * Tests of the replay data source in Spark local mode, on a corpus of synthetic replays.
+ */
+class ReplayDataSourceSuite extends AnyFunSuite with BeforeAndAfterAll {
+
+  private val ReplaysCount = 12
+
+  private var spark: SparkSession = _
+  private var tempFolder: File = _
+  /** Folder of the synthetic replays. */
+  private var corpusFolder: File = _
+  /** Folder of a replay and a file which is not a replay. */
+  private var corruptFolder: File = _
+
+  override def beforeAll(): Unit = {
+    tempFolder = Files.createTempDirectory("replay-data-source").toFile
+    corpusFolder = new File(tempFolder, "corpus")
+    val generator = new SyntheticReplayGenerator(42)
+    generator.minGameFrames = 2 * SyntheticReplayGenerator.FRAMES_PER_MINUTE
+    generator.maxGameFrames = 6 * SyntheticReplayGenerator.FRAMES_PER_MINUTE
+    generator.writeCorpus(corpusFolder, 0, ReplaysCount, 4)
+
+    corruptFolder = new File(tempFolder, "corrupt")
+    corruptFolder.mkdirs()
+    Files.copy(corpusFolder.listFiles().head.toPath, new File(corruptFolder, "good.rep").toPath, StandardCopyOption.REPLACE_EXISTING)
+    Files.write(new File(corruptFolder, "bad.rep").toPath, "This is not a replay.".getBytes(StandardCharsets.US_ASCII))
+
+    spark = SparkSession.builder()
+      .master("local[2]")
+      .appName("ReplayDataSourceSuite")
+      .config("spark.ui.enabled", "false")
+      .config("spark.sql.shuffle.partitions", "2")
+      .getOrCreate()
+  }
+
+  override def afterAll(): Unit = {
+    if (spark != null)
+      spark.stop()
+    if (tempFolder != null)
+      deleteRecursively(tempFolder)
+  }
+
+  private def deleteRecursively(file: File): Unit = {
+    Option(file.listFiles()).foreach(_.foreach(deleteRecursively))
+    file.delete()
+  }
+
+  private def read(table: String, options: (String, String)*) =
+    spark.read.format("replay").option("table", table).options(options.toMap).load(corpusFolder.getPath)
+
+  test("schema of the tables") {
+    for (table <- Seq(ReplayTables.HeaderTable, ReplayTables.ActionsTable, ReplayTables.HacksTable))
+      assert(read(table).schema === ReplayTables.schema(table))
+
+    val header = read(ReplayTables.HeaderTable).schema
+    assert(header("path").dataType === StringType)
+    assert(header("fileSize").dataType === LongType)
+    assert(header("saveTime").dataType === TimestampType)
+    assert(header("gameFrames").dataType === IntegerType)
+    assert(header("playerNames").dataType === ArrayType(StringType))
+    assert(read(ReplayTables.ActionsTable).schema.fieldNames.contains("actionName"))
+    assert(read(ReplayTables.HacksTable).schema.fieldNames.contains("hackTypeName"))
+  }
+
+  test("header rows") {
+    val rows = read(ReplayTables.HeaderTable).select("path", "fileSize", "mapWidth", "playerNames").collect()
+    assert(rows.length === ReplaysCount)
+    val sizes = corpusFolder.listFiles().map(file => file.getName -> file.length).toMap
+    for (row <- rows) {
+      assert(row.getLong(1) === sizes(new File(row.getString(0)).getName))
+      assert(row.getInt(2) === 128)
+      assert(row.getSeq[String](3).length === 2)
+    }
+  }
+
+  test("actions rows") {
+    val files = ReplayPartitions.replayFiles(spark.sparkContext, Seq(corpusFolder.getPath))
+    val expected = ReplayPartitions.mapReplays(files, Sections.Header | Sections.Commands)(() => ()) {
+      (_, _, replay) => Iterator.single(replay.replayActions.players.map(_.actions.length.toLong).sum)
+    }.sum().toLong
+    assert(expected > 0)
+    assert(read(ReplayTables.ActionsTable).count() === expected)
+    assert(read(ReplayTables.ActionsTable).select("frame").count() === expected)
+  }
+
+  test("filters are pushed down") {
+    val gameFrames = read(ReplayTables.HeaderTable).select("gameFrames").collect().map(_.getInt(0)).sorted
+    val threshold = gameFrames(ReplaysCount / 2)
+
+    val filtered = read(ReplayTables.HeaderTable).filter(col("gameFrames") >= threshold)
+    assert(filtered.queryExecution.executedPlan.toString.contains("pushed filters: [IsNotNull(gameFrames), GreaterThanOrEqual(gameFrames,"))
+    assert(filtered.count() === gameFrames.count(_ >= threshold))
+    // Header filters also skip the replays of the actions table
+    assert(read(ReplayTables.ActionsTable).filter(col("gameFrames") >= threshold).select("path").distinct().count() === gameFrames.count(_ >= threshold))
+
+    // Path filters prune the files before planning
+    val byPath = read(ReplayTables.HeaderTable).filter(col("path").endsWith("synthetic-000003.rep"))
+    assert(byPath.rdd.getNumPartitions === 1)
+    assert(byPath.count() === 1)
+  }
+
+  test("files are planned into partitions by size") {
+    val sizes = Seq(70L, 60L, 50L, 40L, 30L, 20L, 10L)
+    val partitions = ReplayPartitions.plan(sizes.map(size => ReplayFile(s"r$size.rep", size)), 3, 0)
+    assert(partitions.map(_.map(_.size).toSeq).toSeq === Seq(Seq(70L, 20L, 10L), Seq(60L, 30L), Seq(50L, 40L)))
+    assert(ReplayPartitions.plan(sizes.map(size => ReplayFile(s"r$size.rep", size)), 10, 0).length === sizes.length)
+    assert(ReplayPartitions.plan(Seq.empty, 3, 0).isEmpty)
+
+    assert(ReplayPartitions.partitionsCount(1000, 300, 10, 2) === 4)
+    assert(ReplayPartitions.partitionsCount(1000, 300, 10, 8) === 8)
+    assert(ReplayPartitions.partitionsCount(1000, 300, 500, 8) === 4)
+  }
+
+  test("partitions of the scan") {
+    // Small partitions: one file per partition
+    assert(read(ReplayTables.HeaderTable, "maxPartitionBytes" -> "1k", "openCostInBytes" -> "0").rdd.getNumPartitions === ReplaysCount)
+
+    val totalBytes = corpusFolder.listFiles().map(_.length + ReplayScan.DefaultOpenCostInBytes).sum
+    val expected = ReplayPartitions.partitionsCount(totalBytes, 128L << 20, ReplayScan.DefaultOpenCostInBytes, spark.sparkContext.defaultParallelism)
+    val df = read(ReplayTables.HeaderTable, "maxPartitionBytes" -> "128m")
+    assert(df.rdd.getNumPartitions === expected)
+    assert(df.count() === ReplaysCount)
+  }
+
+  test("files which are not replays are corrupt") {
+    def header(ignoreCorruptFiles: Boolean) =
+      spark.read.format("replay").option("ignoreCorruptFiles", ignoreCorruptFiles.toString).load(corruptFolder.getPath)
+
+    val e = intercept[SparkException](header(false).collect())
+    assert(e.getMessage.contains("bad.rep"))
+    assert(header(true).count() === 1)
+  }
+}